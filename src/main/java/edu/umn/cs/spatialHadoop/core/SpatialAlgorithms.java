@@ -34,17 +34,22 @@ import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.RecordReader;
 import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.util.IndexedSortable;
+import org.apache.hadoop.util.QuickSort;
 
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryCollection;
 import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
 
 import edu.umn.cs.spatialHadoop.OperationsParams;
 import edu.umn.cs.spatialHadoop.mapreduce.SpatialInputFormat3;
 import edu.umn.cs.spatialHadoop.mapreduce.SpatialRecordReader3;
 import edu.umn.cs.spatialHadoop.nasa.HDFRecordReader;
 import edu.umn.cs.spatialHadoop.util.BitArray;
+import edu.umn.cs.spatialHadoop.util.IntArray;
 import edu.umn.cs.spatialHadoop.util.Progressable;
 
 /**
@@ -96,6 +101,13 @@ class TOPK {
 
 public class SpatialAlgorithms {
   public static final Log LOG = LogFactory.getLog(SpatialAlgorithms.class);
+
+  /**
+   * The name of the configuration line that sets the distance for a distance
+   * join. Pairs of shapes within this distance are joined instead of pairs of
+   * overlapping shapes.
+   */
+  public static final String DistanceJoinEpsilon = "epsilon";
   
   public static<S1 extends Shape, S2 extends Shape> int SpatialJoin_planeSweepFilterOnly(
 	      final List<S1> R, final List<S2> S, final ResultCollector2<S1, S2> output,
@@ -104,35 +116,28 @@ public class SpatialAlgorithms {
 	  
 	  	LOG.debug("Start spatial join plan sweep algorithm !!!");
 	  
-	    final RectangleID[] Rmbrs = new RectangleID[R.size()];
-	    for (int i = 0; i < R.size(); i++) {
-	      Rmbrs[i] = new RectangleID(i, R.get(i).getMBR());
+	    MBRArrays rMBRs = new MBRArrays(R);
+	    MBRArrays sMBRs = new MBRArrays(S);
+	    IntArray pairs = output == null ? null : new IntArray();
+	    int count = SpatialJoin_rectangles(rMBRs.x1, rMBRs.y1, rMBRs.x2, rMBRs.y2,
+	        sMBRs.x1, sMBRs.y1, sMBRs.x2, sMBRs.y2, pairs,
+	        reporter == null ? null : new Progressable.ReporterProgressable(reporter));
+	    if (output != null) {
+	      int[] ids = pairs.underlyingArray();
+	      for (int i = 0; i < pairs.size(); i += 2)
+	        output.collect(R.get(rMBRs.ids[ids[i]]), S.get(sMBRs.ids[ids[i + 1]]));
 	    }
-	    final RectangleID[] Smbrs = new RectangleID[S.size()];
-	    for (int i = 0; i < S.size(); i++) {
-	      Smbrs[i] = new RectangleID(i, S.get(i).getMBR());
-	    }	    
-	    
-	    final IntWritable count = new IntWritable();
-	    int filterCount = SpatialJoin_rectangles(Rmbrs, Smbrs, new OutputCollector<RectangleID, RectangleID>() {
-	        @Override
-	        public void collect(RectangleID r1, RectangleID r2)
-	            throws IOException {
-	          //if (R.get(r1.id).isIntersected(S.get(r2.id))) {
-	            if (output != null)
-	              output.collect(R.get(r1.id), S.get(r2.id));
-	            count.set(count.get() + 1);
-	          //}
-	        }
-	    }, reporter);
 	      
-	      LOG.debug("Filtered result size "+filterCount+", refined result size "+count.get());
+	    LOG.debug("Filtered result size "+count);
 	      
-	      return count.get();
+	    return count;
 	}
 
   
   /**
+   * Joins two lists of shapes using the plane-sweep algorithm. If one list
+   * contains points and the other contains JTS geometries, the join runs as
+   * {@link #SpatialJoin_pointInPolygon(List, List, ResultCollector2, Map, Reporter)}.
    * @param R
    * @param S
    * @param output
@@ -142,6 +147,8 @@ public class SpatialAlgorithms {
   public static<S1 extends Shape, S2 extends Shape> int SpatialJoin_planeSweep(
       List<S1> R, List<S2> S, ResultCollector2<S1, S2> output, Reporter reporter)
       throws IOException {
+    if (isPointInPolygonJoin(R, S))
+      return SpatialJoin_pointInPolygon(R, S, output, null, reporter);
     int count = 0;
 
     Comparator<Shape> comparator = new Comparator<Shape>() {
@@ -208,71 +215,422 @@ public class SpatialAlgorithms {
     return count;
 	}
 
-  
+  /**
+   * Returns the index of the first value in the sorted array that is greater
+   * than or equal to the given value.
+   * @param sorted
+   * @param value
+   * @return
+   */
+  private static int lowerBound(double[] sorted, double value) {
+    int lo = 0, hi = sorted.length;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (sorted[mid] < value)
+        lo = mid + 1;
+      else
+        hi = mid;
+    }
+    return lo;
+  }
+
+  /**
+   * Returns the positions of the sorted MBRs that overlap the slab
+   * [slabStart, slabEnd) along the x-axis. Only MBRs that start in the slab
+   * or at most maxWidth before it are tested.
+   * @param mbrs
+   * @param maxWidth
+   * @param slabStart
+   * @param slabEnd
+   * @return
+   */
+  private static int[] slabMembers(MBRArrays mbrs, double maxWidth,
+      double slabStart, double slabEnd) {
+    int i1 = lowerBound(mbrs.x1, slabStart - maxWidth);
+    int i2 = lowerBound(mbrs.x1, slabEnd);
+    int[] members = new int[Math.max(0, i2 - i1)];
+    int n = 0;
+    for (int i = i1; i < i2; i++) {
+      if (mbrs.x2[i] >= slabStart)
+        members[n++] = i;
+    }
+    return n == members.length ? members : Arrays.copyOf(members, n);
+  }
+
+  /**
+   * A parallel version of the plane-sweep spatial join. The MBRs of both
+   * inputs are copied into {@link MBRArrays} sorted by x1 and the x-axis is
+   * divided into slabs with roughly the same number of shapes. The slabs are
+   * swept concurrently where each shape takes part in all slabs it overlaps.
+   * A pair is reported only by the slab that contains the left edge of the
+   * intersection of the two MBRs, i.e., max(r.x1, s.x1), which avoids
+   * duplicate results. As in {@link #SpatialJoin_planeSweep(List, List,
+   * ResultCollector2, Reporter)}, a shape is never joined with itself when
+   * both lists share it. The output collector is called by one thread at a
+   * time.
+   * @param R
+   * @param S
+   * @param output
+   * @param reporter
+   * @param parallelism
+   * @return
+   * @throws InterruptedException
+   */
+  public static<S1 extends Shape, S2 extends Shape> int SpatialJoin_planeSweepParallel(
+      final List<S1> R, final List<S2> S, final ResultCollector2<S1, S2> output,
+      final Reporter reporter, int parallelism) throws InterruptedException {
+    final MBRArrays rMBRs = new MBRArrays(R);
+    final MBRArrays sMBRs = new MBRArrays(S);
+    rMBRs.sortByX1();
+    sMBRs.sortByX1();
+    final int rSize = rMBRs.ids.length, sSize = sMBRs.ids.length;
+    if (rSize == 0 || sSize == 0)
+      return 0;
+
+    double rMaxWidth = 0, sMaxWidth = 0;
+    for (int i = 0; i < rSize; i++)
+      rMaxWidth = Math.max(rMaxWidth, rMBRs.x2[i] - rMBRs.x1[i]);
+    for (int i = 0; i < sSize; i++)
+      sMaxWidth = Math.max(sMaxWidth, sMBRs.x2[i] - sMBRs.x1[i]);
+    final double finalRMaxWidth = rMaxWidth, finalSMaxWidth = sMaxWidth;
+
+    // Use more slabs than threads to balance the load among threads. Slab
+    // boundaries are taken from the quantiles of the larger input.
+    final int numSlabs = Math.max(1, Math.min(parallelism * 4, (rSize + sSize) / 100));
+    final double[] slabBoundaries = new double[numSlabs + 1];
+    double[] largerX1 = rSize >= sSize ? rMBRs.x1 : sMBRs.x1;
+    slabBoundaries[0] = Double.NEGATIVE_INFINITY;
+    for (int k = 1; k < numSlabs; k++)
+      slabBoundaries[k] = largerX1[(int) ((long) largerX1.length * k / numSlabs)];
+    slabBoundaries[numSlabs] = Double.POSITIVE_INFINITY;
+
+    List<Integer> counts = Parallel.forEach(numSlabs, new Parallel.RunnableRange<Integer>() {
+      @Override
+      public Integer run(int i1, int i2) {
+        int count = 0;
+        for (int k = i1; k < i2; k++) {
+          double slabStart = slabBoundaries[k], slabEnd = slabBoundaries[k + 1];
+          if (slabStart >= slabEnd)
+            continue;
+          int[] rs = slabMembers(rMBRs, finalRMaxWidth, slabStart, slabEnd);
+          int[] ss = slabMembers(sMBRs, finalSMaxWidth, slabStart, slabEnd);
+          int i = 0, j = 0;
+          while (i < rs.length && j < ss.length) {
+            if (rMBRs.x1[rs[i]] < sMBRs.x1[ss[j]]) {
+              int r = rs[i];
+              for (int jj = j; jj < ss.length && sMBRs.x1[ss[jj]] <= rMBRs.x2[r]; jj++)
+                count += joinPair(R, S, rMBRs, r, sMBRs, ss[jj], slabStart, slabEnd, output);
+              i++;
+            } else {
+              int s = ss[j];
+              for (int ii = i; ii < rs.length && rMBRs.x1[rs[ii]] <= sMBRs.x2[s]; ii++)
+                count += joinPair(R, S, rMBRs, rs[ii], sMBRs, s, slabStart, slabEnd, output);
+              j++;
+            }
+          }
+          if (reporter != null)
+            reporter.progress();
+        }
+        return count;
+      }
+    }, parallelism);
+
+    int count = 0;
+    for (int c : counts)
+      count += c;
+    return count;
+  }
+
+  /**
+   * Tests a candidate pair found by the parallel plane-sweep join and reports
+   * it if it overlaps and the current slab is responsible for it.
+   * @return 1 if the pair is reported, 0 otherwise
+   */
+  private static<S1 extends Shape, S2 extends Shape> int joinPair(List<S1> R,
+      List<S2> S, MBRArrays rMBRs, int r, MBRArrays sMBRs, int s,
+      double slabStart, double slabEnd, ResultCollector2<S1, S2> output) {
+    if (rMBRs.y1[r] > sMBRs.y2[s] || sMBRs.y1[s] > rMBRs.y2[r])
+      return 0;
+    double refX = Math.max(rMBRs.x1[r], sMBRs.x1[s]);
+    if (refX < slabStart || refX >= slabEnd)
+      return 0;
+    S1 rShape = R.get(rMBRs.ids[r]);
+    S2 sShape = S.get(sMBRs.ids[s]);
+    // The r != s condition is for self join
+    if (!rShape.isIntersected(sShape) || rShape == (Object) sShape)
+      return 0;
+    if (output != null) {
+      synchronized (output) {
+        output.collect(rShape, sShape);
+      }
+    }
+    return 1;
+  }
+
+  /**
+   * Tests whether a shape is a point, either a {@link Point} or a JTS shape
+   * that contains a single non-empty point geometry as parsed from WKT.
+   * @param shape
+   * @return
+   */
+  public static boolean isPoint(Shape shape) {
+    if (shape instanceof Point)
+      return true;
+    if (!(shape instanceof OGCJTSShape))
+      return false;
+    Geometry geom = ((OGCJTSShape) shape).geom;
+    return geom instanceof com.vividsolutions.jts.geom.Point && !geom.isEmpty();
+  }
+
+  /**
+   * Returns the coordinates of a shape that passes {@link #isPoint(Shape)}.
+   * @param shape
+   * @return
+   */
+  private static Coordinate getPointCoordinate(Shape shape) {
+    if (shape instanceof Point)
+      return new Coordinate(((Point) shape).x, ((Point) shape).y);
+    return ((OGCJTSShape) shape).geom.getCoordinate();
+  }
+
+  /**
+   * Tests whether all shapes in the list are points.
+   */
+  private static boolean allPoints(List<? extends Shape> shapes) {
+    for (Shape shape : shapes) {
+      if (!isPoint(shape))
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * Tests whether all shapes in the list are JTS shapes other than points.
+   */
+  private static boolean allGeometries(List<? extends Shape> shapes) {
+    for (Shape shape : shapes) {
+      if (!(shape instanceof OGCJTSShape) || isPoint(shape))
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * Tests whether a spatial join between the two lists joins points with
+   * JTS geometries, in which case it can run as a point-in-polygon join.
+   * Both inputs are usually parsed with the same shape class, e.g., WKT,
+   * so the type of the JTS geometry of every shape is checked.
+   * @param R
+   * @param S
+   * @return
+   */
+  public static boolean isPointInPolygonJoin(List<? extends Shape> R,
+      List<? extends Shape> S) {
+    if (R.isEmpty() || S.isEmpty())
+      return false;
+    return (allPoints(R) && allGeometries(S)) ||
+        (allGeometries(R) && allPoints(S));
+  }
+
+  /**
+   * Joins a list of points with a list of JTS geometries, e.g., polygons, and
+   * reports each point with every geometry that it intersects. The points are
+   * stored in primitive arrays sorted by x and each geometry is prepared once
+   * and tested against all the points in its MBR. A prepared polygon indexes
+   * its edges which makes each point test much cheaper than
+   * {@link Geometry#intersects(Geometry)} on the raw polygon.
+   * @param R either the points or the geometries
+   * @param S the other input
+   * @param output
+   * @param preparedCache a cache of prepared geometries that can be reused
+   *   across calls with the same geometries or <code>null</code> to prepare
+   *   each geometry once in this call
+   * @param reporter
+   * @return the number of result pairs
+   */
+  @SuppressWarnings("unchecked")
+  public static<S1 extends Shape, S2 extends Shape> int SpatialJoin_pointInPolygon(
+      List<S1> R, List<S2> S, ResultCollector2<S1, S2> output,
+      Map<Shape, PreparedGeometry> preparedCache, Reporter reporter) {
+    if (R.isEmpty() || S.isEmpty())
+      return 0;
+    boolean pointsInR = isPoint(R.get(0));
+    List<? extends Shape> polygons = pointsInR ? S : R;
+    List<? extends Shape> points = pointsInR ? R : S;
+
+    double[] xs = new double[points.size()];
+    double[] ys = new double[points.size()];
+    for (int i = 0; i < xs.length; i++) {
+      Coordinate pt = getPointCoordinate(points.get(i));
+      xs[i] = pt.x;
+      ys[i] = pt.y;
+    }
+    int[] order = sortedOrder(xs);
+    double[] sortedXs = new double[xs.length];
+    double[] sortedYs = new double[ys.length];
+    for (int i = 0; i < order.length; i++) {
+      sortedXs[i] = xs[order[i]];
+      sortedYs[i] = ys[order[i]];
+    }
+
+    GeometryFactory factory = new GeometryFactory();
+    int count = 0;
+    for (Shape polygon : polygons) {
+      Geometry geom = ((OGCJTSShape) polygon).geom;
+      if (geom == null)
+        continue;
+      Rectangle mbr = polygon.getMBR();
+      PreparedGeometry prepared = null;
+      for (int i = lowerBound(sortedXs, mbr.x1);
+           i < sortedXs.length && sortedXs[i] <= mbr.x2; i++) {
+        if (sortedYs[i] < mbr.y1 || sortedYs[i] > mbr.y2)
+          continue;
+        if (prepared == null) {
+          prepared = preparedCache == null ? null : preparedCache.get(polygon);
+          if (prepared == null) {
+            prepared = PreparedGeometryFactory.prepare(geom);
+            if (preparedCache != null)
+              preparedCache.put(polygon, prepared);
+          }
+        }
+        if (prepared.intersects(factory.createPoint(
+            new Coordinate(sortedXs[i], sortedYs[i])))) {
+          if (output != null) {
+            Shape point = points.get(order[i]);
+            if (pointsInR)
+              output.collect((S1) point, (S2) polygon);
+            else
+              output.collect((S1) polygon, (S2) point);
+          }
+          count++;
+        }
+      }
+      if (reporter != null)
+        reporter.progress();
+    }
+    return count;
+  }
+
+  /**
+   * Tests whether the distance between two shapes is at most epsilon. Points
+   * and JTS geometries are compared using their exact distance while other
+   * shapes are compared using the minimum distance between their MBRs.
+   * @param r
+   * @param s
+   * @param epsilon
+   * @return
+   */
+  public static boolean isWithinDistance(Shape r, Shape s, double epsilon) {
+    if (r instanceof Point && s instanceof Point) {
+      double dx = ((Point) r).x - ((Point) s).x;
+      double dy = ((Point) r).y - ((Point) s).y;
+      return dx * dx + dy * dy <= epsilon * epsilon;
+    }
+    Geometry geom1 = toGeometry(r);
+    Geometry geom2 = toGeometry(s);
+    if (geom1 != null && geom2 != null)
+      return geom1.isWithinDistance(geom2, epsilon);
+    Rectangle mbr1 = r.getMBR();
+    Rectangle mbr2 = s.getMBR();
+    double dx = Math.max(0, Math.max(mbr1.x1 - mbr2.x2, mbr2.x1 - mbr1.x2));
+    double dy = Math.max(0, Math.max(mbr1.y1 - mbr2.y2, mbr2.y1 - mbr1.y2));
+    return dx * dx + dy * dy <= epsilon * epsilon;
+  }
+
+  /**
+   * Returns the JTS geometry of a shape if it has one or null otherwise.
+   */
+  private static Geometry toGeometry(Shape shape) {
+    if (shape instanceof OGCJTSShape)
+      return ((OGCJTSShape) shape).geom;
+    if (shape instanceof Point)
+      return new GeometryFactory().createPoint(
+          new Coordinate(((Point) shape).x, ((Point) shape).y));
+    return null;
+  }
+
+  /**
+   * Finds all pairs of shapes in R and S that are within a distance epsilon
+   * from each other. This is a plane sweep over the MBRs where each shape is
+   * compared to the shapes of the other set that start within epsilon of its
+   * right edge. Pairs are refined using
+   * {@link #isWithinDistance(Shape, Shape, double)}.
+   * @param R
+   * @param S
+   * @param epsilon
+   * @param output
+   * @param reporter
+   * @return the number of result pairs
+   */
+  public static<S1 extends Shape, S2 extends Shape> int DistanceJoin_planeSweep(
+      List<S1> R, List<S2> S, double epsilon, ResultCollector2<S1, S2> output,
+      Reporter reporter) {
+    int count = 0;
+
+    Comparator<Shape> comparator = new Comparator<Shape>() {
+      @Override
+      public int compare(Shape o1, Shape o2) {
+        return Double.compare(o1.getMBR().x1, o2.getMBR().x1);
+      }
+    };
+
+    Collections.sort(R, comparator);
+    Collections.sort(S, comparator);
+
+    int i = 0, j = 0;
+    while (i < R.size() && j < S.size()) {
+      if (comparator.compare(R.get(i), S.get(j)) < 0) {
+        S1 r = R.get(i);
+        Rectangle rMBR = r.getMBR();
+        for (int jj = j; jj < S.size(); jj++) {
+          S2 s = S.get(jj);
+          Rectangle sMBR = s.getMBR();
+          if (sMBR.x1 > rMBR.x2 + epsilon)
+            break;
+          if (sMBR.y1 <= rMBR.y2 + epsilon && rMBR.y1 <= sMBR.y2 + epsilon &&
+              isWithinDistance(r, s, epsilon)) {
+            if (output != null)
+              output.collect(r, s);
+            count++;
+          }
+        }
+        i++;
+      } else {
+        S2 s = S.get(j);
+        Rectangle sMBR = s.getMBR();
+        for (int ii = i; ii < R.size(); ii++) {
+          S1 r = R.get(ii);
+          Rectangle rMBR = r.getMBR();
+          if (rMBR.x1 > sMBR.x2 + epsilon)
+            break;
+          if (sMBR.y1 <= rMBR.y2 + epsilon && rMBR.y1 <= sMBR.y2 + epsilon &&
+              isWithinDistance(r, s, epsilon)) {
+            if (output != null)
+              output.collect(r, s);
+            count++;
+          }
+        }
+        j++;
+      }
+      if (reporter != null)
+        reporter.progress();
+    }
+    return count;
+  }
+
   public static<S1 extends Shape, S2 extends Shape> int SpatialJoin_planeSweepFilterOnly(
 	      final S1[] R, final S2[] S, ResultCollector2<S1, S2> output, Reporter reporter) {
-	    int count = 0;
-
-	    final Comparator<Shape> comparator = new Comparator<Shape>() {
-	      @Override
-	      public int compare(Shape o1, Shape o2) {
-	    	if (o1.getMBR().x1 == o2.getMBR().x1)
-	    		return 0;
-	        return o1.getMBR().x1 < o2.getMBR().x1 ? -1 : 1;
-	      }
-	    };
-	    
-	    long t1 = System.currentTimeMillis();
-	    Arrays.sort(R, comparator);
-	    Arrays.sort(S, comparator);
-
-	    int i = 0, j = 0;
-
-	    try {
-	      while (i < R.length && j < S.length) {
-	        S1 r;
-	        S2 s;
-	        if (comparator.compare(R[i], S[j]) < 0) {
-	          r = R[i];
-	          int jj = j;
-
-	          while ((jj < S.length)
-	              && ((s = S[jj]).getMBR().x1 <= r.getMBR().x2)) {
-	            if (r.getMBR().isIntersected(s.getMBR())) {
-	              if (output != null)
-	                output.collect(r, s);
-	              count++;
-	            }
-	            jj++;
-	            
-	            if (reporter != null)
-	              reporter.progress();
-	          }
-	          i++;
-	        } else {
-	          s = S[j];
-	          int ii = i;
-
-	          while ((ii < R.length)
-	              && ((r = R[ii]).getMBR().x1 <= s.getMBR().x2)) {
-	            if (r.getMBR().isIntersected(s.getMBR())) {
-	              if (output != null)
-	                output.collect(r, s);
-	              count++;
-	            }
-	            ii++;
-	          }
-	          j++;
-	          if (reporter != null)
-	            reporter.progress();
-	        }
-	        if (reporter != null)
-	          reporter.progress();
-	      }
-	    } catch (RuntimeException e) {
-	      e.printStackTrace();
+	    MBRArrays rMBRs = new MBRArrays(Arrays.asList(R));
+	    MBRArrays sMBRs = new MBRArrays(Arrays.asList(S));
+	    IntArray pairs = output == null ? null : new IntArray();
+	    int count = SpatialJoin_rectangles(rMBRs.x1, rMBRs.y1, rMBRs.x2, rMBRs.y2,
+	        sMBRs.x1, sMBRs.y1, sMBRs.x2, sMBRs.y2, pairs,
+	        reporter == null ? null : new Progressable.ReporterProgressable(reporter));
+	    if (output != null) {
+	      int[] ids = pairs.underlyingArray();
+	      for (int i = 0; i < pairs.size(); i += 2)
+	        output.collect(R[rMBRs.ids[ids[i]]], S[sMBRs.ids[ids[i + 1]]]);
 	    }
-	    long t2 = System.currentTimeMillis();
 	    return count;
 	  }
 
@@ -344,178 +702,164 @@ public class SpatialAlgorithms {
   }
 
   /**
-   * Self join of rectangles. This method runs faster than the general version
-   * because it just performs the filter step based on the rectangles.
-   * @param output
-   * @return
-   * @throws IOException
+   * The MBRs of a list of shapes stored in primitive arrays. Shapes with no
+   * MBR are skipped and the index of each MBR in the original list is kept
+   * in {@link #ids}.
    */
-  public static <S1 extends Rectangle, S2 extends Rectangle> int SpatialJoin_rectangles(final S1[] R, final S2[] S,
-      OutputCollector<S1, S2> output, Reporter reporter) throws IOException {
-    int count = 0;
+  static class MBRArrays {
+    double[] x1, y1, x2, y2;
+    int[] ids;
 
-    final Comparator<Rectangle> comparator = new Comparator<Rectangle>() {
-      @Override
-      public int compare(Rectangle o1, Rectangle o2) {
-    	if (o1.x1 == o2.x1)
-    		  return 0;
-        return o1.x1 < o2.x1 ? -1 : 1;
+    MBRArrays(List<? extends Shape> shapes) {
+      x1 = new double[shapes.size()];
+      y1 = new double[shapes.size()];
+      x2 = new double[shapes.size()];
+      y2 = new double[shapes.size()];
+      ids = new int[shapes.size()];
+      int n = 0;
+      for (int i = 0; i < shapes.size(); i++) {
+        Rectangle mbr = shapes.get(i).getMBR();
+        if (mbr == null)
+          continue;
+        x1[n] = mbr.x1;
+        y1[n] = mbr.y1;
+        x2[n] = mbr.x2;
+        y2[n] = mbr.y2;
+        ids[n] = i;
+        n++;
+      }
+      if (n < shapes.size()) {
+        x1 = Arrays.copyOf(x1, n);
+        y1 = Arrays.copyOf(y1, n);
+        x2 = Arrays.copyOf(x2, n);
+        y2 = Arrays.copyOf(y2, n);
+        ids = Arrays.copyOf(ids, n);
       }
-    };
-    
-    long t1 = System.currentTimeMillis();
-    LOG.debug("Spatial Join of "+ R.length+" X " + S.length + "shapes");
-    Arrays.sort(R, comparator);
-    Arrays.sort(S, comparator);
-    
-    int i = 0, j = 0;
-
-    try {
-    	 while (i < R.length && j < S.length) {
-    	        S1 r;
-    	        S2 s;
-    	        if (comparator.compare(R[i], S[j]) < 0) {
-    	          r = R[i];
-    	          int jj = j;
-
-    	          while ((jj < S.length)
-    	              && ((s = S[jj]).getMBR().x1 <= r.getMBR().x2)) {
-    	            if (r.isIntersected(s)) {
-    	              if (output != null)
-    	                output.collect(r, s);
-    	              count++;
-    	            }
-    	            jj++;
-    	          }
-    	          i++;
-    	          if (reporter != null)
-    	            reporter.progress();
-    	        } else {
-    	          s = S[j];
-    	          int ii = i;
-
-    	          while ((ii < R.length)
-    	              && ((r = R[ii]).getMBR().x1 <= s.getMBR().x2)) {
-    	            if (r.isIntersected(s)) {
-    	              if (output != null)
-    	                output.collect(r, s);
-    	              count++;
-    	            }
-    	            ii++;
-    	            if (reporter != null)
-    	              reporter.progress();
-    	          }
-    	          j++;
-    	        }
-    	        if (reporter != null)
-    	          reporter.progress();
-    	      }
-
-    } catch (RuntimeException e) {
-      e.printStackTrace();
     }
-    long t2 = System.currentTimeMillis();
 
-    return count;
+    /**
+     * Reorders all the MBRs in ascending order of x1.
+     */
+    void sortByX1() {
+      int[] order = sortedOrder(x1);
+      double[] newX1 = new double[order.length], newY1 = new double[order.length];
+      double[] newX2 = new double[order.length], newY2 = new double[order.length];
+      int[] newIDs = new int[order.length];
+      for (int i = 0; i < order.length; i++) {
+        newX1[i] = x1[order[i]];
+        newY1[i] = y1[order[i]];
+        newX2[i] = x2[order[i]];
+        newY2[i] = y2[order[i]];
+        newIDs[i] = ids[order[i]];
+      }
+      x1 = newX1;
+      y1 = newY1;
+      x2 = newX2;
+      y2 = newY2;
+      ids = newIDs;
+    }
   }
 
-  
   /**
-   * Self join of rectangles. This method runs faster than the general version
-   * because it just performs the filter step based on the rectangles.
-   * @param rs
-   * @param output
+   * Returns the indexes of the given values in ascending order of the values.
+   * @param values
    * @return
-   * @throws IOException
    */
-  public static <S extends Rectangle> int SelfJoin_rectangles(final S[] rs,
-      OutputCollector<S, S> output, Progressable reporter) throws IOException {
-    int count = 0;
+  private static int[] sortedOrder(double[] values) {
+    final int[] order = new int[values.length];
+    final double[] keys = Arrays.copyOf(values, values.length);
+    for (int i = 0; i < order.length; i++)
+      order[i] = i;
+    new QuickSort().sort(new IndexedSortable() {
+      @Override
+      public int compare(int i, int j) {
+        return Double.compare(keys[i], keys[j]);
+      }
 
-    final Comparator<Rectangle> comparator = new Comparator<Rectangle>() {
       @Override
-      public int compare(Rectangle o1, Rectangle o2) {
-    	if (o1.x1 == o2.x1)
-    		  return 0;
-        return o1.x1 < o2.x1 ? -1 : 1;
+      public void swap(int i, int j) {
+        double tk = keys[i];
+        keys[i] = keys[j];
+        keys[j] = tk;
+        int to = order[i];
+        order[i] = order[j];
+        order[j] = to;
       }
-    };
-    
-    long t1 = System.currentTimeMillis();
-    Arrays.sort(rs, comparator);
+    }, 0, order.length);
+    return order;
+  }
 
+  /**
+   * The filter step of the spatial join for rectangles stored in primitive
+   * arrays. Both sets are sorted by x1 using a primitive sort on an array of
+   * indexes and then swept along the x-axis. For each pair of overlapping
+   * rectangles, the index of the rectangle in R and the index of the
+   * rectangle in S are appended to the output as two consecutive integers.
+   * If both sets are given as the same arrays, a self join is performed
+   * where each pair is reported in both orders but a rectangle is never
+   * paired with itself.
+   * @param x1R
+   * @param y1R
+   * @param x2R
+   * @param y2R
+   * @param x1S
+   * @param y1S
+   * @param x2S
+   * @param y2S
+   * @param output
+   * @param progress
+   * @return the number of overlapping pairs
+   */
+  public static int SpatialJoin_rectangles(double[] x1R, double[] y1R,
+      double[] x2R, double[] y2R, double[] x1S, double[] y1S, double[] x2S,
+      double[] y2S, IntArray output, Progressable progress) {
+    boolean selfJoin = x1R == x1S;
+    int[] rOrder = sortedOrder(x1R);
+    int[] sOrder = selfJoin ? rOrder : sortedOrder(x1S);
+    int count = 0;
     int i = 0, j = 0;
-
-    try {
-      while (i < rs.length && j < rs.length) {
-        S r;
-        S s;
-        if (rs[i].x1 < rs[j].x1) {
-          r = rs[i];
-          int jj = j;
-
-          while ((jj < rs.length)
-              && ((s = rs[jj]).x1 <= r.x2)) {
-            if (r != s && r.isIntersected(s)) {
-              if (output != null) {
-                output.collect(r, s);
-              }
-              count++;
+    while (i < rOrder.length && j < sOrder.length) {
+      if (x1R[rOrder[i]] < x1S[sOrder[j]]) {
+        int r = rOrder[i];
+        double rx1 = x1R[r], ry1 = y1R[r], rx2 = x2R[r], ry2 = y2R[r];
+        for (int jj = j; jj < sOrder.length; jj++) {
+          int s = sOrder[jj];
+          if (x1S[s] > rx2)
+            break;
+          if (rx2 > x1S[s] && x2S[s] > rx1 && ry2 > y1S[s] && y2S[s] > ry1
+              && !(selfJoin && r == s)) {
+            if (output != null) {
+              output.add(r);
+              output.add(s);
             }
-            jj++;
-            if (reporter != null)
-              reporter.progress();
+            count++;
           }
-          i++;
-        } else {
-          s = rs[j];
-          int ii = i;
-
-          while ((ii < rs.length)
-              && ((r = rs[ii]).x1 <= s.x2)) {
-            if (r != s && r.isIntersected(s)) {
-              if (output != null) {
-                output.collect(r, s);
-              }
-              count++;
+        }
+        i++;
+      } else {
+        int s = sOrder[j];
+        double sx1 = x1S[s], sy1 = y1S[s], sx2 = x2S[s], sy2 = y2S[s];
+        for (int ii = i; ii < rOrder.length; ii++) {
+          int r = rOrder[ii];
+          if (x1R[r] > sx2)
+            break;
+          if (x2R[r] > sx1 && sx2 > x1R[r] && y2R[r] > sy1 && sy2 > y1R[r]
+              && !(selfJoin && r == s)) {
+            if (output != null) {
+              output.add(r);
+              output.add(s);
             }
-            ii++;
-            if (reporter != null)
-              reporter.progress();
+            count++;
           }
-          j++;
         }
-        if (reporter != null)
-          reporter.progress();
+        j++;
       }
-    } catch (RuntimeException e) {
-      e.printStackTrace();
+      if (progress != null)
+        progress.progress();
     }
-    long t2 = System.currentTimeMillis();
-
     return count;
   }
 
-  /**
-   * MBR of a shape along with its ID. Used to performs the filter step while
-   * keeping track of the ID of each object to be able to do the refine step.
-   * @author Ahmed Eldawy
-   *
-   */
-  public static class RectangleID extends Rectangle {
-    public int id;
-    
-    public RectangleID(int id, Rectangle rect) {
-      super(rect);
-      this.id = id;
-    }
-    
-    public RectangleID(int id, double x1, double y1, double x2, double y2) {
-      super(x1, y1, x2, y2);
-      this.id = id;
-    }
-  }
-  
   /**
    * The general version of self join algorithm which works with arbitrary
    * shapes. First, it performs a filter step where it finds shapes with
@@ -533,38 +877,26 @@ public class SpatialAlgorithms {
     // 1- Use MBRs as a first filter
     // 2- Use ConvexHull as a second filter
     // 3- Use the exact shape for refinement
-    final RectangleID[] mbrs = new RectangleID[R.length];
-    for (int i = 0; i < R.length; i++) {
-      mbrs[i] = new RectangleID(i, R[i].getMBR());
-    }
-    
-    if (refine) {
-      final IntWritable count = new IntWritable();
-      int filterCount = SelfJoin_rectangles(mbrs, new OutputCollector<RectangleID, RectangleID>() {
-        @Override
-        public void collect(RectangleID r1, RectangleID r2)
-            throws IOException {
-          if (R[r1.id].isIntersected(R[r2.id])) {
-            if (output != null)
-              output.collect(R[r1.id], R[r2.id]);
-            count.set(count.get() + 1);
-          }
-        }
-      }, reporter);
-      
-      LOG.debug("Filtered result size "+filterCount+", refined result size "+count.get());
-      
-      return count.get();
-    } else {
-      return SelfJoin_rectangles(mbrs, new OutputCollector<RectangleID, RectangleID>() {
-        @Override
-        public void collect(RectangleID r1, RectangleID r2)
-            throws IOException {
-          if (output != null)
-            output.collect(R[r1.id], R[r2.id]);
-        }
-      }, reporter);
+    MBRArrays mbrs = new MBRArrays(Arrays.asList(R));
+    IntArray pairs = new IntArray();
+    int filterCount = SpatialJoin_rectangles(mbrs.x1, mbrs.y1, mbrs.x2, mbrs.y2,
+        mbrs.x1, mbrs.y1, mbrs.x2, mbrs.y2, pairs, reporter);
+    if (!refine && output == null)
+      return filterCount;
+
+    int count = 0;
+    int[] ids = pairs.underlyingArray();
+    for (int i = 0; i < pairs.size(); i += 2) {
+      S r = R[mbrs.ids[ids[i]]];
+      S s = R[mbrs.ids[ids[i + 1]]];
+      if (!refine || r.isIntersected(s)) {
+        if (output != null)
+          output.collect(r, s);
+        count++;
+      }
     }
+    LOG.debug("Filtered result size "+filterCount+", refined result size "+count);
+    return count;
   }
   
   /**
@@ -675,44 +1007,43 @@ public class SpatialAlgorithms {
       final Progressable prog) throws IOException {
     // Group shapes into overlapping groups
     long t1 = System.currentTimeMillis();
-    RectangleID[] mbrs = new RectangleID[polygons.length];
+    double[] x1s = new double[polygons.length], y1s = new double[polygons.length];
+    double[] x2s = new double[polygons.length], y2s = new double[polygons.length];
     for (int i = 0; i < polygons.length; i++) {
       Coordinate[] coords = polygons[i].getEnvelope().getCoordinates();
-      double x1 = Math.min(coords[0].x, coords[2].x);
-      double x2 = Math.max(coords[0].x, coords[2].x);
-      double y1 = Math.min(coords[0].y, coords[2].y);
-      double y2 = Math.max(coords[0].y, coords[2].y);
-      
-      mbrs[i] = new RectangleID(i, x1, y1, x2, y2);
+      x1s[i] = Math.min(coords[0].x, coords[2].x);
+      x2s[i] = Math.max(coords[0].x, coords[2].x);
+      y1s[i] = Math.min(coords[0].y, coords[2].y);
+      y2s[i] = Math.max(coords[0].y, coords[2].y);
     }
     
     // Parent link of the Set Union Find data structure
-    final int[] parent = new int[mbrs.length];
+    final int[] parent = new int[polygons.length];
     Arrays.fill(parent, -1);
     
     // Group records in clusters by overlapping
-    SelfJoin_rectangles(mbrs, new OutputCollector<RectangleID, RectangleID>(){
-      @Override
-      public void collect(RectangleID r, RectangleID s)
-          throws IOException {
-        int rid = r.id;
-        while (parent[rid] != -1) {
-          int pid = parent[rid];
-          if (parent[pid] != -1)
-            parent[rid] = parent[pid];
-          rid = pid;
-        }
-        int sid = s.id;
-        while (parent[sid] != -1) {
-          int pid = parent[sid];
-          if (parent[pid] != -1)
-            parent[sid] = parent[pid];
-          sid = pid;
-        }
-        if (rid != sid)
-          parent[rid] = sid;
-      }}, prog);
-    mbrs = null;
+    IntArray pairs = new IntArray();
+    SpatialJoin_rectangles(x1s, y1s, x2s, y2s, x1s, y1s, x2s, y2s, pairs, prog);
+    x1s = y1s = x2s = y2s = null;
+    for (int i = 0; i < pairs.size(); i += 2) {
+      int rid = pairs.get(i);
+      while (parent[rid] != -1) {
+        int pid = parent[rid];
+        if (parent[pid] != -1)
+          parent[rid] = parent[pid];
+        rid = pid;
+      }
+      int sid = pairs.get(i + 1);
+      while (parent[sid] != -1) {
+        int pid = parent[sid];
+        if (parent[pid] != -1)
+          parent[sid] = parent[pid];
+        sid = pid;
+      }
+      if (rid != sid)
+        parent[rid] = sid;
+    }
+    pairs = null;
     // Put all records in one cluster as a list
     Map<Integer, List<Geometry>> groups = new HashMap<Integer, List<Geometry>>();
     for (int i = 0; i < parent.length; i++) {
@@ -1003,7 +1334,17 @@ public class SpatialAlgorithms {
               }
           };
       }
-      long resultCount = SpatialJoin_planeSweep(datasets[0], datasets[1], output, null);
+      double epsilon = params.getDouble(DistanceJoinEpsilon, 0);
+      int parallelism = params.getInt("parallel",
+          Runtime.getRuntime().availableProcessors());
+      long resultCount;
+      if (epsilon > 0)
+        resultCount = DistanceJoin_planeSweep(datasets[0], datasets[1], epsilon, output, null);
+      else if (isPointInPolygonJoin(datasets[0], datasets[1]))
+        resultCount = SpatialJoin_pointInPolygon(datasets[0], datasets[1], output, null, null);
+      else
+        resultCount = SpatialJoin_planeSweepParallel(datasets[0], datasets[1],
+            output, null, parallelism);
       
       if (out != null)
           out.close();
@@ -128,8 +128,50 @@ public class SpatialSite {
   public static final String MaxBytesInOneRead =
       "spatialHadoop.mapred.MaxBytesPerRead";
 
+  /**
+   * Maximum total number of partitions in all the global indexes that are
+   * cached by {@link #getGlobalIndex(FileSystem, Path)}. Set to zero to
+   * disable the cache.
+   */
+  public static final String GlobalIndexCacheSize =
+      "spatialHadoop.storage.GlobalIndexCacheSize";
+
+  /**
+   * An empty file written next to the master file of an index that replicates
+   * records to all overlapping partitions
+   */
+  public static final String ReplicatedMarker = "_replicated";
+
+  /**
+   * Master files of replicated indexes that carry no {@link #ReplicatedMarker}
+   * end with this suffix, e.g., "_master.str+"
+   */
+  public static final String ReplicatedSuffix = "+";
+
   public static byte[] RTreeFileMarkerB;
 
+  /**
+   * A global index in the cache along with the status of the master file it
+   * was read from. The entry is valid as long as the master file is not
+   * modified.
+   */
+  static class CachedGlobalIndex {
+    Path masterPath;
+    long modificationTime;
+    long length;
+    GlobalIndex<Partition> gindex;
+  }
+
+  /**Recently used global indexes keyed by the qualified path of their directories*/
+  private static final LinkedHashMap<Path, CachedGlobalIndex> globalIndexCache =
+      new LinkedHashMap<Path, CachedGlobalIndex>(16, 0.75f, true);
+
+  /**Total number of partitions in all cached global indexes*/
+  private static long numCachedPartitions;
+
+  /**Number of calls answered from and not answered from the cache*/
+  private static long globalIndexCacheHits, globalIndexCacheMisses;
+
   public static final Map<String, Class<? extends Shape>> CommonShapes =
       new HashMap<String, Class<? extends Shape>>();
   public static final Map<String, Class<? extends Partitioner>> CommonGlobalIndexes =
@@ -384,11 +426,23 @@ public class SpatialSite {
    * the index command. If the file is not indexed, it returns null.
    * The return value is of type {@link GlobalIndex} where the generic
    * parameter is specified as {@link Partition}.
+   * Global indexes read from a master file are cached and shared between
+   * all callers until the master file is modified. Callers should not
+   * modify the returned index or its partitions.
    * @param fs
    * @param dir
    * @return
    */
   public static GlobalIndex<Partition> getGlobalIndex(FileSystem fs, Path dir) {
+    Configuration conf = fs.getConf();
+    int cacheSize = conf == null ? 0 : conf.getInt(GlobalIndexCacheSize, 1000000);
+    Path cacheKey = null;
+    if (cacheSize > 0 && !OperationsParams.isWildcard(dir)) {
+      cacheKey = fs.makeQualified(dir);
+      GlobalIndex<Partition> cached = getCachedGlobalIndex(fs, cacheKey);
+      if (cached != null)
+        return cached;
+    }
     try {
       FileStatus[] allFiles;
       if (OperationsParams.isWildcard(dir)) {
@@ -398,9 +452,12 @@ public class SpatialSite {
       }
       
       FileStatus masterFile = null;
+      boolean replicated = false;
       int nasaFiles = 0;
       for (FileStatus fileStatus : allFiles) {
-        if (fileStatus.getPath().getName().startsWith("_master")) {
+        if (fileStatus.getPath().getName().equals(ReplicatedMarker)) {
+          replicated = true;
+        } else if (fileStatus.getPath().getName().startsWith("_master")) {
           if (masterFile != null)
             throw new RuntimeException("Found more than one master file in "+dir);
           masterFile = fileStatus;
@@ -423,6 +480,10 @@ public class SpatialSite {
         }
         GlobalIndex<Partition> globalIndex = new GlobalIndex<Partition>();
         globalIndex.bulkLoad(partitions.toArray(new Partition[partitions.size()]));
+        globalIndex.setReplicated(replicated ||
+            masterFile.getPath().getName().endsWith(ReplicatedSuffix));
+        if (cacheKey != null)
+          cacheGlobalIndex(cacheKey, masterFile, globalIndex, cacheSize);
         return globalIndex;
       } else if (nasaFiles > allFiles.length / 2) {
         // A folder that contains HDF files
@@ -470,6 +531,108 @@ public class SpatialSite {
     }
   }
 
+  /**
+   * Returns a cached global index of the given directory if its master file
+   * has not been modified since it was cached.
+   * @param fs
+   * @param dir the qualified path of the directory
+   * @return the cached global index or <code>null</code> if not cached
+   */
+  private static GlobalIndex<Partition> getCachedGlobalIndex(FileSystem fs, Path dir) {
+    CachedGlobalIndex cached;
+    synchronized (globalIndexCache) {
+      cached = globalIndexCache.get(dir);
+    }
+    if (cached != null) {
+      boolean valid;
+      try {
+        FileStatus masterStatus = fs.getFileStatus(cached.masterPath);
+        valid = masterStatus.getModificationTime() == cached.modificationTime &&
+            masterStatus.getLen() == cached.length;
+      } catch (IOException e) {
+        // The master file was deleted or cannot be accessed
+        valid = false;
+      }
+      synchronized (globalIndexCache) {
+        if (valid) {
+          globalIndexCacheHits++;
+          return cached.gindex;
+        }
+        if (globalIndexCache.get(dir) == cached) {
+          globalIndexCache.remove(dir);
+          numCachedPartitions -= cached.gindex.size();
+        }
+      }
+    }
+    synchronized (globalIndexCache) {
+      globalIndexCacheMisses++;
+    }
+    return null;
+  }
+
+  /**
+   * Adds a global index to the cache and evicts the least recently used
+   * indexes until the total number of cached partitions fits in the cache.
+   * @param dir
+   * @param masterFile
+   * @param gindex
+   * @param cacheSize
+   */
+  private static void cacheGlobalIndex(Path dir, FileStatus masterFile,
+      GlobalIndex<Partition> gindex, int cacheSize) {
+    if (gindex.size() > cacheSize)
+      return;
+    CachedGlobalIndex cached = new CachedGlobalIndex();
+    cached.masterPath = masterFile.getPath();
+    cached.modificationTime = masterFile.getModificationTime();
+    cached.length = masterFile.getLen();
+    cached.gindex = gindex;
+    synchronized (globalIndexCache) {
+      CachedGlobalIndex replaced = globalIndexCache.put(dir, cached);
+      if (replaced != null)
+        numCachedPartitions -= replaced.gindex.size();
+      numCachedPartitions += gindex.size();
+      Iterator<CachedGlobalIndex> lru = globalIndexCache.values().iterator();
+      while (numCachedPartitions > cacheSize && lru.hasNext()) {
+        numCachedPartitions -= lru.next().gindex.size();
+        lru.remove();
+      }
+    }
+  }
+
+  /**
+   * Removes all global indexes from the cache and resets its counters.
+   */
+  public static void clearGlobalIndexCache() {
+    synchronized (globalIndexCache) {
+      globalIndexCache.clear();
+      numCachedPartitions = 0;
+      globalIndexCacheHits = globalIndexCacheMisses = 0;
+    }
+  }
+
+  /**
+   * Number of calls to {@link #getGlobalIndex(FileSystem, Path)} that were
+   * answered from the cache.
+   * @return
+   */
+  public static long getGlobalIndexCacheHits() {
+    synchronized (globalIndexCache) {
+      return globalIndexCacheHits;
+    }
+  }
+
+  /**
+   * Number of calls to {@link #getGlobalIndex(FileSystem, Path)} that could
+   * not be answered from the cache.
+   * @return
+   */
+  public static long getGlobalIndexCacheMisses() {
+    synchronized (globalIndexCache) {
+      return globalIndexCacheMisses;
+    }
+  }
+
   /**
    * Checks whether a file is indexed using an R-tree or not. This allows
    * an operation to use the R-tree to speedup the processing if it exists.
@@ -1,6 +1,5 @@
 package edu.umn.cs.spatialHadoop.delaunay;
 
-import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -15,9 +14,7 @@ import edu.umn.cs.spatialHadoop.util.IFastSum;
 import edu.umn.cs.spatialHadoop.util.MergeSorter;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.hadoop.io.BooleanWritable;
 import org.apache.hadoop.io.Text;
-import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.util.*;
 
 import com.vividsolutions.jts.geom.Coordinate;
@@ -203,159 +200,158 @@ public class GSDTAlgorithm {
     public boolean isIncorrect() {
       // Test if there are any overlapping edges
       // First, compute the MBR of all edges
-      class Edge extends Rectangle {
-        int source, destination;
-
-        public Edge(int s, int d) {
-          this.source = s;
-          this.destination = d;
-          super.set(xs[s], ys[s], xs[d], ys[d]);
-        }
-      }
-
-      List<Edge> edges = new ArrayList<Edge>();
-
+      IntArray sources = new IntArray();
+      IntArray destinations = new IntArray();
       for (int s = site1; s <= site2; s++) {
         for (int d : neighbors[s]) {
           // Add each undirected edge only once
-          if (s < d)
-            edges.add(new Edge(s, d));
+          if (s < d) {
+            sources.add(s);
+            destinations.add(d);
+          }
         }
       }
 
-      Edge[] arEdges = edges.toArray(new Edge[edges.size()]);
-      final BooleanWritable correct = new BooleanWritable(true);
-
-      try {
-        SpatialAlgorithms.SelfJoin_rectangles(arEdges, new OutputCollector<Edge, Edge>() {
-          static final double Threshold = 1E-5;
-          @Override
-          public void collect(Edge e1, Edge e2) throws IOException {
-            if (e1.source == e2.source || e1.source == e2.destination ||
-                e1.destination == e2.source || e1.destination == e2.destination) {
-              // Skip the test if the two edges share an end point.
-              // If they share an end point they have to be intersected but it
-              // is not considered a violation of the triangulation property.
-              return;
-            }
-            // Do a refine step where we compare the actual lines
-            double x1 = xs[e1.source];
-            double y1 = ys[e1.source];
-            double x2 = xs[e1.destination];
-            double y2 = ys[e1.destination];
-            double x3 = xs[e2.source];
-            double y3 = ys[e2.source];
-            double x4 = xs[e2.destination];
-            double y4 = ys[e2.destination];
-
-            double den = (x1 - x2) * (y3 - y4) - (y1 - y2) * (x3 - x4);
-            double ix = (x1 * y2 - y1 * x2) * (x3 - x4) / den - (x1 - x2) * (x3 * y4 - y3 * x4) / den;
-            double iy = (x1 * y2 - y1 * x2) * (y3 - y4) / den - (y1 - y2) * (x3 * y4 - y3 * x4) / den;
-            double minx1 = Math.min(x1, x2);
-            double maxx1 = Math.max(x1, x2);
-            double miny1 = Math.min(y1, y2);
-            double maxy1 = Math.max(y1, y2);
-            double minx2 = Math.min(x3, x4);
-            double maxx2 = Math.max(x3, x4);
-            double miny2 = Math.min(y3, y4);
-            double maxy2 = Math.max(y3, y4);
-            // Make sure that the intersection is on the two line segments.
-            // The intersection has to be in the x and y ranges of the two line
-            // segments. A threshold is used to avoid precision error where the
-            // intersection is off by a little bit due to calculation errors.
-            if ((ix > minx1 + Threshold && ix < maxx1-Threshold) && (iy > miny1 + Threshold && iy < maxy1-Threshold) &&
-                (ix > minx2 + Threshold && ix < maxx2-Threshold) && (iy > miny2 + Threshold && iy < maxy2-Threshold)) {
-              System.out.printf("line %f, %f, %f, %f\n", x1, y1, x2, y2);
-              System.out.printf("line %f, %f, %f, %f\n", x3, y3, x4, y4);
-              System.out.printf("circle %f, %f, 0.5\n", ix, iy);
-              correct.set(false);
-            }
-          }
-        }, null);
-        if (!correct.get())
-          return true; // true means incorrect
-
-        // Test if all the lines of the convex hull are edges
-        boolean collinear_ch = true;
-        for (int i = 2; collinear_ch && i < convexHull.length; i++) {
-          collinear_ch = crossProduct(convexHull[i-2], convexHull[i-1], convexHull[i]) == 0;
+      int numEdges = sources.size();
+      double[] x1s = new double[numEdges], y1s = new double[numEdges];
+      double[] x2s = new double[numEdges], y2s = new double[numEdges];
+      for (int i = 0; i < numEdges; i++) {
+        int s = sources.get(i), d = destinations.get(i);
+        x1s[i] = Math.min(xs[s], xs[d]);
+        y1s[i] = Math.min(ys[s], ys[d]);
+        x2s[i] = Math.max(xs[s], xs[d]);
+        y2s[i] = Math.max(ys[s], ys[d]);
+      }
+      IntArray pairs = new IntArray();
+      SpatialAlgorithms.SpatialJoin_rectangles(x1s, y1s, x2s, y2s,
+          x1s, y1s, x2s, y2s, pairs, null);
+
+      final double Threshold = 1E-5;
+      boolean correct = true;
+      for (int i = 0; correct && i < pairs.size(); i += 2) {
+        int source1 = sources.get(pairs.get(i));
+        int destination1 = destinations.get(pairs.get(i));
+        int source2 = sources.get(pairs.get(i + 1));
+        int destination2 = destinations.get(pairs.get(i + 1));
+        if (source1 == source2 || source1 == destination2 ||
+            destination1 == source2 || destination1 == destination2) {
+          // Skip the test if the two edges share an end point.
+          // If they share an end point they have to be intersected but it
+          // is not considered a violation of the triangulation property.
+          continue;
         }
+        // Do a refine step where we compare the actual lines
+        double x1 = xs[source1];
+        double y1 = ys[source1];
+        double x2 = xs[destination1];
+        double y2 = ys[destination1];
+        double x3 = xs[source2];
+        double y3 = ys[source2];
+        double x4 = xs[destination2];
+        double y4 = ys[destination2];
+
+        double den = (x1 - x2) * (y3 - y4) - (y1 - y2) * (x3 - x4);
+        double ix = (x1 * y2 - y1 * x2) * (x3 - x4) / den - (x1 - x2) * (x3 * y4 - y3 * x4) / den;
+        double iy = (x1 * y2 - y1 * x2) * (y3 - y4) / den - (y1 - y2) * (x3 * y4 - y3 * x4) / den;
+        double minx1 = Math.min(x1, x2);
+        double maxx1 = Math.max(x1, x2);
+        double miny1 = Math.min(y1, y2);
+        double maxy1 = Math.max(y1, y2);
+        double minx2 = Math.min(x3, x4);
+        double maxx2 = Math.max(x3, x4);
+        double miny2 = Math.min(y3, y4);
+        double maxy2 = Math.max(y3, y4);
+        // Make sure that the intersection is on the two line segments.
+        // The intersection has to be in the x and y ranges of the two line
+        // segments. A threshold is used to avoid precision error where the
+        // intersection is off by a little bit due to calculation errors.
+        if ((ix > minx1 + Threshold && ix < maxx1-Threshold) && (iy > miny1 + Threshold && iy < maxy1-Threshold) &&
+            (ix > minx2 + Threshold && ix < maxx2-Threshold) && (iy > miny2 + Threshold && iy < maxy2-Threshold)) {
+          System.out.printf("line %f, %f, %f, %f\n", x1, y1, x2, y2);
+          System.out.printf("line %f, %f, %f, %f\n", x3, y3, x4, y4);
+          System.out.printf("circle %f, %f, 0.5\n", ix, iy);
+          correct = false;
+        }
+      }
 
-        if (!collinear_ch) {
-          // Test if all edges of the convex hull are in the triangulation only
-          // if the convex hull is not a line
-          for (int i = 0; i < convexHull.length; i++) {
-            int s = convexHull[i];
-            int d = convexHull[(i+1)%convexHull.length];
-            if (!neighbors[s].contains(d)) {
-              System.out.printf("Edge %d, %d on the convex hull but not found in the DT\n", s, d);
-              return true; // true means incorrect
-            }
+      if (!correct)
+        return true; // true means incorrect
+
+      // Test if all the lines of the convex hull are edges
+      boolean collinear_ch = true;
+      for (int i = 2; collinear_ch && i < convexHull.length; i++) {
+        collinear_ch = crossProduct(convexHull[i-2], convexHull[i-1], convexHull[i]) == 0;
+      }
+
+      if (!collinear_ch) {
+        // Test if all edges of the convex hull are in the triangulation only
+        // if the convex hull is not a line
+        for (int i = 0; i < convexHull.length; i++) {
+          int s = convexHull[i];
+          int d = convexHull[(i+1)%convexHull.length];
+          if (!neighbors[s].contains(d)) {
+            System.out.printf("Edge %d, %d on the convex hull but not found in the DT\n", s, d);
+            return true; // true means incorrect
           }
         }
+      }
 
-        // Test that this is indeed a triangulation. For each node, sort its
-        // neighbors in a CW order and make sure that every pair of nodes in
-        // a consecutive CW order with less than 180 degrees are connected
-        for (int i = site1; i <= site2; i++) {
-          final IntArray ineighbors = neighbors[i];
-          if (ineighbors.size() == 1)
-            continue;
-          final int center = i;
-          //final Point center = points[i];
-          Comparator<Integer> ccw_comparator = new Comparator<Integer>() {
-            @Override
-            public int compare(Integer a, Integer b) {
-              if (xs[a] - xs[center] >= 0 && xs[b] - xs[center] < 0)
-                return 1;
-              if (xs[a] - xs[center] < 0 && xs[b] - xs[center] >= 0)
-                return -1;
-              if (xs[a] - xs[center] == 0 && xs[b] - xs[center] == 0)
-                return Double.compare(ys[b] - ys[center], ys[a] - ys[center]);
-
-              // compute the cross product of vectors (center -> a) x (center -> b)
-              double det = (xs[a] - xs[center]) * (ys[b] - ys[center]) - (xs[b] - xs[center]) * (ys[a] - ys[center]);
-              if (det < 0)
-                return -1;
-              if (det > 0)
-                return 1;
-              return 0;
-            }
-          };
-          for (int n1 = ineighbors.size() - 1; n1 >= 0 ; n1--) {
-            for (int n2 = 0; n2 < n1; n2++) {
-              // Compare neighbors n2 and n2+1
-              final int a = ineighbors.get(n2);
-              final int b = ineighbors.get(n2+1);
-              if (ccw_comparator.compare(a, b) > 0)
-                ineighbors.swap(n2, n2+1);
-            }
+      // Test that this is indeed a triangulation. For each node, sort its
+      // neighbors in a CW order and make sure that every pair of nodes in
+      // a consecutive CW order with less than 180 degrees are connected
+      for (int i = site1; i <= site2; i++) {
+        final IntArray ineighbors = neighbors[i];
+        if (ineighbors.size() == 1)
+          continue;
+        final int center = i;
+        //final Point center = points[i];
+        Comparator<Integer> ccw_comparator = new Comparator<Integer>() {
+          @Override
+          public int compare(Integer a, Integer b) {
+            if (xs[a] - xs[center] >= 0 && xs[b] - xs[center] < 0)
+              return 1;
+            if (xs[a] - xs[center] < 0 && xs[b] - xs[center] >= 0)
+              return -1;
+            if (xs[a] - xs[center] == 0 && xs[b] - xs[center] == 0)
+              return Double.compare(ys[b] - ys[center], ys[a] - ys[center]);
+
+            // compute the cross product of vectors (center -> a) x (center -> b)
+            double det = (xs[a] - xs[center]) * (ys[b] - ys[center]) - (xs[b] - xs[center]) * (ys[a] - ys[center]);
+            if (det < 0)
+              return -1;
+            if (det > 0)
+              return 1;
+            return 0;
+          }
+        };
+        for (int n1 = ineighbors.size() - 1; n1 >= 0 ; n1--) {
+          for (int n2 = 0; n2 < n1; n2++) {
+            // Compare neighbors n2 and n2+1
+            final int a = ineighbors.get(n2);
+            final int b = ineighbors.get(n2+1);
+            if (ccw_comparator.compare(a, b) > 0)
+              ineighbors.swap(n2, n2+1);
           }
+        }
 
-          for (int j1 = 0; j1 < ineighbors.size(); j1++) {
-            int j2 = (j1 + 1) % ineighbors.size();
-            int n1 = ineighbors.get(j1);
-            int n2 = ineighbors.get(j2);
-            // Check if the triangle (i, n1, n1+1) can be reported
-            double a_x = xs[n1] - xs[i];
-            double a_y = ys[n1] - ys[i];
-            double b_x = xs[n2] - xs[i];
-            double b_y = ys[n2] - ys[i];
-            if (a_x * b_y - a_y * b_x < 0) {
-              // Triangle is correct. Now make sure that the edge n1-n2 exists
-              if (!neighbors[n1].contains(n2)) {
-                System.out.printf("An incomplete triangle (%d,%d,%d)\n",
-                    i, n1, n2);
-                return true; // true means incorrect
-              }
+        for (int j1 = 0; j1 < ineighbors.size(); j1++) {
+          int j2 = (j1 + 1) % ineighbors.size();
+          int n1 = ineighbors.get(j1);
+          int n2 = ineighbors.get(j2);
+          // Check if the triangle (i, n1, n1+1) can be reported
+          double a_x = xs[n1] - xs[i];
+          double a_y = ys[n1] - ys[i];
+          double b_x = xs[n2] - xs[i];
+          double b_y = ys[n2] - ys[i];
+          if (a_x * b_y - a_y * b_x < 0) {
+            // Triangle is correct. Now make sure that the edge n1-n2 exists
+            if (!neighbors[n1].contains(n2)) {
+              System.out.printf("An incomplete triangle (%d,%d,%d)\n",
+                  i, n1, n2);
+              return true; // true means incorrect
             }
           }
         }
-
-
-      } catch (IOException e) {
-        e.printStackTrace();
-        return true; // true means incorrect
       }
 
       return false; // false means correct
@@ -8,10 +8,10 @@
 *************************************************************************/
 package edu.umn.cs.spatialHadoop.hdf;
 
-import java.io.ByteArrayInputStream;
 import java.io.DataInput;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
 
 /**
@@ -22,6 +22,9 @@ import java.util.zip.InflaterInputStream;
  */
 public class DDCompressedBlock extends DataDescriptor {
 
+  /**Size of the buffer used to feed compressed bytes to the inflater*/
+  private static final int InputBufferSize = 64 * 1024;
+
   DDCompressedBlock(HDFFile hdfFile, int tagID, int refNo, int offset,
       int length, boolean extended) {
     super(hdfFile, tagID, refNo, offset, length, extended);
@@ -35,18 +38,54 @@ public class DDCompressedBlock extends DataDescriptor {
     System.err.println("This method should never be called directly on compressed blocks");
   }
   
+  /**
+   * Returns a stream that inflates the contents of this block on the fly.
+   * Compressed bytes are read with positioned reads directly from the
+   * underlying file so that the position of the file stream is not affected
+   * and the compressed block is never loaded in memory as a whole.
+   * @param level
+   * @return
+   * @throws IOException
+   */
   protected InputStream decompressDeflate(int level) throws IOException {
-    // We need to retrieve the raw data first and then pass it to the
-    // decompressor. Otherwise, the decompressor will not be able to determine
-    // the end-of-file
-    // TODO try to create a wrapper stream that reads only the correct amount
-    // of bytes without having to load everything in memory
-    byte[] rawData = new byte[getLength()];
-    hdfFile.inStream.seek(offset);
-    hdfFile.inStream.readFully(rawData);
-    InputStream decompressedData =
-        new InflaterInputStream(new ByteArrayInputStream(rawData));
-    return decompressedData;
+    // The inflater is shared by all blocks of the file to avoid allocating
+    // its native buffers for each block
+    Inflater inflater = hdfFile.getInflater();
+    return new InflaterInputStream(new BlockInputStream(), inflater,
+        InputBufferSize);
+  }
+
+  /**
+   * An input stream that reads the raw bytes of this block without loading
+   * them in memory. Since the size of the stream is known, the inflater is
+   * able to detect the end of the compressed data.
+   */
+  class BlockInputStream extends InputStream {
+    /**Position of the next byte to read relative to the start of the block*/
+    private int pos;
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == 1 ? (b[0] & 0xff) : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int remaining = getLength() - pos;
+      if (remaining <= 0)
+        return -1;
+      int bytesRead = hdfFile.inStream.read((long)offset + pos, b, off,
+          Math.min(len, remaining));
+      if (bytesRead > 0)
+        pos += bytesRead;
+      return bytesRead;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return getLength() - pos;
+    }
   }
 
   public String toString() {
@@ -61,10 +61,24 @@ public class DDNumericDataGroup extends DataDescriptor {
   }
 
   public void getAsByteArray(byte[] buf, int bufOff, int bufLen) throws IOException {
+    getAsByteArray(0, buf, bufOff, bufLen);
+  }
+
+  /**
+   * Reads a range of the underlying data into the given buffer without
+   * loading the rest of the data in memory.
+   * @param dataOffset offset of the first byte to read in the data
+   * @param buf
+   * @param bufOff
+   * @param bufLen
+   * @throws IOException
+   */
+  public void getAsByteArray(long dataOffset, byte[] buf, int bufOff,
+      int bufLen) throws IOException {
     lazyLoad();
     for (int i = 0; i < members.length; i++)
       if (members[i].tagID == HDFConstants.DFTAG_SD) {
-        ((DDScientificData)hdfFile.retrieveElementByID(members[i])).readData(buf, bufOff, bufLen);
+        ((DDScientificData)hdfFile.retrieveElementByID(members[i])).readData(dataOffset, buf, bufOff, bufLen);
         return;
       }
   }
@@ -290,7 +290,8 @@ public abstract class DataDescriptor {
    * Read extended block that is available as compressed data
    * @throws IOException
    */
-  private int readCompressedData(byte[] data, int offset, int length) throws IOException {
+  private int readCompressedData(long dataOffset, byte[] data, int offset,
+      int length) throws IOException {
     /*int compressionVersion = */hdfFile.inStream.readUnsignedShort();
     /*int extendedLength = */hdfFile.inStream.readInt();
     int linkedRefNo = hdfFile.inStream.readUnsignedShort();
@@ -303,22 +304,34 @@ public abstract class DataDescriptor {
       DDCompressedBlock dataBlock =
           (DDCompressedBlock) hdfFile.retrieveElementByID(linkedBlockID);
       InputStream decompressedData = dataBlock.decompressDeflate(deflateLevel);
-      int totalBytesRead = 0;
-      int numBytesRead;
-      do {
-        numBytesRead = decompressedData.read(data, offset, length);
-        offset += numBytesRead;
-        length -= numBytesRead;
-        totalBytesRead += numBytesRead;
-      } while (numBytesRead > 0 && length > 0);
-      return totalBytesRead;
+      try {
+        // Skipping still inflates the data but does not keep it in memory
+        while (dataOffset > 0) {
+          long skipped = decompressedData.skip(dataOffset);
+          if (skipped <= 0)
+            return 0;
+          dataOffset -= skipped;
+        }
+        int totalBytesRead = 0;
+        int numBytesRead;
+        while (length > 0 &&
+            (numBytesRead = decompressedData.read(data, offset, length)) > 0) {
+          offset += numBytesRead;
+          length -= numBytesRead;
+          totalBytesRead += numBytesRead;
+        }
+        return totalBytesRead;
+      } finally {
+        decompressedData.close();
+      }
     } else {
       throw new RuntimeException("Unsupported compression "+compressionType);
     }
   }
   
   
-  private int readChunkedData(byte[] buf, int bufOff, int bufLen) throws IOException {
+  private int readChunkedData(long dataOffset, byte[] buf, int bufOff,
+      int bufLen) throws IOException {
     /*int sp_tag_head_len = */hdfFile.inStream.readInt();
     /*int version = */hdfFile.inStream.readUnsignedByte();
     /*int flag = */hdfFile.inStream.readInt();
@@ -356,9 +369,11 @@ public abstract class DataDescriptor {
     int numChunks = chunkTable.getEntryCount();
     int totalBytesRead = 0;
     int chunkSizeInBytes = chunk_size * nt_size;
-    // TODO use a more memory-friendly technique that avoids reading all
-    // chunks in memory before parsing
-    for (int i_chunk = 0; i_chunk < numChunks && bufLen > 0; i_chunk++) {
+    // Only decode the chunks that overlap the requested range
+    int firstChunk = (int) (dataOffset / chunkSizeInBytes);
+    int chunkOffset = (int) (dataOffset % chunkSizeInBytes);
+    for (int i_chunk = firstChunk; i_chunk < numChunks && bufLen > 0; i_chunk++) {
+      int bytesToRead = Math.min(bufLen, chunkSizeInBytes - chunkOffset);
       // Read data in this chunk
       Object[] chunkInformation = (Object[]) chunkTable.getEntryAt(i_chunk);
       DDID chunkedID = new DDID((Integer)chunkInformation[1], (Integer)chunkInformation[2]);
@@ -367,17 +382,19 @@ public abstract class DataDescriptor {
         // TODO fill in the array with fillValue
         // Skip the corresponding part in the array
       } else {
-        chunkObject.readData(buf, bufOff, chunkSizeInBytes);
+        chunkObject.readData(chunkOffset, buf, bufOff, bytesToRead);
       }
       // Advance to next part in the array
-      totalBytesRead += chunkSizeInBytes;
-      bufOff += chunkSizeInBytes;
-      bufLen -= chunkSizeInBytes;
+      totalBytesRead += bytesToRead;
+      bufOff += bytesToRead;
+      bufLen -= bytesToRead;
+      chunkOffset = 0;
     }
     return totalBytesRead;
   }
   
-  private int readLinkedData(byte[] buf, int bufOff, int bufLen) throws IOException {
+  private int readLinkedData(long dataOffset, byte[] buf, int bufOff,
+      int bufLen) throws IOException {
     // Length of the entire element
     int length = hdfFile.inStream.readInt();
     // Length of successive data blocks
@@ -403,7 +420,14 @@ public abstract class DataDescriptor {
     for (int i = 0; i < blockReferences.length && bufLen > 0; i++) {
       DDID id = new DDID(HDFConstants.DFTAG_LINKED, blockReferences[i]);
       DDLinkedBlock dataBlock = (DDLinkedBlock) hdfFile.retrieveElementByID(id);
-      int bytesRead = dataBlock.readData(buf, bufOff, bufLen);
+      int blockLength = dataBlock.getLength();
+      if (dataOffset >= blockLength) {
+        // This block is entirely before the requested range
+        dataOffset -= blockLength;
+        continue;
+      }
+      int bytesRead = dataBlock.readData(dataOffset, buf, bufOff, bufLen);
+      dataOffset = 0;
       totalBytesRead += bytesRead;
       bufOff += bytesRead;
       bufLen -= bytesRead;
@@ -412,24 +436,44 @@ public abstract class DataDescriptor {
   }
   
   protected int readData(byte[] buf, int bufOff, int bufLen) throws IOException {
+    return readData(0, buf, bufOff, bufLen);
+  }
+
+  /**
+   * Reads a range of the (uncompressed) data of this block directly into the
+   * given buffer. Only the parts of the data that overlap the range are
+   * decoded which allows reading a subset of a big dataset without
+   * materializing all of it in memory.
+   * @param dataOffset offset of the first byte to read in the data
+   * @param buf the buffer to read the data into
+   * @param bufOff the offset in the buffer to write the first byte to
+   * @param bufLen maximum number of bytes to read
+   * @return the number of bytes read
+   * @throws IOException
+   */
+  protected int readData(long dataOffset, byte[] buf, int bufOff, int bufLen)
+      throws IOException {
     hdfFile.inStream.seek(offset);
     if (!extended) {
       // Read from the input file directly
-      hdfFile.inStream.readFully(buf, bufOff, Math.max(this.getLength(), bufLen));
-      return bufLen;
+      int bytesToRead = (int) Math.min(this.getLength() - dataOffset, bufLen);
+      if (bytesToRead <= 0)
+        return 0;
+      hdfFile.inStream.readFully(offset + dataOffset, buf, bufOff, bytesToRead);
+      return bytesToRead;
     } else {
       // Extended block. Need to retrieve extended data first
       int extensionType = hdfFile.inStream.readUnsignedShort();
       switch (extensionType) {
       case HDFConstants.SPECIAL_COMP:
         // Compressed data
-        return readCompressedData(buf, bufOff, bufLen);
+        return readCompressedData(dataOffset, buf, bufOff, bufLen);
       case HDFConstants.SPECIAL_CHUNKED:
         // Chunked data
-        return readChunkedData(buf, bufOff, bufLen);
+        return readChunkedData(dataOffset, buf, bufOff, bufLen);
       case HDFConstants.SPECIAL_LINKED:
         // Linked data
-        return readLinkedData(buf, bufOff, bufLen);
+        return readLinkedData(dataOffset, buf, bufOff, bufLen);
       default:
         // Not supported
         throw new RuntimeException("Unsupported extension type "+extensionType);
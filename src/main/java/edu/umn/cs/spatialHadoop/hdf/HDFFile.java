@@ -13,6 +13,7 @@ import java.io.IOException;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.zip.Inflater;
 
 import edu.umn.cs.spatialHadoop.visualization.SingleLevelPlot;
 import org.apache.commons.logging.Log;
@@ -37,6 +38,9 @@ public class HDFFile implements Closeable {
   
   /**Input stream to the underlying */
   FSDataInputStream inStream;
+
+  /**An inflater reused to decompress all compressed blocks in this file*/
+  private Inflater inflater;
   
   /**
    * Initializes a new HDF file from an input stream. This stream should not
@@ -136,8 +140,26 @@ public class HDFFile implements Closeable {
     }
   }
 
+  /**
+   * Returns an inflater that is ready to decompress a new block. Only one
+   * compressed block can be decompressed at a time because the same inflater
+   * is reused for all blocks.
+   * @return
+   */
+  Inflater getInflater() {
+    if (inflater == null)
+      inflater = new Inflater();
+    else
+      inflater.reset();
+    return inflater;
+  }
+
   @Override
   public void close() throws IOException {
+    if (inflater != null) {
+      inflater.end();
+      inflater = null;
+    }
     this.inStream.close();
   }
 
@@ -0,0 +1,219 @@
+package edu.umn.cs.spatialHadoop.indexing;
+
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Stores the MBR of every block of records in a partition file that is not
+ * locally indexed. Each block contains whole records and starts at a record
+ * boundary, which allows a reader to seek directly past all blocks that are
+ * disjoint with a query range. The blocks are stored in a small hidden file
+ * next to the partition file so that the partition itself remains a plain
+ * text file that can be read by any text reader.
+ */
+public class BlockMBRIndex {
+
+  /**
+   * The name of the configuration line that sets the size of one block in
+   * bytes. Set to zero to disable writing block MBRs.
+   */
+  public static final String BlockSize = "BlockMBRIndex.BlockSize";
+
+  /**The default block size in bytes*/
+  public static final int DefaultBlockSize = 64 * 1024;
+
+  /**The size of the data file when the block index was written*/
+  protected long dataLength;
+
+  /**Number of blocks*/
+  protected int numBlocks;
+
+  /**The start offset of each block in the data file*/
+  protected long[] offsets;
+
+  /**The MBR of each block*/
+  protected double[] x1s, y1s, x2s, y2s;
+
+  /**The minimum size of one block while building the index*/
+  protected int blockSize;
+
+  public BlockMBRIndex() {
+    this(DefaultBlockSize);
+  }
+
+  public BlockMBRIndex(int blockSize) {
+    this.blockSize = blockSize;
+    this.offsets = new long[16];
+    this.x1s = new double[16];
+    this.y1s = new double[16];
+    this.x2s = new double[16];
+    this.y2s = new double[16];
+  }
+
+  /**
+   * Adds a record that has just been appended to the end of the data file.
+   * @param mbr the MBR of the record or <code>null</code> if it is empty
+   * @param recordSize the size of the record in bytes including the new line
+   */
+  public void addRecord(Rectangle mbr, int recordSize) {
+    if (numBlocks == 0 || dataLength - offsets[numBlocks - 1] >= blockSize) {
+      // Start a new block at the current end of the file
+      if (numBlocks == offsets.length) {
+        int newCapacity = offsets.length * 2;
+        offsets = Arrays.copyOf(offsets, newCapacity);
+        x1s = Arrays.copyOf(x1s, newCapacity);
+        y1s = Arrays.copyOf(y1s, newCapacity);
+        x2s = Arrays.copyOf(x2s, newCapacity);
+        y2s = Arrays.copyOf(y2s, newCapacity);
+      }
+      offsets[numBlocks] = dataLength;
+      x1s[numBlocks] = y1s[numBlocks] = Double.POSITIVE_INFINITY;
+      x2s[numBlocks] = y2s[numBlocks] = Double.NEGATIVE_INFINITY;
+      numBlocks++;
+    }
+    int iBlock = numBlocks - 1;
+    if (mbr != null) {
+      x1s[iBlock] = Math.min(x1s[iBlock], mbr.x1);
+      y1s[iBlock] = Math.min(y1s[iBlock], mbr.y1);
+      x2s[iBlock] = Math.max(x2s[iBlock], mbr.x2);
+      y2s[iBlock] = Math.max(y2s[iBlock], mbr.y2);
+    }
+    dataLength += recordSize;
+  }
+
+  public int getNumBlocks() {
+    return numBlocks;
+  }
+
+  /**
+   * The offset of the first byte in the given block
+   * @param iBlock
+   * @return
+   */
+  public long getBlockStart(int iBlock) {
+    return iBlock < numBlocks ? offsets[iBlock] : dataLength;
+  }
+
+  /**
+   * The offset right after the last byte in the given block
+   * @param iBlock
+   * @return
+   */
+  public long getBlockEnd(int iBlock) {
+    return getBlockStart(iBlock + 1);
+  }
+
+  /**
+   * Tests whether the MBR of the given block overlaps a query range.
+   * Blocks that touch the query at the boundary are considered overlapping.
+   * @param iBlock
+   * @param query
+   * @return
+   */
+  public boolean isOverlapped(int iBlock, Rectangle query) {
+    return !(query.x2 < x1s[iBlock] || x2s[iBlock] < query.x1 ||
+        query.y2 < y1s[iBlock] || y2s[iBlock] < query.y1);
+  }
+
+  /**
+   * Returns the index of the block that contains the given offset.
+   * @param offset
+   * @return
+   */
+  public int findBlock(long offset) {
+    int i = Arrays.binarySearch(offsets, 0, numBlocks, offset);
+    return i >= 0 ? i : Math.max(0, -i - 2);
+  }
+
+  /**
+   * Returns the path of the file that stores the block index of a data file.
+   * The file name starts with an underscore to keep it hidden from input
+   * formats that read the data files.
+   * @param dataFile
+   * @return
+   */
+  public static Path getBlockIndexPath(Path dataFile) {
+    return new Path(dataFile.getParent(), "_" + dataFile.getName() + ".blocks");
+  }
+
+  /**
+   * Writes the block index of the given data file.
+   * @param fs
+   * @param dataFile
+   * @throws IOException
+   */
+  public void write(FileSystem fs, Path dataFile) throws IOException {
+    FSDataOutputStream out = fs.create(getBlockIndexPath(dataFile), true);
+    try {
+      out.writeLong(dataLength);
+      out.writeInt(numBlocks);
+      for (int iBlock = 0; iBlock < numBlocks; iBlock++) {
+        out.writeLong(offsets[iBlock]);
+        out.writeDouble(x1s[iBlock]);
+        out.writeDouble(y1s[iBlock]);
+        out.writeDouble(x2s[iBlock]);
+        out.writeDouble(y2s[iBlock]);
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Reads the block index of the given data file. If the data file does not
+   * have a block index, or if it was modified after the block index was
+   * written, a <code>null</code> is returned.
+   * @param fs
+   * @param dataFile
+   * @return
+   * @throws IOException
+   */
+  public static BlockMBRIndex read(FileSystem fs, Path dataFile) throws IOException {
+    Path indexPath = getBlockIndexPath(dataFile);
+    if (!fs.exists(indexPath))
+      return null;
+    FileStatus dataStatus = fs.getFileStatus(dataFile);
+    FSDataInputStream in = fs.open(indexPath);
+    try {
+      BlockMBRIndex index = new BlockMBRIndex();
+      index.dataLength = in.readLong();
+      if (index.dataLength != dataStatus.getLen())
+        return null; // The data file has changed, e.g., appended to
+      index.numBlocks = in.readInt();
+      index.offsets = new long[index.numBlocks];
+      index.x1s = new double[index.numBlocks];
+      index.y1s = new double[index.numBlocks];
+      index.x2s = new double[index.numBlocks];
+      index.y2s = new double[index.numBlocks];
+      for (int iBlock = 0; iBlock < index.numBlocks; iBlock++) {
+        index.offsets[iBlock] = in.readLong();
+        index.x1s[iBlock] = in.readDouble();
+        index.y1s[iBlock] = in.readDouble();
+        index.x2s[iBlock] = in.readDouble();
+        index.y2s[iBlock] = in.readDouble();
+      }
+      return index;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Deletes the block index of the given data file if it exists.
+   * @param fs
+   * @param dataFile
+   * @throws IOException
+   */
+  public static void delete(FileSystem fs, Path dataFile) throws IOException {
+    Path indexPath = getBlockIndexPath(dataFile);
+    if (fs.exists(indexPath))
+      fs.delete(indexPath, false);
+  }
+}
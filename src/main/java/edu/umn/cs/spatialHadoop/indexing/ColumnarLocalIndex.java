@@ -0,0 +1,566 @@
+package edu.umn.cs.spatialHadoop.indexing;
+
+import edu.umn.cs.spatialHadoop.core.Point;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.io.Text2;
+import edu.umn.cs.spatialHadoop.util.IntArray;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.IndexedSortable;
+import org.apache.hadoop.util.QuickSort;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A binary partition format that stores records in columnar blocks rather
+ * than text lines. Records are sorted by the Hilbert value of their centers
+ * and grouped into blocks of a fixed number of records. Each block stores
+ * the coordinates as arrays of doubles, i.e., x[] and y[] for points and
+ * x1[], y1[], x2[], y2[] for other shapes. Shapes other than
+ * {@link Point} and {@link Rectangle} also keep their text representation
+ * in the block which is parsed only for records that match the query.
+ * A directory at the end of the file stores the offset, size, number of
+ * records and MBR of each block so that a search skips all blocks that are
+ * disjoint with the query range.
+ *
+ * The file ends with the size of the index as required by
+ * {@link edu.umn.cs.spatialHadoop.mapreduce.LocalIndexRecordReader}.
+ * @param <S>
+ */
+@LocalIndex.LocalIndexMetadata(extension = "cols")
+public class ColumnarLocalIndex<S extends Shape> implements LocalIndex<S> {
+
+  /**The name of the configuration line that sets the number of records per block*/
+  public static final String BlockSize = "ColumnarLocalIndex.BlockSize";
+
+  /**The name of the configuration line that enables Deflate compression of blocks*/
+  public static final String Compress = "ColumnarLocalIndex.Compress";
+
+  /**Blocks contain two columns x and y*/
+  static final byte PointColumns = 0;
+  /**Blocks contain four columns x1, y1, x2, and y2*/
+  static final byte RectangleColumns = 1;
+  /**Blocks contain four MBR columns followed by the text of each record*/
+  static final byte TextColumns = 2;
+
+  /**The configuration of the underlying job*/
+  private Configuration conf;
+
+  /**The input stream to read blocks from*/
+  protected FSDataInputStream in;
+
+  /**The start and end offsets of the data chunk*/
+  protected long dataStart, dataEnd;
+
+  /**The type of columns stored in each block*/
+  protected byte columns;
+
+  /**Whether blocks are compressed or not*/
+  protected boolean compressed;
+
+  /**Offset of each block relative to the start of the data*/
+  protected long[] blockOffsets;
+
+  /**Size of each block in bytes as stored in the file*/
+  protected int[] blockSizes;
+
+  /**Number of records in each block*/
+  protected int[] blockCounts;
+
+  /**The MBR of each block*/
+  protected double[] blockX1s, blockY1s, blockX2s, blockY2s;
+
+  /**The shape used to return records*/
+  protected S mutableShape;
+
+  @Override
+  public void setup(Configuration conf) {
+    this.conf = conf;
+  }
+
+  @Override
+  public void buildLocalIndex(File nonIndexedFile, Path outputIndexedFile, S shape) throws IOException, InterruptedException {
+    // Read all data of the written file in memory as one byte array
+    final byte[] cellData = new byte[(int) nonIndexedFile.length()];
+    InputStream cellIn = new BufferedInputStream(new FileInputStream(nonIndexedFile));
+    try {
+      IOUtils.readFully(cellIn, cellData, 0, cellData.length);
+    } finally {
+      cellIn.close();
+    }
+
+    // Find the start and end of each record excluding the EOL characters
+    final IntArray recordStarts = new IntArray();
+    final IntArray recordEnds = new IntArray();
+    int i1 = 0;
+    while (i1 < cellData.length) {
+      int i2 = i1;
+      while (i2 < cellData.length && cellData[i2] != '\n' && cellData[i2] != '\r')
+        i2++;
+      if (i2 > i1) {
+        recordStarts.add(i1);
+        recordEnds.add(i2);
+      }
+      // Skip the EOL characters
+      while (i2 < cellData.length && (cellData[i2] == '\n' || cellData[i2] == '\r'))
+        i2++;
+      i1 = i2;
+    }
+
+    // Parse the records to compute their MBRs
+    int numRecords = recordStarts.size();
+    final double[] x1s = new double[numRecords];
+    final double[] y1s = new double[numRecords];
+    final double[] x2s = new double[numRecords];
+    final double[] y2s = new double[numRecords];
+    Rectangle partitionMBR = new Rectangle(Double.MAX_VALUE, Double.MAX_VALUE,
+        -Double.MAX_VALUE, -Double.MAX_VALUE);
+    Text line = new Text2();
+    for (int i = 0; i < numRecords; i++) {
+      line.set(cellData, recordStarts.get(i), recordEnds.get(i) - recordStarts.get(i));
+      shape.fromText(line);
+      Rectangle mbr = shape.getMBR();
+      x1s[i] = mbr.x1;
+      y1s[i] = mbr.y1;
+      x2s[i] = mbr.x2;
+      y2s[i] = mbr.y2;
+      partitionMBR.expand(mbr);
+    }
+
+    // Sort the records by the Hilbert value of their centers so that each
+    // block covers a small region
+    final int[] order = new int[numRecords];
+    final int[] hValues = new int[numRecords];
+    for (int i = 0; i < numRecords; i++) {
+      order[i] = i;
+      hValues[i] = HilbertCurvePartitioner.computeHValue(partitionMBR,
+          (x1s[i] + x2s[i]) / 2, (y1s[i] + y2s[i]) / 2);
+    }
+    new QuickSort().sort(new IndexedSortable() {
+      @Override
+      public int compare(int i, int j) {
+        return hValues[i] < hValues[j] ? -1 : (hValues[i] > hValues[j] ? 1 : 0);
+      }
+
+      @Override
+      public void swap(int i, int j) {
+        int t = order[i];
+        order[i] = order[j];
+        order[j] = t;
+        t = hValues[i];
+        hValues[i] = hValues[j];
+        hValues[j] = t;
+      }
+    }, 0, numRecords);
+
+    byte columns;
+    if (shape.getClass() == Point.class)
+      columns = PointColumns;
+    else if (shape.getClass() == Rectangle.class)
+      columns = RectangleColumns;
+    else
+      columns = TextColumns;
+    int blockSize = conf == null ? 1024 : conf.getInt(BlockSize, 1024);
+    boolean compress = conf != null && conf.getBoolean(Compress, false);
+    int numBlocks = (numRecords + blockSize - 1) / blockSize;
+
+    FileSystem outFS = outputIndexedFile.getFileSystem(conf);
+    FSDataOutputStream out = outFS.create(outputIndexedFile);
+    ByteArrayOutputStream blockBytes = new ByteArrayOutputStream();
+    DataOutputStream blockOut = new DataOutputStream(blockBytes);
+    Deflater deflater = compress ? new Deflater() : null;
+    byte[] compressBuffer = compress ? new byte[64 * 1024] : null;
+    ByteArrayOutputStream directoryBytes = new ByteArrayOutputStream();
+    DataOutputStream directory = new DataOutputStream(directoryBytes);
+    directory.writeInt(numBlocks);
+    directory.writeByte(columns);
+    directory.writeBoolean(compress);
+    for (int iBlock = 0; iBlock < numBlocks; iBlock++) {
+      int blockStart = (int) ((long) iBlock * blockSize);
+      int blockEnd = Math.min(numRecords, blockStart + blockSize);
+      double bx1 = Double.POSITIVE_INFINITY, by1 = Double.POSITIVE_INFINITY;
+      double bx2 = Double.NEGATIVE_INFINITY, by2 = Double.NEGATIVE_INFINITY;
+      for (int i = blockStart; i < blockEnd; i++) {
+        int iRecord = order[i];
+        bx1 = Math.min(bx1, x1s[iRecord]);
+        by1 = Math.min(by1, y1s[iRecord]);
+        bx2 = Math.max(bx2, x2s[iRecord]);
+        by2 = Math.max(by2, y2s[iRecord]);
+      }
+      // Write the columns of the block
+      blockBytes.reset();
+      if (columns == PointColumns) {
+        for (int i = blockStart; i < blockEnd; i++)
+          blockOut.writeDouble(x1s[order[i]]);
+        for (int i = blockStart; i < blockEnd; i++)
+          blockOut.writeDouble(y1s[order[i]]);
+      } else {
+        for (int i = blockStart; i < blockEnd; i++)
+          blockOut.writeDouble(x1s[order[i]]);
+        for (int i = blockStart; i < blockEnd; i++)
+          blockOut.writeDouble(y1s[order[i]]);
+        for (int i = blockStart; i < blockEnd; i++)
+          blockOut.writeDouble(x2s[order[i]]);
+        for (int i = blockStart; i < blockEnd; i++)
+          blockOut.writeDouble(y2s[order[i]]);
+        if (columns == TextColumns) {
+          for (int i = blockStart; i < blockEnd; i++)
+            blockOut.writeInt(recordEnds.get(order[i]) - recordStarts.get(order[i]));
+          for (int i = blockStart; i < blockEnd; i++)
+            blockOut.write(cellData, recordStarts.get(order[i]),
+                recordEnds.get(order[i]) - recordStarts.get(order[i]));
+        }
+      }
+      blockOut.flush();
+      long blockOffset = out.getPos();
+      if (compress) {
+        deflater.reset();
+        deflater.setInput(blockBytes.toByteArray());
+        deflater.finish();
+        while (!deflater.finished()) {
+          int length = deflater.deflate(compressBuffer);
+          out.write(compressBuffer, 0, length);
+        }
+      } else {
+        blockBytes.writeTo(out);
+      }
+      directory.writeLong(blockOffset);
+      directory.writeInt((int) (out.getPos() - blockOffset));
+      directory.writeInt(blockEnd - blockStart);
+      directory.writeDouble(bx1);
+      directory.writeDouble(by1);
+      directory.writeDouble(bx2);
+      directory.writeDouble(by2);
+    }
+    if (deflater != null)
+      deflater.end();
+    directory.close();
+    long directoryOffset = out.getPos();
+    directoryBytes.writeTo(out);
+    out.writeLong(directoryOffset);
+    int indexSize = (int) out.getPos();
+    out.writeInt(indexSize);
+    out.close();
+  }
+
+  @Override
+  public long getDataStart() {
+    return dataStart;
+  }
+
+  @Override
+  public long getDataEnd() {
+    return dataEnd;
+  }
+
+  @Override
+  public void read(FSDataInputStream in, long start, long end, S mutableShape) throws IOException {
+    this.in = in;
+    this.mutableShape = mutableShape;
+    this.dataStart = start;
+    // The offset of the directory is stored right before the index size
+    in.seek(end - 4 - 8);
+    long directoryOffset = in.readLong();
+    this.dataEnd = start + directoryOffset;
+    in.seek(start + directoryOffset);
+    int numBlocks = in.readInt();
+    columns = in.readByte();
+    compressed = in.readBoolean();
+    blockOffsets = new long[numBlocks];
+    blockSizes = new int[numBlocks];
+    blockCounts = new int[numBlocks];
+    blockX1s = new double[numBlocks];
+    blockY1s = new double[numBlocks];
+    blockX2s = new double[numBlocks];
+    blockY2s = new double[numBlocks];
+    for (int iBlock = 0; iBlock < numBlocks; iBlock++) {
+      blockOffsets[iBlock] = in.readLong();
+      blockSizes[iBlock] = in.readInt();
+      blockCounts[iBlock] = in.readInt();
+      blockX1s[iBlock] = in.readDouble();
+      blockY1s[iBlock] = in.readDouble();
+      blockX2s[iBlock] = in.readDouble();
+      blockY2s[iBlock] = in.readDouble();
+    }
+  }
+
+  /**
+   * Number of blocks in the index
+   * @return
+   */
+  public int getNumBlocks() {
+    return blockOffsets.length;
+  }
+
+  @Override
+  public Iterable<? extends S> search(double x1, double y1, double x2, double y2) {
+    return new BlockIterator(x1, y1, x2, y2);
+  }
+
+  @Override
+  public Iterable<? extends S> scanAll() {
+    return new BlockIterator(Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY,
+        Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY);
+  }
+
+  /**
+   * Scans all records in their text representation, one line per record.
+   * Unlike {@link #scanAll()}, it does not need a shape to parse the records.
+   * @return
+   */
+  public Iterable<? extends Text> scanAllText() {
+    final BlockIterator records = new BlockIterator(Double.NEGATIVE_INFINITY,
+        Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY);
+    return new Iterable<Text>() {
+      @Override
+      public Iterator<Text> iterator() {
+        records.iterator();
+        return new Iterator<Text>() {
+          private final Text line = new Text2();
+
+          @Override
+          public boolean hasNext() {
+            return records.hasNext();
+          }
+
+          @Override
+          public Text next() {
+            records.nextText(line);
+            return line;
+          }
+
+          @Override
+          public void remove() {
+            throw new RuntimeException("Not implemented");
+          }
+        };
+      }
+    };
+  }
+
+  @Override
+  public void close() throws IOException {
+    // The input stream is owned by the caller
+    in = null;
+  }
+
+  /**
+   * Iterates over all records that overlap a query range. Blocks that are
+   * disjoint with the query range are not read from disk.
+   */
+  class BlockIterator implements Iterable<S>, Iterator<S> {
+    /**The query range*/
+    private final double qx1, qy1, qx2, qy2;
+
+    /**The block currently being scanned*/
+    private int iBlock;
+
+    /**Number of records in the current block*/
+    private int blockCount;
+
+    /**The index of the next record to return in the current block*/
+    private int iRecord;
+
+    /**Raw (decompressed) data of the current block*/
+    private byte[] blockData;
+
+    /**The columns of the current block*/
+    private double[] xs1, ys1, xs2, ys2;
+
+    /**For text columns, the offset of each record in blockData*/
+    private int[] textOffsets;
+
+    /**Used to parse text records*/
+    private Text line = new Text2();
+
+    BlockIterator(double x1, double y1, double x2, double y2) {
+      this.qx1 = x1;
+      this.qy1 = y1;
+      this.qx2 = x2;
+      this.qy2 = y2;
+      this.iBlock = -1;
+    }
+
+    @Override
+    public Iterator<S> iterator() {
+      iBlock = -1;
+      blockCount = iRecord = 0;
+      prefetchNext();
+      return this;
+    }
+
+    /**
+     * Moves iRecord to the next record that overlaps the query range
+     * loading more blocks as needed.
+     */
+    private void prefetchNext() {
+      while (true) {
+        while (iRecord < blockCount) {
+          if (!(qx2 < xs1[iRecord] || xs2[iRecord] < qx1 ||
+              qy2 < ys1[iRecord] || ys2[iRecord] < qy1))
+            return;
+          iRecord++;
+        }
+        // Move to the next block that overlaps the query range
+        do {
+          iBlock++;
+        } while (iBlock < blockOffsets.length &&
+            (qx2 < blockX1s[iBlock] || blockX2s[iBlock] < qx1 ||
+             qy2 < blockY1s[iBlock] || blockY2s[iBlock] < qy1));
+        if (iBlock >= blockOffsets.length) {
+          blockCount = iRecord = 0;
+          return;
+        }
+        loadBlock(iBlock);
+      }
+    }
+
+    private void loadBlock(int i) {
+      try {
+        byte[] data = new byte[blockSizes[i]];
+        in.readFully(dataStart + blockOffsets[i], data);
+        blockCount = blockCounts[i];
+        iRecord = 0;
+        int numColumns = columns == PointColumns ? 2 : 4;
+        if (compressed) {
+          int rawSize = numColumns * 8 * blockCount;
+          if (columns == TextColumns)
+            rawSize = -1;
+          data = inflate(data, rawSize);
+        }
+        blockData = data;
+        ByteBuffer bb = ByteBuffer.wrap(data);
+        xs1 = readColumn(bb, xs1);
+        ys1 = readColumn(bb, ys1);
+        if (columns == PointColumns) {
+          xs2 = xs1;
+          ys2 = ys1;
+        } else {
+          xs2 = readColumn(bb, xs2);
+          ys2 = readColumn(bb, ys2);
+        }
+        if (columns == TextColumns) {
+          if (textOffsets == null || textOffsets.length < blockCount + 1)
+            textOffsets = new int[blockCount + 1];
+          int offset = bb.position() + 4 * blockCount;
+          for (int j = 0; j < blockCount; j++) {
+            textOffsets[j] = offset;
+            offset += bb.getInt();
+          }
+          textOffsets[blockCount] = offset;
+        }
+      } catch (IOException e) {
+        throw new RuntimeException("Error reading block #"+i, e);
+      }
+    }
+
+    private double[] readColumn(ByteBuffer bb, double[] column) {
+      if (column == null || column.length < blockCount)
+        column = new double[blockCount];
+      bb.asDoubleBuffer().get(column, 0, blockCount);
+      bb.position(bb.position() + 8 * blockCount);
+      return column;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return iRecord < blockCount;
+    }
+
+    /**
+     * Returns the next record in its text format without parsing it.
+     * Records stored in point or rectangle columns are formatted as a
+     * {@link Point} or a {@link Rectangle}.
+     * @param text the text to store the record in
+     */
+    void nextText(Text text) {
+      text.clear();
+      switch (columns) {
+      case PointColumns:
+        new Point(xs1[iRecord], ys1[iRecord]).toText(text);
+        break;
+      case RectangleColumns:
+        new Rectangle(xs1[iRecord], ys1[iRecord], xs2[iRecord], ys2[iRecord]).toText(text);
+        break;
+      default:
+        text.set(blockData, textOffsets[iRecord], textOffsets[iRecord+1] - textOffsets[iRecord]);
+      }
+      iRecord++;
+      prefetchNext();
+    }
+
+    @Override
+    public S next() {
+      switch (columns) {
+      case PointColumns:
+        ((Point) mutableShape).set(xs1[iRecord], ys1[iRecord]);
+        break;
+      case RectangleColumns:
+        ((Rectangle) mutableShape).set(xs1[iRecord], ys1[iRecord], xs2[iRecord], ys2[iRecord]);
+        break;
+      default:
+        line.set(blockData, textOffsets[iRecord], textOffsets[iRecord+1] - textOffsets[iRecord]);
+        mutableShape.fromText(line);
+      }
+      iRecord++;
+      prefetchNext();
+      return mutableShape;
+    }
+
+    @Override
+    public void remove() {
+      throw new RuntimeException("Not implemented");
+    }
+  }
+
+  /**
+   * Decompresses a block that was compressed using {@link Deflater}
+   * @param data the compressed data
+   * @param rawSize the size of the decompressed data or -1 if unknown
+   * @return
+   * @throws IOException
+   */
+  static byte[] inflate(byte[] data, int rawSize) throws IOException {
+    Inflater inflater = new Inflater();
+    inflater.setInput(data);
+    try {
+      if (rawSize >= 0) {
+        byte[] raw = new byte[rawSize];
+        int size = 0;
+        while (size < rawSize && !inflater.finished()) {
+          int length = inflater.inflate(raw, size, rawSize - size);
+          if (length == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+            throw new IOException("Truncated block");
+          size += length;
+        }
+        if (size < rawSize)
+          throw new IOException("Block decompressed to "+size+" bytes instead of "+rawSize);
+        return raw;
+      }
+      ByteArrayOutputStream raw = new ByteArrayOutputStream(data.length * 2);
+      byte[] buffer = new byte[64 * 1024];
+      while (!inflater.finished()) {
+        int length = inflater.inflate(buffer);
+        if (length == 0 && inflater.needsInput())
+          break;
+        raw.write(buffer, 0, length);
+      }
+      return raw.toByteArray();
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupted block", e);
+    } finally {
+      inflater.end();
+    }
+  }
+}
@@ -12,7 +12,7 @@ import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 import java.util.Iterator;
-import java.util.Vector;
+import java.util.PriorityQueue;
 
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.util.IndexedSortable;
@@ -24,10 +24,11 @@ import edu.umn.cs.spatialHadoop.core.ResultCollector;
 import edu.umn.cs.spatialHadoop.core.ResultCollector2;
 import edu.umn.cs.spatialHadoop.core.Shape;
 import edu.umn.cs.spatialHadoop.core.SpatialAlgorithms;
+import edu.umn.cs.spatialHadoop.util.IntArray;
 
 /**
- * A very simple spatial index that provides some spatial operations based
- * on an array storage.
+ * A simple spatial index that stores its shapes in an array and searches
+ * them using a packed R-tree built over their MBRs when the index is loaded.
  * @author Ahmed Eldawy
  *
  * @param <S>
@@ -45,6 +46,27 @@ public class GlobalIndex<S extends Shape> implements Writable, Iterable<S> {
   
   /**Whether objects are allowed to replicated in different partitions or not*/
   private boolean replicated;
+
+  /**Maximum number of children of each node in the search tree*/
+  protected static final int Fanout = 16;
+
+  /**
+   * MBRs of the nodes of a packed R-tree built over the shapes. Leaf nodes
+   * come first and the root is the last node.
+   */
+  protected double[] nodeX1, nodeY1, nodeX2, nodeY2;
+
+  /**
+   * The range [start, end) of children of each node. For leaf nodes, it is
+   * a range in {@link #entries}. For other nodes, it is a range of nodes.
+   */
+  protected int[] nodeStart, nodeEnd;
+
+  /**Number of leaf nodes in the search tree*/
+  protected int numLeaves;
+
+  /**Indexes of the shapes in the order they are stored in leaf nodes*/
+  protected int[] entries;
   
   public GlobalIndex() {
   }
@@ -57,6 +79,7 @@ public class GlobalIndex<S extends Shape> implements Writable, Iterable<S> {
     for (int i = 0; i < this.shapes.length; i++) {
       this.shapes[i] = (S) this.shapes[i].clone();
     }
+    buildSearchTree();
   }
 
   @Override
@@ -76,16 +99,77 @@ public class GlobalIndex<S extends Shape> implements Writable, Iterable<S> {
       this.shapes[i] = (S) stockShape.clone();
       this.shapes[i].readFields(in);
     }
+    buildSearchTree();
   }
   
+  /**
+   * Finds all the shapes that overlap a query range. The search tree is used
+   * to prune the shapes with MBRs that are disjoint with the MBR of the query.
+   * @param queryRange
+   * @param output
+   * @return the number of matching shapes
+   */
   public int rangeQuery(Shape queryRange, ResultCollector<S> output) {
+    Rectangle queryMBR = queryRange.getMBR();
+    if (queryMBR == null || nodeX1 == null || nodeX1.length == 0)
+      return 0;
+    int result_count = 0;
+    IntArray nodesToVisit = new IntArray();
+    nodesToVisit.add(nodeX1.length - 1);
+    while (!nodesToVisit.isEmpty()) {
+      int node = nodesToVisit.pop();
+      if (queryMBR.x2 < nodeX1[node] || nodeX2[node] < queryMBR.x1 ||
+          queryMBR.y2 < nodeY1[node] || nodeY2[node] < queryMBR.y1)
+        continue;
+      if (node < numLeaves) {
+        for (int i = nodeStart[node]; i < nodeEnd[node]; i++) {
+          S shape = shapes[entries[i]];
+          if (shape.isIntersected(queryRange)) {
+            result_count++;
+            if (output != null) {
+              output.collect(shape);
+            }
+          }
+        }
+      } else {
+        for (int child = nodeStart[node]; child < nodeEnd[node]; child++)
+          nodesToVisit.add(child);
+      }
+    }
+    return result_count;
+  }
+
+  /**
+   * Finds all the shapes with MBRs that contain the given point. A point on
+   * the boundary of an MBR is considered inside it.
+   * @param x
+   * @param y
+   * @param output
+   * @return the number of matching shapes
+   */
+  public int pointQuery(double x, double y, ResultCollector<S> output) {
+    if (nodeX1 == null || nodeX1.length == 0)
+      return 0;
     int result_count = 0;
-    for (S shape : shapes) {
-      if (shape.isIntersected(queryRange)) {
-        result_count++;
-        if (output != null) {
-          output.collect(shape);
+    IntArray nodesToVisit = new IntArray();
+    nodesToVisit.add(nodeX1.length - 1);
+    while (!nodesToVisit.isEmpty()) {
+      int node = nodesToVisit.pop();
+      if (x < nodeX1[node] || x > nodeX2[node] || y < nodeY1[node] || y > nodeY2[node])
+        continue;
+      if (node < numLeaves) {
+        for (int i = nodeStart[node]; i < nodeEnd[node]; i++) {
+          S shape = shapes[entries[i]];
+          Rectangle mbr = shape.getMBR();
+          if (mbr != null && x >= mbr.x1 && x <= mbr.x2 && y >= mbr.y1 && y <= mbr.y2) {
+            result_count++;
+            if (output != null)
+              output.collect(shape);
+          }
         }
+      } else {
+        for (int child = nodeStart[node]; child < nodeEnd[node]; child++)
+          nodesToVisit.add(child);
       }
     }
     return result_count;
@@ -154,82 +238,222 @@ public class GlobalIndex<S extends Shape> implements Writable, Iterable<S> {
     return globalMBR;
   }
 
+  /**
+   * Finds the k shapes that are closest to the given query point using a
+   * best-first traversal of the search tree. The results are reported in
+   * ascending order of their distance to the query point.
+   * @param qx
+   * @param qy
+   * @param k
+   * @param output
+   * @return the number of reported results
+   */
   public int knn(final double qx, final double qy, int k, ResultCollector2<S, Double> output) {
-    double query_area = (getMBR().getWidth() * getMBR().getHeight()) * k / size();
-    double query_radius = Math.sqrt(query_area / Math.PI);
-
-    boolean result_correct;
-    final Vector<Double> distances = new Vector<Double>();
-    final Vector<S> shapes = new Vector<S>();
-    // Find results in the range and increase this range if needed to ensure
-    // correctness of the answer
-    do {
-      // Initialize result and query range
-      distances.clear(); shapes.clear();
-      Rectangle queryRange = new Rectangle();
-      queryRange.x1 = qx - query_radius / 2;
-      queryRange.y1 = qy - query_radius / 2;
-      queryRange.x2 = qx + query_radius / 2;
-      queryRange.y2 = qy + query_radius / 2;
-      // Retrieve all results in range
-      rangeQuery(queryRange, new ResultCollector<S>() {
-        @Override
-        public void collect(S shape) {
-          distances.add(shape.distanceTo(qx, qy));
-          shapes.add((S) shape.clone());
-        }
-      });
-      if (shapes.size() <= k) {
-        // Didn't find k elements in range, double the range to get more items
-        if (shapes.size() == size() || shapes.size() == k) {
-          // Already returned all possible elements
-          result_correct = true;
-        } else {
-          query_radius *= 2;
-          result_correct = false;
+    if (nodeX1 == null || nodeX1.length == 0 || k <= 0)
+      return 0;
+    // Entries to visit. A non-negative ID is a node while a negative ID is
+    // the shape with index (-id-1). Because the distance to a node is a lower
+    // bound of the distances to all its shapes, shapes are reported in order.
+    PriorityQueue<SearchEntry> queue = new PriorityQueue<SearchEntry>();
+    int root = nodeX1.length - 1;
+    queue.add(new SearchEntry(root, minDistance(root, qx, qy)));
+    int resultSize = 0;
+    while (!queue.isEmpty() && resultSize < k) {
+      SearchEntry entry = queue.poll();
+      if (entry.id < 0) {
+        resultSize++;
+        if (output != null)
+          output.collect(shapes[-entry.id - 1], entry.distance);
+      } else if (entry.id < numLeaves) {
+        for (int i = nodeStart[entry.id]; i < nodeEnd[entry.id]; i++) {
+          int iShape = entries[i];
+          queue.add(new SearchEntry(-iShape - 1, shapes[iShape].distanceTo(qx, qy)));
         }
       } else {
-        // Sort items by distance to get the kth neighbor
-        IndexedSortable s = new IndexedSortable() {
-          @Override
-          public void swap(int i, int j) {
-            double temp_distance = distances.elementAt(i);
-            distances.set(i, distances.elementAt(j));
-            distances.set(j, temp_distance);
-            
-            S temp_shape = shapes.elementAt(i);
-            shapes.set(i, shapes.elementAt(j));
-            shapes.set(j, temp_shape);
-          }
-          @Override
-          public int compare(int i, int j) {
-            // Note. Equality is not important to check because items with the
-            // same distance can be ordered anyway. 
-        	if (distances.elementAt(i) == distances.elementAt(j))
-        		return 0;
-            if (distances.elementAt(i) < distances.elementAt(j))
-              return -1;
-            return 1;
-          }
-        };
-        IndexedSorter sorter = new QuickSort();
-        sorter.sort(s, 0, shapes.size());
-        if (distances.elementAt(k - 1) > query_radius) {
-          result_correct = false;
-          query_radius = distances.elementAt(k);
-        } else {
-          result_correct = true;
-        }
+        for (int child = nodeStart[entry.id]; child < nodeEnd[entry.id]; child++)
+          queue.add(new SearchEntry(child, minDistance(child, qx, qy)));
       }
-    } while (!result_correct);
-    
-    int result_size = Math.min(k,  shapes.size());
-    if (output != null) {
-      for (int i = 0; i < result_size; i++) {
-        output.collect(shapes.elementAt(i), distances.elementAt(i));
+    }
+    return resultSize;
+  }
+
+  /**
+   * An entry in the queue of the best-first kNN search
+   */
+  static class SearchEntry implements Comparable<SearchEntry> {
+    /**ID of a node (non-negative) or a shape (negative)*/
+    int id;
+    /**Distance to the query point*/
+    double distance;
+
+    SearchEntry(int id, double distance) {
+      this.id = id;
+      this.distance = distance;
+    }
+
+    @Override
+    public int compareTo(SearchEntry other) {
+      return Double.compare(this.distance, other.distance);
+    }
+  }
+
+  /**
+   * The minimum distance between a point and the MBR of a node
+   * @param node
+   * @param x
+   * @param y
+   * @return
+   */
+  private double minDistance(int node, double x, double y) {
+    double dx = Math.max(0, Math.max(nodeX1[node] - x, x - nodeX2[node]));
+    double dy = Math.max(0, Math.max(nodeY1[node] - y, y - nodeY2[node]));
+    return Math.sqrt(dx * dx + dy * dy);
+  }
+
+  /**
+   * Builds a packed R-tree over the MBRs of all shapes using the
+   * Sort-Tile-Recursive (STR) algorithm. Nodes of each level are stored
+   * consecutively starting with the leaves and ending with the root.
+   */
+  protected void buildSearchTree() {
+    int numShapes = shapes.length;
+    // Compute the number of nodes in all levels
+    int numNodes = 0;
+    int levelSize = numShapes;
+    do {
+      levelSize = (levelSize + Fanout - 1) / Fanout;
+      numNodes += levelSize;
+    } while (levelSize > 1);
+    numLeaves = (numShapes + Fanout - 1) / Fanout;
+    nodeX1 = new double[numNodes];
+    nodeY1 = new double[numNodes];
+    nodeX2 = new double[numNodes];
+    nodeY2 = new double[numNodes];
+    nodeStart = new int[numNodes];
+    nodeEnd = new int[numNodes];
+    if (numShapes == 0)
+      return;
+
+    // Sort the shapes in STR order and group them into leaf nodes
+    double[] x1s = new double[numShapes], y1s = new double[numShapes];
+    double[] x2s = new double[numShapes], y2s = new double[numShapes];
+    for (int i = 0; i < numShapes; i++) {
+      Rectangle mbr = shapes[i].getMBR();
+      if (mbr == null) {
+        // An empty shape never matches any query
+        x1s[i] = y1s[i] = Double.POSITIVE_INFINITY;
+        x2s[i] = y2s[i] = Double.NEGATIVE_INFINITY;
+      } else {
+        x1s[i] = mbr.x1; y1s[i] = mbr.y1; x2s[i] = mbr.x2; y2s[i] = mbr.y2;
       }
     }
-    return result_size;
+    entries = sortSTR(x1s, y1s, x2s, y2s, 0, numShapes);
+    for (int node = 0; node < numLeaves; node++) {
+      nodeStart[node] = node * Fanout;
+      nodeEnd[node] = Math.min(numShapes, nodeStart[node] + Fanout);
+      nodeX1[node] = nodeY1[node] = Double.POSITIVE_INFINITY;
+      nodeX2[node] = nodeY2[node] = Double.NEGATIVE_INFINITY;
+      for (int i = nodeStart[node]; i < nodeEnd[node]; i++) {
+        int iShape = entries[i];
+        nodeX1[node] = Math.min(nodeX1[node], x1s[iShape]);
+        nodeY1[node] = Math.min(nodeY1[node], y1s[iShape]);
+        nodeX2[node] = Math.max(nodeX2[node], x2s[iShape]);
+        nodeY2[node] = Math.max(nodeY2[node], y2s[iShape]);
+      }
+    }
+
+    // Build the upper levels one at a time
+    int levelStart = 0, levelEnd = numLeaves;
+    while (levelEnd - levelStart > 1) {
+      // Reorder the nodes of the current level in STR order
+      int[] order = sortSTR(nodeX1, nodeY1, nodeX2, nodeY2, levelStart, levelEnd);
+      permute(nodeX1, order, levelStart);
+      permute(nodeY1, order, levelStart);
+      permute(nodeX2, order, levelStart);
+      permute(nodeY2, order, levelStart);
+      permute(nodeStart, order, levelStart);
+      permute(nodeEnd, order, levelStart);
+      // Group them into the nodes of the next level
+      int parent = levelEnd;
+      for (int child = levelStart; child < levelEnd; child += Fanout, parent++) {
+        nodeStart[parent] = child;
+        nodeEnd[parent] = Math.min(levelEnd, child + Fanout);
+        nodeX1[parent] = nodeY1[parent] = Double.POSITIVE_INFINITY;
+        nodeX2[parent] = nodeY2[parent] = Double.NEGATIVE_INFINITY;
+        for (int i = nodeStart[parent]; i < nodeEnd[parent]; i++) {
+          nodeX1[parent] = Math.min(nodeX1[parent], nodeX1[i]);
+          nodeY1[parent] = Math.min(nodeY1[parent], nodeY1[i]);
+          nodeX2[parent] = Math.max(nodeX2[parent], nodeX2[i]);
+          nodeY2[parent] = Math.max(nodeY2[parent], nodeY2[i]);
+        }
+      }
+      levelStart = levelEnd;
+      levelEnd = parent;
+    }
+  }
+
+  /**
+   * Sorts the given range of rectangles in the order of the STR algorithm.
+   * The rectangles are sorted by the x coordinate of their centers and split
+   * into vertical slices where each slice is sorted by the y coordinate.
+   * The size of each slice is a multiple of {@link #Fanout} so that groups
+   * of consecutive rectangles never span two slices.
+   * @param x1s
+   * @param y1s
+   * @param x2s
+   * @param y2s
+   * @param start the first rectangle to sort
+   * @param end the end of the range (exclusive)
+   * @return the indexes of the rectangles in sorted order
+   */
+  private static int[] sortSTR(double[] x1s, double[] y1s, double[] x2s, double[] y2s,
+      int start, int end) {
+    int count = end - start;
+    final int[] order = new int[count];
+    final double[] xs = new double[count];
+    final double[] ys = new double[count];
+    for (int i = 0; i < count; i++) {
+      order[i] = start + i;
+      xs[i] = (x1s[start + i] + x2s[start + i]) / 2;
+      ys[i] = (y1s[start + i] + y2s[start + i]) / 2;
+    }
+    IndexedSorter sorter = new QuickSort();
+    final double[][] keys = {xs};
+    IndexedSortable sortable = new IndexedSortable() {
+      @Override
+      public int compare(int i, int j) {
+        return Double.compare(keys[0][i], keys[0][j]);
+      }
+
+      @Override
+      public void swap(int i, int j) {
+        int tempOrder = order[i]; order[i] = order[j]; order[j] = tempOrder;
+        double temp = xs[i]; xs[i] = xs[j]; xs[j] = temp;
+        temp = ys[i]; ys[i] = ys[j]; ys[j] = temp;
+      }
+    };
+    sorter.sort(sortable, 0, count);
+    int numGroups = (count + Fanout - 1) / Fanout;
+    int numSlices = (int) Math.ceil(Math.sqrt(numGroups));
+    int sliceSize = (numGroups + numSlices - 1) / numSlices * Fanout;
+    keys[0] = ys;
+    for (int sliceStart = 0; sliceStart < count; sliceStart += sliceSize)
+      sorter.sort(sortable, sliceStart, Math.min(count, sliceStart + sliceSize));
+    return order;
+  }
+
+  private static void permute(double[] values, int[] order, int start) {
+    double[] copy = new double[order.length];
+    for (int i = 0; i < order.length; i++)
+      copy[i] = values[order[i]];
+    System.arraycopy(copy, 0, values, start, order.length);
+  }
+
+  private static void permute(int[] values, int[] order, int start) {
+    int[] copy = new int[order.length];
+    for (int i = 0; i < order.length; i++)
+      copy[i] = values[order[i]];
+    System.arraycopy(copy, 0, values, start, order.length);
   }
   
   /**
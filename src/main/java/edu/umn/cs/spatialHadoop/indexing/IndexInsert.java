@@ -6,6 +6,7 @@ import edu.umn.cs.spatialHadoop.io.TextSerializerHelper;
 import edu.umn.cs.spatialHadoop.operations.OperationMetadata;
 import edu.umn.cs.spatialHadoop.util.FileUtil;
 import edu.umn.cs.spatialHadoop.util.MetadataUtil;
+import edu.umn.cs.spatialHadoop.visualization.Histogram;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.fs.*;
@@ -69,6 +70,8 @@ public class IndexInsert {
           Path pathOfExisting = new Path(indexPath, existingP.filename);
           Path pathOfNew = new Path(tempPath, newP.filename);
           FileUtil.concat(params, fs, pathOfExisting, pathOfNew);
+          // Block MBRs no longer describe the combined file
+          BlockMBRIndex.delete(fs, pathOfExisting);
         }
         // Write back the merged partitions as a new global index
         Path masterFilePath = fs.listStatus(indexPath, new PathFilter() {
@@ -80,6 +83,16 @@ public class IndexInsert {
         writeMasterFile(fs, masterFilePath, mergedIndex.values());
 
         Partitioner.generateMasterWKT(fs, masterFilePath);
+
+        // Add the histogram of the new data to the histogram of the index
+        Path histogramPath = Histogram.getIndexHistogramPath(indexPath);
+        Path newHistogramPath = Histogram.getIndexHistogramPath(tempPath);
+        if (fs.exists(histogramPath)) {
+          if (fs.exists(newHistogramPath))
+            Histogram.mergeIndexHistograms(fs, new Path[] {histogramPath, newHistogramPath}, histogramPath);
+          else
+            fs.delete(histogramPath, false); // No longer describes the index
+        }
       } finally {
         fs.delete(tempPath, true);
       }
@@ -188,6 +201,7 @@ public class IndexInsert {
     for (List<Partition> group : splitGroups) {
       for (Partition partition : group) {
         fs.delete(new Path(indexPath, partition.filename), false);
+        BlockMBRIndex.delete(fs, new Path(indexPath, partition.filename));
       }
     }
 
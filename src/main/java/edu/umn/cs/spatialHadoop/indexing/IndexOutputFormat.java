@@ -39,8 +39,14 @@ import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.util.LineReader;
 import org.apache.hadoop.util.Progressable;
 
+import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.CellInfo;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.core.SpatialSite;
 import edu.umn.cs.spatialHadoop.io.Text2;
+import edu.umn.cs.spatialHadoop.visualization.GridHistogram;
+import edu.umn.cs.spatialHadoop.visualization.Histogram;
 
 /**
  * @author Ahmed Eldawy
@@ -86,10 +92,14 @@ public class IndexOutputFormat<S extends Shape>
      * instance of stream so that it can be closed later.
      */
     private Map<Integer, OutputStream> partitionsOutput = new ConcurrentHashMap<Integer, OutputStream>();
+    /**MBRs of blocks for partitions that are not locally indexed*/
+    private Map<Integer, BlockMBRIndex> blockIndexes = new ConcurrentHashMap<Integer, BlockMBRIndex>();
     /**A temporary text to serialize objects to before writing to output file*/
     private Text tempText = new Text2();
     /**A list of all threads that are closing partitions in the background*/
     private Vector<Thread> closingThreads = new Vector<Thread>();
+    /**Maximum number of closing threads that run at the same time*/
+    int maxClosingThreads = MaxClosingThreads;
     /**The master file contains information about all written partitions*/
     private OutputStream masterFile;
     /**List of errors that happened by a background thread*/
@@ -104,6 +114,18 @@ public class IndexOutputFormat<S extends Shape>
     /**The extension of written files*/
     private String localIndexExtension;
 
+    /**The size of blocks to summarize with MBRs or zero to disable block MBRs*/
+    private int blockMBRSize;
+
+    /**Size histogram of the written records or null if not collected*/
+    private GridHistogram histogram;
+    /**The space covered by the histogram*/
+    private Rectangle histogramSpace;
+    /**The file that stores the histogram when the writer is closed*/
+    private Path histogramPath;
+    /**Boundaries of partitions used to count replicated records once*/
+    private Map<Integer, CellInfo> partitionCells = new ConcurrentHashMap<Integer, CellInfo>();
+
     public IndexRecordWriter(TaskAttemptContext task, Path outPath) throws IOException, InterruptedException {
       this(task, Integer.toString(task.getTaskAttemptID().getTaskID().getId()), outPath, null);
     }
@@ -135,11 +157,23 @@ public class IndexOutputFormat<S extends Shape>
       localIndexClass = conf.getClass(LocalIndex.LocalIndexClass, null, LocalIndex.class);
       if (localIndexClass != null)
         localIndexExtension = localIndexClass.getAnnotation(LocalIndex.LocalIndexMetadata.class).extension();
+      this.blockMBRSize = conf.getInt(BlockMBRIndex.BlockSize, BlockMBRIndex.DefaultBlockSize);
       String globalIndexExtension = partitioner.getClass().getAnnotation(Partitioner.GlobalIndexerMetadata.class).extension();
       Path masterFilePath = name == null ?
           new Path(outPath, String.format("_master.%s", globalIndexExtension)) :
           new Path(outPath, String.format("_master_%s.%s", name, globalIndexExtension));
       this.masterFile = outFS.create(masterFilePath);
+      // Collect a size histogram of the input if its MBR is known
+      int histogramSize = conf.getInt(Histogram.IndexHistogramSize, 1024);
+      this.histogramSpace = (Rectangle) OperationsParams.getShape(conf, "mbr");
+      if (histogramSize > 0 && histogramSpace != null &&
+          histogramSpace.getWidth() > 0 && histogramSpace.getHeight() > 0 &&
+          !Double.isInfinite(histogramSpace.getWidth()) &&
+          !Double.isInfinite(histogramSpace.getHeight())) {
+        this.histogram = new GridHistogram(histogramSize, histogramSize);
+        this.histogramPath = name == null ? Histogram.getIndexHistogramPath(outPath) :
+            new Path(outPath, Histogram.IndexHistogramFile + "_" + name);
+      }
     }
     
     @Override
@@ -161,11 +195,41 @@ public class IndexOutputFormat<S extends Shape>
         partition.recordCount++;
         partition.size += tempText.getLength() + NEW_LINE.length;
         partition.expand(value);
+        BlockMBRIndex blockIndex = blockIndexes.get(id);
+        if (blockIndex != null)
+          blockIndex.addRecord(value.getMBR(), tempText.getLength() + NEW_LINE.length);
+        if (histogram != null)
+          addToHistogram(id, value.getMBR(), tempText.getLength());
         if (shape == null)
           shape = (S) value.clone();
       }
     }
 
+    /**
+     * Adds a record to the size histogram. If records are replicated, a record
+     * is only counted in the partition that contains its bottom-left corner.
+     * @param id the ID of the partition that the record is written to
+     * @param mbr the MBR of the record
+     * @param size the size of the record in bytes
+     */
+    private void addToHistogram(int id, Rectangle mbr, int size) {
+      if (mbr == null)
+        return;
+      if (disjoint) {
+        CellInfo cell = partitionCells.get(id);
+        if (cell == null) {
+          cell = partitioner.getPartition(id);
+          partitionCells.put(id, cell);
+        }
+        // Cells are closed at the upper boundaries of the input space
+        boolean inX = mbr.x1 >= cell.x1 && (mbr.x1 < cell.x2 || cell.x2 >= histogramSpace.x2);
+        boolean inY = mbr.y1 >= cell.y1 && (mbr.y1 < cell.y2 || cell.y2 >= histogramSpace.y2);
+        if (!inX || !inY)
+          return;
+      }
+      histogram.addPoint(histogramSpace, (mbr.x1 + mbr.x2) / 2, (mbr.y1 + mbr.y2) / 2, size);
+    }
+
     /**
      * Close a file that is currently open for a specific partition. Returns a
      * background thread that will continue all close-related logic.
@@ -176,11 +240,15 @@ public class IndexOutputFormat<S extends Shape>
       final Partition partitionInfo = partitionsInfo.get(id);
       final OutputStream outStream = partitionsOutput.get(id);
       final File tempFile = tempFiles.get(id);
+      final BlockMBRIndex blockIndex = blockIndexes.get(id);
       Thread closeThread = new Thread() {
         @Override
         public void run() {
           try {
             outStream.close();
+
+            if (blockIndex != null)
+              blockIndex.write(outFS, new Path(outPath, partitionInfo.filename));
             
             if (localIndexClass != null) {
               // Build a local index for that file
@@ -226,7 +294,7 @@ public class IndexOutputFormat<S extends Shape>
             int numRunningThreads = 0;
             try {
               for (int i_thread = 0; i_thread < closingThreads.size() &&
-                  numRunningThreads < MaxClosingThreads; i_thread++) {
+                  numRunningThreads < maxClosingThreads; i_thread++) {
                 Thread thread = closingThreads.elementAt(i_thread);
                 synchronized(thread) {
                   switch (thread.getState()) {
@@ -264,8 +332,9 @@ public class IndexOutputFormat<S extends Shape>
       partitionsInfo.remove(id);
       partitionsOutput.remove(id);
       tempFiles.remove(id);
+      blockIndexes.remove(id);
 
-      if (closingThreads.size() < MaxClosingThreads) {
+      if (closingThreads.size() < maxClosingThreads) {
         // Start the thread in the background and make sure it started before
         // adding it to the list of threads to avoid an exception when other
         // thread tries to start it after it is in the queue
@@ -301,6 +370,8 @@ public class IndexOutputFormat<S extends Shape>
           Path path = getPartitionFile(id);
           out = outFS.create(path);
           partition.filename = path.getName();
+          if (blockMBRSize > 0)
+            blockIndexes.put(id, new BlockMBRIndex(blockMBRSize));
         } else {
           // Write to a temporary file that will later get indexed
           File tempFile = File.createTempFile(String.format("part-%05d", id), "lindex");
@@ -357,6 +428,12 @@ public class IndexOutputFormat<S extends Shape>
         try {
           while (!closingThreads.isEmpty()) {
             Thread thread = closingThreads.firstElement();
+            synchronized (thread) {
+              // The thread might have been queued after all running threads
+              // finished in which case no other thread will ever start it
+              if (thread.getState() == State.NEW)
+                thread.start();
+            }
             while (thread.isAlive()) {
               try {
                 thread.join(10000);
@@ -380,6 +457,8 @@ public class IndexOutputFormat<S extends Shape>
             LOG.error("Error in thread", t);
           throw new RuntimeException("Encountered "+listOfErrors.size()+" errors in background thread");
         }
+        if (histogram != null)
+          Histogram.writeIndexHistogram(outFS, histogramPath, histogramSpace, histogram);
       } finally {
         // Close the master file to ensure there are no open files
         masterFile.close();
@@ -389,7 +468,8 @@ public class IndexOutputFormat<S extends Shape>
   
   
   /**
-   * Output committer that concatenates all master files into one master file.
+   * Output committer that concatenates all master files into one master file
+   * and combines the histograms of all reducers into one histogram.
    * @author Ahmed Eldawy
    *
    */
@@ -447,6 +527,25 @@ public class IndexOutputFormat<S extends Shape>
         }
         wktOut.close();
         destOut.close();
+        if (conf.getBoolean(Partitioner.PartitionerDisjoint, false))
+          outFs.create(new Path(outPath, SpatialSite.ReplicatedMarker)).close();
+      }
+
+      // Combine the histograms written by all reducers into one histogram
+      FileStatus[] histogramFiles = outFs.listStatus(outPath, new PathFilter() {
+        @Override
+        public boolean accept(Path path) {
+          return path.getName().startsWith(Histogram.IndexHistogramFile + "_");
+        }
+      });
+      if (histogramFiles.length > 0) {
+        Path[] histogramPaths = new Path[histogramFiles.length];
+        for (int i = 0; i < histogramFiles.length; i++)
+          histogramPaths[i] = histogramFiles[i].getPath();
+        Histogram.mergeIndexHistograms(outFs, histogramPaths,
+            Histogram.getIndexHistogramPath(outPath));
+        for (Path histogramPath : histogramPaths)
+          outFs.delete(histogramPath, false);
       }
     }
   }
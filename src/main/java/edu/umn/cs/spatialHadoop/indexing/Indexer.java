@@ -268,6 +268,8 @@ public class Indexer {
     FileSystem outFs = outPath.getFileSystem(params);
     Path masterPath = new Path(outPath, "_master." + globalIndexExtension);
     Partitioner.generateMasterWKT(outFs, masterPath);
+    if (disjoint)
+      outFs.create(new Path(outPath, SpatialSite.ReplicatedMarker)).close();
   }
 
 
@@ -470,7 +472,7 @@ public class Indexer {
     System.out.println("shape:<point|rectangle|polygon> - (*) Type of shapes stored in input file");
     System.out.println("sindex:<index> - Type of spatial index (grid|str|str+|rtree|r+tree|quadtree|zcurve|hilbert|kdtree)");
     System.out.println("gindex:<index> - Type of the global index (grid|str|rstree|kdtree|zcurve|hilbert|quadtree)");
-    System.out.println("lindex:<index> - Type of the local index (rrstree)");
+    System.out.println("lindex:<index> - Type of the local index (rrstar|cols)");
     System.out.println("-overwrite - Overwrite output file without notice");
     System.out.println("Available global indexes: " + SpatialSite.getGlobalIndexes());
     GenericOptionsParser.printGenericCommandUsage(System.out);
@@ -0,0 +1,405 @@
+package edu.umn.cs.spatialHadoop.indexing;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.io.DataInputBuffer;
+
+import edu.umn.cs.spatialHadoop.util.IntArray;
+
+/**
+ * A read-only view of an R-tree stored using
+ * {@link RTreeGuttman#write(java.io.DataOutput, RTreeGuttman.Serializer)}.
+ * Unlike {@link RTreeGuttman#readFields(FSDataInputStream, long, RTreeGuttman.Deserializer)},
+ * which loads the entire tree structure in memory, this class only reads the
+ * footer when opened and decodes each node on demand when a search visits it.
+ * All reads are positioned reads, so they do not move the position of the
+ * underlying stream and the stream can be shared with other readers.
+ * @param <O> the type of objects stored in the tree
+ */
+public class LazyRTree<O> implements Closeable {
+  /**Size of the footer of the tree in bytes*/
+  private static final int FooterSize = 4 * 8 + 6 * 4;
+
+  /**Size of one child in a node, i.e., an offset and an MBR*/
+  private static final int ChildSize = 4 + 8 * 4;
+
+  /**Number of bytes to read at once when the size of a node is not known*/
+  private static final int InitialReadSize = 4096;
+
+  /**The input stream that points to the underlying file*/
+  private FSDataInputStream in;
+
+  /**Deserializes data entries*/
+  private RTreeGuttman.Deserializer<O> deser;
+
+  /**The offset of the beginning of the tree in the file*/
+  private long treeStartOffset;
+
+  /**Offsets of the different sections relative to the beginning of the tree*/
+  private int treeStructureOffset, footerOffset;
+
+  /**Number of data entries in the tree*/
+  private int numEntries;
+
+  /**Number of non-leaf nodes. Used to determine the height of the tree*/
+  private int numNonLeaves;
+
+  /**Level of the root where leaves are at level zero. -1 if not computed yet*/
+  private int height = -1;
+
+  /**Offset of the first leaf node. Valid only if the height is computed*/
+  private int firstLeafOffset;
+
+  /**A reusable buffer to read nodes*/
+  private byte[] nodeBuffer = new byte[InitialReadSize];
+
+  /**A reusable buffer to read data entries*/
+  private byte[] entryBuffer = new byte[1024];
+
+  /**Used to deserialize data entries from the entry buffer*/
+  private final DataInputBuffer entryIn = new DataInputBuffer();
+
+  /**
+   * Opens a tree that starts at the current position of the given stream.
+   * Only the footer of the tree is read by this method.
+   * @param in the input stream positioned at the beginning of the tree
+   * @param length the total length of the tree in bytes
+   * @param deser used to deserialize data entries or {@code null} if only the
+   *              structure of the tree is needed
+   * @throws IOException
+   */
+  public void readFields(FSDataInputStream in, long length, RTreeGuttman.Deserializer<O> deser) throws IOException {
+    this.in = in;
+    this.deser = deser;
+    this.treeStartOffset = in.getPos();
+    byte[] footer = new byte[FooterSize];
+    in.readFully(treeStartOffset + length - FooterSize, footer, 0, FooterSize);
+    // Skip the MBR of the root
+    int offset = 4 * 8;
+    this.numEntries = readInt(footer, offset);
+    this.numNonLeaves = readInt(footer, offset + 4);
+    this.treeStructureOffset = readInt(footer, offset + 12);
+    this.footerOffset = readInt(footer, offset + 16);
+    this.height = -1;
+  }
+
+  /**
+   * Returns the total size of the data part in bytes.
+   * @return
+   */
+  public int getTotalDataSize() {
+    return treeStructureOffset;
+  }
+
+  /**
+   * Total number of data entries in the tree.
+   * @return
+   */
+  public int numOfDataEntries() {
+    return numEntries;
+  }
+
+  /**
+   * Searches for all data entries that overlap the given query rectangle.
+   * Only the nodes that overlap the query are read from disk.
+   * @param x1
+   * @param y1
+   * @param x2
+   * @param y2
+   * @return
+   */
+  public Iterable<O> search(double x1, double y1, double x2, double y2) {
+    return new SearchIterator(x1, y1, x2, y2);
+  }
+
+  /**
+   * Returns all data entries in the order they are stored on disk. The
+   * leaves are stored consecutively after all the non-leaf nodes, so this only
+   * needs to descend to the first leaf and then scan all leaves in order.
+   * @return
+   */
+  public Iterable<O> scanAll() {
+    return new ScanIterator();
+  }
+
+  public void close() throws IOException {
+    if (in != null)
+      in.close();
+  }
+
+  /**
+   * Reads the node that starts at the given offset into the node buffer.
+   * In addition to the node, the first eight bytes of the following node, if
+   * any, are also read. This is used to find the end of the last data entry
+   * in a leaf node.
+   * @param nodeOffset the offset of the node relative to the tree start
+   * @return the number of children in the node
+   * @throws IOException
+   */
+  protected int readNode(int nodeOffset) throws IOException {
+    int available = footerOffset - nodeOffset;
+    int bytesRead = Math.min(available, nodeBuffer.length);
+    in.readFully(treeStartOffset + nodeOffset, nodeBuffer, 0, bytesRead);
+    int nodeSize = readInt(nodeBuffer, 0);
+    int bytesNeeded = Math.min(available, 4 + nodeSize * ChildSize + 8);
+    if (bytesNeeded > bytesRead) {
+      byte[] newBuffer = new byte[bytesNeeded];
+      System.arraycopy(nodeBuffer, 0, newBuffer, 0, bytesRead);
+      nodeBuffer = newBuffer;
+      in.readFully(treeStartOffset + nodeOffset + bytesRead, nodeBuffer,
+          bytesRead, bytesNeeded - bytesRead);
+    }
+    return nodeSize;
+  }
+
+  /**
+   * Returns the offset of the first byte after the last data entry of the
+   * leaf node currently in the node buffer.
+   * @param nodeOffset the offset of the leaf node in the buffer
+   * @param nodeSize number of children in the leaf node
+   * @return
+   */
+  protected int endOfLeafData(int nodeOffset, int nodeSize) {
+    int nextNodeOffset = nodeOffset + 4 + nodeSize * ChildSize;
+    if (nextNodeOffset >= footerOffset)
+      return treeStructureOffset;
+    // The data of the next leaf starts right after the data of this leaf
+    return readInt(nodeBuffer, 4 + nodeSize * ChildSize + 4);
+  }
+
+  protected int childOffset(int iChild) {
+    return readInt(nodeBuffer, 4 + iChild * ChildSize);
+  }
+
+  protected boolean childOverlaps(int iChild, double x1, double y1, double x2, double y2) {
+    int pos = 4 + iChild * ChildSize + 4;
+    double cx1 = readDouble(nodeBuffer, pos);
+    double cy1 = readDouble(nodeBuffer, pos + 8);
+    double cx2 = readDouble(nodeBuffer, pos + 16);
+    double cy2 = readDouble(nodeBuffer, pos + 24);
+    return !(x2 < cx1 || cx2 < x1 || y2 < cy1 || cy2 < y1);
+  }
+
+  /**
+   * Reads and deserializes the data entry in the given range of the data part
+   * @param start
+   * @param end
+   * @return
+   * @throws IOException
+   */
+  protected O readEntry(int start, int end) throws IOException {
+    if (deser == null)
+      return null;
+    int length = end - start;
+    if (entryBuffer.length < length)
+      entryBuffer = new byte[Math.max(length, entryBuffer.length * 2)];
+    in.readFully(treeStartOffset + start, entryBuffer, 0, length);
+    entryIn.reset(entryBuffer, length);
+    return deser.deserialize(entryIn, length);
+  }
+
+  static int readInt(byte[] b, int pos) {
+    return ((b[pos] & 0xff) << 24) | ((b[pos + 1] & 0xff) << 16) |
+        ((b[pos + 2] & 0xff) << 8) | (b[pos + 3] & 0xff);
+  }
+
+  static double readDouble(byte[] b, int pos) {
+    long l = ((long) readInt(b, pos) << 32) | (readInt(b, pos + 4) & 0xffffffffL);
+    return Double.longBitsToDouble(l);
+  }
+
+  /**
+   * Base class for iterators that return data entries from leaf nodes. The
+   * matching entries of the current leaf node are extracted into primitive
+   * arrays so that the node buffer can be reused for reading other nodes.
+   */
+  protected abstract class LeafEntryIterator implements Iterable<O>, Iterator<O> {
+    /**Start and end offsets of the matching entries in the current leaf*/
+    protected IntArray entryStarts = new IntArray(), entryEnds = new IntArray();
+
+    /**Index of the next entry to return in the current leaf*/
+    protected int iNextEntry;
+
+    /**
+     * Loads the next leaf node that contains at least one matching entry.
+     * @return {@code false} if there are no more leaves
+     * @throws IOException
+     */
+    protected abstract boolean loadNextLeaf() throws IOException;
+
+    /**
+     * Extracts all matching entries from the leaf in the node buffer.
+     */
+    protected void extractEntries(int nodeOffset, int nodeSize,
+                                  double x1, double y1, double x2, double y2) {
+      entryStarts.clear();
+      entryEnds.clear();
+      iNextEntry = 0;
+      int endOfData = endOfLeafData(nodeOffset, nodeSize);
+      for (int iChild = 0; iChild < nodeSize; iChild++) {
+        if (childOverlaps(iChild, x1, y1, x2, y2)) {
+          entryStarts.add(childOffset(iChild));
+          entryEnds.add(iChild == nodeSize - 1 ? endOfData : childOffset(iChild + 1));
+        }
+      }
+    }
+
+    protected void prefetchNext() {
+      try {
+        while (iNextEntry >= entryStarts.size()) {
+          if (!loadNextLeaf()) {
+            entryStarts.clear();
+            iNextEntry = 0;
+            return;
+          }
+        }
+      } catch (IOException e) {
+        throw new RuntimeException("Error reading the R-tree", e);
+      }
+    }
+
+    @Override
+    public Iterator<O> iterator() {
+      return this;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return iNextEntry < entryStarts.size();
+    }
+
+    @Override
+    public O next() {
+      if (!hasNext())
+        throw new NoSuchElementException();
+      try {
+        O o = readEntry(entryStarts.get(iNextEntry), entryEnds.get(iNextEntry));
+        iNextEntry++;
+        prefetchNext();
+        return o;
+      } catch (IOException e) {
+        throw new RuntimeException("Error reading an entry from the R-tree", e);
+      }
+    }
+
+    public void remove() {
+      throw new RuntimeException("Not supported");
+    }
+  }
+
+  /**
+   * An iterator for range query search results. Traverses the tree in a
+   * depth-first order using a stack of node offsets.
+   */
+  protected class SearchIterator extends LeafEntryIterator {
+    /**The offsets of the nodes yet to be searched*/
+    private IntArray nodesToSearch = new IntArray();
+
+    /**The levels of the nodes yet to be searched. Leaves are at level zero*/
+    private IntArray nodeLevels = new IntArray();
+
+    /**The search range*/
+    private double x1, y1, x2, y2;
+
+    protected SearchIterator(double x1, double y1, double x2, double y2) {
+      this.x1 = x1; this.y1 = y1; this.x2 = x2; this.y2 = y2;
+      try {
+        if (numEntries > 0) {
+          descendToFirstLeaf();
+          // The root is always the first node in the tree structure
+          nodesToSearch.add(treeStructureOffset);
+          nodeLevels.add(height);
+        }
+      } catch (IOException e) {
+        throw new RuntimeException("Error reading the R-tree", e);
+      }
+      prefetchNext();
+    }
+
+    @Override
+    protected boolean loadNextLeaf() throws IOException {
+      while (!nodesToSearch.isEmpty()) {
+        int nodeOffset = nodesToSearch.pop();
+        int level = nodeLevels.pop();
+        int nodeSize = readNode(nodeOffset);
+        if (level == 0) {
+          extractEntries(nodeOffset, nodeSize, x1, y1, x2, y2);
+          if (!entryStarts.isEmpty())
+            return true;
+        } else {
+          for (int iChild = 0; iChild < nodeSize; iChild++) {
+            if (childOverlaps(iChild, x1, y1, x2, y2)) {
+              nodesToSearch.add(childOffset(iChild));
+              nodeLevels.add(level - 1);
+            }
+          }
+        }
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Descends from the root along the first child of each node to find the
+   * height of the tree and the offset of the first leaf. Since the tree is
+   * balanced, all leaves are at the same level. A leaf node is recognized
+   * because its children point to the data section which comes before the
+   * tree structure section.
+   * @throws IOException
+   */
+  protected void descendToFirstLeaf() throws IOException {
+    if (height != -1)
+      return;
+    int level = 0;
+    int nodeOffset = treeStructureOffset;
+    while (level < numNonLeaves) {
+      readNode(nodeOffset);
+      int firstChild = childOffset(0);
+      if (firstChild < treeStructureOffset)
+        break;
+      nodeOffset = firstChild;
+      level++;
+    }
+    this.firstLeafOffset = nodeOffset;
+    this.height = level;
+  }
+
+  /**
+   * Scans all the leaves in the order they are stored on disk.
+   */
+  protected class ScanIterator extends LeafEntryIterator {
+    /**The offset of the next leaf node to read*/
+    private int nextLeafOffset;
+
+    protected ScanIterator() {
+      try {
+        nextLeafOffset = footerOffset;
+        if (numEntries > 0) {
+          descendToFirstLeaf();
+          nextLeafOffset = firstLeafOffset;
+        }
+      } catch (IOException e) {
+        throw new RuntimeException("Error reading the R-tree", e);
+      }
+      prefetchNext();
+    }
+
+    @Override
+    protected boolean loadNextLeaf() throws IOException {
+      while (nextLeafOffset < footerOffset) {
+        int nodeOffset = nextLeafOffset;
+        int nodeSize = readNode(nodeOffset);
+        nextLeafOffset = nodeOffset + 4 + nodeSize * ChildSize;
+        extractEntries(nodeOffset, nodeSize, Double.NEGATIVE_INFINITY,
+            Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY);
+        if (!entryStarts.isEmpty())
+          return true;
+      }
+      return false;
+    }
+  }
+}
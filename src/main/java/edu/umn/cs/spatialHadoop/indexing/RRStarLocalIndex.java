@@ -33,9 +33,28 @@ public class RRStarLocalIndex<S extends Shape> implements LocalIndex<S> {
    */
   private static final int MaxCapacity = 4096 / (4 + 8 * 4 + 4);
 
+  /**
+   * The name of the configuration line that enables lazy reading of the
+   * R-tree where nodes are read from disk only when a search visits them.
+   * If disabled, the entire tree structure is loaded in memory when opened.
+   */
+  public static final String LazyRead = "RRStarLocalIndex.LazyRead";
+
+  /**
+   * The name of the configuration line that sets the method used to build the
+   * local index. The value "insert" (default) inserts records one-by-one into
+   * an RR*-tree while "str" and "hilbert" bulk load the records using the
+   * corresponding {@link RTreeGuttman.BulkLoadMethod}.
+   * All methods produce the same file format.
+   */
+  public static final String BuildMethod = "RRStarLocalIndex.BuildMethod";
+
   /**The underlying R-tree used when reading the index from disk*/
   protected RTreeGuttman underlyingRTree;
 
+  /**The underlying R-tree used when the index is read lazily*/
+  protected LazyRTree<S> lazyRTree;
+
   protected DataIterator<S> iter;
 
   /**The start and end offsets of the data chunk*/
@@ -94,8 +113,17 @@ public class RRStarLocalIndex<S extends Shape> implements LocalIndex<S> {
     }
 
     // Now, it is time to build the tree
-    RRStarTree rtree = new RRStarTree(MaxCapacity * 2 / 10, MaxCapacity);
-    rtree.initializeFromRects(x1s, y1s, x2s, y2s);
+    String buildMethod = conf == null ? "insert" : conf.get(BuildMethod, "insert");
+    RTreeGuttman rtree;
+    if (buildMethod.equalsIgnoreCase("insert")) {
+      rtree = new RRStarTree(MaxCapacity * 2 / 10, MaxCapacity);
+      rtree.initializeFromRects(x1s, y1s, x2s, y2s);
+    } else {
+      RTreeGuttman.BulkLoadMethod bulkLoadMethod =
+          RTreeGuttman.BulkLoadMethod.valueOf(buildMethod.toUpperCase());
+      rtree = new RTreeGuttman(MaxCapacity * 2 / 10, MaxCapacity);
+      rtree.initializeFromRectsBulk(x1s, y1s, x2s, y2s, bulkLoadMethod);
+    }
 
     // The tree is built, write it to the output
     FileSystem outFS = outputIndexedFile.getFileSystem(conf);
@@ -103,9 +131,16 @@ public class RRStarLocalIndex<S extends Shape> implements LocalIndex<S> {
     rtree.write(out, new RTreeGuttman.Serializer() {
       @Override
       public int serialize(DataOutput out, int iObject) throws IOException {
-        out.write(cellData, recordOffsets.get(iObject),
-            recordOffsets.get(iObject+1) - recordOffsets.get(iObject));
-        return recordOffsets.get(iObject+1) - recordOffsets.get(iObject);
+        int recordLength = recordOffsets.get(iObject+1) - recordOffsets.get(iObject);
+        out.write(cellData, recordOffsets.get(iObject), recordLength);
+        byte lastByte = cellData[recordOffsets.get(iObject+1) - 1];
+        if (lastByte != '\n' && lastByte != '\r') {
+          // The last line in the input might not be terminated. Terminate it
+          // to keep the data section readable as text lines
+          out.write('\n');
+          recordLength++;
+        }
+        return recordLength;
       }
     });
     int indexSize = (int) out.getPos();
@@ -125,9 +160,7 @@ public class RRStarLocalIndex<S extends Shape> implements LocalIndex<S> {
 
   @Override
   public void read(FSDataInputStream in, long start, long end, final S mutableShape) throws IOException {
-    if (underlyingRTree == null)
-      underlyingRTree = new RTreeGuttman(1, 2);
-    underlyingRTree.readFields(in, end - start - 4, new RTreeGuttman.Deserializer<S>() {
+    RTreeGuttman.Deserializer<S> deser = new RTreeGuttman.Deserializer<S>() {
       private Text line = new Text2();
       @Override
       public S deserialize(DataInput in, int length) throws IOException {
@@ -137,13 +170,25 @@ public class RRStarLocalIndex<S extends Shape> implements LocalIndex<S> {
         mutableShape.fromText(line);
         return mutableShape;
       }
-    });
+    };
     dataStart = start;
-    dataEnd = start + underlyingRTree.getTotalDataSize();
+    if (conf == null || conf.getBoolean(LazyRead, true)) {
+      if (lazyRTree == null)
+        lazyRTree = new LazyRTree<S>();
+      lazyRTree.readFields(in, end - start - 4, deser);
+      dataEnd = start + lazyRTree.getTotalDataSize();
+    } else {
+      if (underlyingRTree == null)
+        underlyingRTree = new RTreeGuttman(1, 2);
+      underlyingRTree.readFields(in, end - start - 4, deser);
+      dataEnd = start + underlyingRTree.getTotalDataSize();
+    }
   }
 
   @Override
   public Iterable<? extends S> search(double x1, double y1, double x2, double y2) {
+    if (lazyRTree != null)
+      return lazyRTree.search(x1, y1, x2, y2);
     Iterable<RTreeGuttman.Entry> treeResults = underlyingRTree.search(x1, y1, x2, y2);
     iter.wrap(treeResults);
     return iter;
@@ -151,6 +196,8 @@ public class RRStarLocalIndex<S extends Shape> implements LocalIndex<S> {
 
   @Override
   public Iterable<? extends S> scanAll() {
+    if (lazyRTree != null)
+      return lazyRTree.scanAll();
     Iterable<RTreeGuttman.Entry> allElements = underlyingRTree.entrySet();
     iter.wrap(allElements);
     return iter;
@@ -158,7 +205,10 @@ public class RRStarLocalIndex<S extends Shape> implements LocalIndex<S> {
 
   @Override
   public void close() throws IOException {
-    underlyingRTree.close();
+    if (lazyRTree != null)
+      lazyRTree.close();
+    if (underlyingRTree != null)
+      underlyingRTree.close();
   }
 
   static class DataIterator<S> implements Iterable<S>, Iterator<S> {
@@ -4,7 +4,6 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -111,7 +110,9 @@ public class RRStarTree extends RTreeGuttman {
   @Override protected int chooseSubtree(final int object, int node) {
     // cov, the set of entries that entirely cover the new object
     IntArray cov = new IntArray();
-    for (int child : children.get(node)) {
+    int nodeSize = Node_size(node);
+    for (int iChild = 0; iChild < nodeSize; iChild++) {
+      int child = Node_child(node, iChild);
       if (Node_covers(child, object))
         cov.add(child);
     }
@@ -149,37 +150,38 @@ public class RRStarTree extends RTreeGuttman {
     // Sort the children of the node in ascending order of their delta_perim
     // For simplicity, we use insertion sort since the node size is small
     // TODO we can speed this step up by precaching delta_perim values
-    children.get(node).insertionSort(new Comparator<Integer>() {
-      @Override
-      public int compare(Integer child1, Integer child2) {
-        double dPerim1 = Node_dPerimeter(child1, object);
-        double dPerim2 = Node_dPerimeter(child2, object);
-        if (dPerim1 < dPerim2) return -1;
-        if (dPerim1 > dPerim2) return +1;
-        return 0;
+    final int[] nodeChildren = childIDs;
+    final int offset = Node_childrenOffset(node);
+    for (int i = offset + 1; i < offset + nodeSize; i++) {
+      int child = nodeChildren[i];
+      double dPerim = Node_dPerimeter(child, object);
+      int j = i - 1;
+      while (j >= offset && Node_dPerimeter(nodeChildren[j], object) > dPerim) {
+        nodeChildren[j + 1] = nodeChildren[j];
+        j--;
       }
-    });
+      nodeChildren[j + 1] = child;
+    }
 
     // If dOvlpPerim = 0 between the first entry and all remaining entries
     // return the first entry
-    IntArray nodeChildren = children.get(node);
     // Try to achieve an overlap optimized choice
     int p = 0;
-    for (int iChild = 1; iChild < nodeChildren.size(); iChild++) {
-      if (dOvlp(nodeChildren.get(0), object, nodeChildren.get(iChild), AggregateFunction.PERIMETER) > 0)
+    for (int iChild = 1; iChild < nodeSize; iChild++) {
+      if (dOvlp(nodeChildren[offset], object, nodeChildren[offset + iChild], AggregateFunction.PERIMETER) > 0)
         p = iChild;
     }
     if (p == 0) {
       // dOvlpPerim = 0 between the first entry and all remaining entries.
       // return the first entry
-      return nodeChildren.get(0);
+      return nodeChildren[offset];
     }
     assert cov.isEmpty();
     int c;
     // If there is an index i with vol(MBB(Ri U object)) = 0
     int iChildWithZeroVolExpansion = -1;
     for (int iChild = 0; iChild <= p; iChild++) {
-      if (Node_volumeExpansion(nodeChildren.get(iChild), object) == 0) {
+      if (Node_volumeExpansion(nodeChildren[offset + iChild], object) == 0) {
         iChildWithZeroVolExpansion = iChild;
         break;
       }
@@ -187,14 +189,14 @@ public class RRStarTree extends RTreeGuttman {
     IntArray cand = cov; // reuse the same IntArray for efficiency
     // checkComp will fill in the deltaOverlap array with the computed value
     // for each candidate
-    double[] sumDeltaOverlap = new double[nodeChildren.size()];
+    double[] sumDeltaOverlap = new double[nodeSize];
     if (iChildWithZeroVolExpansion != -1) {
-      c = checkComp(0, AggregateFunction.PERIMETER, cand, sumDeltaOverlap, p, object, nodeChildren);
+      c = checkComp(0, AggregateFunction.PERIMETER, cand, sumDeltaOverlap, p, object, node);
     } else {
-      c = checkComp(0, AggregateFunction.VOLUME, cand, sumDeltaOverlap, p, object, nodeChildren);
+      c = checkComp(0, AggregateFunction.VOLUME, cand, sumDeltaOverlap, p, object, node);
     }
     if (c != -1) // if (success)
-      return nodeChildren.get(c);
+      return nodeChildren[offset + c];
 
     int iMinDeltaOverlap = -1;
     double minDeltaOverlap = Double.POSITIVE_INFINITY;
@@ -205,7 +207,7 @@ public class RRStarTree extends RTreeGuttman {
       }
     }
     assert iMinDeltaOverlap != -1;
-    return nodeChildren.get(iMinDeltaOverlap);
+    return nodeChildren[offset + iMinDeltaOverlap];
   }
 
   enum AggregateFunction {PERIMETER, VOLUME};
@@ -217,21 +219,21 @@ public class RRStarTree extends RTreeGuttman {
    * @param cand
    * @param p
    * @param object
-   * @param nodeChildren
+   * @param node the node whose children are being checked
    * @return
    */
   protected int checkComp(int t, AggregateFunction f, IntArray cand, double[] sumDeltaOverlap,
-                          int p, int object, IntArray nodeChildren) {
+                          int p, int object, int node) {
     cand.add(t);
     sumDeltaOverlap[t] = 0; // the accumulation of dOvlp(t, [0, p))
     int c = -1;
     for (int j = 0; j <= p; j++) {
       if (j == t)
         continue;
-      double ovlpPerimTJ = dOvlp(nodeChildren.get(t), object, nodeChildren.get(j), f);
+      double ovlpPerimTJ = dOvlp(Node_child(node, t), object, Node_child(node, j), f);
       sumDeltaOverlap[t] += ovlpPerimTJ;
       if (ovlpPerimTJ != 0 && !cand.contains(j)) {
-        c = checkComp(j, f, cand, sumDeltaOverlap, p, object, nodeChildren);
+        c = checkComp(j, f, cand, sumDeltaOverlap, p, object, node);
         if (c != -1)
           break;
       }
@@ -343,7 +345,9 @@ public class RRStarTree extends RTreeGuttman {
    */
   protected int splitLeaf(int node, int minSplitSize) {
     int nodeSize = Node_size(node);
-    final int[] nodeChildren = children.get(node).underlyingArray();
+    // The children of the node are in the range [offset, offset + nodeSize) of this array
+    final int[] nodeChildren = childIDs;
+    final int offset = Node_childrenOffset(node);
     // ChooseSplitAxis
     // Sort the entries by each axis and compute S, the sum of all margin-values
     // of the different distributions
@@ -362,10 +366,10 @@ public class RRStarTree extends RTreeGuttman {
       public int compare(int i, int j) {
         double diff;
         switch (attribute) {
-          case X1: diff = x1s[nodeChildren[i]] - x1s[nodeChildren[j]]; break;
-          case Y1: diff = y1s[nodeChildren[i]] - y1s[nodeChildren[j]]; break;
-          case X2: diff = x2s[nodeChildren[i]] - x2s[nodeChildren[j]]; break;
-          case Y2: diff = y2s[nodeChildren[i]] - y2s[nodeChildren[j]]; break;
+          case X1: diff = x1s[nodeChildren[offset + i]] - x1s[nodeChildren[offset + j]]; break;
+          case Y1: diff = y1s[nodeChildren[offset + i]] - y1s[nodeChildren[offset + j]]; break;
+          case X2: diff = x2s[nodeChildren[offset + i]] - x2s[nodeChildren[offset + j]]; break;
+          case Y2: diff = y2s[nodeChildren[offset + i]] - y2s[nodeChildren[offset + j]]; break;
           default: diff = 0;
         }
         if (diff < 0) return -1;
@@ -375,9 +379,9 @@ public class RRStarTree extends RTreeGuttman {
 
       @Override
       public void swap(int i, int j) {
-        int t = nodeChildren[i];
-        nodeChildren[i] = nodeChildren[j];
-        nodeChildren[j] = t;
+        int t = nodeChildren[offset + i];
+        nodeChildren[offset + i] = nodeChildren[offset + j];
+        nodeChildren[offset + j] = t;
       }
     };
     double minSumMargin = Double.POSITIVE_INFINITY;
@@ -387,7 +391,7 @@ public class RRStarTree extends RTreeGuttman {
       sorter.setAttribute(sortAttr);
       quickSort.sort(sorter, 0, nodeSize);
 
-      double sumMargin = computeSumPerimeter(nodeChildren, nodeSize, minSplitSize);
+      double sumMargin = computeSumPerimeter(nodeChildren, offset, nodeSize, minSplitSize);
       if (sumMargin < minSumMargin) {
         bestAxis = sortAttr;
         minSumMargin = sumMargin;
@@ -426,7 +430,7 @@ public class RRStarTree extends RTreeGuttman {
     double sigma = s * (1.0 + Math.abs(mu));
 
     // Along the chosen axis, choose the distribution with the minimum overlap value.
-    int chosenK = chooseSplitPoint(node, minSplitSize, mu, sigma, nodeSize, nodeChildren);
+    int chosenK = chooseSplitPoint(node, minSplitSize, mu, sigma, nodeSize, nodeChildren, offset);
 
     // Split at the chosenK
     int separator = minSplitSize - 1 + chosenK;
@@ -445,15 +449,16 @@ public class RRStarTree extends RTreeGuttman {
    * @param mu
    * @param sigma
    * @param numEntries
-   * @param entries
+   * @param entries an array that contains the children of the node
+   * @param offset the position of the first child of the node in the entries array
    * @return
    */
-  private int chooseSplitPoint(int node, int minSplitSize, double mu, double sigma, int numEntries, int[] entries) {
+  private int chooseSplitPoint(int node, int minSplitSize, double mu, double sigma, int numEntries, int[] entries, int offset) {
     Rectangle mbr1 = new Rectangle(Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
         Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY);
     // Initialize the MBR of the first group to the minimum group size
     for (int i = 0; i < minSplitSize; i++){
-      int iChild = entries[i];
+      int iChild = entries[offset + i];
       mbr1.expand(x1s[iChild], y1s[iChild]);
       mbr1.expand(x2s[iChild], y2s[iChild]);
     }
@@ -466,7 +471,7 @@ public class RRStarTree extends RTreeGuttman {
     double[] maxX2 = new double[numEntries];
     double[] maxY2 = new double[numEntries];
     for (int i = numEntries - 1; i >= minSplitSize; i--) {
-      int iChild = entries[i];
+      int iChild = entries[offset + i];
       mbr2.expand(x1s[iChild], y1s[iChild]);
       mbr2.expand(x2s[iChild], y2s[iChild]);
       minX1[i] = mbr2.x1;
@@ -506,8 +511,8 @@ public class RRStarTree extends RTreeGuttman {
       double gaussianTerm = (xi - mu) / sigma;
       double wf = ys * (Math.exp(-gaussianTerm * gaussianTerm) - y1);
 
-      mbr1.expand(x1s[entries[separator-1]], y1s[entries[separator-1]]);
-      mbr1.expand(x2s[entries[separator-1]], y2s[entries[separator-1]]);
+      mbr1.expand(x1s[entries[offset + separator-1]], y1s[entries[offset + separator-1]]);
+      mbr1.expand(x2s[entries[offset + separator-1]], y2s[entries[offset + separator-1]]);
 
       mbr2.set(minX1[separator], minY1[separator], maxX2[separator], maxY2[separator]);
 
@@ -545,7 +550,9 @@ public class RRStarTree extends RTreeGuttman {
 
   protected int splitNonLeaf(int node, int minSplitSize) {
     int nodeSize = Node_size(node);
-    final int[] nodeChildren = children.get(node).underlyingArray();
+    // The children of the node are in the range [offset, offset + nodeSize) of this array
+    final int[] nodeChildren = childIDs;
+    final int offset = Node_childrenOffset(node);
     // Try all possible splits and choose the one with the best value
 
     // Sort by x1, y1, x2, y2
@@ -562,10 +569,10 @@ public class RRStarTree extends RTreeGuttman {
       public int compare(int i, int j) {
         double diff;
         switch (attribute) {
-          case X1: diff = x1s[nodeChildren[i]] - x1s[nodeChildren[j]]; break;
-          case Y1: diff = y1s[nodeChildren[i]] - y1s[nodeChildren[j]]; break;
-          case X2: diff = x2s[nodeChildren[i]] - x2s[nodeChildren[j]]; break;
-          case Y2: diff = y2s[nodeChildren[i]] - y2s[nodeChildren[j]]; break;
+          case X1: diff = x1s[nodeChildren[offset + i]] - x1s[nodeChildren[offset + j]]; break;
+          case Y1: diff = y1s[nodeChildren[offset + i]] - y1s[nodeChildren[offset + j]]; break;
+          case X2: diff = x2s[nodeChildren[offset + i]] - x2s[nodeChildren[offset + j]]; break;
+          case Y2: diff = y2s[nodeChildren[offset + i]] - y2s[nodeChildren[offset + j]]; break;
           default: diff = 0;
         }
         if (diff < 0) return -1;
@@ -575,9 +582,9 @@ public class RRStarTree extends RTreeGuttman {
 
       @Override
       public void swap(int i, int j) {
-        int t = nodeChildren[i];
-        nodeChildren[i] = nodeChildren[j];
-        nodeChildren[j] = t;
+        int t = nodeChildren[offset + i];
+        nodeChildren[offset + i] = nodeChildren[offset + j];
+        nodeChildren[offset + j] = t;
       }
     };
     double minWeightAmongAllAxes = Double.POSITIVE_INFINITY;
@@ -614,7 +621,7 @@ public class RRStarTree extends RTreeGuttman {
       double sigma = s * (1.0 + Math.abs(mu));
 
       // Along the chosen axis, choose the distribution with the minimum overlap value.
-      int bestKAlongThisAxis = chooseSplitPoint(node, minSplitSize, mu, sigma, nodeSize, nodeChildren);
+      int bestKAlongThisAxis = chooseSplitPoint(node, minSplitSize, mu, sigma, nodeSize, nodeChildren, offset);
       double bestWeightAlongThisAxis = minWeightFoundByLastCallOfChooseSplitPoint;
       if (bestWeightAlongThisAxis < minWeightAmongAllAxes) {
         minWeightAmongAllAxes = bestWeightAlongThisAxis;
@@ -640,18 +647,19 @@ public class RRStarTree extends RTreeGuttman {
    * Compute the sum margin of the given node assuming that the children have
    * been already sorted along one of the dimensions.
    * @param nodeChildren an array of the children of the node to determine
+   * @param offset the position of the first child in the nodeChildren array
    * @param nodeSize number of valid entries in the children array
    * @param minSplitSize the minimum split size to consider
    * @return
    */
-  private double computeSumPerimeter(int[] nodeChildren, int nodeSize, int minSplitSize) {
+  private double computeSumPerimeter(int[] nodeChildren, int offset, int nodeSize, int minSplitSize) {
     double sumMargin = 0.0;
     Rectangle mbr1 = new Rectangle();
     // Initialize the MBR of the first group to the minimum group size
     mbr1.set(Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
         Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY);
     for (int i = 0; i < minSplitSize; i++){
-      int iChild = nodeChildren[i];
+      int iChild = nodeChildren[offset + i];
       mbr1.expand(x1s[iChild], y1s[iChild]);
       mbr1.expand(x2s[iChild], y2s[iChild]);
     }
@@ -664,7 +672,7 @@ public class RRStarTree extends RTreeGuttman {
     double[] maxX2 = new double[nodeSize];
     double[] maxY2 = new double[nodeSize];
     for (int i = nodeSize - 1; i >= minSplitSize; i--) {
-      int iChild = nodeChildren[i];
+      int iChild = nodeChildren[offset + i];
       mbr2.expand(x1s[iChild], y1s[iChild]);
       mbr2.expand(x2s[iChild], y2s[iChild]);
       minX1[i] = mbr2.x1;
@@ -676,8 +684,8 @@ public class RRStarTree extends RTreeGuttman {
     int numPossibleSplits = nodeSize - 2 * minSplitSize + 1;
     for (int k = 1; k <= numPossibleSplits; k++) {
       int separator = minSplitSize + k - 1; // Separator = size of first group
-      mbr1.expand(x1s[nodeChildren[separator-1]], y1s[nodeChildren[separator-1]]);
-      mbr1.expand(x2s[nodeChildren[separator-1]], y2s[nodeChildren[separator-1]]);
+      mbr1.expand(x1s[nodeChildren[offset + separator-1]], y1s[nodeChildren[offset + separator-1]]);
+      mbr1.expand(x2s[nodeChildren[offset + separator-1]], y2s[nodeChildren[offset + separator-1]]);
 
       mbr2.set(minX1[separator], minY1[separator], maxX2[separator], maxY2[separator]);
       sumMargin += mbr1.getWidth() + mbr1.getHeight() + mbr2.getWidth() + mbr2.getHeight();
@@ -88,21 +88,22 @@ public class RStarTree extends RTreeGuttman {
    * @param node
    * @return
    */
-  @Override protected int chooseSubtree(final int entry, int node) {
+  @Override protected int chooseSubtree(final int entry, final int node) {
     assert !isLeaf.get(node);
     // If the child pointers in N do not point to leaves,
     // determine the minimum area cost (as in regular R-tree)
-    if (!isLeaf.get(children.get(node).peek()))
+    if (!isLeaf.get(Node_lastChild(node)))
       return super.chooseSubtree(entry, node);
 
     // If the child pointers in N point ot leaves, determine the minimum
     // overlap cost
     int bestChild = -1;
     double minVolume = Double.POSITIVE_INFINITY;
-    final IntArray nodeChildren = children.get(node);
+    final int nodeSize = Node_size(node);
     // If there are any nodes that completely covers the entry, choose the one
     // with the least area
-    for (int child : nodeChildren) {
+    for (int iChild = 0; iChild < nodeSize; iChild++) {
+      int child = Node_child(node, iChild);
       if (Node_contains(child, entry)) {
         double volume = Node_area(child);
         if (volume < minVolume) {
@@ -119,9 +120,9 @@ public class RStarTree extends RTreeGuttman {
 
     // Sort the children by their increasing order of area enlargements so that
     // we can reduce the processing by considering the first P=32 children
-    final double[] volumeEnlargements = new double[nodeChildren.size()];
-    for (int iChild = 0; iChild < nodeChildren.size(); iChild++)
-      volumeEnlargements[iChild] = Node_volumeExpansion(nodeChildren.get(iChild), entry);
+    final double[] volumeEnlargements = new double[nodeSize];
+    for (int iChild = 0; iChild < nodeSize; iChild++)
+      volumeEnlargements[iChild] = Node_volumeExpansion(Node_child(node, iChild), entry);
     IndexedSortable volEnlargementsSortable = new IndexedSortable() {
       @Override
       public int compare(int i, int j) {
@@ -133,13 +134,13 @@ public class RStarTree extends RTreeGuttman {
 
       @Override
       public void swap(int i, int j) {
-        nodeChildren.swap(i, j);
+        Node_swapChildren(node, i, j);
         double temp = volumeEnlargements[i];
         volumeEnlargements[i] = volumeEnlargements[j];
         volumeEnlargements[j] = temp;
       }
     };
-    new QuickSort().sort(volEnlargementsSortable, 0, nodeChildren.size());
+    new QuickSort().sort(volEnlargementsSortable, 0, nodeSize);
     // Choose the entry N whose rectangle needs least overlap enlargement
     // to include the new data rectangle.
     double minOverlapEnlargement = Double.POSITIVE_INFINITY;
@@ -147,12 +148,13 @@ public class RStarTree extends RTreeGuttman {
 
     // For efficiency, only consider the first 32 children in the sorted order
     // of volume expansion
-    for (int iChild = 0; iChild < Math.min(32, nodeChildren.size()); iChild++) {
-      int child = nodeChildren.get(iChild);
+    for (int iChild = 0; iChild < Math.min(32, nodeSize); iChild++) {
+      int child = Node_child(node, iChild);
       double ovlpEnlargement = 0.0;
       double volumeEnlargement = volumeEnlargements[iChild];
       // If the MBB of the node expands, there could be some enlargement
-      for (int child2 : nodeChildren) {
+      for (int iChild2 = 0; iChild2 < nodeSize; iChild2++) {
+        int child2 = Node_child(node, iChild2);
         if (child != child2) {
           // Add the overlap and volume enlargements of this pair
           ovlpEnlargement += Node_overlapAreaEnlargement(child, entry, child2);
@@ -207,18 +209,18 @@ public class RStarTree extends RTreeGuttman {
    * Described in Beckmann et al'90 Page 327
    * @param node
    */
-  protected void reInsert(int node, IntArray path) {
+  protected void reInsert(final int node, IntArray path) {
     reinserting = true;
-    final IntArray nodeChildren = children.get(node);
     // Remove the last element (the one that caused the expansion)
-    int overflowEelement = nodeChildren.pop();
+    int overflowEelement = Node_removeLastChild(node);
+    final int nodeSize = Node_size(node);
     // RI1 For all M+1 entries of a node N, compute the distance between
     // the centers of their rectangles and the center of the MBR of N
     final double nodeX = (x1s[node] + x2s[node]) / 2;
     final double nodeY = (y1s[node] + y2s[node]) / 2;
-    final double[] distances = new double[nodeChildren.size()];
-    for (int iChild = 0; iChild < nodeChildren.size(); iChild++) {
-      int child = nodeChildren.get(iChild);
+    final double[] distances = new double[nodeSize];
+    for (int iChild = 0; iChild < nodeSize; iChild++) {
+      int child = Node_child(node, iChild);
       double childX = (x1s[child] + x2s[child]) / 2;
       double childY = (y1s[child] + y2s[child]) / 2;
       double dx = childX - nodeX;
@@ -240,20 +242,20 @@ public class RStarTree extends RTreeGuttman {
 
       @Override
       public void swap(int i, int j) {
-        nodeChildren.swap(i, j);
+        Node_swapChildren(node, i, j);
         double temp = distances[i];
         distances[i] = distances[j];
         distances[j] = temp;
       }
     };
-    new QuickSort().sort(distanceSortable, 0, nodeChildren.size());
+    new QuickSort().sort(distanceSortable, 0, nodeSize);
 
     // RI3 Remove the first p entries from N and adjust the MBR of N
     // Eldawy: We chose to sort them by (increasing) distance and remove
     // the last p elements since deletion from the tail of the list is faster
     IntArray entriesToReInsert = new IntArray();
-    entriesToReInsert.append(nodeChildren, nodeChildren.size() - p, p);
-    nodeChildren.resize(nodeChildren.size() - p);
+    entriesToReInsert.append(childIDs, Node_childrenOffset(node) + nodeSize - p, p);
+    Node_truncate(node, nodeSize - p);
 
     // RI4: In the sort, defined in RI2, starting with the minimum distance
     // (=close reinsert), invoke Insert to reinsert the entries
@@ -278,11 +280,17 @@ public class RStarTree extends RTreeGuttman {
       // Overflow treatment
       iNewNode = overflowTreatment(iLeafNode, path);
     }
+    // The child of the current node on the insertion path. For the leaf, it
+    // is the new data entry which is always the last child.
+    int iChildOnPath = Node_lastChild(path.peek());
     // AdjustTree. Ascend from the leaf node L
     while (!path.isEmpty()) {
       iNode = path.pop();
       // Adjust covering rectangle in parent entry
-      Node_expand(iNode, children.get(iNode).peek());
+      // The last child is not necessarily the one on the path. If a child
+      // was split, the new node is expanded when it is added to the parent.
+      Node_expand(iNode, iChildOnPath);
+      iChildOnPath = iNode;
       if (path.isEmpty()) {
         // The node is the root (no parent)
         if (iNewNode != -1) {
@@ -297,6 +305,7 @@ public class RStarTree extends RTreeGuttman {
           // create a new entry ENN and add to the parent if there is room.
           // Add Enn to P if there is room
           Node_addChild(iParent, iNewNode);
+          Node_expand(iParent, iNewNode);
           iNewNode = -1;
           if (Node_size(iParent) >= maxCapcity) {
             // TODO call overflowTreatment if necessary
@@ -325,7 +334,9 @@ public class RStarTree extends RTreeGuttman {
   @Override
   protected int split(int iNode, int minSplitSize) {
     int nodeSize = Node_size(iNode);
-    final int[] nodeChildren = children.get(iNode).underlyingArray();
+    // The children of the node are in the range [offset, offset + nodeSize) of this array
+    final int[] nodeChildren = childIDs;
+    final int offset = Node_childrenOffset(iNode);
     // ChooseSplitAxis
     // Sort the entries by each axis and compute S, the sum of all margin-values
     // of the different distributions
@@ -344,10 +355,10 @@ public class RStarTree extends RTreeGuttman {
       public int compare(int i, int j) {
         double diff;
         switch (attribute) {
-          case X1: diff = x1s[nodeChildren[i]] - x1s[nodeChildren[j]]; break;
-          case Y1: diff = y1s[nodeChildren[i]] - y1s[nodeChildren[j]]; break;
-          case X2: diff = x2s[nodeChildren[i]] - x2s[nodeChildren[j]]; break;
-          case Y2: diff = y2s[nodeChildren[i]] - y2s[nodeChildren[j]]; break;
+          case X1: diff = x1s[nodeChildren[offset + i]] - x1s[nodeChildren[offset + j]]; break;
+          case Y1: diff = y1s[nodeChildren[offset + i]] - y1s[nodeChildren[offset + j]]; break;
+          case X2: diff = x2s[nodeChildren[offset + i]] - x2s[nodeChildren[offset + j]]; break;
+          case Y2: diff = y2s[nodeChildren[offset + i]] - y2s[nodeChildren[offset + j]]; break;
           default: diff = 0;
         }
         if (diff < 0) return -1;
@@ -357,9 +368,9 @@ public class RStarTree extends RTreeGuttman {
 
       @Override
       public void swap(int i, int j) {
-        int t = nodeChildren[i];
-        nodeChildren[i] = nodeChildren[j];
-        nodeChildren[j] = t;
+        int t = nodeChildren[offset + i];
+        nodeChildren[offset + i] = nodeChildren[offset + j];
+        nodeChildren[offset + j] = t;
       }
     };
     double minSumMargin = Double.POSITIVE_INFINITY;
@@ -387,7 +398,7 @@ public class RStarTree extends RTreeGuttman {
         Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY);
     // Initialize the MBR of the first group to the minimum group size
     for (int i = 0; i < minSplitSize; i++){
-      int iChild = nodeChildren[i];
+      int iChild = nodeChildren[offset + i];
       mbr1.expand(x1s[iChild], y1s[iChild]);
       mbr1.expand(x2s[iChild], y2s[iChild]);
     }
@@ -400,7 +411,7 @@ public class RStarTree extends RTreeGuttman {
     double[] maxX2 = new double[nodeSize];
     double[] maxY2 = new double[nodeSize];
     for (int i = nodeSize - 1; i >= minSplitSize; i--) {
-      int iChild = nodeChildren[i];
+      int iChild = nodeChildren[offset + i];
       mbr2.expand(x1s[iChild], y1s[iChild]);
       mbr2.expand(x2s[iChild], y2s[iChild]);
       minX1[i] = mbr2.x1;
@@ -417,8 +428,8 @@ public class RStarTree extends RTreeGuttman {
     int numPossibleSplits = Node_size(iNode) - 2 * minSplitSize + 1;
     for (int k = 1; k <= numPossibleSplits; k++) {
       int separator = minSplitSize + k - 1; // Separator = size of first group
-      mbr1.expand(x1s[nodeChildren[separator-1]], y1s[nodeChildren[separator-1]]);
-      mbr1.expand(x2s[nodeChildren[separator-1]], y2s[nodeChildren[separator-1]]);
+      mbr1.expand(x1s[nodeChildren[offset + separator-1]], y1s[nodeChildren[offset + separator-1]]);
+      mbr1.expand(x2s[nodeChildren[offset + separator-1]], y2s[nodeChildren[offset + separator-1]]);
 
       mbr2.set(minX1[separator], minY1[separator],
           maxX2[separator], maxY2[separator]);
@@ -453,15 +464,14 @@ public class RStarTree extends RTreeGuttman {
    * @return
    */
   private double computeSumMargin(int iNode, int minSplitSize) {
-    IntArray nodeChildren = children.get(iNode);
-    int nodeSize = nodeChildren.size() - 1; // -1 excludes the overflow object
+    int nodeSize = Node_size(iNode) - 1; // -1 excludes the overflow object
     double sumMargin = 0.0;
     Rectangle mbr1 = new Rectangle();
     // Initialize the MBR of the first group to the minimum group size
     mbr1.set(Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
         Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY);
     for (int i = 0; i < minSplitSize; i++){
-      int iChild = nodeChildren.get(i);
+      int iChild = Node_child(iNode, i);
       mbr1.expand(x1s[iChild], y1s[iChild]);
       mbr1.expand(x2s[iChild], y2s[iChild]);
     }
@@ -474,7 +484,7 @@ public class RStarTree extends RTreeGuttman {
     double[] maxX2 = new double[nodeSize];
     double[] maxY2 = new double[nodeSize];
     for (int i = nodeSize - 1; i >= minSplitSize; i--) {
-      int iChild = nodeChildren.get(i);
+      int iChild = Node_child(iNode, i);
       mbr2.expand(x1s[iChild], y1s[iChild]);
       mbr2.expand(x2s[iChild], y2s[iChild]);
       minX1[i] = mbr2.x1;
@@ -486,8 +496,8 @@ public class RStarTree extends RTreeGuttman {
     int numPossibleSplits = nodeSize - 2 * minSplitSize + 1;
     for (int k = 1; k <= numPossibleSplits; k++) {
       int separator = minSplitSize + k - 1; // Separator = size of first group
-      mbr1.expand(x1s[nodeChildren.get(separator-1)], y1s[nodeChildren.get(separator-1)]);
-      mbr1.expand(x2s[nodeChildren.get(separator-1)], y2s[nodeChildren.get(separator-1)]);
+      mbr1.expand(x1s[Node_child(iNode, separator-1)], y1s[Node_child(iNode, separator-1)]);
+      mbr1.expand(x2s[Node_child(iNode, separator-1)], y2s[Node_child(iNode, separator-1)]);
 
       mbr2.set(minX1[separator], minY1[separator],
           maxX2[separator], maxY2[separator]);
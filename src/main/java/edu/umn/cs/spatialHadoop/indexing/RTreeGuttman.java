@@ -9,6 +9,8 @@ import java.util.*;
 
 import edu.umn.cs.spatialHadoop.core.Rectangle;
 import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.util.IndexedSortable;
+import org.apache.hadoop.util.QuickSort;
 
 import edu.umn.cs.spatialHadoop.util.BitArray;
 import edu.umn.cs.spatialHadoop.util.IntArray;
@@ -38,8 +40,28 @@ public class RTreeGuttman implements Closeable {
   /**A bit vector that stores which nodes are leaves*/
   protected BitArray isLeaf;
 
-  /**A list of int[] that stores the children of each node*/
-  protected List<IntArray> children;
+  /**
+   * The children of all nodes packed in one array. The children of each node
+   * occupy a contiguous range in this array that starts at
+   * {@link #childrenStart} and contains {@link #childrenCount} elements.
+   * Data entries do not have children and do not use any space in this array.
+   */
+  protected int[] childIDs;
+
+  /**Number of elements in {@link #childIDs} that are reserved by nodes*/
+  protected int childIDsSize;
+
+  /**
+   * The position of the first child of each node in {@link #childIDs}.
+   * All the three per-node arrays are indexed by (node ID - {@link #numEntries}).
+   */
+  protected int[] childrenStart;
+
+  /**Number of children in each node*/
+  protected int[] childrenCount;
+
+  /**Number of slots reserved in {@link #childIDs} for the children of each node*/
+  protected int[] childrenCapacity;
 
   /**Total number of data entries*/
   protected int numEntries;
@@ -87,6 +109,69 @@ public class RTreeGuttman implements Closeable {
 
       this.isLeaf.resize(x1s.length);
     }
+    if (childrenStart.length <= numNodes) {
+      int newLength = childrenStart.length * 2;
+      int[] newArray = new int[newLength];
+      System.arraycopy(childrenStart, 0, newArray, 0, childrenStart.length);
+      childrenStart = newArray;
+      newArray = new int[newLength];
+      System.arraycopy(childrenCount, 0, newArray, 0, childrenCount.length);
+      childrenCount = newArray;
+      newArray = new int[newLength];
+      System.arraycopy(childrenCapacity, 0, newArray, 0, childrenCapacity.length);
+      childrenCapacity = newArray;
+    }
+  }
+
+  /**
+   * Initializes the arrays that store the children of the nodes.
+   * @param expectedNumNodes an estimate of the number of nodes in the tree
+   * @param expectedNumChildren an estimate of the total number of children
+   */
+  protected void initializeChildren(int expectedNumNodes, int expectedNumChildren) {
+    this.childrenStart = new int[Math.max(1, expectedNumNodes)];
+    this.childrenCount = new int[childrenStart.length];
+    this.childrenCapacity = new int[childrenStart.length];
+    this.childIDs = new int[Math.max(1, expectedNumChildren)];
+    this.childIDsSize = 0;
+  }
+
+  /**
+   * Reserves a new range of the given capacity at the end of the array
+   * {@link #childIDs} for the children of the given node. Existing children
+   * of the node, if any, are moved to the new range. If the array is full,
+   * the ranges of all nodes are compacted into a new array which reclaims
+   * the ranges that nodes left behind when they moved.
+   * @param iNode the ID of the node
+   * @param capacity the number of children the new range can hold
+   */
+  protected void Node_reserve(int iNode, int capacity) {
+    int i = iNode - numEntries;
+    if (childIDsSize + capacity > childIDs.length) {
+      int reservedSize = capacity;
+      for (int j = 0; j < numNodes; j++) {
+        if (j != i)
+          reservedSize += childrenCapacity[j];
+      }
+      // Keep at least half of the new array free to amortize the compaction
+      int[] newChildIDs = new int[Math.max(childIDs.length, reservedSize * 2)];
+      int newSize = 0;
+      for (int j = 0; j < numNodes; j++) {
+        if (j != i) {
+          System.arraycopy(childIDs, childrenStart[j], newChildIDs, newSize, childrenCount[j]);
+          childrenStart[j] = newSize;
+          newSize += childrenCapacity[j];
+        }
+      }
+      System.arraycopy(childIDs, childrenStart[i], newChildIDs, newSize, childrenCount[i]);
+      childIDs = newChildIDs;
+      childIDsSize = newSize;
+    } else {
+      System.arraycopy(childIDs, childrenStart[i], childIDs, childIDsSize, childrenCount[i]);
+    }
+    childrenStart[i] = childIDsSize;
+    childrenCapacity[i] = capacity;
+    childIDsSize += capacity;
   }
 
   /**
@@ -100,8 +185,10 @@ public class RTreeGuttman implements Closeable {
     makeRoomForOneMoreObject();
     int iNewNode = numEntries + numNodes;
     this.isLeaf.set(iNewNode, leaf);
-    this.children.add(iNewNode, new IntArray());
     this.numNodes++;
+    childrenCount[iNewNode - numEntries] = 0;
+    // A node can temporarily hold one extra child before it is split
+    Node_reserve(iNewNode, Math.max(maxCapcity + 1, iChildren.length));
     Node_reset(iNewNode, iChildren);
     return iNewNode;
   }
@@ -113,15 +200,23 @@ public class RTreeGuttman implements Closeable {
    * @param newChildren
    */
   protected void Node_reset(int iNode, int ... newChildren) {
-    children.get(iNode).clear();
-    children.get(iNode).append(newChildren, 0, newChildren.length);
+    int i = iNode - numEntries;
+    if (newChildren.length > childrenCapacity[i]) {
+      childrenCount[i] = 0;
+      Node_reserve(iNode, newChildren.length);
+    }
+    System.arraycopy(newChildren, 0, childIDs, childrenStart[i], newChildren.length);
+    childrenCount[i] = newChildren.length;
     Node_recalculateMBR(iNode);
   }
 
   protected void Node_recalculateMBR(int iNode) {
     x1s[iNode] = y1s[iNode] = Double.POSITIVE_INFINITY;
     x2s[iNode] = y2s[iNode] = Double.NEGATIVE_INFINITY;
-    for (int iChild : children.get(iNode)) {
+    int start = Node_childrenOffset(iNode);
+    int end = start + Node_size(iNode);
+    for (int iChildPos = start; iChildPos < end; iChildPos++) {
+      int iChild = childIDs[iChildPos];
       if (x1s[iChild] < x1s[iNode])
         x1s[iNode] = x1s[iChild];
       if (y1s[iChild] < y1s[iNode])
@@ -139,7 +234,72 @@ public class RTreeGuttman implements Closeable {
    * @return
    */
   protected int Node_size(int iNode) {
-    return children.get(iNode).size();
+    return childrenCount[iNode - numEntries];
+  }
+
+  /**
+   * Returns the position of the first child of the given node in the array
+   * {@link #childIDs}. The children of the node are stored in the range
+   * [offset, offset + {@link #Node_size(int)}). The returned offset is only
+   * valid until the next modification of the tree structure.
+   * @param iNode
+   * @return
+   */
+  protected int Node_childrenOffset(int iNode) {
+    return childrenStart[iNode - numEntries];
+  }
+
+  /**
+   * Returns the ID of the child at the given position in the given node.
+   * @param iNode the ID of the node
+   * @param i the position of the child in the range [0, {@link #Node_size(int)})
+   * @return
+   */
+  protected int Node_child(int iNode, int i) {
+    return childIDs[childrenStart[iNode - numEntries] + i];
+  }
+
+  /**
+   * Returns the ID of the last child added to the given node.
+   * @param iNode
+   * @return
+   */
+  protected int Node_lastChild(int iNode) {
+    int i = iNode - numEntries;
+    return childIDs[childrenStart[i] + childrenCount[i] - 1];
+  }
+
+  /**
+   * Removes the last child from the given node without updating its MBR.
+   * @param iNode
+   * @return the ID of the removed child
+   */
+  protected int Node_removeLastChild(int iNode) {
+    int i = iNode - numEntries;
+    return childIDs[childrenStart[i] + --childrenCount[i]];
+  }
+
+  /**
+   * Shrinks the given node to contain only its first children without
+   * updating its MBR.
+   * @param iNode
+   * @param newSize the number of children to keep
+   */
+  protected void Node_truncate(int iNode, int newSize) {
+    childrenCount[iNode - numEntries] = newSize;
+  }
+
+  /**
+   * Swaps two children of the given node.
+   * @param iNode the ID of the node
+   * @param i the position of the first child
+   * @param j the position of the second child
+   */
+  protected void Node_swapChildren(int iNode, int i, int j) {
+    int offset = childrenStart[iNode - numEntries];
+    int t = childIDs[offset + i];
+    childIDs[offset + i] = childIDs[offset + j];
+    childIDs[offset + j] = t;
   }
 
   /**
@@ -176,7 +336,10 @@ public class RTreeGuttman implements Closeable {
    * @param iNewChild
    */
   protected void Node_addChild(int iNode, int iNewChild) {
-    this.children.get(iNode).add(iNewChild);
+    int i = iNode - numEntries;
+    if (childrenCount[i] == childrenCapacity[i])
+      Node_reserve(iNode, childrenCapacity[i] * 2);
+    childIDs[childrenStart[i] + childrenCount[i]++] = iNewChild;
   }
 
   /**
@@ -206,15 +369,19 @@ public class RTreeGuttman implements Closeable {
     makeRoomForOneMoreObject();
     int iNewNode = numNodes + numEntries;
     this.numNodes++;
-    // Make room for the children of the new node
-    this.children.add(iNewNode, new IntArray());
     // The new node in the same level so it follow the leaf/non-leaf status of the current node
     isLeaf.set(iNewNode, isLeaf.get(iNode));
 
+    // Make room for the children of the new node
+    int numMovedChildren = Node_size(iNode) - separator;
+    childrenCount[iNewNode - numEntries] = 0;
+    Node_reserve(iNewNode, Math.max(maxCapcity + 1, numMovedChildren));
+
     // Split the children around the separator
-    children.get(iNewNode).append(children.get(iNode), separator,
-        children.get(iNode).size() - separator);
-    children.get(iNode).resize(separator);
+    System.arraycopy(childIDs, Node_childrenOffset(iNode) + separator,
+        childIDs, Node_childrenOffset(iNewNode), numMovedChildren);
+    childrenCount[iNewNode - numEntries] = numMovedChildren;
+    Node_truncate(iNode, separator);
 
     // Recalculate the MBRs of the two nodes
     Node_recalculateMBR(iNode);
@@ -246,6 +413,147 @@ public class RTreeGuttman implements Closeable {
   }
 
 
+  /**The methods that can be used to bulk load the tree*/
+  public enum BulkLoadMethod {STR, HILBERT};
+
+  /**
+   * Initialize the tree from a set of rectangles by bulk loading them rather
+   * than inserting them one-by-one. The entries are packed into leaf nodes
+   * according to the given method and the same method is used to pack each
+   * level into the level above it until a single root is created. The resulting
+   * tree has the same structure as a tree built by insertion and can be written
+   * using {@link #write(DataOutput, Serializer)}.
+   * <ul>
+   *   <li>{@link BulkLoadMethod#STR}: Sort-Tile-Recursive which sorts the objects
+   *   by the x-coordinate of their centers into vertical slices and then sorts
+   *   each slice by the y-coordinate.</li>
+   *   <li>{@link BulkLoadMethod#HILBERT}: Sorts the objects by the Hilbert value
+   *   of their centers.</li>
+   * </ul>
+   * @param x1
+   * @param y1
+   * @param x2
+   * @param y2
+   * @param method the bulk loading method to use
+   */
+  public void initializeFromRectsBulk(double[] x1, double[] y1, double[] x2, double[] y2,
+                                      BulkLoadMethod method) {
+    this.initializeDataEntries(x1, y1, x2, y2);
+    // The objects in the current level to be packed in the level above it
+    int[] objects = new int[numEntries];
+    for (int i = 0; i < numEntries; i++)
+      objects[i] = i;
+    if (numEntries == 0) {
+      // An empty tree with a root that is an empty leaf node
+      root = Node_createNodeWithChildren(true);
+      return;
+    }
+    boolean leaf = true;
+    do {
+      switch (method) {
+        case STR: objects = packSTR(objects, leaf); break;
+        case HILBERT: objects = packHilbert(objects, leaf); break;
+        default: throw new RuntimeException("Unknown bulk loading method "+method);
+      }
+      leaf = false;
+    } while (objects.length > 1);
+    root = objects[0];
+  }
+
+  /**
+   * Create nodes in one level that contain consecutive ranges of the given
+   * objects. The objects are distributed evenly among the minimum number of
+   * nodes that can hold them without exceeding the maximum capacity.
+   * @param objects the IDs of all objects in the level
+   * @param start the first object to pack (inclusive)
+   * @param end the last object to pack (exclusive)
+   * @param leaf whether the created nodes are leaves
+   * @param createdNodes an output list that receives the IDs of the new nodes
+   */
+  protected void packRange(int[] objects, int start, int end, boolean leaf, IntArray createdNodes) {
+    int numNodesToCreate = (end - start + maxCapcity - 1) / maxCapcity;
+    for (int iNode = 0; iNode < numNodesToCreate; iNode++) {
+      int nodeStart = start + (int) ((long) (end - start) * iNode / numNodesToCreate);
+      int nodeEnd = start + (int) ((long) (end - start) * (iNode + 1) / numNodesToCreate);
+      createdNodes.add(Node_createNodeWithChildren(leaf,
+          Arrays.copyOfRange(objects, nodeStart, nodeEnd)));
+    }
+  }
+
+  /**
+   * Packs one level using the Sort-Tile-Recursive (STR) algorithm.
+   * @param objects the objects in the level to pack
+   * @param leaf whether the created nodes are leaves
+   * @return the IDs of the created nodes
+   */
+  protected int[] packSTR(int[] objects, boolean leaf) {
+    final double[] keys = new double[objects.length];
+    for (int i = 0; i < objects.length; i++)
+      keys[i] = x1s[objects[i]] + x2s[objects[i]];
+    sortByKeys(objects, keys, 0, objects.length);
+    int numNodesToCreate = (objects.length + maxCapcity - 1) / maxCapcity;
+    int numSlices = (int) Math.ceil(Math.sqrt(numNodesToCreate));
+    IntArray createdNodes = new IntArray();
+    for (int iSlice = 0; iSlice < numSlices; iSlice++) {
+      int sliceStart = (int) ((long) objects.length * iSlice / numSlices);
+      int sliceEnd = (int) ((long) objects.length * (iSlice + 1) / numSlices);
+      for (int i = sliceStart; i < sliceEnd; i++)
+        keys[i] = y1s[objects[i]] + y2s[objects[i]];
+      sortByKeys(objects, keys, sliceStart, sliceEnd);
+      packRange(objects, sliceStart, sliceEnd, leaf, createdNodes);
+    }
+    return createdNodes.toArray();
+  }
+
+  /**
+   * Packs one level by sorting the objects by the Hilbert value of their centers.
+   * @param objects the objects in the level to pack
+   * @param leaf whether the created nodes are leaves
+   * @return the IDs of the created nodes
+   */
+  protected int[] packHilbert(int[] objects, boolean leaf) {
+    Rectangle mbr = new Rectangle(Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+        Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY);
+    for (int object : objects) {
+      mbr.expand((x1s[object] + x2s[object]) / 2, (y1s[object] + y2s[object]) / 2);
+    }
+    final double[] keys = new double[objects.length];
+    for (int i = 0; i < objects.length; i++) {
+      keys[i] = HilbertCurvePartitioner.computeHValue(mbr,
+          (x1s[objects[i]] + x2s[objects[i]]) / 2, (y1s[objects[i]] + y2s[objects[i]]) / 2);
+    }
+    sortByKeys(objects, keys, 0, objects.length);
+    IntArray createdNodes = new IntArray();
+    packRange(objects, 0, objects.length, leaf, createdNodes);
+    return createdNodes.toArray();
+  }
+
+  /**
+   * Sorts a range of objects by the given keys. Both arrays are reordered.
+   * @param objects
+   * @param keys
+   * @param start
+   * @param end
+   */
+  private static void sortByKeys(final int[] objects, final double[] keys, int start, int end) {
+    new QuickSort().sort(new IndexedSortable() {
+      @Override
+      public int compare(int i, int j) {
+        return Double.compare(keys[i], keys[j]);
+      }
+
+      @Override
+      public void swap(int i, int j) {
+        int tObject = objects[i];
+        objects[i] = objects[j];
+        objects[j] = tObject;
+        double tKey = keys[i];
+        keys[i] = keys[j];
+        keys[j] = tKey;
+      }
+    }, start, end);
+  }
+
   /**
    * Construct a new empty R-tree with the given parameters.
    * @param minCapacity - Minimum capacity of a node
@@ -276,18 +584,21 @@ public class RTreeGuttman implements Closeable {
   protected void initializeDataEntries(double[] xs, double[] ys) {
     this.numEntries = xs.length;
     this.numNodes = 0; // Initially, no nodes are there
-    this.isLeaf = new BitArray(numEntries);
-    children = new ArrayList<IntArray>(numEntries);
-    this.x1s = new double[numEntries];
-    this.y1s = new double[numEntries];
-    this.x2s = new double[numEntries];
-    this.y2s = new double[numEntries];
+    // A rough estimate that assumes nodes are half-way between min and max
+    // capacities. The arrays are expanded as needed when the tree grows.
+    int expectedNumNodes = numEntries / ((minCapacity + maxCapcity) / 2) + 1;
+    initializeChildren(expectedNumNodes, expectedNumNodes * (maxCapcity + 1));
+    // Leave room for the nodes to avoid copying the coordinates while building
+    this.isLeaf = new BitArray(numEntries + expectedNumNodes);
+    this.x1s = new double[numEntries + expectedNumNodes];
+    this.y1s = new double[numEntries + expectedNumNodes];
+    this.x2s = new double[numEntries + expectedNumNodes];
+    this.y2s = new double[numEntries + expectedNumNodes];
     for (int i = 0; i < numEntries; i++) {
       this.x1s[i] = xs[i];
       this.y1s[i] = ys[i];
       this.x2s[i] = xs[i];
       this.y2s[i] = ys[i];
-      children.add(null); // data entries do not have children
     }
   }
 
@@ -302,18 +613,21 @@ public class RTreeGuttman implements Closeable {
   protected void initializeDataEntries(double[] x1, double[] y1, double[] x2, double[] y2) {
     this.numEntries = x1.length;
     this.numNodes = 0; // Initially, no nodes are there
-    this.isLeaf = new BitArray(numEntries);
-    children = new ArrayList<IntArray>(numEntries);
-    this.x1s = new double[numEntries];
-    this.y1s = new double[numEntries];
-    this.x2s = new double[numEntries];
-    this.y2s = new double[numEntries];
+    // A rough estimate that assumes nodes are half-way between min and max
+    // capacities. The arrays are expanded as needed when the tree grows.
+    int expectedNumNodes = numEntries / ((minCapacity + maxCapcity) / 2) + 1;
+    initializeChildren(expectedNumNodes, expectedNumNodes * (maxCapcity + 1));
+    // Leave room for the nodes to avoid copying the coordinates while building
+    this.isLeaf = new BitArray(numEntries + expectedNumNodes);
+    this.x1s = new double[numEntries + expectedNumNodes];
+    this.y1s = new double[numEntries + expectedNumNodes];
+    this.x2s = new double[numEntries + expectedNumNodes];
+    this.y2s = new double[numEntries + expectedNumNodes];
     for (int i = 0; i < numEntries; i++) {
       this.x1s[i] = x1[i];
       this.y1s[i] = y1[i];
       this.x2s[i] = x2[i];
       this.y2s[i] = y2[i];
-      children.add(null); // data entries do not have children
     }
   }
 
@@ -356,7 +670,10 @@ public class RTreeGuttman implements Closeable {
     // 1. Choose the child with the minimum expansion
     double minExpansion = Double.POSITIVE_INFINITY;
     int iBestChild = 0;
-    for (int iCandidateChild : children.get(iNode)) {
+    int start = Node_childrenOffset(iNode);
+    int end = start + Node_size(iNode);
+    for (int iChildPos = start; iChildPos < end; iChildPos++) {
+      int iCandidateChild = childIDs[iChildPos];
       double expansion = Node_volumeExpansion(iCandidateChild, iEntry);
       if (expansion < minExpansion) {
         minExpansion = expansion;
@@ -383,11 +700,17 @@ public class RTreeGuttman implements Closeable {
       // Node full. Split into two
       newNode = split(leafNode, minCapacity);
     }
+    // The child of the current node on the insertion path. For the leaf, it
+    // is the new data entry which is always the last child.
+    int iChildOnPath = Node_lastChild(path.peek());
     // AdjustTree. Ascend from the leaf node L
     while (!path.isEmpty()) {
       iNode = path.pop();
       // Adjust covering rectangle in the node
-      Node_expand(iNode, children.get(iNode).peek());
+      // The last child is not necessarily the one on the path. If a child
+      // was split, the new node is expanded when it is added to the parent.
+      Node_expand(iNode, iChildOnPath);
+      iChildOnPath = iNode;
       if (path.isEmpty()) {
         // The node is the root (no parent)
         if (newNode != -1) {
@@ -402,6 +725,7 @@ public class RTreeGuttman implements Closeable {
           // create a new entry ENN and add to the parent if there is room.
           // Add Enn to P if there is room
           Node_addChild(parent, newNode);
+          Node_expand(parent, newNode);
           newNode = -1;
           if (Node_size(parent) >= maxCapcity) {
             newNode = split(parent, minCapacity);
@@ -419,7 +743,8 @@ public class RTreeGuttman implements Closeable {
    * @return
    */
   protected int split(int iNode, int minSplitSize) {
-    IntArray nodeChildren = children.get(iNode);
+    IntArray nodeChildren = new IntArray();
+    nodeChildren.append(childIDs, Node_childrenOffset(iNode), Node_size(iNode));
     int highestLowSideX = nodeChildren.get(0);
     int lowestHighSideX = nodeChildren.get(0);
     int highestLowSideY = nodeChildren.get(0);
@@ -447,7 +772,7 @@ public class RTreeGuttman implements Closeable {
     }
 
     // After picking the seeds, we will start picking next elements one-by-one
-    IntArray nonAssignedNodes = nodeChildren.clone();
+    IntArray nonAssignedNodes = nodeChildren;
     Node_reset(iNode, seed1);
     int iNewNode = Node_createNodeWithChildren(isLeaf.get(iNode), seed2);
     nonAssignedNodes.remove(seed1);
@@ -516,15 +841,19 @@ public class RTreeGuttman implements Closeable {
     nodesToSearch.add(root);
     while (!nodesToSearch.isEmpty()) {
       int nodeToSearch = nodesToSearch.pop();
+      int start = Node_childrenOffset(nodeToSearch);
+      int end = start + Node_size(nodeToSearch);
       if (isLeaf.get(nodeToSearch)) {
         // Search and return all the entries in the leaf node
-        for (int iEntry : children.get(nodeToSearch)) {
+        for (int iChildPos = start; iChildPos < end; iChildPos++) {
+          int iEntry = childIDs[iChildPos];
           if (Object_overlaps(iEntry, x1, y1, x2, y2))
             results.add(iEntry);
         }
       } else {
         // A non-leaf node, expand the search to all overlapping children
-        for (int iChild : children.get(nodeToSearch)) {
+        for (int iChildPos = start; iChildPos < end; iChildPos++) {
+          int iChild = childIDs[iChildPos];
           if (Object_overlaps(iChild, x1, y1, x2, y2))
             nodesToSearch.add(iChild);
         }
@@ -536,6 +865,95 @@ public class RTreeGuttman implements Closeable {
     return new SearchIterator(x1, y1, x2, y2);
   }
 
+  /**
+   * Computes the exact distance between a query point and a data entry.
+   * The distance should not be less than the minimum distance between the
+   * query point and the MBR of the entry.
+   */
+  public interface DistanceFunction {
+    double distance(int iEntry, double qx, double qy);
+  }
+
+  /**
+   * Finds the k entries that are closest to a query point using a best-first
+   * traversal. Nodes and entries are visited in the order of the minimum
+   * distance between the query point and their MBRs, and the exact distance
+   * of an entry is computed only when it reaches the top of the queue.
+   * @param qx
+   * @param qy
+   * @param k
+   * @param distanceFunction computes the exact distance of data entries
+   * @param resultIDs the IDs of the results in ascending order of distance
+   * @param resultDistances the distances of the results
+   * @return the number of results found which is at most k
+   */
+  public int knn(double qx, double qy, int k, DistanceFunction distanceFunction,
+                 int[] resultIDs, double[] resultDistances) {
+    if (numEntries == 0 || k <= 0)
+      return 0;
+    PriorityQueue<KNNEntry> queue = new PriorityQueue<KNNEntry>();
+    queue.add(new KNNEntry(root, Object_minDistance(root, qx, qy), false));
+    int resultSize = 0;
+    while (!queue.isEmpty() && resultSize < k) {
+      KNNEntry top = queue.poll();
+      if (top.id < numEntries) {
+        if (top.exact) {
+          resultIDs[resultSize] = top.id;
+          resultDistances[resultSize] = top.distance;
+          resultSize++;
+        } else {
+          // Compute the exact distance and put it back in the queue
+          queue.add(new KNNEntry(top.id,
+              distanceFunction.distance(top.id, qx, qy), true));
+        }
+      } else {
+        int start = Node_childrenOffset(top.id);
+        int end = start + Node_size(top.id);
+        for (int iChildPos = start; iChildPos < end; iChildPos++) {
+          int iChild = childIDs[iChildPos];
+          queue.add(new KNNEntry(iChild, Object_minDistance(iChild, qx, qy), false));
+        }
+      }
+    }
+    return resultSize;
+  }
+
+  /**
+   * An entry in the queue of the best-first kNN search
+   */
+  static class KNNEntry implements Comparable<KNNEntry> {
+    /**ID of a node or a data entry*/
+    int id;
+    /**The distance to the query point*/
+    double distance;
+    /**Whether the distance is exact or a lower bound*/
+    boolean exact;
+
+    KNNEntry(int id, double distance, boolean exact) {
+      this.id = id;
+      this.distance = distance;
+      this.exact = exact;
+    }
+
+    @Override
+    public int compareTo(KNNEntry other) {
+      return Double.compare(this.distance, other.distance);
+    }
+  }
+
+  /**
+   * The minimum distance between a point and the MBR of an object (entry or node)
+   * @param iObject
+   * @param x
+   * @param y
+   * @return
+   */
+  protected double Object_minDistance(int iObject, double x, double y) {
+    double dx = Math.max(0, Math.max(x1s[iObject] - x, x - x2s[iObject]));
+    double dy = Math.max(0, Math.max(y1s[iObject] - y, y - y2s[iObject]));
+    return Math.sqrt(dx * dx + dy * dy);
+  }
+
   /**
    * Tests if an object (entry or node) overlaps with a rectangle
    * @param iEntry
@@ -583,7 +1001,7 @@ public class RTreeGuttman implements Closeable {
     int iNode = root;
     while (!isLeaf.get(iNode)) {
       height++;
-      iNode = children.get(iNode).get(0);
+      iNode = Node_child(iNode, 0);
     }
     return height;
   }
@@ -758,7 +1176,7 @@ public class RTreeGuttman implements Closeable {
         if (isLeaf.get(iNodeToSearch)) {
           for (iNextEntry = 0; iNextEntry < Node_size(iNodeToSearch); iNextEntry++) {
             // Found a matching element in a leaf node
-            if (Object_overlaps(children.get(iNodeToSearch).get(iNextEntry), x1, y1, x2, y2))
+            if (Object_overlaps(Node_child(iNodeToSearch, iNextEntry), x1, y1, x2, y2))
               return;
           }
           // No results found in that leaf node, remove it
@@ -766,7 +1184,10 @@ public class RTreeGuttman implements Closeable {
         } else {
           // Found a matching non-leaf node, visit its children
           nodesToSearch.pop(); // No longer needed
-          for (int iChild : children.get(iNodeToSearch)) {
+          int start = Node_childrenOffset(iNodeToSearch);
+          int end = start + Node_size(iNodeToSearch);
+          for (int iChildPos = start; iChildPos < end; iChildPos++) {
+            int iChild = childIDs[iChildPos];
             if (Object_overlaps(iChild, x1, y1, x2, y2))
               nodesToSearch.add(iChild);
           }
@@ -778,7 +1199,7 @@ public class RTreeGuttman implements Closeable {
     protected void prefetchNext() {
       int iNodeToSearch = nodesToSearch.peek();
       while (++iNextEntry < Node_size(iNodeToSearch)) {
-        if (Object_overlaps(children.get(iNodeToSearch).get(iNextEntry), x1, y1, x2, y2))
+        if (Object_overlaps(Node_child(iNodeToSearch, iNextEntry), x1, y1, x2, y2))
           return;
       }
       // Done with the current leaf node. Continue searching for the next leaf
@@ -788,7 +1209,7 @@ public class RTreeGuttman implements Closeable {
         if (isLeaf.get(iNodeToSearch)) {
           for (iNextEntry = 0; iNextEntry < Node_size(iNodeToSearch); iNextEntry++) {
             // Found a matching element in a leaf node
-            if (Object_overlaps(children.get(iNodeToSearch).get(iNextEntry), x1, y1, x2, y2))
+            if (Object_overlaps(Node_child(iNodeToSearch, iNextEntry), x1, y1, x2, y2))
               return;
           }
           // No results found in that leaf node, remove it
@@ -796,7 +1217,10 @@ public class RTreeGuttman implements Closeable {
         } else {
           // Found a matching non-leaf node, visit its children
           nodesToSearch.pop(); // No longer needed
-          for (int iChild : children.get(iNodeToSearch)) {
+          int start = Node_childrenOffset(iNodeToSearch);
+          int end = start + Node_size(iNodeToSearch);
+          for (int iChildPos = start; iChildPos < end; iChildPos++) {
+            int iChild = childIDs[iChildPos];
             if (Object_overlaps(iChild, x1, y1, x2, y2))
               nodesToSearch.add(iChild);
           }
@@ -817,7 +1241,7 @@ public class RTreeGuttman implements Closeable {
 
     @Override
     public Entry next() {
-      int iEntry = children.get(nodesToSearch.peek()).get(iNextEntry);
+      int iEntry = Node_child(nodesToSearch.peek(), iNextEntry);
       entry.id = iEntry;
       entry.x1 = x1s[iEntry];
       entry.y1 = y1s[iEntry];
@@ -979,17 +1403,20 @@ public class RTreeGuttman implements Closeable {
       objectOffsets[node] = nodeOffset;
       nodeOffset += 4 + (4 + 8 * 4) * Node_size(node);
 
+      int start = Node_childrenOffset(node);
+      int end = start + Node_size(node);
       if (isLeaf.get(node)) {
         // Leaf node, write the data entries in order
-        for (int child : children.get(node)) {
+        for (int iChildPos = start; iChildPos < end; iChildPos++) {
+          int child = childIDs[iChildPos];
           objectOffsets[child] = dataOffset;
           if (ser != null)
             dataOffset += ser.serialize(out, child);
         }
       } else {
         // Internal node, recursively traverse its children
-        for (int child : children.get(node))
-          nodesToVisit.addLast(child);
+        for (int iChildPos = start; iChildPos < end; iChildPos++)
+          nodesToVisit.addLast(childIDs[iChildPos]);
       }
     }
     // Update node offsets as they are written after the data entries
@@ -1002,7 +1429,10 @@ public class RTreeGuttman implements Closeable {
       int node = nodesToVisit.removeFirst();
       // (1) Number of children
       out.writeInt(Node_size(node));
-      for (int child : children.get(node)) {
+      int start = Node_childrenOffset(node);
+      int end = start + Node_size(node);
+      for (int iChildPos = start; iChildPos < end; iChildPos++) {
+        int child = childIDs[iChildPos];
         // (2) Write the offset of the child
         out.writeInt(objectOffsets[child]);
         // (3) Write the MBR of each child
@@ -1013,8 +1443,8 @@ public class RTreeGuttman implements Closeable {
       }
       // If node is internal, add its children to the nodes to be visited
       if (!isLeaf.get(node)) {
-        for (int child : children.get(node))
-          nodesToVisit.addLast(child);
+        for (int iChildPos = start; iChildPos < end; iChildPos++)
+          nodesToVisit.addLast(childIDs[iChildPos]);
       }
     }
 
@@ -1070,9 +1500,8 @@ public class RTreeGuttman implements Closeable {
     this.x2s = new double[numEntries + numNodes];
     this.y2s = new double[numEntries + numNodes];
     this.isLeaf = new BitArray(numEntries + numNodes);
-    this.children = new ArrayList<IntArray>(numEntries + numNodes);
-    for (int i = 0; i < numEntries + numNodes; i++)
-      this.children.add(null);
+    // Every object except the root is a child of exactly one node
+    initializeChildren(numNodes, numEntries + numNodes - 1);
 
     // Read the tree structure and keep it all in memory
     // First, scan the nodes once to map node offsets to IDs
@@ -1105,14 +1534,14 @@ public class RTreeGuttman implements Closeable {
       // (1) Node size
       int nodeSize = in.readInt();
       // (2) Offset of the first child
-      IntArray nodeChildren = new IntArray();
-      children.set(nodeID, nodeChildren);
+      childrenCount[nodeID - numEntries] = 0;
+      Node_reserve(nodeID, nodeSize);
       for (int i = 0; i < nodeSize; i++) {
         int childOffset = in.readInt();
         int childID = leafNode ? entryID++ : nodeOffsetToIndex.get(childOffset);
         if (leafNode)
           entryOffsets[childID] = childOffset;
-        nodeChildren.add(childID);
+        Node_addChild(nodeID, childID);
         // (3) Child MBR
         x1s[childID] = in.readDouble();
         y1s[childID] = in.readDouble();
@@ -27,7 +27,8 @@ public class RTreeGuttmanQuadraticSplit extends RTreeGuttman {
    * @return
    */
   @Override protected int split(int iNode, int minSplitSize) {
-    IntArray nodeChildren = children.get(iNode);
+    IntArray nodeChildren = new IntArray();
+    nodeChildren.append(childIDs, Node_childrenOffset(iNode), Node_size(iNode));
     // Pick seeds
     // Indexes of the objects to be picked as seeds in the arrays xs and ys
     // Select two entries to be the first elements of the groups
@@ -54,7 +55,7 @@ public class RTreeGuttmanQuadraticSplit extends RTreeGuttman {
     }
 
     // After picking the seeds, we will start picking next elements one-by-one
-    IntArray nonAssignedNodes = nodeChildren.clone();
+    IntArray nonAssignedNodes = nodeChildren;
     Node_reset(iNode, seed1);
     int iNewNode = Node_createNodeWithChildren(isLeaf.get(iNode), seed2);
     nonAssignedNodes.remove(seed1);
@@ -40,6 +40,16 @@ public class InputSubstream extends InputStream {
     return -1;
   }
 
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (remainingBytes <= 0)
+      return -1;
+    int bytesRead = in.read(b, off, (int) Math.min(len, remainingBytes));
+    if (bytesRead > 0)
+      remainingBytes -= bytesRead;
+    return bytesRead;
+  }
+
   @Override
   public int available() throws IOException {
     return (int) Math.min(remainingBytes, 1024 * 1024);
@@ -0,0 +1,130 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.io;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.hadoop.fs.PositionedReadable;
+import org.apache.hadoop.fs.Seekable;
+import org.apache.hadoop.io.nativeio.NativeIO;
+
+/**
+ * A seekable input stream over a local file that is mapped to memory.
+ * Seeks and positioned reads do not issue any system calls which makes it
+ * suitable for files that are queried many times with random access.
+ * Files larger than 2GB cannot be mapped into a single buffer.
+ * The file is unmapped when the stream is closed rather than when the
+ * buffer is garbage collected, so the stream must not be used after that.
+ */
+public class MappedInputStream extends InputStream
+    implements Seekable, PositionedReadable {
+
+  /**The contents of the mapped file or null after the stream is closed*/
+  private MappedByteBuffer buffer;
+
+  public MappedInputStream(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      if (channel.size() > Integer.MAX_VALUE)
+        throw new RuntimeException("File "+file+" is too large to be mapped");
+      // The mapping stays valid after the channel is closed
+      this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      raf.close();
+    }
+  }
+
+  @Override
+  public int read() throws IOException {
+    return buffer.hasRemaining() ? (buffer.get() & 0xff) : -1;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0)
+      return 0;
+    if (!buffer.hasRemaining())
+      return -1;
+    len = Math.min(len, buffer.remaining());
+    buffer.get(b, off, len);
+    return len;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+    buffer.position(buffer.position() + skipped);
+    return skipped;
+  }
+
+  @Override
+  public int available() throws IOException {
+    return buffer.remaining();
+  }
+
+  @Override
+  public long getPos() throws IOException {
+    return buffer.position();
+  }
+
+  @Override
+  public void seek(long pos) throws IOException {
+    if (pos < 0 || pos > buffer.limit())
+      throw new EOFException("Cannot seek to "+pos);
+    buffer.position((int) pos);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (buffer != null) {
+      MappedByteBuffer mappedBuffer = buffer;
+      buffer = null;
+      NativeIO.POSIX.munmap(mappedBuffer);
+    }
+  }
+
+  @Override
+  public boolean seekToNewSource(long targetPos) throws IOException {
+    return false;
+  }
+
+  @Override
+  public int read(long position, byte[] b, int off, int len)
+      throws IOException {
+    if (position >= buffer.limit())
+      return -1;
+    len = (int) Math.min(len, buffer.limit() - position);
+    // Use a duplicate to keep the position of this stream unchanged
+    ByteBuffer view = buffer.duplicate();
+    view.position((int) position);
+    view.get(b, off, len);
+    return len;
+  }
+
+  @Override
+  public void readFully(long position, byte[] b, int off, int len)
+      throws IOException {
+    if (position + len > buffer.limit())
+      throw new EOFException("Cannot read "+len+" bytes at "+position);
+    read(position, b, off, len);
+  }
+
+  @Override
+  public void readFully(long position, byte[] b) throws IOException {
+    readFully(position, b, 0, b.length);
+  }
+}
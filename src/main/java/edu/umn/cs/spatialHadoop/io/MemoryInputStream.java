@@ -47,8 +47,12 @@ implements Seekable, PositionedReadable {
   @Override
   public int read(long position, byte[] buffer, int offset, int length)
       throws IOException {
-    // TODO Auto-generated method stub
-    return 0;
+    int available = (int) (count - (originalOffset + position));
+    if (available <= 0)
+      return -1;
+    length = Math.min(length, available);
+    System.arraycopy(buf, (int)(originalOffset+position), buffer, offset, length);
+    return length;
   }
 
   @Override
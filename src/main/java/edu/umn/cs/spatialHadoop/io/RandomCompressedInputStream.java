@@ -122,6 +122,32 @@ public class RandomCompressedInputStream extends InputStream implements Seekable
     return b;
   }
   
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (pos >= getDecompressedLength())
+      return -1;
+    if (len == 0)
+      return 0;
+    // Never read past the end of the current block in one call
+    len = (int) Math.min(len, blockOffsetsInRawFile[currentBlock+1] - pos);
+    int bytesRead = this.decompressedIn.read(b, off, len);
+    if (bytesRead <= 0) {
+      // The stream of the current block is exhausted after a seek.
+      // Reopen the stream at the block that contains the current position.
+      long oldPos = pos;
+      gotoBlock(findBlock(oldPos + 1));
+      this.skip(oldPos - getPos());
+      bytesRead = this.decompressedIn.read(b, off, len);
+      if (bytesRead <= 0)
+        return -1;
+    }
+    pos += bytesRead;
+    if (pos >= blockOffsetsInRawFile[currentBlock+1]) {
+      currentBlock++;
+    }
+    return bytesRead;
+  }
+  
   @Override
   public long skip(long n) throws IOException {
     long canSkip = Math.min(n, getDecompressedLength() - getPos());
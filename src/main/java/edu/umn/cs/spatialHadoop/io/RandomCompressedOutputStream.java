@@ -55,10 +55,14 @@ public class RandomCompressedOutputStream extends OutputStream {
   private Vector<Long> blockOffsetsInRawFile;
 
   public RandomCompressedOutputStream(OutputStream out) throws IOException {
+    this(out, DefaultBlockSize);
+  }
+
+  public RandomCompressedOutputStream(OutputStream out, long blockSize) throws IOException {
     // out is the OutputStream to which compressed data is written.
     this.compressedOut = new TrackedOutputStream(out);
     this.rawOut = new GZIPOutputStream(this.compressedOut);
-    this.blockSize = DefaultBlockSize;
+    this.blockSize = blockSize;
     this.blockOffsetsInCompressedFile = new Vector<Long>();
     this.blockOffsetsInRawFile = new Vector<Long>();
   }
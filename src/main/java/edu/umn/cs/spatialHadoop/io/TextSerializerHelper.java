@@ -498,6 +498,33 @@ public final class TextSerializerHelper {
     return bytes;
   }
   
+  /**
+   * Convert a range of hex characters in a byte array to binary without
+   * creating an intermediate String.
+   * @param hex
+   * @param offset
+   * @param length
+   * @return
+   */
+  public static byte[] hexToBytes(byte[] hex, int offset, int length) {
+    byte[] bytes = new byte[(length + 1) / 2];
+    for (int i = 0; i < length; i++) {
+      byte x = hex[offset + i];
+      if (x >= '0' && x <= '9')
+        x -= '0';
+      else if (x >= 'a' && x <= 'f')
+        x = (byte) ((x - 'a') + 0xa);
+      else if (x >= 'A' && x <= 'F')
+        x = (byte) ((x - 'A') + 0xA);
+      else
+        throw new RuntimeException("Invalid hex char "+x+" at position "+i);
+      if (i % 2 == 0)
+        x <<= 4;
+      bytes[i / 2] |= x;
+    }
+    return bytes;
+  }
+  
   public static void serializeGeometry(Text text, OGCGeometry geom, char toAppend) {
     String str = bytesToHex(geom.asBinary().array());
     byte[] str_b = str.getBytes();
@@ -506,8 +533,30 @@ public final class TextSerializerHelper {
       text.append(new byte[] {(byte) toAppend}, 0, 1);
   }
   
-  private static final WKTReader wktReader = new WKTReader(new GeometryFactory());
-  private static final WKBReader wkbReader = new WKBReader(new GeometryFactory());
+  /**
+   * JTS readers and parsers are not thread-safe. Rather than synchronizing
+   * all parsing on one global lock, each thread gets its own instances.
+   */
+  private static final ThreadLocal<WKTParser> wktParser = new ThreadLocal<WKTParser>() {
+    @Override
+    protected WKTParser initialValue() {
+      return new WKTParser(new GeometryFactory());
+    }
+  };
+
+  private static final ThreadLocal<WKTReader> wktReader = new ThreadLocal<WKTReader>() {
+    @Override
+    protected WKTReader initialValue() {
+      return new WKTReader(new GeometryFactory());
+    }
+  };
+
+  private static final ThreadLocal<WKBReader> wkbReader = new ThreadLocal<WKBReader>() {
+    @Override
+    protected WKBReader initialValue() {
+      return new WKBReader(new GeometryFactory());
+    }
+  };
   
   public static void serializeGeometry(Text text, Geometry geom, char toAppend) {
     String wkt = geom == null? "" : geom.toText();
@@ -517,7 +566,7 @@ public final class TextSerializerHelper {
       text.append(new byte[] {(byte) toAppend}, 0, 1);
   }
   
-  public static synchronized Geometry consumeGeometryJTS(Text text, char separator) {
+  public static Geometry consumeGeometryJTS(Text text, char separator) {
     // Check whether this text is a Well Known Text (WKT) or a hexed string
     boolean wkt = false;
     byte[] bytes = text.getBytes();
@@ -585,19 +634,28 @@ public final class TextSerializerHelper {
       }
     }
 
-    String geom_text = new String(bytes, i1, i2);
+    // Length of the geometry text. For unquoted text, i1 is zero and i2 is
+    // exclusive. For quoted text, i1 is one and i2 is inclusive.
+    int geom_length = i2;
     
     try {
       if (isWKT) {
-        geom = wktReader.read(geom_text);
+        try {
+          // Parse directly from the underlying buffer
+          geom = wktParser.get().parse(bytes, i1, geom_length);
+        } catch (ParseException e) {
+          // Fall back to the JTS parser which supports more variations of WKT
+          geom = wktReader.get().read(new String(bytes, i1, geom_length));
+        }
       } else if (isHex) {
-        byte[] binary = hexToBytes(geom_text);
-        geom = wkbReader.read(binary);
+        byte[] binary = hexToBytes(bytes, i1, geom_length);
+        geom = wkbReader.get().read(binary);
       } else {
         geom = null;
       }
     } catch (ParseException e) {
-      throw new RuntimeException(String.format("Error parsing '%s'",geom_text), e);
+      throw new RuntimeException(String.format("Error parsing '%s'",
+          new String(bytes, i1, geom_length)), e);
     }
 
     // Remove consumed bytes from the text
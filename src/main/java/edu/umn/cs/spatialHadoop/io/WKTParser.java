@@ -0,0 +1,410 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.io;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.io.ParseException;
+
+/**
+ * A parser for Well-Known Text (WKT) that works directly on a byte array,
+ * e.g., the underlying buffer of a {@link org.apache.hadoop.io.Text}, without
+ * creating intermediate Strings for the geometry or its coordinates.
+ * It supports the seven standard geometry types with two or three
+ * dimensions. Each instance keeps reusable buffers and is not thread-safe;
+ * it should be confined to one thread, e.g., using a {@link ThreadLocal}.
+ * @author Ahmed Eldawy
+ *
+ */
+public class WKTParser {
+
+  /**Exact powers of ten that can be represented as a double*/
+  private static final double[] PowersOf10 = {
+    1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+    1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+  };
+
+  private static final byte[] EMPTY = "EMPTY".getBytes();
+
+  private static final byte[][] TypeNames = {
+    "POINT".getBytes(), "LINESTRING".getBytes(), "POLYGON".getBytes(),
+    "MULTIPOINT".getBytes(), "MULTILINESTRING".getBytes(),
+    "MULTIPOLYGON".getBytes(), "GEOMETRYCOLLECTION".getBytes()
+  };
+
+  private static final int POINT = 0, LINESTRING = 1, POLYGON = 2,
+      MULTIPOINT = 3, MULTILINESTRING = 4, MULTIPOLYGON = 5,
+      GEOMETRYCOLLECTION = 6;
+
+  /**The factory used to create all geometries*/
+  private final GeometryFactory factory;
+
+  /**The buffer being parsed*/
+  private byte[] bytes;
+  /**Position of the next byte to parse*/
+  private int pos;
+  /**The end of the range being parsed (exclusive)*/
+  private int end;
+
+  /**Reusable buffers for coordinates of the coordinate sequence being parsed*/
+  private double[] xs = new double[64], ys = new double[64], zs = new double[64];
+
+  public WKTParser() {
+    this(new GeometryFactory());
+  }
+
+  public WKTParser(GeometryFactory factory) {
+    this.factory = factory;
+  }
+
+  /**
+   * Parses a geometry from the given range of the byte array.
+   * @param bytes the buffer that contains the WKT
+   * @param offset the first byte of the WKT
+   * @param length number of bytes to parse
+   * @return the parsed geometry
+   * @throws ParseException if the WKT is malformed or not supported
+   */
+  public Geometry parse(byte[] bytes, int offset, int length) throws ParseException {
+    this.bytes = bytes;
+    this.pos = offset;
+    this.end = offset + length;
+    try {
+      Geometry geom = parseGeometry();
+      skipWhitespace();
+      if (pos != end)
+        throw new ParseException("Unexpected character '"+(char)bytes[pos]+"' at position "+(pos - offset));
+      return geom;
+    } finally {
+      // Avoid holding a reference to the buffer after parsing
+      this.bytes = null;
+    }
+  }
+
+  protected Geometry parseGeometry() throws ParseException {
+    int type = readType();
+    skipDimension();
+    if (readEmpty()) {
+      switch (type) {
+      case POINT: return factory.createPoint((Coordinate)null);
+      case LINESTRING: return factory.createLineString((Coordinate[])null);
+      case POLYGON: return factory.createPolygon(null, null);
+      case MULTIPOINT: return factory.createMultiPoint((Point[])null);
+      case MULTILINESTRING: return factory.createMultiLineString(null);
+      case MULTIPOLYGON: return factory.createMultiPolygon(null);
+      default: return factory.createGeometryCollection(null);
+      }
+    }
+    switch (type) {
+    case POINT:
+      expect('(');
+      readCoordinate(0);
+      expect(')');
+      return factory.createPoint(toCoordinates(1)[0]);
+    case LINESTRING:
+      return factory.createLineString(readCoordinateSequence());
+    case POLYGON:
+      return readPolygonText();
+    case MULTIPOINT:
+      return readMultiPointText();
+    case MULTILINESTRING: {
+      List<LineString> lines = new ArrayList<LineString>();
+      expect('(');
+      do {
+        if (readEmpty())
+          lines.add(factory.createLineString((Coordinate[])null));
+        else
+          lines.add(factory.createLineString(readCoordinateSequence()));
+      } while (readComma());
+      expect(')');
+      return factory.createMultiLineString(lines.toArray(new LineString[lines.size()]));
+    }
+    case MULTIPOLYGON: {
+      List<Polygon> polygons = new ArrayList<Polygon>();
+      expect('(');
+      do {
+        if (readEmpty())
+          polygons.add(factory.createPolygon(null, null));
+        else
+          polygons.add(readPolygonText());
+      } while (readComma());
+      expect(')');
+      return factory.createMultiPolygon(polygons.toArray(new Polygon[polygons.size()]));
+    }
+    default: {
+      List<Geometry> geoms = new ArrayList<Geometry>();
+      expect('(');
+      do {
+        geoms.add(parseGeometry());
+      } while (readComma());
+      expect(')');
+      return factory.createGeometryCollection(geoms.toArray(new Geometry[geoms.size()]));
+    }
+    }
+  }
+
+  private Polygon readPolygonText() throws ParseException {
+    expect('(');
+    LinearRing shell = factory.createLinearRing(readCoordinateSequence());
+    List<LinearRing> holes = null;
+    while (readComma()) {
+      if (holes == null)
+        holes = new ArrayList<LinearRing>();
+      holes.add(factory.createLinearRing(readCoordinateSequence()));
+    }
+    expect(')');
+    return factory.createPolygon(shell,
+        holes == null ? null : holes.toArray(new LinearRing[holes.size()]));
+  }
+
+  /**
+   * Reads a multipoint in either of the two common forms
+   * MULTIPOINT(x1 y1, x2 y2) or MULTIPOINT((x1 y1), (x2 y2))
+   * @return
+   * @throws ParseException
+   */
+  private Geometry readMultiPointText() throws ParseException {
+    expect('(');
+    int numPoints = 0;
+    do {
+      skipWhitespace();
+      if (pos < end && bytes[pos] == '(') {
+        pos++;
+        readCoordinate(numPoints++);
+        expect(')');
+      } else {
+        readCoordinate(numPoints++);
+      }
+    } while (readComma());
+    expect(')');
+    Coordinate[] coords = toCoordinates(numPoints);
+    Point[] points = new Point[numPoints];
+    for (int i = 0; i < numPoints; i++)
+      points[i] = factory.createPoint(coords[i]);
+    return factory.createMultiPoint(points);
+  }
+
+  /**
+   * Reads a parenthesized list of coordinates, e.g., (x1 y1, x2 y2, x3 y3)
+   * @return
+   * @throws ParseException
+   */
+  private Coordinate[] readCoordinateSequence() throws ParseException {
+    expect('(');
+    int numCoords = 0;
+    do {
+      readCoordinate(numCoords++);
+    } while (readComma());
+    expect(')');
+    return toCoordinates(numCoords);
+  }
+
+  /**
+   * Reads one coordinate with two or three ordinates and stores it in the
+   * coordinate buffers at the given index. A fourth (measure) ordinate is
+   * parsed but ignored.
+   * @param i
+   * @throws ParseException
+   */
+  private void readCoordinate(int i) throws ParseException {
+    if (i >= xs.length) {
+      int newCapacity = xs.length * 2;
+      double[] newXs = new double[newCapacity];
+      double[] newYs = new double[newCapacity];
+      double[] newZs = new double[newCapacity];
+      System.arraycopy(xs, 0, newXs, 0, xs.length);
+      System.arraycopy(ys, 0, newYs, 0, ys.length);
+      System.arraycopy(zs, 0, newZs, 0, zs.length);
+      xs = newXs; ys = newYs; zs = newZs;
+    }
+    xs[i] = readNumber();
+    ys[i] = readNumber();
+    zs[i] = Coordinate.NULL_ORDINATE;
+    if (isNumberAhead()) {
+      zs[i] = readNumber();
+      if (isNumberAhead())
+        readNumber();
+    }
+  }
+
+  private Coordinate[] toCoordinates(int numCoords) {
+    Coordinate[] coords = new Coordinate[numCoords];
+    for (int i = 0; i < numCoords; i++)
+      coords[i] = new Coordinate(xs[i], ys[i], zs[i]);
+    return coords;
+  }
+
+  private int readType() throws ParseException {
+    skipWhitespace();
+    for (int type = 0; type < TypeNames.length; type++) {
+      if (matchKeyword(TypeNames[type]))
+        return type;
+    }
+    throw new ParseException("Unknown geometry type at "+pos);
+  }
+
+  /**
+   * Skips an optional dimension qualifier, i.e., Z, M, or ZM
+   */
+  private void skipDimension() {
+    skipWhitespace();
+    while (pos < end && (bytes[pos] == 'Z' || bytes[pos] == 'z'
+        || bytes[pos] == 'M' || bytes[pos] == 'm'))
+      pos++;
+  }
+
+  private boolean readEmpty() {
+    skipWhitespace();
+    return matchKeyword(EMPTY);
+  }
+
+  /**
+   * Matches the given upper-case keyword at the current position in a
+   * case-insensitive way. If matched, the keyword is consumed.
+   * @param keyword
+   * @return
+   */
+  private boolean matchKeyword(byte[] keyword) {
+    if (end - pos < keyword.length)
+      return false;
+    for (int i = 0; i < keyword.length; i++) {
+      byte b = bytes[pos + i];
+      if (b >= 'a' && b <= 'z')
+        b -= 'a' - 'A';
+      if (b != keyword[i])
+        return false;
+    }
+    int after = pos + keyword.length;
+    if (after < end && ((bytes[after] >= 'A' && bytes[after] <= 'Z') ||
+        (bytes[after] >= 'a' && bytes[after] <= 'z')))
+      return false; // A prefix of a longer word, e.g., POINT in POINTS
+    pos = after;
+    return true;
+  }
+
+  private void expect(char c) throws ParseException {
+    skipWhitespace();
+    if (pos >= end || bytes[pos] != c)
+      throw new ParseException("Expected '"+c+"' at "+pos);
+    pos++;
+  }
+
+  private boolean readComma() {
+    skipWhitespace();
+    if (pos < end && bytes[pos] == ',') {
+      pos++;
+      return true;
+    }
+    return false;
+  }
+
+  private void skipWhitespace() {
+    while (pos < end && (bytes[pos] == ' ' || bytes[pos] == '\t' ||
+        bytes[pos] == '\n' || bytes[pos] == '\r'))
+      pos++;
+  }
+
+  private boolean isNumberAhead() {
+    skipWhitespace();
+    if (pos >= end)
+      return false;
+    byte b = bytes[pos];
+    return (b >= '0' && b <= '9') || b == '-' || b == '+' || b == '.';
+  }
+
+  private double readNumber() throws ParseException {
+    skipWhitespace();
+    int start = pos;
+    while (pos < end && ((bytes[pos] >= '0' && bytes[pos] <= '9') ||
+        bytes[pos] == '-' || bytes[pos] == '+' || bytes[pos] == '.' ||
+        bytes[pos] == 'e' || bytes[pos] == 'E'))
+      pos++;
+    if (pos == start)
+      throw new ParseException("Expected a number at "+pos);
+    return parseDouble(bytes, start, pos);
+  }
+
+  /**
+   * Parses a double value from the given range of bytes. Numbers with at most
+   * 15 significant digits and a small exponent, which covers almost all
+   * coordinates, are computed exactly without creating any objects. Other
+   * numbers fall back to {@link Double#parseDouble(String)}.
+   * @param bytes
+   * @param start the first byte of the number (inclusive)
+   * @param end the last byte of the number (exclusive)
+   * @return
+   * @throws ParseException
+   */
+  public static double parseDouble(byte[] bytes, int start, int end) throws ParseException {
+    int i = start;
+    boolean negative = false;
+    if (i < end && (bytes[i] == '-' || bytes[i] == '+'))
+      negative = bytes[i++] == '-';
+    long mantissa = 0;
+    int significantDigits = 0;
+    int exponent = 0;
+    boolean anyDigit = false;
+    while (i < end && bytes[i] >= '0' && bytes[i] <= '9') {
+      mantissa = mantissa * 10 + (bytes[i++] - '0');
+      if (mantissa != 0)
+        significantDigits++;
+      anyDigit = true;
+    }
+    if (i < end && bytes[i] == '.') {
+      i++;
+      while (i < end && bytes[i] >= '0' && bytes[i] <= '9') {
+        mantissa = mantissa * 10 + (bytes[i++] - '0');
+        if (mantissa != 0)
+          significantDigits++;
+        exponent--;
+        anyDigit = true;
+      }
+    }
+    if (anyDigit && i < end && (bytes[i] == 'e' || bytes[i] == 'E')) {
+      i++;
+      boolean negativeExp = false;
+      if (i < end && (bytes[i] == '-' || bytes[i] == '+'))
+        negativeExp = bytes[i++] == '-';
+      int exp = 0;
+      boolean anyExpDigit = false;
+      while (i < end && bytes[i] >= '0' && bytes[i] <= '9' && exp < 10000) {
+        exp = exp * 10 + (bytes[i++] - '0');
+        anyExpDigit = true;
+      }
+      if (!anyExpDigit)
+        anyDigit = false; // Malformed, let the slow path report the error
+      exponent += negativeExp ? -exp : exp;
+    }
+    if (anyDigit && i == end && significantDigits <= 15 &&
+        exponent >= -22 && exponent <= 22) {
+      // Both the mantissa and the power of ten are exact. One floating point
+      // operation produces a correctly rounded result.
+      double value = mantissa;
+      if (exponent > 0)
+        value *= PowersOf10[exponent];
+      else if (exponent < 0)
+        value /= PowersOf10[-exponent];
+      return negative ? -value : value;
+    }
+    String str = new String(bytes, start, end - start);
+    try {
+      return Double.parseDouble(str);
+    } catch (NumberFormatException e) {
+      throw new ParseException("Invalid number '"+str+"'");
+    }
+  }
+}
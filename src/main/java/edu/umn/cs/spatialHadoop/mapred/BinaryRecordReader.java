@@ -20,7 +20,9 @@ import org.apache.hadoop.mapred.lib.CombineFileSplit;
 /**
  * Reads every possible pair of values from two underlying record readers.
  * In other words, it makes a Cartesian product from the records stored in
- * the two splits given to this reader.
+ * the two splits given to this reader. If the combined split contains more
+ * than two paths, every two consecutive paths are treated as one pair and
+ * the pairs are read one after the other.
  * @author eldawy
  *
  * @param <K>
@@ -45,6 +47,12 @@ public abstract class BinaryRecordReader<K extends Writable, V extends Writable>
   /**Progress of file 1 before reading the current record. Used for progress.*/
   protected float progress1Before;
   
+  /**Index of the pair of paths currently being read*/
+  protected int currentPair;
+  
+  /**Total number of pairs of paths in the combined split*/
+  protected int numPairs;
+  
   /**
    * Creates a record reader for one of the two splits parsed by this reader.
    * @param split
@@ -57,37 +65,61 @@ public abstract class BinaryRecordReader<K extends Writable, V extends Writable>
   public BinaryRecordReader(Configuration conf, CombineFileSplit split) throws IOException {
     this.conf = conf;
     this.split = split;
-    internalReaders = new RecordReader[(int) split.getNumPaths()];
-    // Initialize all record readers
-    for (int i = 0; i < split.getNumPaths(); i++) {
+    this.numPairs = split.getNumPaths() / 2;
+    internalReaders = new RecordReader[2];
+    // Initialize the record readers of the first pair
+    for (int i = 0; i < internalReaders.length; i++) {
       this.internalReaders[i] = createRecordReader(this.conf, this.split, i);
     }
   }
   
   @Override
   public boolean next(PairWritable<K> key, PairWritable<V> value) throws IOException {
-    if (firstTime) {
+    while (true) {
+      if (firstTime) {
+        progress1Before = internalReaders[0].getProgress();
+        if (internalReaders[0].next(key.first, value.first)) {
+          firstTime = false;
+        } else if (!nextPair()) {
+          return false;
+        } else {
+          continue;
+        }
+      }
+      if (internalReaders[1].next(key.second, value.second)) {
+        return true;
+      }
+      // Reached the end of the second split. Reset the second split and advance
+      // to the next item in the first split
       progress1Before = internalReaders[0].getProgress();
-      if (!internalReaders[0].next(key.first, value.first)) {
-        return false;
+      if (internalReaders[0].next(key.first, value.first)) {
+        // Restart second reader
+        internalReaders[1].close();
+        internalReaders[1] = createRecordReader(conf, split, currentPair * 2 + 1);
+        if (internalReaders[1].next(key.second, value.second))
+          return true;
       }
-      firstTime = false;
-    }
-    if (internalReaders[1].next(key.second, value.second)) {
-      return true;
+      // Finished all records in the current pair
+      if (!nextPair())
+        return false;
     }
-    // Reached the end of the second split. Reset the second split and advance
-    // to the next item in the first split
-    progress1Before = internalReaders[0].getProgress();
-    if (!internalReaders[0].next(key.first, value.first)) {
-      // Already finished all records in first split
+  }
+  
+  /**
+   * Moves to the next pair of paths in the combined split
+   * @return <code>true</code> if there is a next pair
+   * @throws IOException
+   */
+  protected boolean nextPair() throws IOException {
+    if (currentPair + 1 >= numPairs)
       return false;
-    }
-    
-    // Restart second reader
+    internalReaders[0].close();
     internalReaders[1].close();
-    internalReaders[1] = createRecordReader(conf, split, 1);
-    return internalReaders[1].next(key.second, value.second);
+    currentPair++;
+    internalReaders[0] = createRecordReader(conf, split, currentPair * 2);
+    internalReaders[1] = createRecordReader(conf, split, currentPair * 2 + 1);
+    firstTime = true;
+    return true;
   }
 
   @Override
@@ -123,6 +155,6 @@ public abstract class BinaryRecordReader<K extends Writable, V extends Writable>
     float progress2 = internalReaders[1].getProgress();
     // Scale 0-9 for most significant digit
     float progress = progress1Before * (1.0f - progress2) + progress1 * progress2;
-    return progress;
+    return (currentPair + progress) / numPairs;
   }
 }
@@ -10,12 +10,15 @@ package edu.umn.cs.spatialHadoop.mapred;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Vector;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
@@ -64,6 +67,9 @@ public abstract class BinarySpatialInputFormat<K extends Writable, V extends Wri
   
   private static final double SPLIT_SLOP = 1.1;   // 10% slop
   
+  /**The maximum estimated cost of one split when joining indexed files*/
+  public static final String MaxSplitCost = "BinarySpatialInputFormat.MaxSplitCost";
+  
   @SuppressWarnings("unchecked")
   @Override
   public InputSplit[] getSplits(final JobConf job, int numSplits) throws IOException {
@@ -116,32 +122,17 @@ public abstract class BinarySpatialInputFormat<K extends Writable, V extends Wri
       }
     } else {
       // Filter block pairs by the BlockFilter
+      final List<Partition[]> partitionPairs = new ArrayList<Partition[]>();
       blockFilter.selectCellPairs(gIndexes[0], gIndexes[1],
         new ResultCollector2<Partition, Partition>() {
           @Override
           public void collect(Partition p1, Partition p2) {
-              try {
-                List<FileSplit> splits1 = new ArrayList<FileSplit>();
-                Path path1 = new Path(inputFiles[0], p1.filename);
-                splitFile(job, path1, splits1);
-                
-                List<FileSplit> splits2 = new ArrayList<FileSplit>();
-                Path path2 = new Path(inputFiles[1], p2.filename);
-                splitFile(job, path2, splits2);
-                
-                for (FileSplit split1 : splits1) {
-                  for (FileSplit split2 : splits2) {
-                    matchedSplits.add((CombineFileSplit) FileSplitUtil
-                        .combineFileSplits(job, split1, split2));
-                  }
-                }
-                
-              } catch (IOException e) {
-                e.printStackTrace();
-              }
+            partitionPairs.add(new Partition[] {p1.clone(), p2.clone()});
           }
         }
       );
+      matchedSplits.addAll(schedulePairs(job, inputFiles, partitionPairs,
+          numSplits));
     }
 
     LOG.info("Matched "+matchedSplits.size()+" combine splits");
@@ -150,6 +141,206 @@ public abstract class BinarySpatialInputFormat<K extends Writable, V extends Wri
     return matchedSplits.toArray(new InputSplit[matchedSplits.size()]);
   }
 
+  /**
+   * Estimates the cost of processing a partition in a join as the number of
+   * records in it. The size in bytes is used if the record count is unknown.
+   * @param p
+   * @return
+   */
+  static long estimateCost(Partition p) {
+    return p.recordCount > 0 ? p.recordCount : p.size;
+  }
+
+  /**
+   * A unit of work that joins a range of bytes from one partition with a
+   * range of bytes from another partition.
+   */
+  static class PairTask {
+    FileSplit split1, split2;
+    double cost;
+
+    PairTask(FileSplit split1, FileSplit split2, double cost) {
+      this.split1 = split1;
+      this.split2 = split2;
+      this.cost = cost;
+    }
+  }
+
+  /**
+   * Creates the splits for the given pairs of partitions based on their
+   * estimated cost. Each pair whose cost exceeds the target cost of one split
+   * is split into a grid of sub-pairs where each partition is divided as in
+   * {@link #splitPartition(JobConf, Path, int, List)}. The resulting pairs are
+   * then packed into the
+   * fewest splits of at most the target cost using the first-fit decreasing
+   * heuristic. The target cost is set in {@link #MaxSplitCost} or defaults
+   * to the total cost divided by the number of requested splits.
+   * @param job
+   * @param inputFiles
+   * @param partitionPairs
+   * @param numSplits
+   * @return
+   * @throws IOException
+   */
+  protected List<CombineFileSplit> schedulePairs(JobConf job,
+      Path[] inputFiles, List<Partition[]> partitionPairs, int numSplits)
+      throws IOException {
+    double totalCost = 0;
+    for (Partition[] pair : partitionPairs)
+      totalCost += estimateCost(pair[0]) + estimateCost(pair[1]);
+    double targetCost = job.getLong(MaxSplitCost, 0);
+    if (targetCost <= 0)
+      targetCost = Math.max(1, Math.ceil(totalCost / Math.max(1, numSplits)));
+
+    List<PairTask> tasks = new ArrayList<PairTask>();
+    for (Partition[] pair : partitionPairs) {
+      long cost1 = estimateCost(pair[0]);
+      long cost2 = estimateCost(pair[1]);
+      // Split each side so that a sub-pair does not exceed the target cost
+      int numChunks1 = 1, numChunks2 = 1;
+      if (cost1 + cost2 > targetCost) {
+        numChunks1 = (int) Math.min(Math.max(1, cost1),
+            Math.ceil(2.0 * cost1 / targetCost));
+        numChunks2 = (int) Math.min(Math.max(1, cost2),
+            Math.ceil(2.0 * cost2 / targetCost));
+      }
+      List<FileSplit> splits1 = new ArrayList<FileSplit>();
+      splitPartition(job, new Path(inputFiles[0], pair[0].filename), numChunks1, splits1);
+      List<FileSplit> splits2 = new ArrayList<FileSplit>();
+      splitPartition(job, new Path(inputFiles[1], pair[1].filename), numChunks2, splits2);
+      double subPairCost = (double) cost1 / splits1.size()
+          + (double) cost2 / splits2.size();
+      for (FileSplit split1 : splits1)
+        for (FileSplit split2 : splits2)
+          tasks.add(new PairTask(split1, split2, subPairCost));
+    }
+
+    // Pack the pairs into splits using first-fit decreasing
+    Collections.sort(tasks, new Comparator<PairTask>() {
+      @Override
+      public int compare(PairTask t1, PairTask t2) {
+        return Double.compare(t2.cost, t1.cost);
+      }
+    });
+    List<List<FileSplit[]>> bins = new ArrayList<List<FileSplit[]>>();
+    List<Double> binCosts = new ArrayList<Double>();
+    for (PairTask task : tasks) {
+      int iBin = 0;
+      while (iBin < bins.size() && binCosts.get(iBin) + task.cost > targetCost)
+        iBin++;
+      if (iBin == bins.size()) {
+        bins.add(new ArrayList<FileSplit[]>());
+        binCosts.add(0.0);
+      }
+      bins.get(iBin).add(new FileSplit[] {task.split1, task.split2});
+      binCosts.set(iBin, binCosts.get(iBin) + task.cost);
+    }
+    LOG.info("Scheduled "+partitionPairs.size()+" partition pairs as "+
+        tasks.size()+" pairs in "+bins.size()+" splits with target cost "+
+        targetCost);
+
+    List<CombineFileSplit> splits = new ArrayList<CombineFileSplit>();
+    for (List<FileSplit[]> bin : bins)
+      splits.add((CombineFileSplit) FileSplitUtil.combineFileSplitPairs(job, bin));
+    return splits;
+  }
+
+  /**
+   * Splits a partition file into at most the given number of splits that can
+   * each be read on its own. Text files are split into equal ranges of bytes.
+   * A locally indexed file is split only at the boundaries of its local
+   * indexes, and an R-tree file is never split, because their records can
+   * only be read starting at the beginning of an index.
+   * @param job
+   * @param path
+   * @param numSplits
+   * @param splits
+   * @throws IOException
+   */
+  public void splitPartition(JobConf job, Path path, int numSplits,
+      List<FileSplit> splits) throws IOException {
+    FileSystem fs = path.getFileSystem(job);
+    FileStatus file = fs.getFileStatus(path);
+    long length = file.getLen();
+    boolean localIndexed = SpatialSite.getLocalIndex(path) != null;
+    if (!localIndexed) {
+      // Look for an R-tree signature only if the file would otherwise be split
+      boolean split = numSplits > 1 || length > file.getBlockSize() * SPLIT_SLOP;
+      if (!split || !SpatialSite.isRTree(fs, path)) {
+        splitFile(job, path, numSplits, splits);
+        return;
+      }
+    }
+    // The offsets at which the file can be split
+    List<Long> boundaries = new ArrayList<Long>();
+    boundaries.add(0L);
+    if (localIndexed && numSplits > 1) {
+      // Each local index ends with its size which is used to locate the
+      // boundaries of all local indexes from the end of the file
+      FSDataInputStream in = fs.open(path);
+      try {
+        long indexEnd = length;
+        while (indexEnd > 0) {
+          in.seek(indexEnd - 4);
+          indexEnd -= in.readInt() + 4;
+          if (indexEnd > 0)
+            boundaries.add(1, indexEnd);
+        }
+      } finally {
+        in.close();
+      }
+    }
+    boundaries.add(length);
+    NetworkTopology clusterMap = new NetworkTopology();
+    BlockLocation[] blkLocations = fs.getFileBlockLocations(file, 0, length);
+    // Group consecutive local indexes into splits of about the same size
+    int numParts = boundaries.size() - 1;
+    numSplits = Math.max(1, Math.min(numSplits, numParts));
+    int firstPart = 0;
+    for (int i = 1; i <= numSplits; i++) {
+      int lastPart = numParts * i / numSplits;
+      long start = boundaries.get(firstPart);
+      long end = boundaries.get(lastPart);
+      String[] splitHosts = getSplitHosts(blkLocations, start, end - start,
+          clusterMap);
+      splits.add(new FileSplit(path, start, end - start, splitHosts));
+      firstPart = lastPart;
+    }
+  }
+
+  /**
+   * Splits a file into at least the given number of splits of equal sizes.
+   * More splits are created if needed so that no split exceeds the block
+   * size.
+   * @param job
+   * @param path
+   * @param numSplits
+   * @param splits
+   * @throws IOException
+   */
+  public void splitFile(JobConf job, Path path, int numSplits,
+      List<FileSplit> splits) throws IOException {
+    FileSystem fs = path.getFileSystem(job);
+    FileStatus file = fs.getFileStatus(path);
+    long length = file.getLen();
+    long minSplits = (long) Math.ceil(length / (file.getBlockSize() * SPLIT_SLOP));
+    numSplits = (int) Math.min(Math.max(numSplits, minSplits), Math.max(1, length));
+    if (numSplits <= 1) {
+      splitFile(job, path, splits);
+      return;
+    }
+    NetworkTopology clusterMap = new NetworkTopology();
+    BlockLocation[] blkLocations = fs.getFileBlockLocations(file, 0, length);
+    long start = 0;
+    for (int i = 1; i <= numSplits; i++) {
+      long end = length * i / numSplits;
+      String[] splitHosts = getSplitHosts(blkLocations, start, end - start,
+          clusterMap);
+      splits.add(new FileSplit(path, start, end - start, splitHosts));
+      start = end;
+    }
+  }
+
   public void splitFile(JobConf job, Path path, List<FileSplit> splits)
       throws IOException {
     NetworkTopology clusterMap = new NetworkTopology();
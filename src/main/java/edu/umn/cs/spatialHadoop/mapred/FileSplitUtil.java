@@ -140,6 +140,37 @@ public class FileSplitUtil {
     return new CombineFileSplit(conf, paths, starts, lengths, locations);
   }
   
+  /**
+   * Combines a list of pairs of file splits into one CombineFileSplit. The two
+   * splits of the i-th pair are stored at positions 2i and 2i+1 so that
+   * {@link BinaryRecordReader} reads them as a pair.
+   * @param conf
+   * @param pairs
+   * @return
+   * @throws IOException
+   */
+  public static InputSplit combineFileSplitPairs(JobConf conf,
+      List<FileSplit[]> pairs) throws IOException {
+    Path[] paths = new Path[pairs.size() * 2];
+    long[] starts = new long[paths.length];
+    long[] lengths = new long[paths.length];
+    Vector<String> vlocations = new Vector<String>();
+    for (int i = 0; i < paths.length; i++) {
+      FileSplit split = pairs.get(i / 2)[i % 2];
+      paths[i] = split.getPath();
+      starts[i] = split.getStart();
+      lengths[i] = split.getLength();
+      vlocations.addAll(Arrays.asList(split.getLocations()));
+    }
+    String[] locations = prioritizeLocations(vlocations);
+    if (locations.length > 3) {
+      String[] topLocations = new String[3];
+      System.arraycopy(locations, 0, topLocations, 0, topLocations.length);
+      locations = topLocations;
+    }
+    return new CombineFileSplit(conf, paths, starts, lengths, locations);
+  }
+  
   /**
    * Takes a list of locations as a vector, and returns a unique array of
    * locations where locations on the head are more frequent in the original
@@ -41,12 +41,13 @@ import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.Shape;
 import edu.umn.cs.spatialHadoop.core.SpatialSite;
 import edu.umn.cs.spatialHadoop.indexing.GlobalIndex;
+import edu.umn.cs.spatialHadoop.indexing.LocalIndex;
 import edu.umn.cs.spatialHadoop.indexing.Partition;
 
 /**
  * A base class to read shapes from files. It reads either single shapes,
- * list of shapes, or R-trees. It automatically detects the format of the
- * underlying block and parses it accordingly.
+ * list of shapes, R-trees, or locally indexed files. It automatically detects
+ * the format of the underlying block and parses it accordingly.
  * 
  * The class implement the RecordReader interface allowing it to be used in
  * MapReduce programs with an appropriate InputFormat. The key is always
@@ -68,7 +69,7 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
   /**Maximum size in bytes that can be read in one read*/
   private int maxBytesInOneRead;
   
-  enum BlockType { HEAP, RTREE};
+  enum BlockType { HEAP, RTREE, LOCAL_INDEX};
   
   /** First offset that is read from the input */
   protected long start;
@@ -105,6 +106,18 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
   /**The type of the currently parsed block*/
   protected BlockType blockType;
 
+  /**The configuration used to set up local indexes*/
+  private Configuration conf;
+
+  /**The local index of a locally indexed file or null for other files*/
+  private Class<? extends LocalIndex> localIndexClass;
+
+  /**The end offset of the next local index to read in this split*/
+  private long indexEnd;
+
+  /**The remaining records of the local index currently being read*/
+  private Iterator<? extends Shape> localIndexRecords;
+
   /**
    * The input stream that reads directly from the input file.
    * If the file is not compressed, this stream is the same as the in.
@@ -181,6 +194,7 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
     this.pos = start;
     this.maxShapesInOneRead = job.getInt(SpatialSite.MaxShapesInOneRead, 1000000);
     this.maxBytesInOneRead = job.getInt(SpatialSite.MaxBytesInOneRead, 32*1024*1024);
+    this.conf = job;
 
     initializeReader();
   }
@@ -260,6 +274,8 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
   public float getProgress() throws IOException {
     if (start == end) {
       return 0.0f;
+    } else if (blockType == BlockType.LOCAL_INDEX) {
+      return (end - indexEnd) / (float)(end - start);
     } else {
       return Math.min(1.0f,
         (directIn.getPos() - start) / (float)(end - start));
@@ -288,6 +304,15 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
       }
     }
     
+    if (path != null && !isCompressedInput() &&
+        (localIndexClass = SpatialSite.getLocalIndex(path)) != null) {
+      // A locally indexed file is split only at the boundaries of its local
+      // indexes which are read from the end of the split backwards
+      blockType = BlockType.LOCAL_INDEX;
+      indexEnd = end;
+      return true;
+    }
+
     // Read the first part of the block to determine its type
     buffer = new byte[8];
     int bufferLength = in.read(buffer);
@@ -415,11 +440,53 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
    * @throws IOException 
    */
   protected boolean nextShape(Shape s) throws IOException {
+    if (blockType == BlockType.LOCAL_INDEX) {
+      Shape record = nextLocalIndexRecord(s);
+      if (record == null)
+        return false;
+      tempLine.clear();
+      record.toText(tempLine);
+      s.fromText(tempLine);
+      return true;
+    }
     if (!nextLine(tempLine))
       return false;
     s.fromText(tempLine);
     return true;
   }
+
+  /**
+   * Returns the next record of a locally indexed file or null if all the
+   * local indexes in this split have been read. The returned shape is reused
+   * by the local index and should be cloned to be kept.
+   * @param stockShape the shape used to parse the records
+   * @return
+   * @throws IOException
+   */
+  private Shape nextLocalIndexRecord(Shape stockShape) throws IOException {
+    while (localIndexRecords == null || !localIndexRecords.hasNext()) {
+      if (indexEnd <= start)
+        return null;
+      // Each local index ends with its size
+      directIn.seek(indexEnd - 4);
+      int indexSize = directIn.readInt();
+      long indexStart = indexEnd - indexSize - 4;
+      try {
+        LocalIndex<Shape> lindex = localIndexClass.newInstance();
+        lindex.setup(conf);
+        directIn.seek(indexStart);
+        lindex.read(directIn, indexStart, indexEnd, stockShape.clone());
+        localIndexRecords = lindex.scanAll().iterator();
+      } catch (InstantiationException e) {
+        throw new RuntimeException("Error creating the local index", e);
+      } catch (IllegalAccessException e) {
+        throw new RuntimeException("Error creating the local index", e);
+      }
+      pos += indexEnd - indexStart;
+      indexEnd = indexStart;
+    }
+    return localIndexRecords.next();
+  }
   
   /**
    * Reads all shapes left in the current block in one shot. This function
@@ -442,6 +509,14 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
     Vector<Shape> vshapes = new Vector<Shape>();
     try {
       Shape stockObject = (Shape) shapes.getValueClass().newInstance();
+      if (blockType == BlockType.LOCAL_INDEX) {
+        Shape record;
+        while ((maxShapesInOneRead <= 0 || vshapes.size() < maxShapesInOneRead) &&
+            (record = nextLocalIndexRecord(stockObject)) != null)
+          vshapes.add(record.clone());
+        shapes.set(vshapes.toArray(new Shape[vshapes.size()]));
+        return !vshapes.isEmpty();
+      }
       // Reached the end of this split
       if (getFilePosition() >= end)
         return false;
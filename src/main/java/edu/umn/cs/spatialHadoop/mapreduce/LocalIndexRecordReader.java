@@ -12,15 +12,19 @@ import edu.umn.cs.spatialHadoop.OperationsParams;
 import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.Shape;
 import edu.umn.cs.spatialHadoop.core.SpatialSite;
+import edu.umn.cs.spatialHadoop.indexing.ColumnarLocalIndex;
 import edu.umn.cs.spatialHadoop.indexing.GlobalIndex;
 import edu.umn.cs.spatialHadoop.indexing.LocalIndex;
 import edu.umn.cs.spatialHadoop.indexing.Partition;
+import edu.umn.cs.spatialHadoop.io.InputSubstream;
+import edu.umn.cs.spatialHadoop.util.SampleIterable;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.RecordReader;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
@@ -176,7 +180,10 @@ public class LocalIndexRecordReader<V extends Shape> extends
   }
 
   /**
-   * Create one split for each data chunk in the given locally indexed file
+   * Create one split for each local index in the given locally indexed file.
+   * Each split covers the data and the index so that it can be read using
+   * {@link #scanAllText(LocalIndex, FSDataInputStream)} regardless of the
+   * format of the data.
    * @param fs
    * @param file
    * @param localIndexClass
@@ -185,7 +192,6 @@ public class LocalIndexRecordReader<V extends Shape> extends
   public static Collection<? extends FileSplit> createDataSplits(FileSystem fs,
          Path file, Class<? extends LocalIndex> localIndexClass)
       throws IOException, IllegalAccessException, InstantiationException {
-    LocalIndex lindex = localIndexClass.newInstance();
     List<FileSplit> splits = new ArrayList<FileSplit>();
     FSDataInputStream in = fs.open(file);
     long indexEnd = fs.getFileStatus(file).getLen();
@@ -194,16 +200,37 @@ public class LocalIndexRecordReader<V extends Shape> extends
       in.seek(indexEnd - 4);
       int indexSize = in.readInt();
       long indexStart = indexEnd - indexSize - 4;
-      in.seek(indexStart);
-      lindex.read(in, indexStart, indexEnd, null);
-      FileSplit fsplit = new FileSplit(file, lindex.getDataStart(),
-          lindex.getDataEnd(), null);
+      FileSplit fsplit = new FileSplit(file, indexStart,
+          indexEnd - indexStart, null);
       splits.add(fsplit);
       indexEnd = indexStart;
     }
+    in.close();
     return splits;
   }
 
+  /**
+   * Scans all records of a local index in their text representation, one line
+   * per record, without parsing them into shapes. The data section is read as
+   * text lines unless the local index stores its records in another format,
+   * e.g., {@link ColumnarLocalIndex}.
+   * @param lindex a local index that was read from the given stream
+   * @param in the stream that contains the local index
+   * @return
+   * @throws IOException
+   */
+  public static Iterable<? extends Text> scanAllText(LocalIndex lindex,
+      FSDataInputStream in) throws IOException {
+    if (lindex instanceof ColumnarLocalIndex)
+      return ((ColumnarLocalIndex) lindex).scanAllText();
+    // Bound the data section to avoid reading the last line into the index
+    long dataStart = lindex.getDataStart();
+    long dataEnd = lindex.getDataEnd();
+    in.seek(dataStart);
+    return new SampleIterable(new InputSubstream(in, dataEnd - dataStart),
+        dataStart, dataEnd, 1.0f, 0);
+  }
+
   public static class DuplicateAvoidanceIterator<V extends Shape> implements Iterable<V>, Iterator<V> {
     /**MBR of the containing cell to run the reference point technique*/
     private Rectangle cellMBR;
@@ -1,7 +1,6 @@
 package edu.umn.cs.spatialHadoop.mapreduce;
 
 import edu.umn.cs.spatialHadoop.indexing.LocalIndex;
-import edu.umn.cs.spatialHadoop.util.SampleIterable;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileSystem;
@@ -13,6 +12,8 @@ import org.apache.hadoop.mapreduce.TaskAttemptContext;
 import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 
 import java.io.IOException;
+import java.util.Iterator;
+import java.util.Random;
 
 /**
  * A record reader to read sample of a locally-index file
@@ -30,11 +31,11 @@ public class SampleRecordReaderLocalIndexFile extends RecordReader<NullWritable,
   /**Configuration used to obtain FileSystem of file splits*/
   protected Configuration conf;
 
-  /**An iterable that iterates over the sample records*/
-  private SampleIterable sampleIterable;
+  /**Iterates over all records of the local index currently being read*/
+  private Iterator<? extends Text> records;
 
-  /**The seed of the random number generator*/
-  private long seed;
+  /**The random number generator used to select the sample records*/
+  private Random random;
 
   /**Current value*/
   protected Text value;
@@ -59,7 +60,7 @@ public class SampleRecordReaderLocalIndexFile extends RecordReader<NullWritable,
 
     this.ratio = task.getConfiguration().getFloat("ratio", 0.01f);
     this.conf = task.getConfiguration();
-    this.seed = conf.getLong("seed", System.currentTimeMillis());
+    this.random = new Random(conf.getLong("seed", System.currentTimeMillis()));
     this.lindex.setup(conf);
 
     FileSystem fs = fsplit.getPath().getFileSystem(conf);
@@ -71,33 +72,34 @@ public class SampleRecordReaderLocalIndexFile extends RecordReader<NullWritable,
 
   private void moveToNextLocalIndex() throws IOException {
     if (lindexEnd <= fsplit.getStart()) {
-      sampleIterable = null;
+      records = null;
       return;
     }
     in.seek(lindexEnd - 4);
     lindexStart = lindexEnd - in.readInt() - 4;
     in.seek(lindexStart);
     lindex.read(in, lindexStart, lindexEnd, null);
-    long dataStart = lindex.getDataStart();
-    long dataEnd = lindex.getDataEnd();
-    in.seek(dataStart);
-    this.sampleIterable = new SampleIterable(in, dataStart, dataEnd, ratio, seed);
+    // The data section might not be textual, e.g., columnar indexes
+    this.records = LocalIndexRecordReader.scanAllText(lindex, in).iterator();
   }
 
   @Override
   public boolean nextKeyValue() {
-    if (sampleIterable.hasNext()) {
-      value = sampleIterable.next();
-      return true;
-    }
-    // Reached the end of this local index. Move to the  next local index
     try {
-      do {
+      while (records != null) {
+        while (records.hasNext()) {
+          Text record = records.next();
+          if (random.nextFloat() < ratio) {
+            value = record;
+            return true;
+          }
+        }
+        // Reached the end of this local index. Move to the next local index
         lindexEnd = lindexStart;
         moveToNextLocalIndex();
-      } while (this.sampleIterable != null && !this.sampleIterable.hasNext());
+      }
       // No more local indexes with data in them
-      return sampleIterable != null && this.sampleIterable.hasNext();
+      return false;
     } catch (IOException e) {
       return false;
     }
@@ -115,13 +117,17 @@ public class SampleRecordReaderLocalIndexFile extends RecordReader<NullWritable,
 
   @Override
   public float getProgress() {
-    return sampleIterable == null ? 1.0f : sampleIterable.getProgress();
+    // Local indexes are read from the end of the split to its start
+    long end = fsplit.getStart() + fsplit.getLength();
+    return records == null || fsplit.getLength() == 0 ? 1.0f :
+      (float) (end - lindexEnd) / fsplit.getLength();
   }
 
   @Override
   public void close() throws IOException {
-    if (sampleIterable != null)
-      sampleIterable.close();
+    if (in != null)
+      in.close();
+    in = null;
   }
   
 }
\ No newline at end of file
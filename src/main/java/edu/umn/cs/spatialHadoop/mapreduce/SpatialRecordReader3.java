@@ -40,6 +40,7 @@ import edu.umn.cs.spatialHadoop.OperationsParams;
 import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.Shape;
 import edu.umn.cs.spatialHadoop.core.SpatialSite;
+import edu.umn.cs.spatialHadoop.indexing.BlockMBRIndex;
 import edu.umn.cs.spatialHadoop.indexing.GlobalIndex;
 import edu.umn.cs.spatialHadoop.indexing.Partition;
 
@@ -111,6 +112,12 @@ public class SpatialRecordReader3<V extends Shape> extends
    */
   private Counter inputRecordsCounter;
 
+  /**MBRs of blocks in the input file used to skip blocks outside the query*/
+  private BlockMBRIndex blockIndex;
+
+  /**The block that contains the current position in the input file*/
+  private int iBlock;
+
   @Override
   public void initialize(InputSplit split, TaskAttemptContext context)
       throws IOException, InterruptedException {
@@ -177,6 +184,12 @@ public class SpatialRecordReader3<V extends Shape> extends
       this.inputQueryRange = OperationsParams.getShape(conf,
           SpatialInputFormat3.InputQueryRange);
       this.inputQueryMBR = this.inputQueryRange.getMBR();
+      if (codec == null) {
+        // Skip blocks that are disjoint with the query if their MBRs are known
+        blockIndex = BlockMBRIndex.read(fs, path);
+        if (blockIndex != null)
+          iBlock = blockIndex.findBlock(getPos());
+      }
     }
     
     // Check if there is an associated global index to read cell boundaries
@@ -218,6 +231,8 @@ public class SpatialRecordReader3<V extends Shape> extends
    */
   protected boolean nextLine(Text value) throws IOException {
     while (getPos() <= end) {
+      if (blockIndex != null && !skipDisjointBlocks())
+        return false;
       value.clear();
 
       int lineLength;
@@ -239,6 +254,32 @@ public class SpatialRecordReader3<V extends Shape> extends
     return false;
   }
   
+  /**
+   * Seeks past all blocks that are disjoint with the input query starting
+   * at the current position.
+   * @return <code>false</code> if there are no more overlapping blocks in
+   *   this split.
+   * @throws IOException
+   */
+  private boolean skipDisjointBlocks() throws IOException {
+    long pos = getPos();
+    while (iBlock < blockIndex.getNumBlocks() && pos >= blockIndex.getBlockEnd(iBlock))
+      iBlock++;
+    if (iBlock >= blockIndex.getNumBlocks() || blockIndex.isOverlapped(iBlock, inputQueryMBR))
+      return true;
+    do {
+      iBlock++;
+    } while (iBlock < blockIndex.getNumBlocks() && !blockIndex.isOverlapped(iBlock, inputQueryMBR));
+    long newPos = blockIndex.getBlockStart(iBlock);
+    if (newPos > end || iBlock >= blockIndex.getNumBlocks())
+      return false;
+    // Blocks start at record boundaries. Seek and discard any buffered data
+    directIn.seek(newPos);
+    lineReader = new LineReader(directIn);
+    bytesRead = newPos - start;
+    return true;
+  }
+
   protected boolean isMatched(Shape shape) {
     // Match with the query
     if (inputQueryRange != null && (shape == null || !shape.isIntersected(inputQueryRange)))
@@ -22,9 +22,11 @@ import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Random;
+import java.util.Set;
 import java.util.Stack;
 import java.util.Vector;
 import java.util.regex.Matcher;
@@ -54,6 +56,7 @@ import edu.umn.cs.spatialHadoop.hdf.HDFFile;
 import edu.umn.cs.spatialHadoop.io.RandomCompressedInputStream;
 import edu.umn.cs.spatialHadoop.io.RandomCompressedOutputStream;
 import edu.umn.cs.spatialHadoop.util.FileUtil;
+import edu.umn.cs.spatialHadoop.util.IntArray;
 import edu.umn.cs.spatialHadoop.util.Parallel;
 import edu.umn.cs.spatialHadoop.util.Parallel.RunnableRange;
 
@@ -289,22 +292,139 @@ public class AggregateQuadTree {
     return stockTree;
   }
   
+  /**
+   * A histogram of values with bins of equal width. Histograms of the same
+   * bins are merged by adding their counts which allows them to be stored in
+   * the nodes of the tree as a sketch of the values under each node.
+   */
+  public static class Histogram implements Writable {
+    /**The range of values covered by the bins. Values outside the range are
+     * counted in the first or the last bin.*/
+    public final int minValue, maxValue;
+    /**Number of values in each bin*/
+    public final long[] counts;
+
+    public Histogram(int minValue, int maxValue, int numBins) {
+      if (maxValue < minValue || numBins <= 0)
+        throw new RuntimeException("Invalid histogram of "+numBins
+            +" bins in the range ["+minValue+","+maxValue+"]");
+      this.minValue = minValue;
+      this.maxValue = maxValue;
+      this.counts = new long[numBins];
+    }
+
+    /**
+     * Creates an empty histogram with the same bins as this histogram
+     * @return
+     */
+    public Histogram emptyCopy() {
+      return new Histogram(minValue, maxValue, counts.length);
+    }
+
+    public boolean hasSameBins(Histogram other) {
+      return minValue == other.minValue && maxValue == other.maxValue
+          && counts.length == other.counts.length;
+    }
+
+    /**
+     * Returns the width of each bin in the value space
+     * @return
+     */
+    public double getBinWidth() {
+      return (maxValue - minValue + 1.0) / counts.length;
+    }
+
+    private int getBin(int value) {
+      if (value <= minValue)
+        return 0;
+      if (value >= maxValue)
+        return counts.length - 1;
+      return (int) ((long) (value - minValue) * counts.length / (maxValue - minValue + 1L));
+    }
+
+    public void add(short value) {
+      counts[getBin(value)]++;
+    }
+
+    public void add(Histogram other) {
+      if (!hasSameBins(other))
+        throw new RuntimeException("Cannot merge histograms with different bins");
+      for (int i = 0; i < counts.length; i++)
+        this.counts[i] += other.counts[i];
+    }
+
+    /**
+     * Estimates the value at the given quantile assuming that values are
+     * uniformly distributed in each bin. The estimate is off by at most the
+     * width of one bin.
+     * @param q the quantile in the range [0, 1]
+     * @return the estimated value or NaN if the histogram is empty
+     */
+    public double getQuantile(double q) {
+      long totalCount = 0;
+      for (long count : counts)
+        totalCount += count;
+      if (totalCount == 0)
+        return Double.NaN;
+      double rank = Math.max(0, Math.min(1, q)) * totalCount;
+      long countBefore = 0;
+      int bin = 0;
+      while (bin < counts.length - 1 && countBefore + counts[bin] < rank)
+        countBefore += counts[bin++];
+      double fraction = counts[bin] == 0 ? 0 : (rank - countBefore) / counts[bin];
+      return minValue + (bin + fraction) * getBinWidth();
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+      for (int i = 0; i < counts.length; i++)
+        counts[i] = in.readLong();
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+      for (long count : counts)
+        out.writeLong(count);
+    }
+  }
+
   public static class Node implements Writable {
     public short min = Short.MAX_VALUE, max = Short.MIN_VALUE;
     public long sum = 0;
     public long count = 0;
+    /**Sum of squares of all values or NaN if it is not known*/
+    public double sumOfSquares = 0;
+    /**A histogram of all values or null if it is not known*/
+    public Histogram histogram;
     
     /**
      * Accumulate the values of another node
      * @param other
      */
     public void accumulate(Node other) {
+      if (other.count == 0)
+        return;
+      boolean wasEmpty = this.count == 0;
       if (other.min < this.min)
         this.min = other.min;
       if (other.max > this.max)
         this.max = other.max;
       this.sum += other.sum;
       this.count += other.count;
+      this.sumOfSquares += other.sumOfSquares;
+      // The histogram is only valid if it covers all the accumulated values.
+      // Trees built with different sketch bins cannot be combined.
+      if (other.histogram == null) {
+        this.histogram = null;
+      } else if (this.histogram != null) {
+        if (this.histogram.hasSameBins(other.histogram))
+          this.histogram.add(other.histogram);
+        else
+          this.histogram = null;
+      } else if (wasEmpty) {
+        this.histogram = other.histogram.emptyCopy();
+        this.histogram.add(other.histogram);
+      }
     }
     
     /**
@@ -318,14 +438,47 @@ public class AggregateQuadTree {
         this.max = value;
       this.sum += value;
       this.count++;
+      this.sumOfSquares += (double) value * value;
+      if (histogram != null)
+        histogram.add(value);
+    }
+
+    /**
+     * Returns the population variance of all values or NaN if it is not
+     * known for this node.
+     * @return
+     */
+    public double getVariance() {
+      if (count == 0)
+        return Double.NaN;
+      double mean = (double) sum / count;
+      return Math.max(0, sumOfSquares / count - mean * mean);
+    }
+
+    /**
+     * Estimates the value at the given quantile, e.g., 0.5 for the median,
+     * using the histogram of this node.
+     * @param q
+     * @return the estimated value or NaN if the histogram is not known
+     */
+    public double getQuantile(double q) {
+      if (histogram == null || count == 0)
+        return Double.NaN;
+      return Math.max(min, Math.min(max, histogram.getQuantile(q)));
     }
 
+    /**
+     * Reads the minimum, maximum, sum and count. The sum of squares and the
+     * histogram are not stored in this format and become unknown.
+     */
     @Override
     public void readFields(DataInput in) throws IOException {
       this.min = in.readShort();
       this.max = in.readShort();
       this.sum = in.readLong();
       this.count = in.readLong();
+      this.sumOfSquares = Double.NaN;
+      this.histogram = null;
     }
 
     @Override
@@ -349,6 +502,15 @@ public class AggregateQuadTree {
   private static final int ValueSize = 2;
   /**Node size = min + max + sum + count*/
   private static final int NodeSize = 2 + 2 + 8 + 8;
+  /**
+   * Set in the resolution field of the header of trees that store a sketch
+   * of each node after the nodes. The sketches section starts with the
+   * number of bins and the value range of the histograms followed by the
+   * sum of squares and the histogram of each node.
+   */
+  private static final int SketchesFlag = 0x40000000;
+  /**Sketches header size = number of bins + min value + max value*/
+  private static final int SketchesHeaderSize = 4 + 4 + 4;
   
   /**
    * Constructs an aggregate quad tree for an input HDF file on a selected
@@ -400,7 +562,15 @@ public class AggregateQuadTree {
         FileSystem outFs = outFile.getFileSystem(conf);
         DataOutputStream out = new DataOutputStream(
             new RandomCompressedOutputStream(outFs.create(outFile, false)));
-        build(nasaDataset, (short[])values, fillValue, out);
+        int sketchBins = conf.getInt("sketchbins", 0);
+        Histogram sketch = null;
+        if (sketchBins > 0) {
+          String[] sketchRange = conf.get("sketchrange",
+              Short.MIN_VALUE+","+Short.MAX_VALUE).split(",");
+          sketch = new Histogram(Integer.parseInt(sketchRange[0]),
+              Integer.parseInt(sketchRange[1]), sketchBins);
+        }
+        build(nasaDataset, (short[])values, fillValue, sketch, out);
         out.close();
       } else {
         throw new RuntimeException("Indexing of values of type "
@@ -422,11 +592,31 @@ public class AggregateQuadTree {
    */
   public static void build(NASADataset metadata, short[] values,
       short fillValue, DataOutputStream out) throws IOException {
+    build(metadata, values, fillValue, null, out);
+  }
+
+  /**
+   * Constructs an aggregate quad tree out of a two-dimensional array of values
+   * and stores a sketch of the values under each node which allows
+   * statistics such as the variance and quantiles to be answered from the
+   * nodes.
+   * 
+   * @param metadata
+   * @param values
+   * @param fillValue
+   * @param sketch an empty histogram that defines the bins of the sketches
+   *          or null to store no sketches
+   * @param out
+   *          - the output stream to write the constructed quad tree to
+   * @throws IOException
+   */
+  public static void build(NASADataset metadata, short[] values,
+      short fillValue, Histogram sketch, DataOutputStream out) throws IOException {
     int length = Array.getLength(values);
     int resolution = (int) Math.round(Math.sqrt(length));
 
     // Write tree header
-    out.writeInt(resolution); // resolution
+    out.writeInt(sketch == null ? resolution : resolution | SketchesFlag); // resolution
     out.writeShort(fillValue);
     out.writeInt(1); // cardinality
     out.writeLong(metadata.time); // Timestamp
@@ -448,6 +638,8 @@ public class AggregateQuadTree {
     for (int iNode = stockQuadTree.nodesID.length - 1; iNode >= 0 ; iNode--) {
       // Initialize all aggregate values
       nodes[iNode] = new Node();
+      if (sketch != null)
+        nodes[iNode].histogram = sketch.emptyCopy();
       
       int firstChildId = stockQuadTree.nodesID[iNode] * 4;
       int firstChildPos = Arrays.binarySearch(stockQuadTree.nodesID, firstChildId);
@@ -477,6 +669,17 @@ public class AggregateQuadTree {
     // Write nodes to file in sorted order
     for (int iNode = 0; iNode < nodes.length; iNode++)
       nodes[iNode].write(out);
+
+    if (sketch != null) {
+      // Write the sketches of all nodes in the same order
+      out.writeInt(sketch.counts.length);
+      out.writeInt(sketch.minValue);
+      out.writeInt(sketch.maxValue);
+      for (int iNode = 0; iNode < nodes.length; iNode++) {
+        out.writeDouble(nodes[iNode].sumOfSquares);
+        nodes[iNode].histogram.write(out);
+      }
+    }
   }
   
   /**
@@ -508,7 +711,60 @@ public class AggregateQuadTree {
    * @return
    */
   private static long getNodesStartOffset(int resolution, int cardinality) {
-    return TreeHeaderSize + cardinality * 8 + resolution * resolution * cardinality * ValueSize;
+    return TreeHeaderSize + cardinality * 8 + (long) resolution * resolution * cardinality * ValueSize;
+  }
+
+  /**
+   * Returns the position of the sketches section relative to the beginning
+   * of the tree. It is only valid for trees that store sketches.
+   * @param resolution
+   * @param cardinality
+   * @return
+   */
+  private static long getSketchesStartOffset(int resolution, int cardinality) {
+    int numOfNodes = getOrCreateStockQuadTree(resolution).nodesID.length;
+    return getNodesStartOffset(resolution, cardinality) + (long) numOfNodes * NodeSize;
+  }
+
+  /**
+   * Reads the bins of the sketches of a tree.
+   * @param in
+   * @param treeStartPosition
+   * @param resolution the resolution of the tree without the sketches flag
+   * @param cardinality
+   * @return an empty histogram with the bins of the sketches of the tree
+   * @throws IOException
+   */
+  static Histogram readSketchBins(FSDataInputStream in, long treeStartPosition,
+      int resolution, int cardinality) throws IOException {
+    in.seek(treeStartPosition + getSketchesStartOffset(resolution, cardinality));
+    return readSketchBins(in);
+  }
+
+  private static Histogram readSketchBins(DataInput in) throws IOException {
+    int numBins = in.readInt();
+    int minValue = in.readInt();
+    int maxValue = in.readInt();
+    return new Histogram(minValue, maxValue, numBins);
+  }
+
+  /**
+   * Tests whether the resolution field in a tree header indicates that the
+   * tree stores sketches.
+   * @param resolutionField
+   * @return
+   */
+  static boolean hasSketches(int resolutionField) {
+    return (resolutionField & SketchesFlag) != 0;
+  }
+
+  /**
+   * Returns the resolution from the resolution field in a tree header
+   * @param resolutionField
+   * @return
+   */
+  static int getResolution(int resolutionField) {
+    return resolutionField & ~SketchesFlag;
   }
 
   /**
@@ -549,16 +805,23 @@ public class AggregateQuadTree {
   public static void merge(DataInputStream[] inTrees, DataOutputStream outTree)
       throws IOException {
     // Write the spatial resolution of the output as the same of all input trees
-    int resolution = inTrees[0].readInt();
+    int resolutionField = inTrees[0].readInt();
+    int resolution = getResolution(resolutionField);
     short fillValue = inTrees[0].readShort();
+    // Sketches are kept only if all input trees have them
+    boolean[] inputSketches = new boolean[inTrees.length];
+    boolean sketches = inputSketches[0] = hasSketches(resolutionField);
     for (int iTree = 1; iTree < inTrees.length; iTree++) {
-      int iResolution = inTrees[iTree].readInt();
+      int iResolutionField = inTrees[iTree].readInt();
+      int iResolution = getResolution(iResolutionField);
       int iFillValue = inTrees[iTree].readShort();
       if (resolution != iResolution || fillValue != iFillValue)
         throw new RuntimeException("Tree #0 has a resolution of "+resolution
             +" not compatible with resolution"+iResolution+" of Tree #"+iTree);
+      inputSketches[iTree] = hasSketches(iResolutionField);
+      sketches = sketches && inputSketches[iTree];
     }
-    outTree.writeInt(resolution);
+    outTree.writeInt(sketches ? resolution | SketchesFlag : resolution);
     outTree.writeShort(fillValue);
     
     // Sum up the cardinality of all input trees
@@ -568,9 +831,11 @@ public class AggregateQuadTree {
       cardinality += (cardinalities[iTree] = inTrees[iTree].readInt());
     outTree.writeInt(cardinality);
     
-    // Write timestamps of all trees
+    // Write timestamps of all trees. A merged tree has one timestamp for
+    // each of the trees it was merged from.
     for (int iTree = 0; iTree < inTrees.length; iTree++) {
-      outTree.writeLong(inTrees[iTree].readLong());
+      for (int iTimestamp = 0; iTimestamp < cardinalities[iTree]; iTimestamp++)
+        outTree.writeLong(inTrees[iTree].readLong());
     }
     
     // Merge sorted values in all input trees
@@ -600,6 +865,32 @@ public class AggregateQuadTree {
       }
       outputNode.write(outTree);
     }
+
+    if (sketches) {
+      // Merge the sketches of all nodes
+      Histogram[] treeHistograms = new Histogram[inTrees.length];
+      for (int iTree = 0; iTree < inTrees.length; iTree++) {
+        treeHistograms[iTree] = readSketchBins(inTrees[iTree]);
+        if (!treeHistograms[iTree].hasSameBins(treeHistograms[0]))
+          throw new RuntimeException("Tree #0 has sketches with bins that are"
+              + " not compatible with the sketches of Tree #"+iTree);
+      }
+      Histogram outputHistogram = treeHistograms[0].emptyCopy();
+      outTree.writeInt(outputHistogram.counts.length);
+      outTree.writeInt(outputHistogram.minValue);
+      outTree.writeInt(outputHistogram.maxValue);
+      for (int iNode = 0; iNode < numOfNodes; iNode++) {
+        double sumOfSquares = 0;
+        Arrays.fill(outputHistogram.counts, 0);
+        for (int iTree = 0; iTree < inTrees.length; iTree++) {
+          sumOfSquares += inTrees[iTree].readDouble();
+          treeHistograms[iTree].readFields(inTrees[iTree]);
+          outputHistogram.add(treeHistograms[iTree]);
+        }
+        outTree.writeDouble(sumOfSquares);
+        outputHistogram.write(outTree);
+      }
+    }
   }
   
   /**
@@ -653,7 +944,7 @@ public class AggregateQuadTree {
       ResultCollector<PointValue> output) throws IOException {
     long treeStartPosition = in.getPos();
     int numOfResults = 0;
-    int resolution = in.readInt();
+    int resolution = getResolution(in.readInt());
     short fillValue = in.readShort();
     int cardinality = in.readInt();
     long[] timestamps = new long[cardinality];
@@ -757,6 +1048,41 @@ public class AggregateQuadTree {
     }
   }
   
+  /**
+   * Answers an aggregate query for each of the given ranges by reading the
+   * tree only once. The ranges are specified in the two-dimensional array
+   * positions.
+   * @param fs
+   * @param p
+   * @param query_mbrs
+   * @return one result for each query range
+   * @throws IOException
+   */
+  public static Node[] aggregateQuery(FileSystem fs, Path p, Rectangle[] query_mbrs) throws IOException {
+    FSDataInputStream in = null;
+    try {
+      in = new FSDataInputStream(new RandomCompressedInputStream(fs, p));
+      int resolutionField = in.readInt();
+      int resolution = getResolution(resolutionField);
+      short fillValue = in.readShort();
+      int cardinality = in.readInt();
+      Histogram sketch = hasSketches(resolutionField) ?
+          readSketchBins(in, 0, resolution, cardinality) : null;
+      QueryPlan[] plans = new QueryPlan[query_mbrs.length];
+      Node[] results = new Node[query_mbrs.length];
+      for (int i = 0; i < query_mbrs.length; i++) {
+        plans[i] = planAggregateQuery(resolution, query_mbrs[i]);
+        results[i] = new Node();
+      }
+      aggregateQuery(in, 0, fillValue, cardinality, sketch,
+          new BatchQueryPlan(plans), results);
+      return results;
+    } finally {
+      if (in != null)
+        in.close();
+    }
+  }
+
   /**
    * Perform a selection query that retrieves all points in the given range.
    * The range is specified in the two-dimensional array positions. 
@@ -767,135 +1093,324 @@ public class AggregateQuadTree {
    */
   public static Node aggregateQuery(FSDataInputStream in, Rectangle query_mbr) throws IOException {
     long treeStartPosition = in.getPos();
-    Node result = new Node();
-    int numOfSelectedRecords = 0;
-    int resolution = in.readInt();
+    int resolutionField = in.readInt();
+    int resolution = getResolution(resolutionField);
     short fillValue = in.readShort();
     int cardinality = in.readInt();
-    final Vector<Integer> selectedNodesPos = new Vector<Integer>();
-    final Vector<Integer> selectedStarts = new Vector<Integer>();
-    final Vector<Integer> selectedEnds = new Vector<Integer>();
+    Histogram sketch = hasSketches(resolutionField) ? readSketchBins(in,
+        treeStartPosition, resolution, cardinality) : null;
+    QueryPlan plan = planAggregateQuery(resolution, query_mbr);
+    Node result = new Node();
+    aggregateQuery(in, treeStartPosition, fillValue, cardinality, sketch,
+        plan, result);
+    return result;
+  }
+
+  /**
+   * The parts of a tree that are selected by a query range. All trees of the
+   * same resolution share the same structure so a plan that is computed once
+   * can be evaluated against any number of trees, e.g., all the daily trees
+   * of one tile.
+   */
+  public static class QueryPlan {
+    /**The resolution of the trees this plan is computed for*/
+    public final int resolution;
+    /**Positions of nodes completely inside the query range in ascending order*/
+    final int[] nodePositions;
+    /**Ranges of values partially selected from leaf nodes in ascending order*/
+    final int[] recordStarts, recordEnds;
+
+    QueryPlan(int resolution, int[] nodePositions, int[] recordStarts,
+        int[] recordEnds) {
+      this.resolution = resolution;
+      this.nodePositions = nodePositions;
+      this.recordStarts = recordStarts;
+      this.recordEnds = recordEnds;
+    }
+  }
+
+  /**
+   * Computes the nodes and values that need to be read to answer an aggregate
+   * query on any tree of the given resolution. The query region can be given
+   * as several disjoint rectangles, e.g., the runs of a polygon rasterized
+   * to the grid of the tree.
+   * @param resolution
+   * @param query_parts
+   * @return
+   */
+  public static QueryPlan planAggregateQuery(int resolution, Rectangle... query_parts) {
+    IntArray selectedNodesPos = new IntArray();
+    IntArray selectedStarts = new IntArray();
+    IntArray selectedEnds = new IntArray();
     StockQuadTree stockQuadTree = getOrCreateStockQuadTree(resolution);
     // Nodes to be searched. Contains node positions in the array of nodes
-    Stack<Integer> nodes_2b_searched = new Stack<Integer>();
-    nodes_2b_searched.add(0); // Root node (ID=1)
+    IntArray nodes_2b_searched = new IntArray();
     Rectangle node_mbr = new Rectangle();
-    while (!nodes_2b_searched.isEmpty()) {
-      int node_pos = nodes_2b_searched.pop();
-      stockQuadTree.getNodeMBR(node_pos, node_mbr);
-      if (query_mbr.contains(node_mbr)) {
-        // Add this node to the selection list and stop this branch
-        selectedNodesPos.add(node_pos);
-      } else if (query_mbr.intersects(node_mbr)) {
-        int first_child_id = stockQuadTree.nodesID[node_pos] * 4 + 0;
-        int first_child_pos = Arrays.binarySearch(stockQuadTree.nodesID, first_child_id);
-        if (first_child_pos < 0) {
-          // No children. Hit a leaf node
-          // Scan and add matching points only
-          java.awt.Point record_coords = new Point();
-          for (int record_pos = stockQuadTree.nodesStartPosition[node_pos];
-              record_pos < stockQuadTree.nodesEndPosition[node_pos]; record_pos++) {
-            stockQuadTree.getRecordCoords(record_pos, record_coords);
-            if (query_mbr.contains(record_coords)) {
-              // matched a record.
-              if (!selectedEnds.isEmpty()
-                  && selectedEnds.lastElement() == record_pos) {
-                // Merge with an adjacent range
-                selectedEnds.set(selectedEnds.size() - 1, record_pos + 1);
-              } else {
-                // Add a new range of unit width
-                selectedStarts.add(record_pos);
-                selectedEnds.add(record_pos+1);
+    java.awt.Point record_coords = new Point();
+    for (Rectangle query_mbr : query_parts) {
+      nodes_2b_searched.add(0); // Root node (ID=1)
+      while (!nodes_2b_searched.isEmpty()) {
+        int node_pos = nodes_2b_searched.pop();
+        stockQuadTree.getNodeMBR(node_pos, node_mbr);
+        if (query_mbr.contains(node_mbr)) {
+          // Add this node to the selection list and stop this branch
+          selectedNodesPos.add(node_pos);
+        } else if (query_mbr.intersects(node_mbr)) {
+          int first_child_id = stockQuadTree.nodesID[node_pos] * 4 + 0;
+          int first_child_pos = Arrays.binarySearch(stockQuadTree.nodesID, first_child_id);
+          if (first_child_pos < 0) {
+            // No children. Hit a leaf node
+            // Scan and add matching points only
+            for (int record_pos = stockQuadTree.nodesStartPosition[node_pos];
+                record_pos < stockQuadTree.nodesEndPosition[node_pos]; record_pos++) {
+              stockQuadTree.getRecordCoords(record_pos, record_coords);
+              if (query_mbr.contains(record_coords)) {
+                // matched a record.
+                if (!selectedEnds.isEmpty() && selectedEnds.peek() == record_pos) {
+                  // Merge with an adjacent range
+                  selectedEnds.set(selectedEnds.size() - 1, record_pos + 1);
+                } else {
+                  // Add a new range of unit width
+                  selectedStarts.add(record_pos);
+                  selectedEnds.add(record_pos+1);
+                }
               }
-              numOfSelectedRecords++;
             }
+          } else {
+            // Non-leaf node. Add all children to the list of nodes to search
+            // Add in reverse order to the stack so that results come in sorted order
+            nodes_2b_searched.add(first_child_pos+3);
+            nodes_2b_searched.add(first_child_pos+2);
+            nodes_2b_searched.add(first_child_pos+1);
+            nodes_2b_searched.add(first_child_pos+0);
           }
+        }
+      }
+    }
+    // Nodes are visited in Z-order which makes the ranges of values of one
+    // part sorted already. Ranges of several parts need to be sorted.
+    // Node positions are sorted to eliminate backward seeks.
+    selectedNodesPos.sort();
+    int[] starts = selectedStarts.toArray();
+    int[] ends = selectedEnds.toArray();
+    if (query_parts.length > 1) {
+      int[] order = sortByStart(starts);
+      IntArray mergedStarts = new IntArray();
+      IntArray mergedEnds = new IntArray();
+      for (int i : order) {
+        if (!mergedEnds.isEmpty() && mergedEnds.peek() == starts[i]) {
+          mergedEnds.set(mergedEnds.size() - 1, ends[i]);
         } else {
-          // Non-leaf node. Add all children to the list of nodes to search
-          // Add in reverse order to the stack so that results come in sorted order
-          nodes_2b_searched.add(first_child_pos+3);
-          nodes_2b_searched.add(first_child_pos+2);
-          nodes_2b_searched.add(first_child_pos+1);
-          nodes_2b_searched.add(first_child_pos+0);
+          mergedStarts.add(starts[i]);
+          mergedEnds.add(ends[i]);
         }
       }
+      starts = mergedStarts.toArray();
+      ends = mergedEnds.toArray();
     }
-    // Result 1: Accumulate all values
-    // Sort disk offsets to eliminate backward seeks
-    if (!selectedStarts.isEmpty()) {
-      LOG.debug("Aggregate query selected "+selectedNodesPos.size()
-          +" nodes and "+numOfSelectedRecords+" records");
-      
-      final IndexedSortable sortable = new IndexedSortable() {
-        @Override
-        public int compare(int i, int j) {
-          return selectedStarts.get(i) - selectedStarts.get(j);
+    LOG.debug("Aggregate query selected "+selectedNodesPos.size()
+        +" nodes and "+starts.length+" ranges of records");
+    return new QueryPlan(resolution, selectedNodesPos.toArray(), starts, ends);
+  }
+
+  /**
+   * Returns the indexes of the given values in ascending order of values
+   * @param values
+   * @return
+   */
+  private static int[] sortByStart(int[] values) {
+    // Sort the values along with their indexes encoded in one long
+    long[] keys = new long[values.length];
+    for (int i = 0; i < values.length; i++)
+      keys[i] = ((long) values[i] << 32) | i;
+    Arrays.sort(keys);
+    int[] order = new int[values.length];
+    for (int i = 0; i < values.length; i++)
+      order[i] = (int) keys[i];
+    return order;
+  }
+
+  /**
+   * A combination of the plans of several regions on trees of the same
+   * resolution. Each tree is read only once to answer all the regions where
+   * nodes and values shared by several regions are read once.
+   */
+  public static class BatchQueryPlan {
+    /**The resolution of the trees this plan is computed for*/
+    public final int resolution;
+    /**Number of regions in the batch*/
+    public final int numRegions;
+    /**Distinct positions of all selected nodes in ascending order*/
+    final int[] nodePositions;
+    /**
+     * The regions that select the node at nodePositions[i] are stored in
+     * nodeRegions in the range [nodeRegionsStart[i], nodeRegionsStart[i+1])
+     */
+    final int[] nodeRegionsStart, nodeRegions;
+    /**Ranges of values of all regions in ascending order of start*/
+    final int[] rangeStarts, rangeEnds;
+    /**The region of each range*/
+    final int[] rangeRegions;
+
+    public BatchQueryPlan(QueryPlan[] plans) {
+      this.numRegions = plans.length;
+      this.resolution = plans.length == 0 ? 0 : plans[0].resolution;
+      // Combine all nodes
+      IntArray allNodes = new IntArray();
+      IntArray allNodeRegions = new IntArray();
+      IntArray allStarts = new IntArray();
+      IntArray allEnds = new IntArray();
+      IntArray allRangeRegions = new IntArray();
+      for (int iRegion = 0; iRegion < plans.length; iRegion++) {
+        if (plans[iRegion].resolution != resolution)
+          throw new RuntimeException("All plans in a batch should have the same resolution");
+        for (int node_pos : plans[iRegion].nodePositions) {
+          allNodes.add(node_pos);
+          allNodeRegions.add(iRegion);
         }
-        
-        @Override
-        public void swap(int i, int j) {
-          int temp = selectedStarts.get(i);
-          selectedStarts.set(i, selectedStarts.get(j));
-          selectedStarts.set(j, temp);
-          
-          temp = selectedEnds.get(i);
-          selectedEnds.set(i, selectedEnds.get(j));
-          selectedEnds.set(j, temp);
+        for (int iRange = 0; iRange < plans[iRegion].recordStarts.length; iRange++) {
+          allStarts.add(plans[iRegion].recordStarts[iRange]);
+          allEnds.add(plans[iRegion].recordEnds[iRange]);
+          allRangeRegions.add(iRegion);
         }
-      };
-      new QuickSort().sort(sortable, 0, selectedStarts.size());
-      
-      long dataStartPosition = getValuesStartOffset(cardinality);
-      Point resultCoords = new Point();
-      // Return all values in the selected ranges
-      for (int iRange = 0; iRange < selectedStarts.size(); iRange++) {
-        int treeStart = selectedStarts.get(iRange);
-        int treeEnd = selectedEnds.get(iRange);
-        long startPosition = dataStartPosition
-            + selectedStarts.get(iRange) * cardinality * 2;
-        in.seek(startPosition);
-        for (int treePos = treeStart; treePos < treeEnd; treePos++) {
-          // Retrieve the coords for the point at treePos
-          stockQuadTree.getRecordCoords(treePos, resultCoords);
-          // Read all entries at current position
-          for (int iValue = 0; iValue < cardinality; iValue++) {
-            short value = in.readShort();
-            if (value != fillValue)
-              result.accumulate(value);
+      }
+      // Group regions by node
+      int[] nodeOrder = sortByStart(allNodes.toArray());
+      IntArray distinctNodes = new IntArray();
+      IntArray regionsStart = new IntArray();
+      nodeRegions = new int[nodeOrder.length];
+      for (int i = 0; i < nodeOrder.length; i++) {
+        int node_pos = allNodes.get(nodeOrder[i]);
+        if (distinctNodes.isEmpty() || distinctNodes.peek() != node_pos) {
+          distinctNodes.add(node_pos);
+          regionsStart.add(i);
+        }
+        nodeRegions[i] = allNodeRegions.get(nodeOrder[i]);
+      }
+      regionsStart.add(nodeOrder.length);
+      nodePositions = distinctNodes.toArray();
+      nodeRegionsStart = regionsStart.toArray();
+      // Sort all ranges by their start
+      int[] rangeOrder = sortByStart(allStarts.toArray());
+      rangeStarts = new int[rangeOrder.length];
+      rangeEnds = new int[rangeOrder.length];
+      rangeRegions = new int[rangeOrder.length];
+      for (int i = 0; i < rangeOrder.length; i++) {
+        rangeStarts[i] = allStarts.get(rangeOrder[i]);
+        rangeEnds[i] = allEnds.get(rangeOrder[i]);
+        rangeRegions[i] = allRangeRegions.get(rangeOrder[i]);
+      }
+    }
+  }
+
+  /**
+   * Evaluates an aggregate query plan against one tree and accumulates the
+   * answer to the given result.
+   * @param in the input stream that contains the tree
+   * @param treeStartPosition the position of the tree in the input stream
+   * @param fillValue the fill value as stored in the tree header
+   * @param cardinality the cardinality as stored in the tree header
+   * @param sketch the bins of the sketches of the tree or null if it has none
+   * @param plan a plan computed for the resolution of the tree
+   * @param result the node to accumulate the answer into
+   * @throws IOException
+   */
+  static void aggregateQuery(FSDataInputStream in, long treeStartPosition,
+      short fillValue, int cardinality, Histogram sketch, QueryPlan plan,
+      Node result) throws IOException {
+    aggregateQuery(in, treeStartPosition, fillValue, cardinality, sketch,
+        new BatchQueryPlan(new QueryPlan[] {plan}), new Node[] {result});
+  }
+
+  /**
+   * Evaluates a batch of aggregate queries against one tree in a single
+   * pass and accumulates the answer of each region to its result.
+   * @param in the input stream that contains the tree
+   * @param treeStartPosition the position of the tree in the input stream
+   * @param fillValue the fill value as stored in the tree header
+   * @param cardinality the cardinality as stored in the tree header
+   * @param sketch the bins of the sketches of the tree or null if it has none
+   * @param plan a plan computed for the resolution of the tree
+   * @param results one node for each region to accumulate its answer into
+   * @throws IOException
+   */
+  static void aggregateQuery(FSDataInputStream in, long treeStartPosition,
+      short fillValue, int cardinality, Histogram sketch, BatchQueryPlan plan,
+      Node[] results) throws IOException {
+    if (sketch != null) {
+      // Empty results start a histogram that is maintained while they
+      // accumulate values and sketches of this tree
+      for (Node result : results) {
+        if (result.count == 0 && (result.histogram == null ||
+            !result.histogram.hasSameBins(sketch)))
+          result.histogram = sketch.emptyCopy();
+      }
+    }
+    // Result 1: Accumulate all values
+    if (plan.rangeStarts.length > 0) {
+      long dataStartPosition = treeStartPosition + getValuesStartOffset(cardinality);
+      int recordSize = cardinality * ValueSize;
+      byte[] buffer = new byte[Math.max(recordSize, 
+          Math.min(1024 * 1024, maxRangeLength(plan) * recordSize))];
+      int recordsPerChunk = buffer.length / recordSize;
+      int i1 = 0;
+      while (i1 < plan.rangeStarts.length) {
+        // Find a run of overlapping ranges [i1, i2) and read their union once
+        int unionStart = plan.rangeStarts[i1];
+        int unionEnd = plan.rangeEnds[i1];
+        int i2 = i1 + 1;
+        while (i2 < plan.rangeStarts.length && plan.rangeStarts[i2] <= unionEnd)
+          unionEnd = Math.max(unionEnd, plan.rangeEnds[i2++]);
+        in.seek(dataStartPosition + (long) unionStart * recordSize);
+        for (int chunkStart = unionStart; chunkStart < unionEnd; chunkStart += recordsPerChunk) {
+          int chunkEnd = Math.min(unionEnd, chunkStart + recordsPerChunk);
+          in.readFully(buffer, 0, (chunkEnd - chunkStart) * recordSize);
+          for (int iRange = i1; iRange < i2; iRange++) {
+            int start = Math.max(plan.rangeStarts[iRange], chunkStart);
+            int end = Math.min(plan.rangeEnds[iRange], chunkEnd);
+            Node result = results[plan.rangeRegions[iRange]];
+            for (int i = (start - chunkStart) * recordSize;
+                i < (end - chunkStart) * recordSize; i += ValueSize) {
+              short value = (short) (((buffer[i] & 0xff) << 8) | (buffer[i + 1] & 0xff));
+              if (value != fillValue)
+                result.accumulate(value);
+            }
           }
         }
+        i1 = i2;
       }
-      
     }
     
     // Result 2: Accumulate all nodes
-    if (!selectedNodesPos.isEmpty()) {
-      long nodesStartPosition = treeStartPosition + getNodesStartOffset(resolution, cardinality);
-      // Sort node positions to eliminate backward seeks
-      IndexedSortable nodeSortable = new IndexedSortable() {
-        @Override
-        public int compare(int i, int j) {
-          return selectedNodesPos.get(i) - selectedNodesPos.get(j);
-        }
-        
-        @Override
-        public void swap(int i, int j) {
-          int temp = selectedNodesPos.get(i);
-          selectedNodesPos.set(i, selectedNodesPos.get(j));
-          selectedNodesPos.set(j, temp);
-        }
-      };
-      new QuickSort().sort(nodeSortable, 0, selectedNodesPos.size());
-      
+    if (plan.nodePositions.length > 0) {
+      long nodesStartPosition = treeStartPosition
+          + getNodesStartOffset(plan.resolution, cardinality);
+      long sketchesStartPosition = treeStartPosition + SketchesHeaderSize
+          + getSketchesStartOffset(plan.resolution, cardinality);
+      Histogram nodeHistogram = sketch == null ? null : sketch.emptyCopy();
+      int sketchSize = sketch == null ? 0 : 8 + sketch.counts.length * 8;
       Node selectedNode = new Node();
-      for (int node_pos : selectedNodesPos) {
-        long nodePosition = nodesStartPosition + node_pos * NodeSize;
+      for (int iNode = 0; iNode < plan.nodePositions.length; iNode++) {
+        long nodePosition = nodesStartPosition + (long) plan.nodePositions[iNode] * NodeSize;
         in.seek(nodePosition);
         selectedNode.readFields(in);
-        result.accumulate(selectedNode);
+        if (sketch != null && selectedNode.count > 0) {
+          in.seek(sketchesStartPosition + (long) plan.nodePositions[iNode] * sketchSize);
+          selectedNode.sumOfSquares = in.readDouble();
+          nodeHistogram.readFields(in);
+          selectedNode.histogram = nodeHistogram;
+        }
+        for (int i = plan.nodeRegionsStart[iNode]; i < plan.nodeRegionsStart[iNode + 1]; i++)
+          results[plan.nodeRegions[i]].accumulate(selectedNode);
       }
     }
-    return result;
+  }
+
+  private static int maxRangeLength(BatchQueryPlan plan) {
+    int max = 0;
+    for (int iRange = 0; iRange < plan.rangeStarts.length; iRange++)
+      max = Math.max(max, plan.rangeEnds[iRange] - plan.rangeStarts[iRange]);
+    return max;
   }
   
   /**
@@ -998,7 +1513,14 @@ public class AggregateQuadTree {
   }
   
   /**
-   * Merges a set of indexes into larger indexes
+   * Merges a set of indexes into larger indexes. Each destination index
+   * (e.g., a month) is always merged from all the source indexes it contains
+   * (e.g., all the available days in that month) even if only some of them
+   * are in the time range of the parameters. This keeps the hierarchy
+   * correct when it is maintained incrementally as new days arrive. A
+   * destination tree is only rebuilt if any of its source trees is newer or
+   * if the number of its source trees changed. Destination indexes and tiles
+   * that no longer have any source are deleted.
    * @param fs
    * @param srcIndexDir
    * @param dstIndexDir
@@ -1009,21 +1531,24 @@ public class AggregateQuadTree {
    * @throws ParseException
    * @throws InterruptedException
    */
-  private static void mergeIndexes(final FileSystem fs, Path srcIndexDir,
+  static void mergeIndexes(final FileSystem fs, Path srcIndexDir,
       Path dstIndexDir, SimpleDateFormat srcFormat, SimpleDateFormat dstFormat,
       final OperationsParams params)
       throws IOException, ParseException, InterruptedException {
     TimeRange timeRange = params.get("time") != null? new TimeRange(params.get("time")) : null;
-    final FileStatus[] sourceIndexes = timeRange == null?
-        fs.listStatus(srcIndexDir) : fs.listStatus(srcIndexDir, timeRange);
+    final FileStatus[] sourceIndexes = fs.listStatus(srcIndexDir);
     Arrays.sort(sourceIndexes); // Alphabetical sort acts as sort-by-date here
     
+    /*A regular expression to catch the tile identifier of a MODIS grid cell*/
+    final Pattern MODISTileID = Pattern.compile("^.*(h\\d\\dv\\d\\d).*$"); 
     // Scan the source indexes and merge each consecutive run belonging to the
     // same unit
+    Set<String> indexesWithSources = new HashSet<String>();
     int i1 = 0;
     while (i1 < sourceIndexes.length) {
       final String indexToCreate =
           dstFormat.format(srcFormat.parse(sourceIndexes[i1].getPath().getName()));
+      indexesWithSources.add(indexToCreate);
       int i2 = i1+1;
       // Keep scanning as long as the source index belongs to the same dest index
       while (i2 < sourceIndexes.length &&
@@ -1031,60 +1556,55 @@ public class AggregateQuadTree {
         i2++;
 
       // Merge all source indexes in the range [i1, i2) into one dest index
-      
-      // Copy i1, i2 to other variables as final to be accessible from threads
-      final int firstIndex = i1;
-      final int lastIndex = i2;
+      // only if the dest index has at least one source that overlaps the
+      // time range
+      boolean inTimeRange = timeRange == null;
+      for (int i = i1; !inTimeRange && i < i2; i++)
+        inTimeRange = timeRange.overlaps(sourceIndexes[i].getPath());
+      if (!inTimeRange) {
+        i1 = i2;
+        continue;
+      }
       
       final Path destIndex = new Path(dstIndexDir, indexToCreate);
       
-      // For each tile, merge all values in all source indexes
-      /*A regular expression to catch the tile identifier of a MODIS grid cell*/
-      final Pattern MODISTileID = Pattern.compile("^.*(h\\d\\dv\\d\\d).*$"); 
-      final FileStatus[] tilesInFirstDay = fs.listStatus(sourceIndexes[i1].getPath());
-      // Shuffle the array for better load balancing across threads
-      Random rand = new Random();
-      for (int i = 0; i < tilesInFirstDay.length - 1; i++) {
-        // Swap the entry at i with any following entry
-        int j = i + rand.nextInt(tilesInFirstDay.length - i - 1);
-        FileStatus temp = tilesInFirstDay[i];
-        tilesInFirstDay[i] = tilesInFirstDay[j];
-        tilesInFirstDay[j] = temp;
+      // Group the files of all source indexes by tile. Each source directory
+      // is listed only once and tiles missing in some source are still merged
+      final Map<String, Vector<Path>> filesByTile = new HashMap<String, Vector<Path>>();
+      for (int i = i1; i < i2; i++) {
+        for (FileStatus tileFile : fs.listStatus(sourceIndexes[i].getPath())) {
+          Matcher matcher = MODISTileID.matcher(tileFile.getPath().getName());
+          if (!matcher.matches()) {
+            LOG.warn("Cannot extract tile id from file "+tileFile.getPath());
+            continue;
+          }
+          Vector<Path> tileFiles = filesByTile.get(matcher.group(1));
+          if (tileFiles == null)
+            filesByTile.put(matcher.group(1), tileFiles = new Vector<Path>());
+          tileFiles.add(tileFile.getPath());
+        }
       }
-      Parallel.forEach(tilesInFirstDay.length, new RunnableRange<Object>() {
+      // Delete the destination tiles that no longer appear in any source
+      if (fs.exists(destIndex)) {
+        for (FileStatus destFile : fs.listStatus(destIndex)) {
+          Matcher matcher = MODISTileID.matcher(destFile.getPath().getName());
+          if (matcher.matches() && !filesByTile.containsKey(matcher.group(1))) {
+            LOG.info("Deleting file "+destFile.getPath()+" with no sources");
+            fs.delete(destFile.getPath(), false);
+          }
+        }
+      }
+      final Vector<String> tileIDs = new Vector<String>(filesByTile.keySet());
+      // Shuffle the array for better load balancing across threads
+      Collections.shuffle(tileIDs);
+      Parallel.forEach(tileIDs.size(), new RunnableRange<Object>() {
         @Override
         public Object run(int i_file1, int i_file2) {
           for (int i_file = i_file1; i_file < i_file2; i_file++) {
             try {
-              FileStatus tileInFirstDay = tilesInFirstDay[i_file];
-              
-              // Extract tile ID
-              Matcher matcher = MODISTileID.matcher(tileInFirstDay.getPath().getName());
-              if (!matcher.matches()) {
-                LOG.warn("Cannot extract tile id from file "+tileInFirstDay.getPath());
-                continue;
-              }
-
-              final String tileID = matcher.group(1);
+              String tileID = tileIDs.get(i_file);
               Path destIndexFile = new Path(destIndex, tileID);
-              
-              PathFilter tileFilter = new PathFilter() {
-                @Override
-                public boolean accept(Path path) {
-                  return path.getName().contains(tileID);
-                }
-              };
-
-              // Find matching tiles in all source indexes to merge
-              Vector<Path> filesToMerge = new Vector<Path>(lastIndex - firstIndex);
-              filesToMerge.add(tileInFirstDay.getPath());
-              for (int iDailyIndex = firstIndex + 1; iDailyIndex < lastIndex; iDailyIndex++) {
-                FileStatus[] matchedTileFile = fs.listStatus(sourceIndexes[iDailyIndex].getPath(), tileFilter);
-                if (matchedTileFile.length == 0)
-                  LOG.warn("Could not find tile "+tileID+" in dir "+sourceIndexes[iDailyIndex].getPath());
-                else if (matchedTileFile.length == 1)
-                  filesToMerge.add(matchedTileFile[0].getPath());
-              }
+              Vector<Path> filesToMerge = filesByTile.get(tileID);
               
               if (fs.exists(destIndexFile)) {
                 // Destination file already exists
@@ -1092,13 +1612,19 @@ public class AggregateQuadTree {
                 // whether it needs to be updated or not
                 long destTimestamp = fs.getFileStatus(destIndexFile).getModificationTime();
                 boolean needsUpdate = false;
+                int sourcesCardinality = 0;
                 for (Path fileToMerge : filesToMerge) {
                   long sourceTimestamp = fs.getFileStatus(fileToMerge).getModificationTime();
                   if (sourceTimestamp > destTimestamp) {
                     needsUpdate = true;
                     break;
                   }
+                  sourcesCardinality += getCardinality(fs, fileToMerge);
                 }
+                // A source that was removed or added with an older timestamp
+                // changes the number of trees merged in the destination
+                if (!needsUpdate)
+                  needsUpdate = sourcesCardinality != getCardinality(fs, destIndexFile);
                 if (!needsUpdate)
                   continue;
                 else
@@ -1119,6 +1645,8 @@ public class AggregateQuadTree {
                 if (!fs.exists(destDir))
                   fs.mkdirs(destDir);
               }
+              if (fs.exists(destIndexFile))
+                fs.delete(destIndexFile, false);
               fs.rename(tmpFile, destIndexFile);
             } catch (IOException e) {
               e.printStackTrace();
@@ -1129,6 +1657,25 @@ public class AggregateQuadTree {
       });
       i1 = i2;
     }
+
+    // Delete the destination indexes that no longer have any source
+    if (fs.exists(dstIndexDir)) {
+      for (FileStatus destIndex : fs.listStatus(dstIndexDir)) {
+        String destName = destIndex.getPath().getName();
+        if (!destIndex.isDirectory() || indexesWithSources.contains(destName))
+          continue;
+        try {
+          if (!dstFormat.format(dstFormat.parse(destName)).equals(destName))
+            continue;
+        } catch (ParseException e) {
+          continue;
+        }
+        if (timeRange != null && !timeRange.overlaps(destIndex.getPath()))
+          continue;
+        LOG.info("Deleting index "+destIndex.getPath()+" with no sources");
+        fs.delete(destIndex.getPath(), true);
+      }
+    }
   }
 
   /**
@@ -1158,7 +1705,7 @@ public class AggregateQuadTree {
     try {
       inStream = new FSDataInputStream(new RandomCompressedInputStream(fs, p));
       //inStream = fs.open(p);
-      int resolution = inStream.readInt();
+      int resolution = getResolution(inStream.readInt());
       return resolution;
     } finally {
       if (inStream != null)
@@ -1166,6 +1713,27 @@ public class AggregateQuadTree {
     }
   }
 
+  /**
+   * Returns the number of trees that were merged into the given tree file
+   * as stored in its header.
+   * @param fs
+   * @param p
+   * @return
+   * @throws IOException
+   */
+  public static int getCardinality(FileSystem fs, Path p) throws IOException {
+    FSDataInputStream inStream = null;
+    try {
+      inStream = new FSDataInputStream(new RandomCompressedInputStream(fs, p));
+      inStream.readInt(); // Resolution
+      inStream.readShort(); // Fill value
+      return inStream.readInt();
+    } finally {
+      if (inStream != null)
+        inStream.close();
+    }
+  }
+
   public static void main(String[] args) throws IOException, ParseException, InterruptedException {
     OperationsParams params = new OperationsParams(new GenericOptionsParser(args), false);
     directoryIndexer(params);
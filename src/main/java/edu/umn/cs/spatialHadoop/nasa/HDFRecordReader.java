@@ -36,6 +36,7 @@ import edu.umn.cs.spatialHadoop.hdf.DDVGroup;
 import edu.umn.cs.spatialHadoop.hdf.DataDescriptor;
 import edu.umn.cs.spatialHadoop.hdf.HDFConstants;
 import edu.umn.cs.spatialHadoop.hdf.HDFFile;
+import edu.umn.cs.spatialHadoop.mapreduce.SpatialInputFormat3;
 import edu.umn.cs.spatialHadoop.util.BitArray;
 import edu.umn.cs.spatialHadoop.util.FileUtil;
 import edu.umn.cs.spatialHadoop.util.ShortArray;
@@ -65,9 +66,16 @@ public class HDFRecordReader<S extends NASAShape>
   /**
    * The raw data (unparsed) of the underlying dataset. We have to keep it as
    * an unparsed byte array because Java has very limited support to generic
-   * arrays of primitive data types.
+   * arrays of primitive data types. The array is reused across the files of
+   * a combined split and can be larger than the data it currently holds.
    */
   private byte[] unparsedDataArray;
+
+  /**Number of valid bytes in the unparsed data array*/
+  private int dataLength;
+
+  /**Index of the first row of the dataset stored in the unparsed data array*/
+  private int firstRow;
   
   /**Number of bytes per data entry*/
   private int valueSize;
@@ -175,30 +183,43 @@ public class HDFRecordReader<S extends NASAShape>
         }
       }
     }
+    // Whether we need to recover fill values or not
+    boolean recoverFillValues = fillValueFound &&
+        conf.getBoolean("recoverholes", true);
     // Retrieve data
     for (DataDescriptor dd : dataGroup.getContents()) {
       if (dd instanceof DDNumericDataGroup) {
         DDNumericDataGroup numericDataGroup = (DDNumericDataGroup) dd;
         valueSize = numericDataGroup.getDataSize();
         resolution = numericDataGroup.getDimensions()[0];
-        unparsedDataArray = new byte[valueSize * resolution * resolution];
+        nasaDataset.resolution = resolution;
+        // Recovering fill values interpolates along whole columns so it
+        // needs all the rows. Otherwise, decode only the rows in the query.
+        int[] rowRange = {0, resolution};
+        if (!recoverFillValues && conf.get(SpatialInputFormat3.InputQueryRange) != null) {
+          Shape queryRange = OperationsParams.getShape(conf, SpatialInputFormat3.InputQueryRange);
+          rowRange = overlappingRows(nasaDataset, queryRange.getMBR());
+        }
+        firstRow = rowRange[0];
+        int rowSize = valueSize * resolution;
+        dataLength = rowSize * (rowRange[1] - rowRange[0]);
+        if (unparsedDataArray == null || unparsedDataArray.length < dataLength)
+          unparsedDataArray = new byte[dataLength];
         if (fillValueFound) {
           fillValueBytes = new byte[valueSize];
           HDFConstants.writeAt(fillValueBytes, 0, fillValuee, valueSize);
-          for (int i = 0; i < unparsedDataArray.length; i++)
+          for (int i = 0; i < dataLength; i++)
             unparsedDataArray[i] = fillValueBytes[i % valueSize];
         }
-        numericDataGroup.getAsByteArray(unparsedDataArray, 0, unparsedDataArray.length);
+        numericDataGroup.getAsByteArray((long) firstRow * rowSize,
+            unparsedDataArray, 0, dataLength);
       }
     }
     
-    nasaDataset.resolution = resolution;
     if (!fillValueFound) {
       skipFillValue = false;
     } else {
       skipFillValue = conf.getBoolean("skipfill", true);
-      // Whether we need to recover fill values or not
-      boolean recoverFillValues = conf.getBoolean("recoverholes", true);
       if (recoverFillValues)
         recoverFillValues(conf);
     }
@@ -220,7 +241,7 @@ public class HDFRecordReader<S extends NASAShape>
 
   @Override
   public float getProgress() throws IOException, InterruptedException {
-    return unparsedDataArray == null? 0 : (float) position / unparsedDataArray.length;
+    return dataLength == 0? 0 : (float) position / dataLength;
   }
 
   @Override
@@ -243,6 +264,24 @@ public class HDFRecordReader<S extends NASAShape>
     }
   }
   
+  /**
+   * Computes the range of rows in the given dataset that overlap the given
+   * query range. Rows are only filtered along the y-axis because the
+   * sinusoidal projection makes the x-range of each row different.
+   * @param dataset
+   * @param queryRange
+   * @return the first row (inclusive) and the last row (exclusive)
+   */
+  static int[] overlappingRows(NASADataset dataset, Rectangle queryRange) {
+    double top = 90 - dataset.v * 10;
+    double rowHeight = 10.0 / dataset.resolution;
+    int row1 = (int) Math.floor((top - queryRange.y2) / rowHeight);
+    int row2 = (int) Math.ceil((top - queryRange.y1) / rowHeight);
+    row1 = Math.max(0, Math.min(dataset.resolution, row1));
+    row2 = Math.max(row1, Math.min(dataset.resolution, row2));
+    return new int[] {row1, row2};
+  }
+
   /**
    * Sets the geometry information for the given object according to its
    * position in the array
@@ -250,7 +289,7 @@ public class HDFRecordReader<S extends NASAShape>
    * @param position
    */
   protected void setShapeGeometry(Shape s, int position) {
-    position /= valueSize;
+    position = position / valueSize + firstRow * nasaDataset.resolution;
     int row = position / nasaDataset.resolution;
     int col = position % nasaDataset.resolution;
     if (s instanceof Point) {
@@ -303,7 +342,7 @@ public class HDFRecordReader<S extends NASAShape>
     }
     
     private void skipFillValue() {
-      while (position < unparsedDataArray.length
+      while (position < dataLength
           && skipFillValue && isFillValue(position))
         position += valueSize;
     }
@@ -315,7 +354,7 @@ public class HDFRecordReader<S extends NASAShape>
     
     @Override
     public boolean hasNext() {
-      return position < unparsedDataArray.length;
+      return position < dataLength;
     }
     
     @Override
@@ -387,7 +426,7 @@ public class HDFRecordReader<S extends NASAShape>
       BitArray waterMaskBits = convertWaterMaskToBits(ByteBuffer.wrap(waterMask), size);
       
       short fillValueShort = (short) HDFConstants.readAsInteger(fillValueBytes, 0, fillValueBytes.length);
-      recoverXYShorts(ByteBuffer.wrap(unparsedDataArray), fillValueShort, waterMaskBits);
+      recoverXYShorts(ByteBuffer.wrap(unparsedDataArray, 0, dataLength), fillValueShort, waterMaskBits);
     } finally {
       if (waterMaskFile != null)
         waterMaskFile.close();
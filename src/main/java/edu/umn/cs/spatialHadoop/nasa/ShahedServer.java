@@ -207,6 +207,13 @@ public class ShahedServer extends AbstractHandler {
         writer.print("\"max\": "+result.max+',');
         writer.print("\"count\": "+result.count+',');
         writer.print("\"sum\": "+result.sum);
+        // Statistics that are only available for trees built with sketches
+        if (!Double.isNaN(result.getVariance()))
+          writer.print(",\"variance\": "+result.getVariance());
+        if (!Double.isNaN(result.getQuantile(0.5))) {
+          writer.print(",\"median\": "+result.getQuantile(0.5));
+          writer.print(",\"p95\": "+result.getQuantile(0.95));
+        }
       }
       writer.print("},");
       writer.print("\"stats\":{");
@@ -10,7 +10,9 @@ package edu.umn.cs.spatialHadoop.nasa;
 
 import java.io.IOException;
 import java.text.ParseException;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Vector;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -23,10 +25,17 @@ import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.PathFilter;
 import org.apache.hadoop.util.GenericOptionsParser;
 
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+
 import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.OGCJTSShape;
 import edu.umn.cs.spatialHadoop.core.Point;
 import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.ResultCollector;
+import edu.umn.cs.spatialHadoop.core.Shape;
 import edu.umn.cs.spatialHadoop.nasa.AggregateQuadTree.Node;
 import edu.umn.cs.spatialHadoop.temporal.TemporalIndex;
 import edu.umn.cs.spatialHadoop.temporal.TemporalIndex.TemporalPartition;
@@ -48,6 +57,13 @@ public class SpatioAggregateQueries {
   public static int numOfTreesTouchesInLastRequest;
   /**Keeps track of number of temporal partitions matched by last query as stats*/
   public static int numOfTemporalPartitionsInLastQuery; 
+  /**The name of the configuration line that sets the maximum number of tree
+   * files kept open between queries*/
+  public static final String TreePoolCapacity = "SpatioAggregateQueries.TreePoolCapacity";
+  /**The default maximum number of tree files kept open between queries*/
+  private static final int DefaultTreePoolCapacity = 256;
+  /**Tree files kept open to be shared by all aggregate queries*/
+  private static final TreeFilePool TreePool = new TreeFilePool(DefaultTreePoolCapacity);
 
 
   /**
@@ -59,12 +75,19 @@ public class SpatioAggregateQueries {
    * @throws InterruptedException 
    */
   public static AggregateQuadTree.Node aggregateQuery(Path inFile, OperationsParams params) throws ParseException, IOException, InterruptedException {
-    // 1- Find matching temporal partitions
-    final FileSystem fs = inFile.getFileSystem(params);
-    Vector<Path> matchingPartitions = selectTemporalPartitions(inFile, params);
-    
-    // 2- Find all matching files (AggregateQuadTrees) in matching partitions
-    final Rectangle spatialRange = params.getShape("rect", new Rectangle()).getMBR();
+    Shape[] regions = {params.getShape("rect", new Rectangle()).getMBR()};
+    Node[] results = aggregateQuery(inFile, regions, params);
+    return results == null ? null : results[0];
+  }
+
+  /**
+   * Converts a rectangle in the lat/lng space to the h v space of the
+   * MODIS Sinusoidal grid where each tile is a unit square.
+   * @param mbr
+   * @return
+   */
+  static Rectangle toModisSpace(Rectangle mbr) {
+    Rectangle spatialRange = mbr.clone();
     // Convert spatialRange from lat/lng space to Sinusoidal space
     double cosPhiRad = Math.cos(spatialRange.y1 * Math.PI / 180);
     double southWest = spatialRange.x1 * cosPhiRad;
@@ -83,11 +106,95 @@ public class SpatioAggregateQueries {
     double tmp = spatialRange.y2;
     spatialRange.y2 = spatialRange.y1;
     spatialRange.y1 = tmp;
-    // Find the range of cells in MODIS Sinusoidal grid overlapping the range
-    final int h1 = (int) Math.floor(spatialRange.x1);
-    final int h2 = (int) Math.ceil(spatialRange.x2);
-    final int v1 = (int) Math.floor(spatialRange.y1);
-    final int v2 = (int) Math.ceil(spatialRange.y2);
+    return spatialRange;
+  }
+
+  /**
+   * Computes the part of a region that falls in one tile as a set of disjoint
+   * rectangles in the grid of the tile. A rectangular region is clipped to
+   * the tile. Any other region is rasterized to runs of pixels, one row at a
+   * time, where a pixel is selected if its center is inside the region.
+   * @param region the query region in the lat/lng space
+   * @param modisRange the MBR of the region in the h v space
+   * @param h
+   * @param v
+   * @param resolution
+   * @return
+   */
+  static java.awt.Rectangle[] rasterize(Shape region, Rectangle modisRange,
+      int h, int v, int resolution) {
+    // Clip the query region and normalize in this tile
+    Rectangle translated = modisRange.translate(-h, -v);
+    int x1 = (int) (Math.max(translated.x1, 0) * resolution);
+    int y1 = (int) (Math.max(translated.y1, 0) * resolution);
+    int x2 = (int) (Math.min(translated.x2, 1.0) * resolution);
+    int y2 = (int) (Math.min(translated.y2, 1.0) * resolution);
+    if (x1 >= x2 || y1 >= y2)
+      return new java.awt.Rectangle[0];
+    if (region instanceof Rectangle)
+      return new java.awt.Rectangle[] {
+          new java.awt.Rectangle(x1, y1, (x2 - x1), (y2 - y1))};
+    // Test all pixels partially covered by the MBR
+    x2 = (int) Math.ceil(Math.min(translated.x2, 1.0) * resolution);
+    y2 = (int) Math.ceil(Math.min(translated.y2, 1.0) * resolution);
+    // Polygons are prepared to speed up the many point tests
+    GeometryFactory factory = new GeometryFactory();
+    PreparedGeometry prepared = null;
+    if (region instanceof OGCJTSShape && ((OGCJTSShape) region).geom != null)
+      prepared = PreparedGeometryFactory.prepare(((OGCJTSShape) region).geom);
+    Vector<java.awt.Rectangle> runs = new Vector<java.awt.Rectangle>();
+    Point pixelCenter = new Point();
+    for (int y = y1; y < y2; y++) {
+      pixelCenter.y = 90.0 - (v + (y + 0.5) / resolution) * 10.0;
+      double cosPhi = Math.cos(pixelCenter.y * Math.PI / 180);
+      int runStart = -1;
+      for (int x = x1; x <= x2; x++) {
+        boolean inside = false;
+        if (x < x2) {
+          double sinusoidalX = (h + (x + 0.5) / resolution) * 10.0 - 180.0;
+          pixelCenter.x = sinusoidalX / cosPhi;
+          if (pixelCenter.x < -180 || pixelCenter.x > 180)
+            inside = false;
+          else if (prepared != null)
+            inside = prepared.intersects(factory.createPoint(
+                new Coordinate(pixelCenter.x, pixelCenter.y)));
+          else
+            inside = region.isIntersected(pixelCenter);
+        }
+        if (inside && runStart == -1) {
+          runStart = x;
+        } else if (!inside && runStart != -1) {
+          runs.add(new java.awt.Rectangle(runStart, y, x - runStart, 1));
+          runStart = -1;
+        }
+      }
+    }
+    return runs.toArray(new java.awt.Rectangle[runs.size()]);
+  }
+
+  /**
+   * Performs a spatio-temporal aggregate query for a batch of regions on an
+   * indexed directory. Each matching tree is read only once to answer all
+   * the regions that overlap its tile. Regions that are not rectangles are
+   * rasterized to the grid of the trees.
+   * @param inFile
+   * @param regions the query regions in the lat/lng space
+   * @param params
+   * @return one result per region or null if no trees match the query
+   * @throws ParseException 
+   * @throws IOException 
+   * @throws InterruptedException 
+   */
+  public static Node[] aggregateQuery(Path inFile, final Shape[] regions,
+      OperationsParams params) throws ParseException, IOException, InterruptedException {
+    // 1- Find matching temporal partitions
+    final FileSystem fs = inFile.getFileSystem(params);
+    Vector<Path> matchingPartitions = selectTemporalPartitions(inFile, params);
+    
+    // 2- Find all matching files (AggregateQuadTrees) in matching partitions
+    final Rectangle[] modisRanges = new Rectangle[regions.length];
+    for (int i = 0; i < regions.length; i++)
+      modisRanges[i] = toModisSpace(regions[i].getMBR());
     PathFilter rangeFilter = new PathFilter() {
       @Override
       public boolean accept(Path p) {
@@ -96,17 +203,24 @@ public class SpatioAggregateQueries {
           return false;
         int h = Integer.parseInt(matcher.group(1));
         int v = Integer.parseInt(matcher.group(2));
-        return h >= h1 && h < h2 && v >= v1 && v < v2;
+        // Find the range of cells in MODIS Sinusoidal grid overlapping each range
+        for (Rectangle modisRange : modisRanges) {
+          if (h >= (int) Math.floor(modisRange.x1) && h < (int) Math.ceil(modisRange.x2) &&
+              v >= (int) Math.floor(modisRange.y1) && v < (int) Math.ceil(modisRange.y2))
+            return true;
+        }
+        return false;
       }
     };
 
-    final Vector<Path> allMatchingFiles = new Vector<Path>();
+    // Keep the listed status of each file to check pooled trees against it
+    final Vector<FileStatus> allMatchingFiles = new Vector<FileStatus>();
     
     for (Path matchingPartition : matchingPartitions) {
       // Select all matching files
       FileStatus[] matchingFiles = fs.listStatus(matchingPartition, rangeFilter);
       for (FileStatus matchingFile : matchingFiles) {
-        allMatchingFiles.add(matchingFile.getPath());
+        allMatchingFiles.add(matchingFile);
       }
     }
 
@@ -114,42 +228,62 @@ public class SpatioAggregateQueries {
     if (allMatchingFiles.isEmpty())
       return null;
     
-    final int resolution = AggregateQuadTree.getResolution(fs, allMatchingFiles.get(0));
-    
-    // 3- Query all matching files in parallel
-    List<Node> threadsResults = Parallel.forEach(allMatchingFiles.size(), new RunnableRange<AggregateQuadTree.Node>() {
+    // 3- Compute one query plan per tile. All the trees of a tile share the
+    // same structure so the plan is reused for all days of the tile.
+    final Map<String, AggregateQuadTree.BatchQueryPlan> plans =
+        new HashMap<String, AggregateQuadTree.BatchQueryPlan>();
+    final String[] fileTiles = new String[allMatchingFiles.size()];
+    for (int i_file = 0; i_file < allMatchingFiles.size(); i_file++) {
+      Path matchingFile = allMatchingFiles.get(i_file).getPath();
+      Matcher matcher = MODISTileID.matcher(matchingFile.getName());
+      matcher.matches(); // It has to match
+      fileTiles[i_file] = matcher.group(1) + matcher.group(2);
+      if (plans.containsKey(fileTiles[i_file]))
+        continue;
+      int h = Integer.parseInt(matcher.group(1));
+      int v = Integer.parseInt(matcher.group(2));
+      // Only read the header here. Opening a pooled tree would open the file
+      // a second time if it is evicted before it is queried in step 4
+      int resolution = AggregateQuadTree.getResolution(fs, matchingFile);
+      AggregateQuadTree.QueryPlan[] regionPlans =
+          new AggregateQuadTree.QueryPlan[regions.length];
+      for (int i = 0; i < regions.length; i++) {
+        regionPlans[i] = AggregateQuadTree.planAggregateQuery(resolution,
+            rasterize(regions[i], modisRanges[i], h, v, resolution));
+      }
+      plans.put(fileTiles[i_file], new AggregateQuadTree.BatchQueryPlan(regionPlans));
+    }
+
+    // 4- Query all matching files in parallel
+    TreePool.setCapacity(params.getInt(TreePoolCapacity, DefaultTreePoolCapacity));
+    final long queryStart = TreePool.beginQuery();
+    List<Node[]> threadsResults = Parallel.forEach(allMatchingFiles.size(), new RunnableRange<Node[]>() {
       @Override
-      public Node run(int i1, int i2) {
-        Node threadResult = new AggregateQuadTree.Node();
+      public Node[] run(int i1, int i2) {
+        Node[] threadResults = new Node[regions.length];
+        for (int i = 0; i < regions.length; i++)
+          threadResults[i] = new Node();
         for (int i_file = i1; i_file < i2; i_file++) {
-          Path matchingFile = allMatchingFiles.get(i_file);
+          FileStatus matchingFile = allMatchingFiles.get(i_file);
           try {
-            Matcher matcher = MODISTileID.matcher(matchingFile.getName());
-            matcher.matches(); // It has to match
-            int h = Integer.parseInt(matcher.group(1));
-            int v = Integer.parseInt(matcher.group(2));
-            // Clip the query region and normalize in this tile
-            Rectangle translated = spatialRange.translate(-h, -v);
-            int x1 = (int) (Math.max(translated.x1, 0) * resolution);
-            int y1 = (int) (Math.max(translated.y1, 0) * resolution);
-            int x2 = (int) (Math.min(translated.x2, 1.0) * resolution);
-            int y2 = (int) (Math.min(translated.y2, 1.0) * resolution);
-            AggregateQuadTree.Node fileResult = AggregateQuadTree.aggregateQuery(fs, matchingFile,
-                new java.awt.Rectangle(x1, y1, (x2 - x1), (y2 - y1)));
-            threadResult.accumulate(fileResult);
+            TreePool.aggregateQuery(fs, matchingFile,
+                plans.get(fileTiles[i_file]), threadResults, queryStart);
           } catch (Exception e) {
-            throw new RuntimeException("Error reading file "+matchingFile, e);
+            throw new RuntimeException("Error reading file "+matchingFile.getPath(), e);
           }
         }
-        return threadResult;
+        return threadResults;
       }
     });
-    AggregateQuadTree.Node finalResult = new AggregateQuadTree.Node();
-    for (Node threadResult : threadsResults) {
-      finalResult.accumulate(threadResult);
+    Node[] finalResults = new Node[regions.length];
+    for (int i = 0; i < regions.length; i++)
+      finalResults[i] = new Node();
+    for (Node[] threadResults : threadsResults) {
+      for (int i = 0; i < regions.length; i++)
+        finalResults[i].accumulate(threadResults[i]);
     }
     numOfTreesTouchesInLastRequest = allMatchingFiles.size();
-    return finalResult;
+    return finalResults;
   }
   
   /**
@@ -241,64 +375,59 @@ public class SpatioAggregateQueries {
   }
 
   /**
-   * Return all matching partitions according to a time range
+   * Return all matching partitions according to a time range. The range is
+   * covered with the coarsest partitions first, i.e., yearly, then monthly,
+   * then daily. Since partitions of each level are aligned with the ones of
+   * the level above, this covers the range with the minimum number of
+   * partitions. Any gaps left by missing coarse partitions are covered by
+   * partitions of the finer levels.
    * @param inFile 
    * @param params
    * @return
    * @throws ParseException
    * @throws IOException
    */
-  private static Vector<Path> selectTemporalPartitions(Path inFile,
+  static Vector<Path> selectTemporalPartitions(Path inFile,
       OperationsParams params) throws ParseException, IOException {
     // 1- Run a temporal filter step to find all matching temporal partitions
     Vector<Path> matchingPartitions = new Vector<Path>();
-    // List of time ranges to check. Initially it contains one range as
-    // specified by the user. Eventually, it can be split into at most two
-    // partitions if partially matched by a partition.
+    // List of time ranges that are not covered yet. Initially it contains one
+    // range as specified by the user. Each matched partition can split a
+    // range into at most two ranges before and after it.
     Vector<TimeRange> temporalRanges = new Vector<TimeRange>();
-    System.out.println(new TimeRange(params.get("time")));
     temporalRanges.add(new TimeRange(params.get("time")));
     Path[] temporalIndexes = new Path[] {
       new Path(inFile, "yearly"),
       new Path(inFile, "monthly"),
       new Path(inFile, "daily")
     };
-    int index = 0;
     final FileSystem fs = inFile.getFileSystem(params);
-    while (index < temporalIndexes.length && !temporalRanges.isEmpty()) {
+    for (int index = 0; index < temporalIndexes.length && !temporalRanges.isEmpty(); index++) {
       Path indexDir = temporalIndexes[index];
+      if (!fs.exists(indexDir))
+        continue;
       LOG.info("Checking index dir "+indexDir);
       TemporalIndex temporalIndex = new TemporalIndex(fs, indexDir);
-      for (int iRange = 0; iRange < temporalRanges.size(); iRange++) {
-        TimeRange range = temporalRanges.get(iRange);
+      Vector<TimeRange> remainingRanges = new Vector<TimeRange>();
+      for (TimeRange range : temporalRanges) {
         TemporalPartition[] matches = temporalIndex.selectContained(range.start, range.end);
-        if (matches != null) {
-          LOG.info("Matched "+matches.length+" partitions in "+indexDir);
-          for (TemporalPartition match : matches) {
-            matchingPartitions.add(new Path(indexDir, match.dirName));
-          }
-          // Update range to remove matching part
-          TemporalPartition firstMatch = matches[0];
-          TemporalPartition lastMatch = matches[matches.length - 1];
-          if (range.start < firstMatch.start && range.end > lastMatch.end) {
-            // Need to split the range into two
-            temporalRanges.setElementAt(
-                new TimeRange(range.start, firstMatch.start), iRange);
-            temporalRanges.insertElementAt(
-                new TimeRange(lastMatch.end, range.end), iRange);
-          } else if (range.start < firstMatch.start) {
-            // Update range in-place
-            range.end = firstMatch.start;
-          } else if (range.end > lastMatch.end) {
-            // Update range in-place
-            range.start = lastMatch.end;
-          } else {
-            // Current range was completely covered. Remove it
-            temporalRanges.remove(iRange);
-          }
+        if (matches == null) {
+          remainingRanges.add(range);
+          continue;
+        }
+        LOG.info("Matched "+matches.length+" partitions in "+indexDir);
+        // Matches are sorted by time. Keep the gaps between them uncovered.
+        long uncoveredStart = range.start;
+        for (TemporalPartition match : matches) {
+          matchingPartitions.add(new Path(indexDir, match.dirName));
+          if (match.start > uncoveredStart)
+            remainingRanges.add(new TimeRange(uncoveredStart, match.start));
+          uncoveredStart = match.end;
         }
+        if (uncoveredStart < range.end)
+          remainingRanges.add(new TimeRange(uncoveredStart, range.end));
       }
-      index++;
+      temporalRanges = remainingRanges;
     }
     
     numOfTemporalPartitionsInLastQuery = matchingPartitions.size();
@@ -48,6 +48,31 @@ public class TimeRange implements PathFilter {
 
   @Override
   public boolean accept(Path pathname) {
+    long[] fileRange = getFileRange(pathname);
+    // Return true if the file is totally contained in the range
+    return fileRange != null &&
+        (fileRange[0] >= this.start && fileRange[1] <= this.end);
+  }
+
+  /**
+   * Tests whether the time range of the given file or directory overlaps
+   * this range.
+   * @param pathname
+   * @return
+   */
+  public boolean overlaps(Path pathname) {
+    long[] fileRange = getFileRange(pathname);
+    return fileRange != null &&
+        (fileRange[0] < this.end && fileRange[1] > this.start);
+  }
+
+  /**
+   * Returns the time range [begin, end) covered by a file or directory named
+   * after a year, a month, or a day.
+   * @param pathname
+   * @return the time range or <code>null</code> if the name is not a date
+   */
+  private static long[] getFileRange(Path pathname) {
     try {
       String filename = pathname.getName();
       // Beginning and end times of this file
@@ -71,12 +96,11 @@ public class TimeRange implements PathFilter {
         filetime.setDate(filetime.getDate() + 1);
         fileEnd = filetime.getTime();
       } else {
-        return false;
+        return null;
       }
-      // Return true if the file is totally contained in the range
-      return (fileBegin >= this.start && fileEnd <= this.end);
+      return new long[] {fileBegin, fileEnd};
     } catch (ParseException e) {
-      return false;
+      return null;
     }
   }
-}
\ No newline at end of file
+}
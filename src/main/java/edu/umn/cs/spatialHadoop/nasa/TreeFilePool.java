@@ -0,0 +1,350 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.nasa;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+
+import edu.umn.cs.spatialHadoop.io.MappedInputStream;
+import edu.umn.cs.spatialHadoop.io.RandomCompressedInputStream;
+import edu.umn.cs.spatialHadoop.nasa.AggregateQuadTree.BatchQueryPlan;
+import edu.umn.cs.spatialHadoop.nasa.AggregateQuadTree.Histogram;
+import edu.umn.cs.spatialHadoop.nasa.AggregateQuadTree.Node;
+import edu.umn.cs.spatialHadoop.nasa.AggregateQuadTree.QueryPlan;
+
+/**
+ * A pool of aggregate quad tree files that are kept open between queries.
+ * Opening a tree file requires reading the lookup table of the compressed
+ * file and the tree header which is more expensive than answering a small
+ * query. Files on the local file system are mapped to memory.
+ * Each open file is used by one query at a time. Idle files are closed in
+ * least-recently-used order when the pool reaches its capacity, except that
+ * a query that touches more files than the capacity does not evict the files
+ * it already used. Such a query keeps the first files it touched in the pool
+ * rather than evicting every file before the next query reuses it.
+ */
+public class TreeFilePool implements Closeable {
+  private static final Log LOG = LogFactory.getLog(TreeFilePool.class);
+
+  /**
+   * An open tree file with its header already parsed
+   */
+  public static class OpenTree implements Closeable {
+    /**Path of the tree file*/
+    public final Path path;
+    /**Modification time and length of the file when it was opened*/
+    final long modificationTime, length;
+    /**The value of the pool clock when this tree was last released*/
+    long lastUsed;
+    /**The decompressed contents of the tree file*/
+    final FSDataInputStream in;
+    /**Resolution of the tree*/
+    public final int resolution;
+    /**The fill value as stored in the header*/
+    public final short fillValue;
+    /**Number of trees merged in this tree*/
+    public final int cardinality;
+    /**The bins of the sketches stored in the tree or null if it has none*/
+    public final Histogram sketch;
+
+    OpenTree(FileSystem fs, FileStatus status) throws IOException {
+      this.path = status.getPath();
+      this.modificationTime = status.getModificationTime();
+      this.length = status.getLen();
+      FSDataInputStream rawIn;
+      if (fs instanceof LocalFileSystem && length <= Integer.MAX_VALUE) {
+        rawIn = new FSDataInputStream(new MappedInputStream(
+            ((LocalFileSystem) fs).pathToFile(path)));
+      } else {
+        rawIn = fs.open(path);
+      }
+      this.in = new FSDataInputStream(new RandomCompressedInputStream(rawIn, length));
+      int resolutionField = in.readInt();
+      this.resolution = AggregateQuadTree.getResolution(resolutionField);
+      this.fillValue = in.readShort();
+      this.cardinality = in.readInt();
+      this.sketch = AggregateQuadTree.hasSketches(resolutionField) ?
+          AggregateQuadTree.readSketchBins(in, 0, resolution, cardinality) : null;
+    }
+
+    /**
+     * Tests whether the file was replaced or modified after it was opened,
+     * e.g., when a monthly tree is rebuilt at the same path.
+     * @param status
+     * @return
+     */
+    boolean isStale(FileStatus status) {
+      return status.getModificationTime() != modificationTime ||
+          status.getLen() != length;
+    }
+
+    /**
+     * Evaluates the given plan against this tree and accumulates the answer
+     * to the given result.
+     * @param plan
+     * @param result
+     * @throws IOException
+     */
+    public void aggregateQuery(QueryPlan plan, Node result) throws IOException {
+      aggregateQuery(new BatchQueryPlan(new QueryPlan[] {plan}), new Node[] {result});
+    }
+
+    /**
+     * Evaluates a batch of queries against this tree in one pass and
+     * accumulates the answer of each region to its result.
+     * @param plan
+     * @param results
+     * @throws IOException
+     */
+    public void aggregateQuery(BatchQueryPlan plan, Node[] results) throws IOException {
+      if (plan.resolution != resolution)
+        throw new RuntimeException("Plan of resolution "+plan.resolution
+            +" cannot be used with tree "+path+" of resolution "+resolution);
+      AggregateQuadTree.aggregateQuery(in, 0, fillValue, cardinality, sketch,
+          plan, results);
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+  /**Maximum number of idle trees to keep open*/
+  private int capacity;
+
+  /**Idle trees in least-recently-used order*/
+  private final LinkedHashMap<Path, OpenTree> idleTrees;
+
+  /**Incremented whenever a tree is released to the pool*/
+  private long clock;
+
+  /**Number of trees acquired from the pool and opened by the pool*/
+  private long hits, misses;
+
+  public TreeFilePool(int capacity) {
+    this.capacity = capacity;
+    this.idleTrees = new LinkedHashMap<Path, OpenTree>(16, 0.75f, true);
+  }
+
+  /**
+   * Changes the maximum number of idle trees. Idle trees beyond the new
+   * capacity are closed in least-recently-used order.
+   * @param capacity
+   * @throws IOException
+   */
+  public void setCapacity(int capacity) throws IOException {
+    List<OpenTree> treesToClose = new ArrayList<OpenTree>();
+    synchronized (this) {
+      this.capacity = capacity;
+      Iterator<OpenTree> iter = idleTrees.values().iterator();
+      while (idleTrees.size() > capacity) {
+        treesToClose.add(iter.next());
+        iter.remove();
+      }
+    }
+    for (OpenTree treeToClose : treesToClose)
+      treeToClose.close();
+  }
+
+  /**
+   * Marks the start of a query. Trees released with the returned value do not
+   * evict trees that were released by the same query.
+   * @return the value to pass to {@link #release(OpenTree, long)}
+   */
+  public synchronized long beginQuery() {
+    return clock;
+  }
+
+  /**
+   * Retrieves an open tree for the given path.
+   * @param fs
+   * @param path
+   * @return
+   * @throws IOException
+   * @see #acquire(FileSystem, FileStatus)
+   */
+  public OpenTree acquire(FileSystem fs, Path path) throws IOException {
+    return acquire(fs, fs.getFileStatus(path));
+  }
+
+  /**
+   * Retrieves an open tree for the given file. The tree is reserved for the
+   * caller until it is returned with {@link #release(OpenTree, long)}.
+   * A pooled tree is reopened if the file has changed since it was opened.
+   * @param fs
+   * @param status the current status of the file, e.g., as listed by the
+   *          caller, which saves a call to the file system per tree
+   * @return
+   * @throws IOException
+   */
+  public OpenTree acquire(FileSystem fs, FileStatus status) throws IOException {
+    OpenTree tree;
+    synchronized (this) {
+      tree = idleTrees.remove(status.getPath());
+      if (tree != null && !tree.isStale(status)) {
+        hits++;
+        return tree;
+      }
+      misses++;
+    }
+    if (tree != null) {
+      LOG.info("Reopening the modified tree "+status.getPath());
+      tree.close();
+    }
+    // Open the file outside the lock to allow concurrent opens
+    return new OpenTree(fs, status);
+  }
+
+  /**
+   * Returns a tree to the pool so that it can be reused by other queries.
+   * The least-recently-used trees are closed if the pool exceeds its capacity.
+   * @param tree
+   * @throws IOException
+   */
+  public void release(OpenTree tree) throws IOException {
+    release(tree, Long.MAX_VALUE);
+  }
+
+  /**
+   * Returns a tree to the pool on behalf of a query that started at the given
+   * time of {@link #beginQuery()}. If the pool exceeds its capacity, only the
+   * trees that were not used since the query started are closed. If all of
+   * them were used by this query, the released tree is closed instead.
+   * @param tree
+   * @param queryStart
+   * @throws IOException
+   */
+  public void release(OpenTree tree, long queryStart) throws IOException {
+    List<OpenTree> treesToClose = new ArrayList<OpenTree>();
+    synchronized (this) {
+      tree.lastUsed = ++clock;
+      OpenTree existing = idleTrees.put(tree.path, tree);
+      if (existing != null)
+        treesToClose.add(existing);
+      Iterator<OpenTree> iter = idleTrees.values().iterator();
+      while (idleTrees.size() > capacity) {
+        OpenTree lruTree = iter.next();
+        if (lruTree.lastUsed > queryStart) {
+          // Evicting trees of the same query would thrash when the query
+          // touches more trees than the capacity
+          idleTrees.remove(tree.path);
+          treesToClose.add(tree);
+          break;
+        }
+        treesToClose.add(lruTree);
+        iter.remove();
+      }
+    }
+    for (OpenTree treeToClose : treesToClose)
+      treeToClose.close();
+  }
+
+  /**
+   * Evaluates an aggregate query plan against one tree file using a pooled
+   * tree and accumulates the answer to the given result.
+   * @param fs
+   * @param path
+   * @param plan
+   * @param result
+   * @throws IOException
+   */
+  public void aggregateQuery(FileSystem fs, Path path, QueryPlan plan,
+      Node result) throws IOException {
+    aggregateQuery(fs, path, new BatchQueryPlan(new QueryPlan[] {plan}),
+        new Node[] {result});
+  }
+
+  /**
+   * Evaluates a batch of aggregate queries against one tree file using a
+   * pooled tree and accumulates the answer of each region to its result.
+   * @param fs
+   * @param path
+   * @param plan
+   * @param results
+   * @throws IOException
+   */
+  public void aggregateQuery(FileSystem fs, Path path, BatchQueryPlan plan,
+      Node[] results) throws IOException {
+    aggregateQuery(fs, fs.getFileStatus(path), plan, results, Long.MAX_VALUE);
+  }
+
+  /**
+   * Evaluates a batch of aggregate queries against one tree file as part of
+   * a query that started at the given time of {@link #beginQuery()}.
+   * @param fs
+   * @param status
+   * @param plan
+   * @param results
+   * @param queryStart
+   * @throws IOException
+   */
+  public void aggregateQuery(FileSystem fs, FileStatus status,
+      BatchQueryPlan plan, Node[] results, long queryStart) throws IOException {
+    OpenTree tree = acquire(fs, status);
+    try {
+      tree.aggregateQuery(plan, results);
+    } catch (IOException e) {
+      tree.close();
+      throw e;
+    } catch (RuntimeException e) {
+      tree.close();
+      throw e;
+    }
+    release(tree, queryStart);
+  }
+
+  /**
+   * Number of trees that are currently idle in the pool
+   * @return
+   */
+  public synchronized int size() {
+    return idleTrees.size();
+  }
+
+  /**
+   * Number of times a tree was acquired while it was open in the pool
+   * @return
+   */
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /**
+   * Number of times a tree had to be opened because it was not in the pool
+   * @return
+   */
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    for (OpenTree tree : idleTrees.values()) {
+      try {
+        tree.close();
+      } catch (IOException e) {
+        LOG.warn("Error closing tree "+tree.path, e);
+      }
+    }
+    idleTrees.clear();
+  }
+}
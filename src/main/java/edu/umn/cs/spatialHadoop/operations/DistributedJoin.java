@@ -11,8 +11,10 @@ package edu.umn.cs.spatialHadoop.operations;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Vector;
 
 import edu.umn.cs.spatialHadoop.core.*;
@@ -51,6 +53,8 @@ import org.apache.hadoop.util.GenericOptionsParser;
 import org.apache.hadoop.util.IndexedSortable;
 import org.apache.hadoop.util.QuickSort;
 
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+
 import edu.umn.cs.spatialHadoop.OperationsParams;
 import edu.umn.cs.spatialHadoop.indexing.GlobalIndex;
 import edu.umn.cs.spatialHadoop.indexing.Partition;
@@ -92,6 +96,8 @@ public class DistributedJoin {
 	private static final String InactiveMode = "DJ.InactiveMode";
 	private static final String isFilterOnlyMode = "DJ.FilterOnlyMode";
 	private static final String JoiningThresholdPerOnce = "DJ.JoiningThresholdPerOnce";
+	private static final String ReplicatedR = "DJ.ReplicatedR";
+	private static final String ReplicatedS = "DJ.ReplicatedS";
 	
 	public static class SpatialJoinFilter extends DefaultBlockFilter {
 		@Override
@@ -117,6 +123,36 @@ public class DistributedJoin {
 		}
 	}
 
+	/**
+	 * Selects pairs of partitions that are within a distance epsilon from each
+	 * other, i.e., partitions that might contain result pairs of a distance
+	 * join.
+	 */
+	public static class DistanceJoinFilter extends DefaultBlockFilter {
+		private double epsilon;
+
+		@Override
+		public void configure(Configuration conf) {
+			epsilon = conf.getDouble(SpatialAlgorithms.DistanceJoinEpsilon, 0);
+		}
+
+		@Override
+		public void selectCellPairs(GlobalIndex<Partition> gIndex1,
+				final GlobalIndex<Partition> gIndex2,
+				final ResultCollector2<Partition, Partition> output) {
+			for (final Partition r : gIndex1) {
+				// Expand each partition by epsilon to find all partitions nearby
+				gIndex2.rangeQuery(r.buffer(epsilon, epsilon),
+						new ResultCollector<Partition>() {
+							@Override
+							public void collect(Partition s) {
+								output.collect(r, s);
+							}
+						});
+			}
+		}
+	}
+
 	/**
 	 * The map function that partitions the data using the configured partitioner
 	 * @author Eldawy
@@ -183,11 +219,39 @@ public class DistributedJoin {
 		}
 	}
 
+	/**
+	 * Joins the shapes of two blocks. A point-in-polygon join reuses the
+	 * prepared polygons of the first block through the given cache.
+	 * @param r the shapes of the first block
+	 * @param s the shapes of the second block
+	 * @param preparedCache the prepared polygons of the first block
+	 * @param output
+	 * @param reporter
+	 * @return the number of result pairs
+	 * @throws IOException
+	 */
+	static int joinBlocks(List<Shape> r, List<Shape> s,
+			Map<Shape, PreparedGeometry> preparedCache,
+			ResultCollector2<Shape, Shape> output, Reporter reporter)
+			throws IOException {
+		if (SpatialAlgorithms.isPointInPolygonJoin(r, s))
+			return SpatialAlgorithms.SpatialJoin_pointInPolygon(r, s, output,
+					SpatialAlgorithms.isPoint(s.get(0)) ? preparedCache : null, reporter);
+		return SpatialAlgorithms.SpatialJoin_planeSweep(r, s, output, reporter);
+	}
+
 	public static class RedistributeJoinMap extends MapReduceBase
 			implements
 			Mapper<PairWritable<Rectangle>, PairWritable<? extends Writable>, Shape, Shape> {
 
 		private boolean isFilterOnly;
+
+		/**The block of the first file that the prepared polygons belong to*/
+		private Shape[] cachedBlock;
+
+		/**Polygons of the first block prepared for point-in-polygon tests*/
+		private Map<Shape, PreparedGeometry> preparedCache =
+				new IdentityHashMap<Shape, PreparedGeometry>();
 		
 		@Override
 		public void configure(JobConf job) {
@@ -212,6 +276,13 @@ public class DistributedJoin {
 			if (value.first instanceof ArrayWritable
 					&& value.second instanceof ArrayWritable) {
 				// Join two arrays using the plane sweep algorithm
+				Shape[] firstBlock = (Shape[]) ((ArrayWritable) value.first).get();
+				if (firstBlock != cachedBlock) {
+					// The prepared polygons are kept while the first block is joined
+					// with the blocks of the second file
+					preparedCache.clear();
+					cachedBlock = firstBlock;
+				}
 				if (mapperMBR != null) {
 					// Only join shapes in the intersection rectangle
 					List<Shape> r = new Vector<Shape>();
@@ -246,7 +317,7 @@ public class DistributedJoin {
 									}
 								}, reporter);	
 					} else {
-						SpatialAlgorithms.SpatialJoin_planeSweep(r, s,
+						joinBlocks(r, s, preparedCache,
 								new ResultCollector2<Shape, Shape>() {
 									@Override
 									public void collect(Shape r, Shape s) {
@@ -293,7 +364,7 @@ public class DistributedJoin {
 									}
 								}, reporter);
 					}else{
-						SpatialAlgorithms.SpatialJoin_planeSweep(r, s,
+						joinBlocks(r, s, preparedCache,
 								new ResultCollector2<Shape, Shape>() {
 									@Override
 									public void collect(Shape r, Shape s) {
@@ -320,6 +391,13 @@ public class DistributedJoin {
 			Mapper<PairWritable<Rectangle>, PairWritable<? extends Writable>, Shape, Shape> {
 
 		private boolean isFilterOnly;
+
+		/**The block of the first file that the prepared polygons belong to*/
+		private Shape[] cachedBlock;
+
+		/**Polygons of the first block prepared for point-in-polygon tests*/
+		private Map<Shape, PreparedGeometry> preparedCache =
+				new IdentityHashMap<Shape, PreparedGeometry>();
 		
 		@Override
 		public void configure(JobConf job) {
@@ -344,6 +422,13 @@ public class DistributedJoin {
 			if (value.first instanceof ArrayWritable
 					&& value.second instanceof ArrayWritable) {
 				// Join two arrays using the plane sweep algorithm
+				Shape[] firstBlock = (Shape[]) ((ArrayWritable) value.first).get();
+				if (firstBlock != cachedBlock) {
+					// The prepared polygons are kept while the first block is joined
+					// with the blocks of the second file
+					preparedCache.clear();
+					cachedBlock = firstBlock;
+				}
 				if (mapperMBR != null) {
 					// Only join shapes in the intersection rectangle
 					ArrayList<Shape> r = new ArrayList<Shape>();
@@ -374,7 +459,7 @@ public class DistributedJoin {
 									}
 								}, reporter);	
 					}else{
-						SpatialAlgorithms.SpatialJoin_planeSweep(r, s,
+						joinBlocks(r, s, preparedCache,
 								new ResultCollector2<Shape, Shape>() {
 									@Override
 									public void collect(Shape r, Shape s) {
@@ -414,7 +499,7 @@ public class DistributedJoin {
 									}
 								}, reporter);	
 					}else{
-						SpatialAlgorithms.SpatialJoin_planeSweep(r, s,
+						joinBlocks(r, s, preparedCache,
 								new ResultCollector2<Shape, Shape>() {
 									@Override
 									public void collect(Shape r, Shape s) {
@@ -436,6 +521,91 @@ public class DistributedJoin {
 		}
 	}
 
+	/**
+	 * The map function of the distance join. It finds all pairs of shapes that
+	 * are within a distance epsilon from each other. If an input file is
+	 * replicated, a pair is reported only by the partition that contains its
+	 * reference point. For two shapes r and s, the reference point in the
+	 * partition of r is the top-left corner of the intersection between the
+	 * MBR of r and the MBR of s expanded by epsilon, and vice versa.
+	 */
+	public static class DistanceJoinMap extends MapReduceBase
+			implements
+			Mapper<PairWritable<Rectangle>, PairWritable<? extends Writable>, Shape, Shape> {
+
+		private double epsilon;
+		private boolean replicatedR;
+		private boolean replicatedS;
+
+		@Override
+		public void configure(JobConf job) {
+			super.configure(job);
+			epsilon = job.getDouble(SpatialAlgorithms.DistanceJoinEpsilon, 0);
+			replicatedR = job.getBoolean(ReplicatedR, false);
+			replicatedS = job.getBoolean(ReplicatedS, false);
+		}
+
+		/**
+		 * Returns the shapes whose MBRs are within epsilon from the given
+		 * partition. If the partition is not valid, i.e., a heap block, all
+		 * shapes are returned.
+		 */
+		private List<Shape> filterShapes(Writable shapes, Rectangle partition) {
+			Rectangle range = partition.isValid() ?
+					partition.buffer(epsilon, epsilon) : null;
+			List<Shape> filtered = new ArrayList<Shape>();
+			for (Shape shape : (Shape[]) ((ArrayWritable) shapes).get()) {
+				Rectangle mbr = shape.getMBR();
+				if (mbr != null && (range == null || range.isIntersected(mbr)))
+					filtered.add(shape);
+			}
+			return filtered;
+		}
+
+		public void map(final PairWritable<Rectangle> key,
+				final PairWritable<? extends Writable> value,
+				final OutputCollector<Shape, Shape> output, final Reporter reporter)
+				throws IOException {
+			if (!(value.first instanceof ArrayWritable)
+					|| !(value.second instanceof ArrayWritable))
+				throw new RuntimeException("Cannot join "
+						+ value.first.getClass() + " with "
+						+ value.second.getClass());
+
+			List<Shape> r = filterShapes(value.first, key.second);
+			List<Shape> s = filterShapes(value.second, key.first);
+			final boolean checkR = replicatedR && key.first.isValid();
+			final boolean checkS = replicatedS && key.second.isValid();
+
+			SpatialAlgorithms.DistanceJoin_planeSweep(r, s, epsilon,
+					new ResultCollector2<Shape, Shape>() {
+						@Override
+						public void collect(Shape r, Shape s) {
+							Rectangle rMBR = r.getMBR();
+							Rectangle sMBR = s.getMBR();
+							if (checkR) {
+								double refX = Math.max(rMBR.x1, sMBR.x1 - epsilon);
+								double refY = Math.max(rMBR.y1, sMBR.y1 - epsilon);
+								if (!key.first.contains(refX, refY))
+									return;
+							}
+							if (checkS) {
+								double refX = Math.max(sMBR.x1, rMBR.x1 - epsilon);
+								double refY = Math.max(sMBR.y1, rMBR.y1 - epsilon);
+								if (!key.second.contains(refX, refY))
+									return;
+							}
+							try {
+								output.collect(r, s);
+							} catch (IOException e) {
+								e.printStackTrace();
+							}
+						}
+					}, reporter);
+			reporter.progress();
+		}
+	}
+
 	/**
 	 * Input format that returns a record reader that reads a pair of arrays of
 	 * shapes
@@ -565,7 +735,15 @@ public class DistributedJoin {
 		job.setInputFormat(DJInputFormatArray.class);
 
 		// Set input paths and map function
-		if (inFiles[0].equals(inFiles[1])) {
+		if (params.getDouble(SpatialAlgorithms.DistanceJoinEpsilon, 0) > 0) {
+			// Distance join, pair all partitions within epsilon from each other
+			job.setClass(SpatialSite.FilterClass, DistanceJoinFilter.class,
+					BlockFilter.class);
+			FileInputFormat.setInputPaths(job, inFiles);
+			job.setBoolean(ReplicatedR, gindex1 != null && gindex1.isReplicated());
+			job.setBoolean(ReplicatedS, gindex2 != null && gindex2.isReplicated());
+			job.setMapperClass(DistanceJoinMap.class);
+		} else if (inFiles[0].equals(inFiles[1])) {
 			// Self join
 			job.setInputFormat(ShapeArrayInputFormat.class);
 			// Remove the spatial filter to ensure all partitions are loaded
@@ -771,6 +949,8 @@ public class DistributedJoin {
 	protected static long repartitionJoinStep(final Path[] inputFiles,
 			int fileToRepartition, Path outputFile, OperationsParams params)
 			throws IOException {
+		if (params.getDouble(SpatialAlgorithms.DistanceJoinEpsilon, 0) > 0)
+			throw new RuntimeException("Distance join (epsilon) is not supported with direct-join");
 
 		boolean overwrite = params.getBoolean("overwrite", false);
 		Shape stockShape = params.getShape("shape");
@@ -1020,6 +1200,8 @@ public class DistributedJoin {
 
 	private static long selfJoinLocal(Path in, Path out, OperationsParams params)
 			throws IOException {
+		if (params.getDouble(SpatialAlgorithms.DistanceJoinEpsilon, 0) > 0)
+			throw new RuntimeException("Distance join (epsilon) is not supported with self join");
 		if (isOneShotReadMode) {
 			// Ensure all objects are read in one shot
 			params.setInt(SpatialSite.MaxBytesInOneRead, -1);
@@ -1085,6 +1267,8 @@ public class DistributedJoin {
 				.println("heuristic-repartition:<decision> - (*) Decision to have a heuristic or exact repartition (yes|no)");
 		System.out
 				.println("direct-join:<decision> - (*) Decision to directly join after repartitioning (yes|no)");
+		System.out
+				.println("epsilon:<d> - Find all pairs within distance d instead of overlapping pairs (not with direct-join or self join)");
 		System.out.println("-overwrite - Overwrite output file without notice");
 
 		GenericOptionsParser.printGenericCommandUsage(System.out);
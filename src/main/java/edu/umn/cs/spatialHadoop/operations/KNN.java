@@ -12,6 +12,8 @@ import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -62,6 +64,8 @@ import edu.umn.cs.spatialHadoop.mapred.TextOutputFormat3;
 import edu.umn.cs.spatialHadoop.mapreduce.SpatialInputFormat3;
 import edu.umn.cs.spatialHadoop.mapreduce.SpatialRecordReader3;
 import edu.umn.cs.spatialHadoop.nasa.HDFRecordReader;
+import edu.umn.cs.spatialHadoop.util.Parallel;
+import edu.umn.cs.spatialHadoop.util.Parallel.RunnableRange;
 
 /**
  * Performs k Nearest Neighbor (kNN) query over a spatial file.
@@ -75,7 +79,7 @@ public class KNN {
   private static final Log LOG = LogFactory.getLog(KNN.class);
 
   /**Statistics for debugging. Total number of iterations by all KNN queries*/
-  private static AtomicInteger TotalIterations = new AtomicInteger();
+  static AtomicInteger TotalIterations = new AtomicInteger();
 
   /**
    * Stores a shape text along with its distance to the query point. Notice that
@@ -347,7 +351,17 @@ public class KNN {
     FileSystem outFs = outputPath.getFileSystem(params);
     // Start with the query point to select all partitions overlapping with it
     Shape range_for_this_iteration = new Point(queryPoint.x, queryPoint.y);
-    
+    if (globalIndex != null) {
+      // Plan the query using the global index. A circle with the bound
+      // radius is guaranteed to contain the k answers which makes one job
+      // enough unless the record counts in the global index are inaccurate
+      double bound = kthDistanceBound(globalIndex, queryPoint.x, queryPoint.y, k);
+      if (bound >= 0) {
+        range_for_this_iteration = new Circle(queryPoint.x, queryPoint.y, bound);
+        LOG.info("Planned kth neighbor distance: "+bound);
+      }
+    }
+
     do {
       job = new Job(templateConf);
       // Delete results of last iteration if not first iteration
@@ -451,6 +465,88 @@ public class KNN {
     return job;
   }
   
+  /**
+   * Computes an upper bound of the distance between a query point and its
+   * kth nearest neighbor using only the partitions in a global index.
+   * Partitions are sorted by their maximum distance to the query point and
+   * their record counts are accumulated until they cover k records. All
+   * partitions with a minimum distance not greater than this bound are
+   * guaranteed to contain the k answers.
+   * @param gIndex
+   * @param qx
+   * @param qy
+   * @param k
+   * @return the bound or a negative value if the global index does not
+   *   store record counts
+   */
+  static double kthDistanceBound(GlobalIndex<Partition> gIndex, double qx,
+      double qy, int k) {
+    List<ShapeWithDistance<Partition>> partitions =
+        new ArrayList<ShapeWithDistance<Partition>>();
+    long totalCount = 0;
+    for (Partition p : gIndex) {
+      partitions.add(new ShapeWithDistance<Partition>(p,
+          p.getMaxDistanceTo(qx, qy)));
+      totalCount += p.recordCount;
+    }
+    if (totalCount == 0)
+      return -1;
+    Collections.sort(partitions);
+    long count = 0;
+    for (ShapeWithDistance<Partition> p : partitions) {
+      count += p.shape.recordCount;
+      if (count >= k)
+        return p.distance;
+    }
+    // The whole input has less than k records, all partitions are needed
+    return partitions.get(partitions.size() - 1).distance;
+  }
+
+  /**
+   * Reads all the shapes in one partition and adds the ones that are not
+   * farther than the given distance to the given list of top-k objects.
+   * @param inFile
+   * @param partition
+   * @param queryPoint
+   * @param maxDistance
+   * @param knn
+   * @param params
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private static<S extends Shape> void knnPartition(Path inFile,
+      Partition partition, Point queryPoint, double maxDistance,
+      PriorityQueue<ShapeWithDistance<S>> knn, OperationsParams params)
+      throws IOException, InterruptedException {
+    SpatialInputFormat3<Rectangle, Shape> inputFormat =
+        new SpatialInputFormat3<Rectangle, Shape>();
+    Path partitionPath = new Path(inFile, partition.filename);
+    FileSystem fs = partitionPath.getFileSystem(params);
+    long length = fs.getFileStatus(partitionPath).getLen();
+    FileSplit fsplit = new FileSplit(partitionPath, 0, length, new String[0]);
+    RecordReader<Rectangle, Iterable<Shape>> reader =
+        inputFormat.createRecordReader(fsplit, null);
+    if (reader instanceof SpatialRecordReader3) {
+      ((SpatialRecordReader3)reader).initialize(fsplit, params);
+    } else if (reader instanceof LocalIndexRecordReader) {
+      ((LocalIndexRecordReader)reader).initialize(fsplit, params);
+    } else if (reader instanceof HDFRecordReader) {
+      ((HDFRecordReader)reader).initialize(fsplit, params);
+    } else {
+      throw new RuntimeException("Unknown record reader");
+    }
+
+    while (reader.nextKeyValue()) {
+      Iterable<Shape> shapes = reader.getCurrentValue();
+      for (Shape shape : shapes) {
+        double distance = shape.distanceTo(queryPoint.x, queryPoint.y);
+        if (distance <= maxDistance)
+          knn.insert(new ShapeWithDistance<S>((S)shape.clone(), distance));
+      }
+    }
+    reader.close();
+  }
+
   private static<S extends Shape> long knnLocal(Path inFile, Path outPath,
       OperationsParams params) throws IOException, InterruptedException {
     int iterations = 0;
@@ -479,42 +575,60 @@ public class KNN {
               ((ShapeWithDistance<Partition>)b).distance;
         }
       };
+      // Partitions that are guaranteed to contain the answer are processed
+      // together in parallel in one pass
+      final double bound = kthDistanceBound(gIndex, queryPoint.x, queryPoint.y, k);
+      final List<Partition> plannedPartitions = new ArrayList<Partition>();
       for (Partition p : gIndex) {
         double distance = p.getMinDistanceTo(queryPoint.x, queryPoint.y);
-        partitionsToProcess.insert(new ShapeWithDistance<Partition>(p.clone(), distance));
+        if (distance <= bound)
+          plannedPartitions.add(p.clone());
+        else
+          partitionsToProcess.insert(new ShapeWithDistance<Partition>(p.clone(), distance));
       }
-      
+
+      if (!plannedPartitions.isEmpty()) {
+        final Path fInFile = inFile;
+        final Point fQueryPoint = queryPoint;
+        final int fk = k;
+        final OperationsParams fParams = params;
+        List<KNNObjects<ShapeWithDistance<S>>> partialResults =
+            Parallel.forEach(plannedPartitions.size(),
+                new RunnableRange<KNNObjects<ShapeWithDistance<S>>>() {
+          @Override
+          public KNNObjects<ShapeWithDistance<S>> run(int i1, int i2) {
+            try {
+              KNNObjects<ShapeWithDistance<S>> partialKnn =
+                  new KNNObjects<ShapeWithDistance<S>>(fk);
+              for (int i = i1; i < i2; i++)
+                knnPartition(fInFile, plannedPartitions.get(i), fQueryPoint,
+                    bound, partialKnn, fParams);
+              return partialKnn;
+            } catch (IOException e) {
+              throw new RuntimeException(e);
+            } catch (InterruptedException e) {
+              throw new RuntimeException(e);
+            }
+          }
+        }, params.getInt("parallel", Runtime.getRuntime().availableProcessors()));
+        for (KNNObjects<ShapeWithDistance<S>> partialKnn : partialResults) {
+          while (partialKnn.size() > 0)
+            knn.insert(partialKnn.pop());
+        }
+        iterations += plannedPartitions.size();
+        if (knn.size() >= k)
+          kthDistance = knn.top().distance;
+      }
+
+      // Continue with the remaining partitions in the order of their distance
+      // in case the record counts in the global index were not accurate
       while (partitionsToProcess.size() > 0 &&
           partitionsToProcess.top().distance <= kthDistance) {
-        
         ShapeWithDistance<Partition> partitionToProcess = partitionsToProcess.pop();
-        // Process this partition
-        Path partitionPath = new Path(inFile, partitionToProcess.shape.filename);
-        long length = fs.getFileStatus(partitionPath).getLen();
-        FileSplit fsplit = new FileSplit(partitionPath, 0, length, new String[0]);
-        RecordReader<Rectangle, Iterable<Shape>> reader =
-            inputFormat.createRecordReader(fsplit, null);
-        if (reader instanceof SpatialRecordReader3) {
-          ((SpatialRecordReader3)reader).initialize(fsplit, params);
-        } else if (reader instanceof LocalIndexRecordReader) {
-          ((LocalIndexRecordReader)reader).initialize(fsplit, params);
-        } else if (reader instanceof HDFRecordReader) {
-          ((HDFRecordReader)reader).initialize(fsplit, params);
-        } else {
-          throw new RuntimeException("Unknown record reader");
-        }
+        knnPartition(inFile, partitionToProcess.shape, queryPoint,
+            kthDistance, knn, params);
         iterations++;
         
-        while (reader.nextKeyValue()) {
-          Iterable<Shape> shapes = reader.getCurrentValue();
-          for (Shape shape : shapes) {
-            double distance = shape.distanceTo(queryPoint.x, queryPoint.y);
-            if (distance <= kthDistance)
-              knn.insert(new ShapeWithDistance<S>((S)shape.clone(), distance));
-          }
-        }
-        reader.close();
-        
         if (knn.size() >= k)
           kthDistance = knn.top().distance;
       }
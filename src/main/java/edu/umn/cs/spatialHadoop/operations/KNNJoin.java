@@ -0,0 +1,592 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.operations;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.Task;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.output.NullOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
+
+import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.ResultCollector2;
+import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.core.SpatialSite;
+import edu.umn.cs.spatialHadoop.indexing.GlobalIndex;
+import edu.umn.cs.spatialHadoop.indexing.LocalIndex;
+import edu.umn.cs.spatialHadoop.indexing.Partition;
+import edu.umn.cs.spatialHadoop.indexing.RTreeGuttman;
+import edu.umn.cs.spatialHadoop.io.TextSerializerHelper;
+import edu.umn.cs.spatialHadoop.mapreduce.SpatialInputFormat3;
+import edu.umn.cs.spatialHadoop.mapreduce.SpatialRecordReader3;
+import edu.umn.cs.spatialHadoop.operations.KNN.ShapeWithDistance;
+import edu.umn.cs.spatialHadoop.util.FileUtil;
+import edu.umn.cs.spatialHadoop.util.Parallel;
+import edu.umn.cs.spatialHadoop.util.Parallel.RunnableRange;
+
+/**
+ * Finds the k nearest neighbors in a file S for every record in a file R.
+ * Both files must be spatially indexed. Each partition in R is paired with
+ * the partitions in S that are within an upper bound of the kth neighbor
+ * distance computed from the global indexes. The records of the paired S
+ * partitions are loaded in an in-memory R-tree which is searched using a
+ * best-first kNN search for each record in the R partition. The distance to
+ * a record in R is measured from the center of its MBR.
+ */
+@OperationMetadata(shortName = "knnj",
+description = "Finds the k nearest neighbors in one file for every record in another file")
+public class KNNJoin {
+  /**Logger for KNNJoin*/
+  private static final Log LOG = LogFactory.getLog(KNNJoin.class);
+
+  /**The configuration line that stores the path of the file S*/
+  private static final String SPath = "KNNJoin.SPath";
+
+  /**The configuration line that indicates whether R records are replicated*/
+  private static final String RReplicated = "KNNJoin.RReplicated";
+
+  /**
+   * The minimum distance between any two points in two rectangles
+   * @param a
+   * @param b
+   * @return
+   */
+  static double minDistance(Rectangle a, Rectangle b) {
+    double dx = Math.max(0, Math.max(a.x1 - b.x2, b.x1 - a.x2));
+    double dy = Math.max(0, Math.max(a.y1 - b.y2, b.y1 - a.y2));
+    return Math.sqrt(dx * dx + dy * dy);
+  }
+
+  /**
+   * The maximum distance between any two points in two rectangles
+   * @param a
+   * @param b
+   * @return
+   */
+  static double maxDistance(Rectangle a, Rectangle b) {
+    double dx = Math.max(b.x2 - a.x1, a.x2 - b.x1);
+    double dy = Math.max(b.y2 - a.y1, a.y2 - b.y1);
+    return Math.sqrt(dx * dx + dy * dy);
+  }
+
+  /**
+   * Computes an upper bound of the distance between any point in the given
+   * rectangle and its kth nearest neighbor in S. Partitions of S are sorted
+   * by their maximum distance to the rectangle and their record counts are
+   * accumulated until they cover k records.
+   * @param r
+   * @param sIndex
+   * @param k
+   * @return the bound or infinity if the global index of S does not have
+   *   enough records
+   */
+  static double kthDistanceBound(Rectangle r, GlobalIndex<Partition> sIndex, int k) {
+    List<ShapeWithDistance<Partition>> partitions =
+        new ArrayList<ShapeWithDistance<Partition>>();
+    for (Partition p : sIndex)
+      partitions.add(new ShapeWithDistance<Partition>(p, maxDistance(r, p)));
+    Collections.sort(partitions);
+    long count = 0;
+    for (ShapeWithDistance<Partition> p : partitions) {
+      count += p.shape.recordCount;
+      if (count >= k)
+        return p.distance;
+    }
+    return Double.POSITIVE_INFINITY;
+  }
+
+  /**
+   * Reads the records of one partition that overlap a search window. If the
+   * partition is locally indexed, only the matching records are read using
+   * the local index.
+   * @param dir the directory that contains the partition
+   * @param p the partition to read
+   * @param window the search window or <code>null</code> to read all records
+   * @param replicated whether records can be replicated to several partitions
+   *   in which case a reference point is used to report each record once
+   * @param conf
+   * @param records the list that receives the records
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  static void readPartition(Path dir, Partition p, Rectangle window,
+      boolean replicated, Configuration conf, List<Shape> records)
+      throws IOException, InterruptedException {
+    Path path = new Path(dir, p.filename);
+    FileSystem fs = path.getFileSystem(conf);
+    Class<? extends LocalIndex> lindexClass = SpatialSite.getLocalIndex(
+        FileUtil.getExtensionWithoutCompression(path));
+    if (lindexClass != null) {
+      // Search each local index in the file using the search window
+      Shape stockShape = OperationsParams.getShape(conf, "shape");
+      FSDataInputStream in = fs.open(path);
+      try {
+        long indexEnd = fs.getFileStatus(path).getLen();
+        while (indexEnd > 0) {
+          in.seek(indexEnd - 4);
+          int indexSize = in.readInt();
+          long indexStart = indexEnd - indexSize - 4;
+          LocalIndex<Shape> lindex = lindexClass.newInstance();
+          lindex.setup(conf);
+          in.seek(indexStart);
+          lindex.read(in, indexStart, indexEnd, stockShape);
+          Iterable<? extends Shape> shapes = window == null ? lindex.scanAll() :
+              lindex.search(window.x1, window.y1, window.x2, window.y2);
+          for (Shape shape : shapes)
+            addRecord(shape, p, window, replicated, records);
+          indexEnd = indexStart;
+        }
+      } catch (InstantiationException e) {
+        throw new RuntimeException("Error creating the local index", e);
+      } catch (IllegalAccessException e) {
+        throw new RuntimeException("Error creating the local index", e);
+      } finally {
+        in.close();
+      }
+    } else {
+      long length = fs.getFileStatus(path).getLen();
+      FileSplit fsplit = new FileSplit(path, 0, length, new String[0]);
+      SpatialRecordReader3<Shape> reader = new SpatialRecordReader3<Shape>();
+      reader.initialize(fsplit, conf);
+      while (reader.nextKeyValue()) {
+        for (Shape shape : reader.getCurrentValue())
+          addRecord(shape, p, window, replicated, records);
+      }
+      reader.close();
+    }
+  }
+
+  /**
+   * Tests whether a rectangle overlaps the search window, or whether there is
+   * no window. Partitions and records are selected with the same test so that
+   * the partition that contains the reference point of a replicated record,
+   * which lies inside the window, is always read.
+   * @param mbr
+   * @param window the search window or null to select everything
+   * @return
+   */
+  static boolean overlapsWindow(Rectangle mbr, Rectangle window) {
+    return window == null || !(mbr.x2 < window.x1 || window.x2 < mbr.x1 ||
+        mbr.y2 < window.y1 || window.y2 < mbr.y1);
+  }
+
+  /**
+   * Adds a copy of the given record to the list if it overlaps the search
+   * window and, for replicated records, if the partition contains its
+   * reference point.
+   */
+  private static void addRecord(Shape shape, Partition p, Rectangle window,
+      boolean replicated, List<Shape> records) {
+    Rectangle mbr = shape.getMBR();
+    if (mbr == null || !overlapsWindow(mbr, window))
+      return;
+    if (replicated) {
+      double reference_x = window == null ? mbr.x1 : Math.max(window.x1, mbr.x1);
+      double reference_y = window == null ? mbr.y1 : Math.max(window.y1, mbr.y1);
+      if (!p.contains(reference_x, reference_y))
+        return;
+    }
+    records.add(shape.clone());
+  }
+
+  /**
+   * Finds the k nearest neighbors in S for each record in a batch of R
+   * records. The S partitions within the upper bound of the kth neighbor
+   * distance are loaded in one step. If the record counts in the global index
+   * turn out to be inaccurate for some records, the bound is widened and
+   * only those records are processed again.
+   * @param rRecords the records of R
+   * @param sPath the path of the file S
+   * @param sIndex the global index of the file S
+   * @param k
+   * @param conf
+   * @param output receives each record in R with one of its neighbors
+   *   in ascending order of distance
+   * @return the number of result pairs
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  static long knnJoinBatch(List<Shape> rRecords, Path sPath,
+      GlobalIndex<Partition> sIndex, int k, Configuration conf,
+      ResultCollector2<Shape, ShapeWithDistance<Shape>> output)
+      throws IOException, InterruptedException {
+    int numRecords = rRecords.size();
+    if (numRecords == 0 || k <= 0)
+      return 0;
+    // The query point of each record in R and their MBR
+    final double[] qx = new double[numRecords];
+    final double[] qy = new double[numRecords];
+    Rectangle qMBR = new Rectangle(Double.MAX_VALUE, Double.MAX_VALUE,
+        -Double.MAX_VALUE, -Double.MAX_VALUE);
+    for (int i = 0; i < numRecords; i++) {
+      Rectangle mbr = rRecords.get(i).getMBR();
+      qx[i] = (mbr.x1 + mbr.x2) / 2;
+      qy[i] = (mbr.y1 + mbr.y2) / 2;
+      qMBR.expand(qx[i], qy[i]);
+    }
+
+    boolean[] done = new boolean[numRecords];
+    int numRemaining = numRecords;
+    int[] resultIDs = new int[k];
+    double[] resultDistances = new double[k];
+    long resultCount = 0;
+    double bound = kthDistanceBound(qMBR, sIndex, k);
+    while (numRemaining > 0) {
+      // Load all records in S that can be among the k nearest neighbors
+      Rectangle window = Double.isInfinite(bound) ? null :
+          new Rectangle(qMBR.x1 - bound, qMBR.y1 - bound,
+              qMBR.x2 + bound, qMBR.y2 + bound);
+      final List<Shape> sRecords = new ArrayList<Shape>();
+      for (Partition p : sIndex) {
+        if (overlapsWindow(p, window))
+          readPartition(sPath, p, window, sIndex.isReplicated(), conf, sRecords);
+      }
+      LOG.info("Loaded "+sRecords.size()+" records from S within "+bound);
+      double[] x1s = new double[sRecords.size()];
+      double[] y1s = new double[sRecords.size()];
+      double[] x2s = new double[sRecords.size()];
+      double[] y2s = new double[sRecords.size()];
+      for (int i = 0; i < sRecords.size(); i++) {
+        Rectangle mbr = sRecords.get(i).getMBR();
+        x1s[i] = mbr.x1;
+        y1s[i] = mbr.y1;
+        x2s[i] = mbr.x2;
+        y2s[i] = mbr.y2;
+      }
+      RTreeGuttman sTree = new RTreeGuttman(8, 32);
+      sTree.initializeFromRectsBulk(x1s, y1s, x2s, y2s,
+          RTreeGuttman.BulkLoadMethod.STR);
+      RTreeGuttman.DistanceFunction distanceFunction = new RTreeGuttman.DistanceFunction() {
+        @Override
+        public double distance(int iEntry, double x, double y) {
+          return sRecords.get(iEntry).distanceTo(x, y);
+        }
+      };
+
+      double nextBound = 0;
+      for (int i = 0; i < numRecords; i++) {
+        if (done[i])
+          continue;
+        int count = sTree.knn(qx[i], qy[i], k, distanceFunction,
+            resultIDs, resultDistances);
+        if (window == null || (count == k && resultDistances[k - 1] <= bound)) {
+          // All records in S that were not loaded are farther than the bound
+          done[i] = true;
+          numRemaining--;
+          for (int j = 0; j < count; j++) {
+            output.collect(rRecords.get(i), new ShapeWithDistance<Shape>(
+                sRecords.get(resultIDs[j]), resultDistances[j]));
+          }
+          resultCount += count;
+        } else {
+          nextBound = Math.max(nextBound, count < k ?
+              Double.POSITIVE_INFINITY : resultDistances[k - 1]);
+        }
+      }
+      if (numRemaining > 0)
+        LOG.info(numRemaining+" records need a larger bound than "+bound);
+      bound = nextBound;
+    }
+    return resultCount;
+  }
+
+  /**
+   * Writes one result pair as a line of text. The record in R comes first
+   * followed by a tab, the distance, and the record in S.
+   * @param r
+   * @param s
+   * @param key
+   * @param value
+   */
+  private static void toText(Shape r, ShapeWithDistance<Shape> s, Text key,
+      Text value) {
+    key.clear();
+    r.toText(key);
+    value.clear();
+    TextSerializerHelper.serializeDouble(s.distance, value, ',');
+    s.shape.toText(value);
+  }
+
+  /**
+   * Mapper for the kNN join. Each map task reads records from R and joins
+   * all the records of one partition together with the file S.
+   */
+  public static class KNNJoinMap extends
+      Mapper<Rectangle, Iterable<Shape>, Text, Text> {
+    /**Number of neighbors*/
+    private int k;
+    /**Path of the file S*/
+    private Path sPath;
+    /**Global index of the file S*/
+    private GlobalIndex<Partition> sIndex;
+    /**Whether the records in R are replicated*/
+    private boolean rReplicated;
+    /**The partition of the records currently being collected*/
+    private Partition currentPartition;
+    /**The records of the current partition*/
+    private List<Shape> rRecords = new ArrayList<Shape>();
+
+    @Override
+    protected void setup(Context context) throws IOException,
+        InterruptedException {
+      super.setup(context);
+      Configuration conf = context.getConfiguration();
+      k = conf.getInt("k", 1);
+      rReplicated = conf.getBoolean(RReplicated, false);
+      sPath = new Path(conf.get(SPath));
+      sIndex = SpatialSite.getGlobalIndex(sPath.getFileSystem(conf), sPath);
+    }
+
+    @Override
+    protected void map(Rectangle key, Iterable<Shape> shapes, Context context)
+        throws IOException, InterruptedException {
+      Partition partition = key instanceof Partition ? (Partition) key : null;
+      if (currentPartition != null && (partition == null ||
+          !currentPartition.filename.equals(partition.filename))) {
+        joinCurrentPartition(context);
+      }
+      currentPartition = partition == null ? null : partition.clone();
+      for (Shape shape : shapes) {
+        Rectangle mbr = shape.getMBR();
+        if (mbr == null)
+          continue;
+        if (rReplicated && currentPartition != null && currentPartition.isValid() &&
+            !currentPartition.contains(mbr.x1, mbr.y1))
+          continue;
+        rRecords.add(shape.clone());
+      }
+      if (currentPartition == null)
+        joinCurrentPartition(context);
+    }
+
+    @Override
+    protected void cleanup(Context context) throws IOException,
+        InterruptedException {
+      joinCurrentPartition(context);
+      super.cleanup(context);
+    }
+
+    private void joinCurrentPartition(final Context context)
+        throws IOException, InterruptedException {
+      final Text outKey = new Text();
+      final Text outValue = new Text();
+      knnJoinBatch(rRecords, sPath, sIndex, k, context.getConfiguration(),
+          new ResultCollector2<Shape, ShapeWithDistance<Shape>>() {
+        @Override
+        public void collect(Shape r, ShapeWithDistance<Shape> s) {
+          toText(r, s, outKey, outValue);
+          try {
+            context.write(outKey, outValue);
+          } catch (IOException e) {
+            throw new RuntimeException(e);
+          } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+          }
+        }
+      });
+      rRecords.clear();
+      context.progress();
+    }
+  }
+
+  /**
+   * A MapReduce version of the kNN join.
+   * @param inR
+   * @param inS
+   * @param outPath
+   * @param params
+   * @return
+   * @throws IOException
+   * @throws InterruptedException
+   * @throws ClassNotFoundException
+   */
+  private static Job knnJoinMapReduce(Path inR, Path inS, Path outPath,
+      GlobalIndex<Partition> rIndex, OperationsParams params)
+      throws IOException, InterruptedException, ClassNotFoundException {
+    Job job = new Job(params, "KNNJoin");
+    job.setJarByClass(KNNJoin.class);
+    Configuration conf = job.getConfiguration();
+    conf.set(SPath, inS.toString());
+    conf.setBoolean(RReplicated, rIndex.isReplicated());
+
+    job.setInputFormatClass(SpatialInputFormat3.class);
+    SpatialInputFormat3.setInputPaths(job, inR);
+    job.setMapperClass(KNNJoinMap.class);
+    job.setMapOutputKeyClass(Text.class);
+    job.setMapOutputValueClass(Text.class);
+    job.setNumReduceTasks(0);
+
+    if (outPath != null && params.getBoolean("output", true)) {
+      job.setOutputFormatClass(TextOutputFormat.class);
+      TextOutputFormat.setOutputPath(job, outPath);
+    } else {
+      job.setOutputFormatClass(NullOutputFormat.class);
+    }
+
+    if (params.getBoolean("background", false)) {
+      job.submit();
+    } else {
+      job.waitForCompletion(false);
+      Counter outputRecordCounter =
+          job.getCounters().findCounter(Task.Counter.MAP_OUTPUT_RECORDS);
+      LOG.info("Number of result pairs "+outputRecordCounter.getValue());
+    }
+    return job;
+  }
+
+  /**
+   * Runs the kNN join on the local machine by processing the partitions of R
+   * in parallel.
+   * @param inR
+   * @param inS
+   * @param outPath
+   * @param params
+   * @return the number of result pairs
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private static long knnJoinLocal(final Path inR, final Path inS, Path outPath,
+      final GlobalIndex<Partition> rIndex, final GlobalIndex<Partition> sIndex,
+      final OperationsParams params) throws IOException, InterruptedException {
+    final int k = params.getInt("k", 1);
+    final List<Partition> rPartitions = new ArrayList<Partition>();
+    for (Partition p : rIndex)
+      rPartitions.add(p.clone());
+    final PrintStream ps = outPath != null && params.getBoolean("output", true) ?
+        new PrintStream(outPath.getFileSystem(params).create(outPath)) : null;
+
+    List<Long> resultCounts = Parallel.forEach(rPartitions.size(), new RunnableRange<Long>() {
+      @Override
+      public Long run(int i1, int i2) {
+        try {
+          long resultCount = 0;
+          final Text line = new Text();
+          final Text value = new Text();
+          for (int i = i1; i < i2; i++) {
+            List<Shape> rRecords = new ArrayList<Shape>();
+            readPartition(inR, rPartitions.get(i), null, rIndex.isReplicated(),
+                params, rRecords);
+            resultCount += knnJoinBatch(rRecords, inS, sIndex, k, params,
+                new ResultCollector2<Shape, ShapeWithDistance<Shape>>() {
+              @Override
+              public void collect(Shape r, ShapeWithDistance<Shape> s) {
+                if (ps == null)
+                  return;
+                toText(r, s, line, value);
+                line.append(new byte[] {'\t'}, 0, 1);
+                line.append(value.getBytes(), 0, value.getLength());
+                synchronized (ps) {
+                  ps.println(line);
+                }
+              }
+            });
+          }
+          return resultCount;
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    }, params.getInt("parallel", Runtime.getRuntime().availableProcessors()));
+    if (ps != null)
+      ps.close();
+    long resultCount = 0;
+    for (long count : resultCounts)
+      resultCount += count;
+    return resultCount;
+  }
+
+  /**
+   * Finds the k nearest neighbors in S for every record in R.
+   * @param inR
+   * @param inS
+   * @param outPath
+   * @param params
+   * @return the number of result pairs or -1 if the job runs in background
+   * @throws IOException
+   * @throws InterruptedException
+   * @throws ClassNotFoundException
+   */
+  public static long knnJoin(Path inR, Path inS, Path outPath,
+      OperationsParams params)
+      throws IOException, InterruptedException, ClassNotFoundException {
+    GlobalIndex<Partition> rIndex =
+        SpatialSite.getGlobalIndex(inR.getFileSystem(params), inR);
+    GlobalIndex<Partition> sIndex =
+        SpatialSite.getGlobalIndex(inS.getFileSystem(params), inS);
+    if (rIndex == null || sIndex == null)
+      throw new RuntimeException("Both input files must be spatially indexed");
+    if (params.getBoolean("local", false)) {
+      return knnJoinLocal(inR, inS, outPath, rIndex, sIndex, params);
+    } else {
+      Job job = knnJoinMapReduce(inR, inS, outPath, rIndex, params);
+      if (params.getBoolean("background", false))
+        return -1;
+      return job.getCounters().findCounter(Task.Counter.MAP_OUTPUT_RECORDS).getValue();
+    }
+  }
+
+  private static void printUsage() {
+    System.out.println("Finds the k nearest neighbors in S for every record in R");
+    System.out.println("Parameters: (* marks required parameters)");
+    System.out.println("<input file R> - (*) Path to the first input file");
+    System.out.println("<input file S> - (*) Path to the second input file");
+    System.out.println("<output file> - Path to output file");
+    System.out.println("k:<k> - (*) Number of neighbors to find for each record");
+    System.out.println("shape:<s> - (*) Type of shapes in the input files");
+    System.out.println("-local - Process on the local machine without MapReduce");
+    System.out.println("-overwrite - Overwrite output file without notice");
+    GenericOptionsParser.printGenericCommandUsage(System.out);
+  }
+
+  public static void main(String[] args)
+      throws IOException, InterruptedException, ClassNotFoundException {
+    OperationsParams params = new OperationsParams(new GenericOptionsParser(args));
+    Path[] allFiles = params.getPaths();
+    if (allFiles.length < 2) {
+      System.err.println("This operation requires two input files");
+      printUsage();
+      System.exit(1);
+    }
+    if (allFiles.length == 2 && !params.checkInput()) {
+      printUsage();
+      System.exit(1);
+    }
+    if (allFiles.length > 2 && !params.checkInputOutput()) {
+      printUsage();
+      System.exit(1);
+    }
+    Path[] inputPaths = allFiles.length == 2 ? allFiles : params.getInputPaths();
+    Path outputPath = allFiles.length == 2 ? null : params.getOutputPath();
+
+    long t1 = System.currentTimeMillis();
+    long resultCount = knnJoin(inputPaths[0], inputPaths[1], outputPath, params);
+    long t2 = System.currentTimeMillis();
+    System.out.println("Total time: "+(t2-t1)+" millis");
+    System.out.println("Result size: "+resultCount);
+  }
+}
@@ -19,6 +19,7 @@ import edu.umn.cs.spatialHadoop.core.SpatialSite;
 import edu.umn.cs.spatialHadoop.indexing.LocalIndex;
 import edu.umn.cs.spatialHadoop.mapreduce.LocalIndexRecordReader;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
@@ -222,6 +223,80 @@ public class LocalSampler {
     return sampleSize;
   }  
   
+  /**
+   * Samples the records of all local indexes in a split of a locally indexed
+   * file. Records are read using
+   * {@link LocalIndexRecordReader#scanAllText(LocalIndex, FSDataInputStream)}
+   * because the data section of a local index is not necessarily textual.
+   * @param file
+   * @param conf
+   * @param lindexClass
+   * @param ratio the sampling ratio, used only if count is zero
+   * @param count the number of records to sample using reservoir sampling
+   * @param seed
+   * @param output
+   * @return
+   * @throws IOException
+   */
+  private static int sampleLocalIndexSplit(FileSplit file, Configuration conf,
+      Class<? extends LocalIndex> lindexClass, float ratio, int count,
+      long seed, ResultCollector<Text> output) throws IOException {
+    LocalIndex lindex;
+    try {
+      lindex = lindexClass.newInstance();
+    } catch (InstantiationException e) {
+      throw new RuntimeException("Error creating the local index", e);
+    } catch (IllegalAccessException e) {
+      throw new RuntimeException("Error creating the local index", e);
+    }
+    lindex.setup(conf);
+    Random rand = new Random(seed);
+    Text[] sample = new Text[count];
+    int numRecords = 0;
+    int sampledLines = 0;
+    FileSystem fs = file.getPath().getFileSystem(conf);
+    FSDataInputStream in = fs.open(file.getPath());
+    try {
+      // Local indexes are located from the end of the split backwards
+      long indexEnd = file.getStart() + file.getLength();
+      while (indexEnd > file.getStart()) {
+        in.seek(indexEnd - 4);
+        long indexStart = indexEnd - in.readInt() - 4;
+        in.seek(indexStart);
+        lindex.read(in, indexStart, indexEnd, null);
+        for (Object o : LocalIndexRecordReader.scanAllText(lindex, in)) {
+          Text record = (Text) o;
+          if (count > 0) {
+            // Reservoir sampling
+            int victim = numRecords < count ? numRecords : rand.nextInt(numRecords + 1);
+            if (victim < count) {
+              if (sample[victim] == null)
+                sample[victim] = new Text2();
+              sample[victim].set(record);
+            }
+          } else if (rand.nextFloat() < ratio) {
+            sampledLines++;
+            if (output != null)
+              output.collect(record);
+          }
+          numRecords++;
+        }
+        indexEnd = indexStart;
+      }
+    } finally {
+      lindex.close();
+      in.close();
+    }
+    if (count > 0) {
+      sampledLines = Math.min(count, numRecords);
+      if (output != null) {
+        for (int i = 0; i < sampledLines; i++)
+          output.collect(sample[i]);
+      }
+    }
+    return sampledLines;
+  }
+
   /**
    * Sample a specific number of lines from a given file
    * @param file
@@ -233,6 +308,9 @@ public class LocalSampler {
    */
   private static int sampleFileSplitByCount(FileSplit file, Configuration conf,
       int count, long seed, ResultCollector<Text> output) throws IOException {
+    Class<? extends LocalIndex> lindexClass = SpatialSite.getLocalIndex(file.getPath());
+    if (lindexClass != null)
+      return sampleLocalIndexSplit(file, conf, lindexClass, 0, count, seed, output);
     InputStream in = null;
     Decompressor decompressor = null;
     try {
@@ -313,6 +391,9 @@ public class LocalSampler {
   private static int sampleFileSplitByRatio(FileSplit file,
       Configuration conf,
       float ratio, long seed, ResultCollector<Text> output) throws IOException {
+    Class<? extends LocalIndex> lindexClass = SpatialSite.getLocalIndex(file.getPath());
+    if (lindexClass != null)
+      return sampleLocalIndexSplit(file, conf, lindexClass, ratio, 0, seed, output);
     
     InputStream in = null;
     Decompressor decompressor = null;
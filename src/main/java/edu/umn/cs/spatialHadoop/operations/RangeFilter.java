@@ -37,7 +37,7 @@ public class RangeFilter extends DefaultBlockFilter {
   
   @Override
   public void selectCells(GlobalIndex<Partition> gIndex,
-      ResultCollector<Partition> output) {
+      final ResultCollector<Partition> output) {
     int numPartitions;
     if (gIndex.isReplicated()) {
       // Need to process all partitions to perform duplicate avoidance
@@ -48,9 +48,10 @@ public class RangeFilter extends DefaultBlockFilter {
       // Need to process only partitions on the perimeter of the query range
       // Partitions that are totally contained in query range should not be
       // processed and should be copied to output directly
-      numPartitions = 0;
-      for (Partition p : gIndex) {
-        if (queryMBR.contains(p)) {
+      final int[] numSelected = {0};
+      gIndex.rangeQuery(queryMBR, new ResultCollector<Partition>() {
+        @Override
+        public void collect(Partition p) {
           // TODO partitions totally contained in query range should be copied
           // to output directly
 
@@ -58,13 +59,11 @@ public class RangeFilter extends DefaultBlockFilter {
           // similar to R+-tree
           if (p.isIntersected(queryRange)) {
             output.collect(p);
-            numPartitions++;
+            numSelected[0]++;
           }
-        } else if (p.isIntersected(queryMBR) && p.isIntersected(queryRange)) {
-          output.collect(p);
-          numPartitions++;
         }
-      }
+      });
+      numPartitions = numSelected[0];
       RangeQuery.LOG.info("Selected "+numPartitions+" partitions on the perimeter of "+queryMBR);
     }
   }
@@ -11,8 +11,10 @@ package edu.umn.cs.spatialHadoop.operations;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Vector;
 
 import edu.umn.cs.spatialHadoop.core.*;
@@ -44,6 +46,8 @@ import org.apache.hadoop.mapred.Task;
 import org.apache.hadoop.mapred.lib.NullOutputFormat;
 import org.apache.hadoop.util.GenericOptionsParser;
 
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+
 import edu.umn.cs.spatialHadoop.OperationsParams;
 import edu.umn.cs.spatialHadoop.core.CellInfo;
 import edu.umn.cs.spatialHadoop.core.Rectangle;
@@ -262,6 +266,8 @@ public class SJMR {
     private boolean inactiveMode;
     private boolean isFilterOnly;
     private int shapesThresholdPerOnce;
+    /**Number of threads used to join the shapes of one cell*/
+    private int parallelism;
 	
     private S shape;
     
@@ -274,6 +280,7 @@ public class SJMR {
       inactiveMode = OperationsParams.getInactiveModeFlag(job, InactiveMode);
 	  isFilterOnly = OperationsParams.getFilterOnlyModeFlag(job, isFilterOnlyMode);
 	  shapesThresholdPerOnce = OperationsParams.getJoiningThresholdPerOnce(job, JoiningThresholdPerOnce);
+      parallelism = job.getInt("parallel", 1);
       sjmrReduceLOG.info("configured the reduced task");
     }
 
@@ -288,6 +295,10 @@ public class SJMR {
         // Extract CellInfo (MBR) for duplicate avoidance checking
         final CellInfo cellInfo = partitioner.getPartition(cellId.get());
 
+        // Polygons of the first file prepared for point-in-polygon tests
+        Map<Shape, PreparedGeometry> preparedCache =
+            new IdentityHashMap<Shape, PreparedGeometry>();
+
         // Partition retrieved shapes (values) into lists for each file
         List<S>[] shapeLists = new List[inputFileCount];
         for (int i = 0; i < shapeLists.length; i++) {
@@ -325,7 +336,7 @@ public class SJMR {
               }
             }, reporter);  
           }else{
-            SpatialAlgorithms.SpatialJoin_planeSweep(shapeLists[0], shapeLists[1], new ResultCollector2<S, S>() {
+            ResultCollector2<S, S> collector = new ResultCollector2<S, S>() {
               @Override
               public void collect(S x, S y) {
                 if(isSpatialJoinOutputRequired){
@@ -343,8 +354,23 @@ public class SJMR {
                   }	
                 }
               }
-            }, reporter);
-
+            };
+            if (SpatialAlgorithms.isPointInPolygonJoin(shapeLists[0], shapeLists[1])) {
+              // Only the shapes of the first file are kept across batches
+              SpatialAlgorithms.SpatialJoin_pointInPolygon(shapeLists[0],
+                  shapeLists[1], collector, SpatialAlgorithms.isPoint(shapeLists[1].get(0)) ?
+                      preparedCache : null, reporter);
+            } else if (parallelism > 1) {
+              try {
+                SpatialAlgorithms.SpatialJoin_planeSweepParallel(shapeLists[0],
+                    shapeLists[1], collector, reporter, parallelism);
+              } catch (InterruptedException e) {
+                throw new RuntimeException("Interrupted while joining cell "+cellId, e);
+              }
+            } else {
+              SpatialAlgorithms.SpatialJoin_planeSweep(shapeLists[0], shapeLists[1],
+                  collector, reporter);
+            }
           }
           shapeLists[1].clear();
         }
@@ -447,6 +473,7 @@ public class SJMR {
     System.out.println("<input file 2> - (*) Path to the second input file");
     System.out.println("<output file> - Path to output file");
     System.out.println("partition-grid-factor:<value> - Patitioning grid factor (its default value is 20)");
+    System.out.println("parallel:<n> - Number of threads used by each reduce task to join one cell (default 1)");
     System.out.println("-overwrite - Overwrite output file without notice");
     GenericOptionsParser.printGenericCommandUsage(System.out);
   }
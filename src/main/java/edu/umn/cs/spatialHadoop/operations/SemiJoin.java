@@ -0,0 +1,448 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.operations;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.Task;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.output.NullOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
+
+import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.OGCJTSShape;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.ResultCollector;
+import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.core.SpatialSite;
+import edu.umn.cs.spatialHadoop.indexing.GlobalIndex;
+import edu.umn.cs.spatialHadoop.indexing.Partition;
+import edu.umn.cs.spatialHadoop.indexing.RTreeGuttman;
+import edu.umn.cs.spatialHadoop.mapreduce.SpatialInputFormat3;
+import edu.umn.cs.spatialHadoop.mapreduce.SpatialRecordReader3;
+import edu.umn.cs.spatialHadoop.util.Parallel;
+import edu.umn.cs.spatialHadoop.util.Parallel.RunnableRange;
+
+/**
+ * Finds all records in a file R that overlap at least one record in a file
+ * S (semi-join) or that do not overlap any record in S (anti-join). Each
+ * record in R is reported at most once without producing the pairs of
+ * overlapping records. The file S must be spatially indexed. The records of
+ * R are processed in batches where only the partitions of S that overlap a
+ * batch are read into an in-memory R-tree. The search for each record in R
+ * stops at the first record in S that overlaps it.
+ */
+@OperationMetadata(shortName = "semijoin",
+description = "Finds the records in one file that overlap (or do not overlap) any record in another file")
+public class SemiJoin {
+  /**Logger for SemiJoin*/
+  private static final Log LOG = LogFactory.getLog(SemiJoin.class);
+
+  /**The configuration line that stores the path of the file S*/
+  private static final String SPath = "SemiJoin.SPath";
+
+  /**The configuration line that indicates whether R records are replicated*/
+  private static final String RReplicated = "SemiJoin.RReplicated";
+
+  /**
+   * Returns the configuration used to read the file S. The shape of S is
+   * given in the parameter "sshape" and defaults to the shape of R.
+   * @param conf
+   * @return
+   */
+  static Configuration sConf(Configuration conf) {
+    String sShape = conf.get("sshape");
+    if (sShape == null)
+      return conf;
+    Configuration sConf = new Configuration(conf);
+    sConf.set("shape", sShape);
+    return sConf;
+  }
+
+  /**
+   * Tests whether a record in R overlaps a record in S. Shapes other than
+   * {@link OGCJTSShape} might only test the MBR of the other shape, e.g., a
+   * point, so the test is done by the more exact of the two shapes.
+   * @param r
+   * @param s
+   * @return
+   */
+  static boolean overlaps(Shape r, Shape s) {
+    return r instanceof OGCJTSShape ? r.isIntersected(s) : s.isIntersected(r);
+  }
+
+  /**
+   * Reports each record in a batch of R records that overlaps at least one
+   * record in S or, for an anti-join, that does not overlap any record in S.
+   * @param rRecords the records of R
+   * @param sPath the path of the file S
+   * @param sIndex the global index of the file S
+   * @param anti whether to run an anti-join rather than a semi-join
+   * @param sConf the configuration used to read the file S
+   * @param output receives the matching records in R
+   * @return the number of reported records
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  static long semiJoinBatch(List<Shape> rRecords, Path sPath,
+      GlobalIndex<Partition> sIndex, boolean anti, Configuration sConf,
+      ResultCollector<Shape> output) throws IOException, InterruptedException {
+    if (rRecords.isEmpty())
+      return 0;
+    Rectangle window = new Rectangle(Double.MAX_VALUE, Double.MAX_VALUE,
+        -Double.MAX_VALUE, -Double.MAX_VALUE);
+    for (Shape r : rRecords)
+      window.expand(r.getMBR());
+
+    // Read only the records of S that overlap the batch
+    final List<Shape> sRecords = new ArrayList<Shape>();
+    for (Partition p : sIndex) {
+      if (KNNJoin.minDistance(window, p) == 0)
+        KNNJoin.readPartition(sPath, p, window, false, sConf, sRecords);
+    }
+    LOG.info("Probing "+rRecords.size()+" records against "+sRecords.size()+
+        " records from S");
+
+    RTreeGuttman sTree = null;
+    if (!sRecords.isEmpty()) {
+      double[] x1s = new double[sRecords.size()];
+      double[] y1s = new double[sRecords.size()];
+      double[] x2s = new double[sRecords.size()];
+      double[] y2s = new double[sRecords.size()];
+      for (int i = 0; i < sRecords.size(); i++) {
+        Rectangle mbr = sRecords.get(i).getMBR();
+        x1s[i] = mbr.x1;
+        y1s[i] = mbr.y1;
+        x2s[i] = mbr.x2;
+        y2s[i] = mbr.y2;
+      }
+      sTree = new RTreeGuttman(8, 32);
+      sTree.initializeFromRectsBulk(x1s, y1s, x2s, y2s,
+          RTreeGuttman.BulkLoadMethod.STR);
+    }
+
+    long resultCount = 0;
+    for (Shape r : rRecords) {
+      boolean matched = false;
+      if (sTree != null) {
+        Rectangle mbr = r.getMBR();
+        for (RTreeGuttman.Entry entry : sTree.search(mbr.x1, mbr.y1, mbr.x2, mbr.y2)) {
+          if (overlaps(r, sRecords.get(entry.id))) {
+            matched = true;
+            break;
+          }
+        }
+      }
+      if (matched != anti) {
+        output.collect(r);
+        resultCount++;
+      }
+    }
+    return resultCount;
+  }
+
+  /**
+   * Adds a copy of each record with an MBR to the list. If the records are
+   * replicated, only the records whose top-left corner is in the partition
+   * are added to report each record once.
+   * @param shapes
+   * @param partition the partition of the records or <code>null</code> if
+   *   not indexed
+   * @param replicated
+   * @param records
+   */
+  private static void addRecords(Iterable<? extends Shape> shapes,
+      Rectangle partition, boolean replicated, List<Shape> records) {
+    for (Shape shape : shapes) {
+      Rectangle mbr = shape.getMBR();
+      if (mbr == null)
+        continue;
+      if (replicated && partition != null && partition.isValid() &&
+          !partition.contains(mbr.x1, mbr.y1))
+        continue;
+      records.add(shape.clone());
+    }
+  }
+
+  /**
+   * Mapper for the semi-join. Each map task reads records from R and probes
+   * all the records of one partition together against the file S.
+   */
+  public static class SemiJoinMap extends
+      Mapper<Rectangle, Iterable<Shape>, Text, NullWritable> {
+    /**Whether to run an anti-join*/
+    private boolean anti;
+    /**Path of the file S*/
+    private Path sPath;
+    /**Global index of the file S*/
+    private GlobalIndex<Partition> sIndex;
+    /**Whether the records in R are replicated*/
+    private boolean rReplicated;
+    /**The partition of the records currently being collected*/
+    private Partition currentPartition;
+    /**The records of the current partition*/
+    private List<Shape> rRecords = new ArrayList<Shape>();
+    /**The configuration used to read the file S*/
+    private Configuration sConf;
+
+    @Override
+    protected void setup(Context context) throws IOException,
+        InterruptedException {
+      super.setup(context);
+      Configuration conf = context.getConfiguration();
+      sConf = sConf(conf);
+      anti = conf.getBoolean("anti", false);
+      rReplicated = conf.getBoolean(RReplicated, false);
+      sPath = new Path(conf.get(SPath));
+      sIndex = SpatialSite.getGlobalIndex(sPath.getFileSystem(conf), sPath);
+    }
+
+    @Override
+    protected void map(Rectangle key, Iterable<Shape> shapes, Context context)
+        throws IOException, InterruptedException {
+      Partition partition = key instanceof Partition ? (Partition) key : null;
+      if (currentPartition != null && (partition == null ||
+          !currentPartition.filename.equals(partition.filename))) {
+        joinCurrentPartition(context);
+      }
+      currentPartition = partition == null ? null : partition.clone();
+      addRecords(shapes, currentPartition, rReplicated, rRecords);
+      if (currentPartition == null)
+        joinCurrentPartition(context);
+    }
+
+    @Override
+    protected void cleanup(Context context) throws IOException,
+        InterruptedException {
+      joinCurrentPartition(context);
+      super.cleanup(context);
+    }
+
+    private void joinCurrentPartition(final Context context)
+        throws IOException, InterruptedException {
+      final Text outKey = new Text();
+      semiJoinBatch(rRecords, sPath, sIndex, anti, sConf,
+          new ResultCollector<Shape>() {
+        @Override
+        public void collect(Shape r) {
+          outKey.clear();
+          r.toText(outKey);
+          try {
+            context.write(outKey, NullWritable.get());
+          } catch (IOException e) {
+            throw new RuntimeException(e);
+          } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+          }
+        }
+      });
+      rRecords.clear();
+      context.progress();
+    }
+  }
+
+  /**
+   * A MapReduce version of the semi-join.
+   * @param inR
+   * @param inS
+   * @param outPath
+   * @param params
+   * @return
+   * @throws IOException
+   * @throws InterruptedException
+   * @throws ClassNotFoundException
+   */
+  private static Job semiJoinMapReduce(Path inR, Path inS, Path outPath,
+      boolean rReplicated, OperationsParams params)
+      throws IOException, InterruptedException, ClassNotFoundException {
+    Job job = new Job(params, "SemiJoin");
+    job.setJarByClass(SemiJoin.class);
+    Configuration conf = job.getConfiguration();
+    conf.set(SPath, inS.toString());
+    conf.setBoolean(RReplicated, rReplicated);
+
+    job.setInputFormatClass(SpatialInputFormat3.class);
+    SpatialInputFormat3.setInputPaths(job, inR);
+    job.setMapperClass(SemiJoinMap.class);
+    job.setMapOutputKeyClass(Text.class);
+    job.setMapOutputValueClass(NullWritable.class);
+    job.setNumReduceTasks(0);
+
+    if (outPath != null && params.getBoolean("output", true)) {
+      job.setOutputFormatClass(TextOutputFormat.class);
+      TextOutputFormat.setOutputPath(job, outPath);
+    } else {
+      job.setOutputFormatClass(NullOutputFormat.class);
+    }
+
+    if (params.getBoolean("background", false)) {
+      job.submit();
+    } else {
+      job.waitForCompletion(false);
+    }
+    return job;
+  }
+
+  /**
+   * Runs the semi-join on the local machine by processing the splits of R
+   * in parallel.
+   * @param inR
+   * @param inS
+   * @param outPath
+   * @param params
+   * @return the number of reported records
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private static long semiJoinLocal(Path inR, final Path inS, Path outPath,
+      final boolean rReplicated, final GlobalIndex<Partition> sIndex,
+      final OperationsParams params) throws IOException, InterruptedException {
+    final boolean anti = params.getBoolean("anti", false);
+    final Configuration sConf = sConf(params);
+    Job job = Job.getInstance(params);
+    SpatialInputFormat3<Rectangle, Shape> inputFormat =
+        new SpatialInputFormat3<Rectangle, Shape>();
+    SpatialInputFormat3.setInputPaths(job, inR);
+    final List<InputSplit> splits = inputFormat.getSplits(job);
+    final PrintStream ps = outPath != null && params.getBoolean("output", true) ?
+        new PrintStream(outPath.getFileSystem(params).create(outPath)) : null;
+
+    List<Long> resultCounts = Parallel.forEach(splits.size(), new RunnableRange<Long>() {
+      @Override
+      public Long run(int i1, int i2) {
+        try {
+          long resultCount = 0;
+          final Text line = new Text();
+          for (int i = i1; i < i2; i++) {
+            List<Shape> rRecords = new ArrayList<Shape>();
+            SpatialRecordReader3<Shape> reader = new SpatialRecordReader3<Shape>();
+            reader.initialize((FileSplit) splits.get(i), params);
+            while (reader.nextKeyValue()) {
+              addRecords(reader.getCurrentValue(), reader.getCurrentKey(),
+                  rReplicated, rRecords);
+            }
+            reader.close();
+            resultCount += semiJoinBatch(rRecords, inS, sIndex, anti, sConf,
+                new ResultCollector<Shape>() {
+              @Override
+              public void collect(Shape r) {
+                if (ps == null)
+                  return;
+                line.clear();
+                r.toText(line);
+                synchronized (ps) {
+                  ps.println(line);
+                }
+              }
+            });
+          }
+          return resultCount;
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    }, params.getInt("parallel", Runtime.getRuntime().availableProcessors()));
+    if (ps != null)
+      ps.close();
+    long resultCount = 0;
+    for (long count : resultCounts)
+      resultCount += count;
+    return resultCount;
+  }
+
+  /**
+   * Finds the records in R that overlap at least one record in S or, if the
+   * parameter "anti" is set, the records in R that do not overlap any record
+   * in S.
+   * @param inR
+   * @param inS
+   * @param outPath
+   * @param params
+   * @return the number of reported records or -1 if the job runs in
+   *   background
+   * @throws IOException
+   * @throws InterruptedException
+   * @throws ClassNotFoundException
+   */
+  public static long semiJoin(Path inR, Path inS, Path outPath,
+      OperationsParams params)
+      throws IOException, InterruptedException, ClassNotFoundException {
+    GlobalIndex<Partition> rIndex =
+        SpatialSite.getGlobalIndex(inR.getFileSystem(params), inR);
+    GlobalIndex<Partition> sIndex =
+        SpatialSite.getGlobalIndex(inS.getFileSystem(params), inS);
+    if (sIndex == null)
+      throw new RuntimeException("The file "+inS+" must be spatially indexed");
+    boolean rReplicated = rIndex != null && rIndex.isReplicated();
+    if (params.getBoolean("local", false)) {
+      return semiJoinLocal(inR, inS, outPath, rReplicated, sIndex, params);
+    } else {
+      Job job = semiJoinMapReduce(inR, inS, outPath, rReplicated, params);
+      if (params.getBoolean("background", false))
+        return -1;
+      return job.getCounters().findCounter(Task.Counter.MAP_OUTPUT_RECORDS).getValue();
+    }
+  }
+
+  private static void printUsage() {
+    System.out.println("Finds the records in R that overlap any record in S");
+    System.out.println("Parameters: (* marks required parameters)");
+    System.out.println("<input file R> - (*) Path to the first input file");
+    System.out.println("<input file S> - (*) Path to the second (indexed) input file");
+    System.out.println("<output file> - Path to output file");
+    System.out.println("shape:<s> - (*) Type of shapes in the input files");
+    System.out.println("sshape:<s> - Type of shapes in S if different from R");
+    System.out.println("-anti - Find the records in R that do not overlap any record in S");
+    System.out.println("-local - Process on the local machine without MapReduce");
+    System.out.println("-overwrite - Overwrite output file without notice");
+    GenericOptionsParser.printGenericCommandUsage(System.out);
+  }
+
+  public static void main(String[] args)
+      throws IOException, InterruptedException, ClassNotFoundException {
+    OperationsParams params = new OperationsParams(new GenericOptionsParser(args));
+    Path[] allFiles = params.getPaths();
+    if (allFiles.length < 2) {
+      System.err.println("This operation requires two input files");
+      printUsage();
+      System.exit(1);
+    }
+    if (allFiles.length == 2 && !params.checkInput()) {
+      printUsage();
+      System.exit(1);
+    }
+    if (allFiles.length > 2 && !params.checkInputOutput()) {
+      printUsage();
+      System.exit(1);
+    }
+    Path[] inputPaths = allFiles.length == 2 ? allFiles : params.getInputPaths();
+    Path outputPath = allFiles.length == 2 ? null : params.getOutputPath();
+
+    long t1 = System.currentTimeMillis();
+    long resultCount = semiJoin(inputPaths[0], inputPaths[1], outputPath, params);
+    long t2 = System.currentTimeMillis();
+    System.out.println("Total time: "+(t2-t1)+" millis");
+    System.out.println("Result size: "+resultCount);
+  }
+}
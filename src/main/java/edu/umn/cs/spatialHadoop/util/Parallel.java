@@ -8,8 +8,16 @@
 *************************************************************************/
 package edu.umn.cs.spatialHadoop.util;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -65,47 +73,141 @@ public class Parallel {
     return forEach(0, size, r, parallelism);
   }
 
+  /**
+   * Runs the given range function over the range [start, end) using a shared
+   * fork-join pool with the given parallelism. The range is split adaptively,
+   * i.e., a worker splits its range only when there are no pending tasks
+   * that idle workers can steal, and never into ranges smaller than a quarter
+   * of the range of one worker. The results of all ranges are returned in the order of their
+   * ranges. If any range fails, the ranges that did not start yet are
+   * skipped and the error is rethrown wrapped in a {@link RuntimeException}.
+   * @param start the first index in the range (inclusive)
+   * @param end the last index in the range (exclusive)
+   * @param r the function to run on each sub-range
+   * @param parallelism the maximum number of ranges to run concurrently
+   * @return the results of all sub-ranges in order
+   * @throws InterruptedException if the calling thread is interrupted while
+   *   waiting. In this case, all remaining ranges are cancelled.
+   */
   public static <T> List<T> forEach(int start, int end, RunnableRange<T> r, int parallelism) throws InterruptedException {
     Vector<T> results = new Vector<T>();
     if (end <= start)
       return results;
-    final Vector<Throwable> exceptions = new Vector<Throwable>();
-    Thread.UncaughtExceptionHandler h = new Thread.UncaughtExceptionHandler() {
-      public void uncaughtException(Thread th, Throwable ex) {
-        exceptions.add(ex);
-      }
-    };
-    
+
     // Put an upper bound on parallelism to avoid empty ranges
     if (parallelism > (end - start))
       parallelism = end - start;
-    if (parallelism == 1) {
-      // Avoid creating threads
+    if (parallelism <= 1) {
+      // Avoid using other threads
       results.add(r.run(start, end));
+      return results;
+    }
+    int minRangeSize = Math.max(1, (end - start) / (parallelism * 4));
+    RangeTask<T> task = new RangeTask<T>(r, start, end, minRangeSize,
+        new RangeTaskState());
+    if (ForkJoinTask.inForkJoinPool()) {
+      // A nested call from one of the workers. Run in the same pool to avoid
+      // blocking the worker while waiting for another pool
+      task.invoke();
     } else {
-      LOG.info("Creating "+parallelism+" threads");
-      final int[] partitions = new int[parallelism + 1];
-      for (int i_thread = 0; i_thread <= parallelism; i_thread++)
-        partitions[i_thread] = i_thread * (end - start) / parallelism + start;
-      final Vector<RunnableRangeThread<T>> threads = new Vector<RunnableRangeThread<T>>();
-      for (int i_thread = 0; i_thread < parallelism; i_thread++) {
-        RunnableRangeThread<T> thread = new RunnableRangeThread<T>(r,
-            partitions[i_thread], partitions[i_thread+1]);
-        thread.setUncaughtExceptionHandler(h);
-        threads.add(thread);
-        threads.lastElement().start();
+      getPool(parallelism).execute(task);
+      try {
+        task.get();
+      } catch (InterruptedException e) {
+        task.state.cancelled = true;
+        task.cancel(false);
+        throw e;
+      } catch (ExecutionException e) {
+        // Errors are collected in the task state and reported below
       }
-      for (int i_thread = 0; i_thread < parallelism; i_thread++) {
-        threads.get(i_thread).join();
-        results.add(threads.get(i_thread).getResult());
-      }
-      if (!exceptions.isEmpty())
-        throw new RuntimeException(exceptions.size()+" unhandled exceptions",
-            exceptions.firstElement());
     }
+    if (!task.state.exceptions.isEmpty())
+      throw new RuntimeException(task.state.exceptions.size()+" unhandled exceptions",
+          task.state.exceptions.firstElement());
+    results.addAll(task.results);
     return results;
   }
 
+  /**Shared pools keyed by their parallelism*/
+  private static final Map<Integer, ForkJoinPool> pools = new HashMap<Integer, ForkJoinPool>();
+
+  /**
+   * Returns the shared pool with the given parallelism. The pool is created
+   * the first time it is requested and is reused by all later calls.
+   * @param parallelism
+   * @return
+   */
+  private static synchronized ForkJoinPool getPool(int parallelism) {
+    ForkJoinPool pool = pools.get(parallelism);
+    if (pool == null) {
+      LOG.info("Creating a pool of "+parallelism+" threads");
+      pool = new ForkJoinPool(parallelism);
+      pools.put(parallelism, pool);
+    }
+    return pool;
+  }
+
+  /**The state shared by all the tasks of one call to forEach*/
+  static class RangeTaskState {
+    /**Set when one range fails or the caller is interrupted*/
+    volatile boolean cancelled;
+    /**All errors thrown by the ranges*/
+    final Vector<Throwable> exceptions = new Vector<Throwable>();
+  }
+
+  /**
+   * A fork-join task that runs a range function over a range, possibly
+   * after splitting it into two halves that run in parallel.
+   */
+  static class RangeTask<T> extends RecursiveAction {
+    private final RunnableRange<T> runnableRange;
+    private final int i1, i2;
+    /**Ranges of this size or smaller are never split*/
+    private final int minRangeSize;
+    final RangeTaskState state;
+    /**The results of all sub-ranges in order*/
+    List<T> results;
+
+    RangeTask(RunnableRange<T> runnableRange, int i1, int i2, int minRangeSize,
+        RangeTaskState state) {
+      this.runnableRange = runnableRange;
+      this.i1 = i1;
+      this.i2 = i2;
+      this.minRangeSize = minRangeSize;
+      this.state = state;
+    }
+
+    @Override
+    protected void compute() {
+      if (state.cancelled) {
+        results = Collections.emptyList();
+        return;
+      }
+      if (i2 - i1 > minRangeSize && getSurplusQueuedTaskCount() <= 2) {
+        int iMid = (i1 + i2) >>> 1;
+        RangeTask<T> left = new RangeTask<T>(runnableRange, i1, iMid, minRangeSize, state);
+        RangeTask<T> right = new RangeTask<T>(runnableRange, iMid, i2, minRangeSize, state);
+        right.fork();
+        left.compute();
+        if (right.tryUnfork())
+          right.compute();
+        else
+          right.join();
+        results = new ArrayList<T>(left.results.size() + right.results.size());
+        results.addAll(left.results);
+        results.addAll(right.results);
+      } else {
+        try {
+          results = Collections.singletonList(runnableRange.run(i1, i2));
+        } catch (Throwable e) {
+          state.exceptions.add(e);
+          state.cancelled = true;
+          results = Collections.emptyList();
+        }
+      }
+    }
+  }
+
   /**
    * @param args
    * @throws InterruptedException 
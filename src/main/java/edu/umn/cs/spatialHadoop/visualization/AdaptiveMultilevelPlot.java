@@ -19,6 +19,7 @@ import java.util.Map;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.LongWritable;
@@ -564,6 +565,8 @@ public class AdaptiveMultilevelPlot {
    *   <li>Create both data and image tiles at deeper levels using pyramid partitioning</li>
    * </ol>
    * The MBR job runs first. After it is done, the histogram job runs next.
+   * The histogram job is skipped if the input is an index that stores the
+   * histogram computed while it was built.
    * After the histogram is computed, the three other jobs run in parallel.
    * @param inPaths
    * @param outPath
@@ -620,7 +623,21 @@ public class AdaptiveMultilevelPlot {
     Path histogramFile = new Path(outPath, "histogram");
     long t1 = System.currentTimeMillis();
 
-    Histogram.histogram(inPaths, histogramFile, params);
+    GridHistogram indexHistogram = null;
+    if (inPaths.length == 1) {
+      // Reuse the histogram collected while the input was indexed, if any
+      indexHistogram = Histogram.readIndexHistogram(inPaths[0].getFileSystem(params),
+          Histogram.getIndexHistogramPath(inPaths[0]), inputMBR,
+          params.getInt(Histogram.HistogramWidth, 1024),
+          params.getInt(Histogram.HistogramHeight, 1024));
+    }
+    if (indexHistogram != null) {
+      FSDataOutputStream histogramOut = outFS.create(new Path(histogramFile, "part-r-00000"));
+      indexHistogram.write(histogramOut);
+      histogramOut.close();
+    } else {
+      Histogram.histogram(inPaths, histogramFile, params);
+    }
     params.setInt(Histogram.HistogramWidth, 1 << maxLevel);
     params.setInt(Histogram.HistogramHeight, 1 << maxLevel);
     long t2 = System.currentTimeMillis();
@@ -12,13 +12,12 @@ import java.awt.Color;
 import java.awt.Point;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
+import java.io.DataInputStream;
 import java.io.DataOutput;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -39,8 +38,24 @@ public class FrequencyMap extends Canvas {
   /**The kernel to use for stamping points*/
   protected float[][] kernel;
   
-  /**Frequencies*/
-  protected float[][] frequencies;
+  /**
+   * Width and height of one tile of frequencies in pixels. The frequency map
+   * is divided into square tiles that are allocated only when a non-zero
+   * value is added to them. Hence, a mostly empty map takes little memory
+   * and is merged and serialized quickly while a full map is as big as a
+   * dense array.
+   */
+  protected static final int TileSize = 64;
+
+  /**
+   * Frequencies stored in tiles. The tile at column tx and row ty is stored
+   * at index tx * numTilesY + ty and is null if all its values are zeros.
+   * Within one tile, the value at (x, y) is stored at x * TileSize + y.
+   */
+  protected float[][] tiles;
+
+  /**Number of tiles along the x and y axes*/
+  protected int numTilesX, numTilesY;
 
   /**Radius to smooth nearboy points*/
   private int radius;
@@ -68,11 +83,45 @@ public class FrequencyMap extends Canvas {
     this.inputMBR = inputMBR;
     this.width = width;
     this.height = height;
-    this.frequencies = new float[width][height];
+    allocateTiles();
     this.min = -1; this.max = -2;
     initKernel(radius, smoothType);
   }
   
+  /**
+   * Allocates an empty array of tiles for the current width and height
+   */
+  protected void allocateTiles() {
+    this.numTilesX = (getWidth() + TileSize - 1) / TileSize;
+    this.numTilesY = (getHeight() + TileSize - 1) / TileSize;
+    this.tiles = new float[numTilesX * numTilesY][];
+  }
+
+  /**
+   * Returns the frequency at the given pixel
+   * @param x
+   * @param y
+   * @return
+   */
+  public float getFrequency(int x, int y) {
+    float[] tile = tiles[(x / TileSize) * numTilesY + y / TileSize];
+    return tile == null ? 0 : tile[(x % TileSize) * TileSize + y % TileSize];
+  }
+
+  /**
+   * Adds a value to the frequency at the given pixel
+   * @param x
+   * @param y
+   * @param value
+   */
+  protected void addFrequency(int x, int y, float value) {
+    int iTile = (x / TileSize) * numTilesY + y / TileSize;
+    float[] tile = tiles[iTile];
+    if (tile == null)
+      tile = tiles[iTile] = new float[TileSize * TileSize];
+    tile[(x % TileSize) * TileSize + y % TileSize] += value;
+  }
+
   /**
    * Initialize a frequency map with the given radius and kernel type
    * @param radius
@@ -115,69 +164,87 @@ public class FrequencyMap extends Canvas {
     this.max = max;
   }
   
+  /**
+   * Written instead of the length of the compressed data to indicate that the
+   * frequencies are stored as a list of non-empty tiles.
+   */
+  private static final int SparseTilesMarker = -1;
+
   @Override
   public void write(DataOutput out) throws IOException {
     super.write(out);
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    GZIPOutputStream gzos = new GZIPOutputStream(baos);
-    ByteBuffer bbuffer = ByteBuffer.allocate(getHeight() * 4 + 8);
-    bbuffer.putInt(getWidth());
-    bbuffer.putInt(getHeight());
-    gzos.write(bbuffer.array(), 0, bbuffer.position());
-    for (int x = 0; x < getWidth(); x++) {
-      bbuffer.clear();
-      for (int y = 0; y < getHeight(); y++) {
-        bbuffer.putFloat(frequencies[x][y]);
+    int numNonEmptyTiles = 0;
+    for (float[] tile : tiles)
+      if (tile != null)
+        numNonEmptyTiles++;
+    out.writeInt(SparseTilesMarker);
+    out.writeInt(numNonEmptyTiles);
+    ByteBuffer bbuffer = ByteBuffer.allocate(TileSize * TileSize * 4);
+    for (int iTile = 0; iTile < tiles.length; iTile++) {
+      if (tiles[iTile] != null) {
+        out.writeInt(iTile);
+        bbuffer.clear();
+        bbuffer.asFloatBuffer().put(tiles[iTile]);
+        out.write(bbuffer.array());
       }
-      gzos.write(bbuffer.array(), 0, bbuffer.position());
     }
-    gzos.close();
-    
-    byte[] serializedData = baos.toByteArray();
-    out.writeInt(serializedData.length);
-    out.write(serializedData);
   }
-  
+
   @Override
   public void readFields(DataInput in) throws IOException {
     super.readFields(in);
+    allocateTiles();
     int length = in.readInt();
-    byte[] serializedData = new byte[length];
-    in.readFully(serializedData);
-    ByteArrayInputStream bais = new ByteArrayInputStream(serializedData);
-    GZIPInputStream gzis = new GZIPInputStream(bais);
-    
-    byte[] buffer = new byte[8];
-    gzis.read(buffer);
-    ByteBuffer bbuffer = ByteBuffer.wrap(buffer);
-    int width = bbuffer.getInt();
-    int height = bbuffer.getInt();
-    // Reallocate memory only if needed
-    if (width != this.getWidth() || height != this.getHeight())
-      frequencies = new float[width][height];
-    buffer = new byte[getHeight() * 4];
-    for (int x = 0; x < getWidth(); x++) {
-      int size = 0;
-      while (size < buffer.length) {
-        size += gzis.read(buffer, size, buffer.length - size);
+    if (length == SparseTilesMarker) {
+      int numNonEmptyTiles = in.readInt();
+      byte[] buffer = new byte[TileSize * TileSize * 4];
+      for (int i = 0; i < numNonEmptyTiles; i++) {
+        int iTile = in.readInt();
+        in.readFully(buffer);
+        tiles[iTile] = new float[TileSize * TileSize];
+        ByteBuffer.wrap(buffer).asFloatBuffer().get(tiles[iTile]);
       }
-      bbuffer = ByteBuffer.wrap(buffer);
-      for (int y = 0; y < getHeight(); y++) {
-        frequencies[x][y] = bbuffer.getFloat();
+    } else {
+      // A dense frequency map compressed with GZIP
+      byte[] serializedData = new byte[length];
+      in.readFully(serializedData);
+      DataInputStream gzis = new DataInputStream(
+          new GZIPInputStream(new ByteArrayInputStream(serializedData)));
+      int width = gzis.readInt();
+      int height = gzis.readInt();
+      for (int x = 0; x < width; x++) {
+        for (int y = 0; y < height; y++) {
+          float value = gzis.readFloat();
+          if (value != 0)
+            addFrequency(x, y, value);
+        }
       }
+      gzis.close();
     }
   }
   
   public void mergeWith(FrequencyMap another) {
     Point offset = projectToImageSpace(another.getInputMBR().x1, another.getInputMBR().y1);
-    int xmin = Math.max(0, offset.x);
-    int ymin = Math.max(0, offset.y);
-    int xmax = Math.min(this.getWidth(), another.getWidth() + offset.x);
-    int ymax = Math.min(this.getHeight(), another.getHeight() + offset.y);
-    for (int x = xmin; x < xmax; x++) {
-      for (int y = ymin; y < ymax; y++) {
-        this.frequencies[x][y] +=
-            another.frequencies[x - offset.x][y - offset.y];
+    // Only non-empty tiles of the other map need to be merged
+    for (int tx = 0; tx < another.numTilesX; tx++) {
+      for (int ty = 0; ty < another.numTilesY; ty++) {
+        float[] tile = another.tiles[tx * another.numTilesY + ty];
+        if (tile == null)
+          continue;
+        int xmin = Math.max(0, tx * TileSize + offset.x);
+        int ymin = Math.max(0, ty * TileSize + offset.y);
+        int xmax = Math.min(this.getWidth(),
+            Math.min(another.getWidth(), (tx + 1) * TileSize) + offset.x);
+        int ymax = Math.min(this.getHeight(),
+            Math.min(another.getHeight(), (ty + 1) * TileSize) + offset.y);
+        for (int x = xmin; x < xmax; x++) {
+          int tileOffset = (x - offset.x - tx * TileSize) * TileSize - ty * TileSize - offset.y;
+          for (int y = ymin; y < ymax; y++) {
+            float value = tile[tileOffset + y];
+            if (value != 0)
+              this.addFrequency(x, y, value);
+          }
+        }
       }
     }
   }
@@ -187,20 +254,40 @@ public class FrequencyMap extends Canvas {
       // Values not set. Autodetect
       min = Float.MAX_VALUE;
       max = -Float.MAX_VALUE;
-      for (int x = 0; x < this.getWidth(); x++) {
-        for (int y = 0; y < this.getHeight(); y++) {
-          if (frequencies[x][y] < min)
-            min = frequencies[x][y];
-          if (frequencies[x][y] > max)
-            max = frequencies[x][y];
+      if (getWidth() % TileSize == 0 && getHeight() % TileSize == 0) {
+        // Tiles cover the map exactly. Scan the tiles directly
+        for (float[] tile : tiles) {
+          if (tile == null) {
+            // An empty tile contains only zeros
+            min = Math.min(min, 0);
+            max = Math.max(max, 0);
+          } else {
+            for (float value : tile) {
+              if (value < min)
+                min = value;
+              if (value > max)
+                max = value;
+            }
+          }
+        }
+      } else {
+        for (int x = 0; x < this.getWidth(); x++) {
+          for (int y = 0; y < this.getHeight(); y++) {
+            float value = getFrequency(x, y);
+            if (value < min)
+              min = value;
+            if (value > max)
+              max = value;
+          }
         }
       }
     }
     BufferedImage image = new BufferedImage(getWidth(), getHeight(), BufferedImage.TYPE_INT_ARGB);
+    int zeroColor = calculateColor(0, min, max).getRGB();
     for (int x = 0; x < this.getWidth(); x++) {
       for (int y = 0; y < this.getHeight(); y++) {
-        Color color = calculateColor(frequencies[x][y], min, max);
-        image.setRGB(x, y, color.getRGB());
+        float value = getFrequency(x, y);
+        image.setRGB(x, y, value == 0 ? zeroColor : calculateColor(value, min, max).getRGB());
       }
     }
     return image;
@@ -216,20 +303,13 @@ public class FrequencyMap extends Canvas {
       for (int dy = -radius; dy < radius; dy++) {
         int imgx = cx + dx;
         int imgy = cy + dy;
-        if (imgx >= 0 && imgx < getWidth() && imgy >= 0 && imgy < getHeight())
-          frequencies[imgx][imgy] += kernel[dx + radius][dy + radius];
+        if (imgx >= 0 && imgx < getWidth() && imgy >= 0 && imgy < getHeight() &&
+            kernel[dx + radius][dy + radius] != 0)
+          addFrequency(imgx, imgy, kernel[dx + radius][dy + radius]);
       }
     }
   }
 
-  public int getWidth() {
-    return frequencies == null? 0 : frequencies.length;
-  }
-
-  public int getHeight() {
-    return frequencies == null? 0 : frequencies[0].length;
-  }
-  
   /* The following methods are used to compute the gradient */
 
   protected Color[] colors;
@@ -16,6 +16,7 @@ import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.Writable;
 
+import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.SpatialSite;
 
 public class GridHistogram implements Writable {
@@ -58,6 +59,50 @@ public class GridHistogram implements Writable {
 		//System.out.println("x="+x+"y="+y+"Size="+size);
 		values[y * width + x] += size;
 	}
+
+	/**
+	 * Adds the given size to the cell that contains the given point, where
+	 * the histogram covers the given space. Points outside the space are
+	 * added to the nearest cell at the boundary.
+	 * @param space the space covered by this histogram
+	 * @param x
+	 * @param y
+	 * @param size
+	 */
+	public void addPoint(Rectangle space, double x, double y, long size) {
+		int column = (int) ((x - space.x1) * width / space.getWidth());
+		int row = (int) ((y - space.y1) * height / space.getHeight());
+		column = Math.max(0, Math.min(width - 1, column));
+		row = Math.max(0, Math.min(height - 1, row));
+		values[row * width + column] += size;
+	}
+
+	/**
+	 * Adds all the values of another histogram that covers a different space
+	 * or has a different resolution. The value of each cell in the other
+	 * histogram is added to the cell of this histogram that contains its
+	 * center.
+	 * @param space the space covered by this histogram
+	 * @param another the histogram to add to this one
+	 * @param anotherSpace the space covered by the other histogram
+	 */
+	public void mergeAligned(Rectangle space, GridHistogram another, Rectangle anotherSpace) {
+		if (another.width == this.width && another.height == this.height &&
+				anotherSpace.equals(space)) {
+			merge(another);
+			return;
+		}
+		double cellWidth = anotherSpace.getWidth() / another.width;
+		double cellHeight = anotherSpace.getHeight() / another.height;
+		for (int row = 0; row < another.height; row++) {
+			for (int column = 0; column < another.width; column++) {
+				long value = another.values[row * another.width + column];
+				if (value != 0)
+					addPoint(space, anotherSpace.x1 + (column + 0.5) * cellWidth,
+							anotherSpace.y1 + (row + 0.5) * cellHeight, value);
+			}
+		}
+	}
 	
 	public void merge(GridHistogram another) {
 		if (another.width != this.width || another.height != this.height)
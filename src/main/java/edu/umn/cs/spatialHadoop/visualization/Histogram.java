@@ -5,6 +5,9 @@ import java.io.IOException;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.NullWritable;
@@ -33,6 +36,15 @@ public class Histogram {
 	
 	public static final String HistogramWidth = "hist.width";
 	public static final String HistogramHeight = "hist.height";
+
+	/**
+	 * Number of rows and columns of the histogram that is collected while a
+	 * file is indexed. Set to zero to disable collecting the histogram.
+	 */
+	public static final String IndexHistogramSize = "hist.index.size";
+
+	/**Name of the hidden file that stores the histogram of an index*/
+	public static final String IndexHistogramFile = "_histogram";
 	
 	public static class HistogramMapper<S extends Shape>
     extends Mapper<Rectangle, Iterable<S>, NullWritable, GridHistogram>{
@@ -69,17 +81,7 @@ public class Histogram {
 				
 				double centerx = (mbr.x1 + mbr.x2) / 2;
 				double centery = (mbr.y1 + mbr.y2) / 2;
-				int gridColumn = (int) ((centerx - fileMBR.x1) * gridHistogram.getWidth() / fileMBR.getWidth());
-				int gridRow = (int) ((centery - fileMBR.y1) * gridHistogram.getHeight() / fileMBR.getHeight());
-//				if(gridColumn*1024+gridRow>=1048576)
-//					System.out.println("error"+(gridColumn*1024+gridRow)+"column="+gridColumn+"Row="+gridRow+"centers="+centerx+","+centery+"width="+fileMBR.getWidth()+"fileMBR="+fileMBR.x1+"gridwidth="+gridHistogram.getWidth());
-				if(gridColumn>gridHistogram.getWidth()-1)
-					gridColumn=gridHistogram.getWidth()-1;
-				if(gridRow>gridHistogram.getHeight()-1)
-					gridRow=gridHistogram.getHeight()-1;
-				//System.out.println(gridColumn+"\t"+gridRow);
-				//if(gridColumn<1024 &&gridRow<1024)
-					gridHistogram.set(gridColumn, gridRow, size);
+				gridHistogram.addPoint(fileMBR, centerx, centery, size);
 				
 				}
 			}
@@ -157,6 +159,108 @@ public class Histogram {
 	}
 
 
+	/**
+	 * Returns the path of the histogram stored in the given index directory.
+	 * @param indexPath
+	 * @return
+	 */
+	public static Path getIndexHistogramPath(Path indexPath) {
+		return new Path(indexPath, IndexHistogramFile);
+	}
+
+	/**
+	 * Writes a histogram along with the space that it covers.
+	 * @param fs
+	 * @param file
+	 * @param space
+	 * @param histogram
+	 * @throws IOException
+	 */
+	public static void writeIndexHistogram(FileSystem fs, Path file, Rectangle space,
+			GridHistogram histogram) throws IOException {
+		FSDataOutputStream out = fs.create(file, true);
+		try {
+			new Rectangle(space).write(out);
+			histogram.write(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Reads a histogram written by
+	 * {@link #writeIndexHistogram(FileSystem, Path, Rectangle, GridHistogram)}
+	 * and maps it to the given space and resolution.
+	 * @param fs
+	 * @param file
+	 * @param space the space to be covered by the returned histogram
+	 * @param width
+	 * @param height
+	 * @return the histogram or <code>null</code> if the file does not exist
+	 * @throws IOException
+	 */
+	public static GridHistogram readIndexHistogram(FileSystem fs, Path file,
+			Rectangle space, int width, int height) throws IOException {
+		if (!fs.exists(file))
+			return null;
+		Rectangle storedSpace = new Rectangle();
+		GridHistogram storedHistogram = new GridHistogram();
+		FSDataInputStream in = fs.open(file);
+		try {
+			storedSpace.readFields(in);
+			storedHistogram.readFields(in);
+		} finally {
+			in.close();
+		}
+		GridHistogram histogram = new GridHistogram(width, height);
+		histogram.mergeAligned(space, storedHistogram, storedSpace);
+		return histogram;
+	}
+
+	/**
+	 * Combines several stored histograms into one file. The result covers the
+	 * union of the spaces of all histograms and has the same resolution as the
+	 * first histogram.
+	 * @param fs
+	 * @param files
+	 * @param destination
+	 * @throws IOException
+	 */
+	public static void mergeIndexHistograms(FileSystem fs, Path[] files,
+			Path destination) throws IOException {
+		// Find the space that covers all histograms
+		Rectangle space = null;
+		for (Path file : files) {
+			Rectangle storedSpace = new Rectangle();
+			FSDataInputStream in = fs.open(file);
+			try {
+				storedSpace.readFields(in);
+			} finally {
+				in.close();
+			}
+			if (space == null)
+				space = storedSpace;
+			else
+				space.expand(storedSpace);
+		}
+		GridHistogram histogram = null;
+		for (Path file : files) {
+			Rectangle storedSpace = new Rectangle();
+			GridHistogram storedHistogram = new GridHistogram();
+			FSDataInputStream in = fs.open(file);
+			try {
+				storedSpace.readFields(in);
+				storedHistogram.readFields(in);
+			} finally {
+				in.close();
+			}
+			if (histogram == null)
+				histogram = new GridHistogram(storedHistogram.getWidth(), storedHistogram.getHeight());
+			histogram.mergeAligned(space, storedHistogram, storedSpace);
+		}
+		writeIndexHistogram(fs, destination, space, histogram);
+	}
+
 	private static void printUsage() {
 		System.out.println("Computes the histogram of an input file");
 		System.out.println("Parameters: (* marks required parameters)");
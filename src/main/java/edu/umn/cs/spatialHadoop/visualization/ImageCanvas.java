@@ -12,16 +12,18 @@ import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.Point;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.util.Arrays;
 
 import javax.imageio.ImageIO;
 
 import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.util.IntArray;
 
 /**
  * A canvas that contains an in-memory image
@@ -75,29 +77,124 @@ public class ImageCanvas extends Canvas {
     this.color = color;
   }
   
+  /**
+   * Written instead of the length of a PNG image to indicate that the image
+   * is stored as run-length encoded ARGB pixels.
+   */
+  private static final int RawRLEMarker = -1;
+
+  /**Minimum number of repeated pixels to encode as one run*/
+  private static final int MinRunLength = 3;
+
   @Override
   public void write(DataOutput out) throws IOException {
     super.write(out);
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    ImageIO.write(getImage(), "png", baos);
-    baos.close();
-    byte[] bytes = baos.toByteArray();
-    out.writeInt(bytes.length);
-    out.write(bytes);
+    // Write the pixels in a fast raw format rather than PNG as intermediate
+    // canvases are immediately read back and merged with other canvases.
+    // The final image is encoded as PNG only when it is written to output.
+    BufferedImage img = getImage();
+    out.writeInt(RawRLEMarker);
+    out.writeInt(img.getWidth());
+    out.writeInt(img.getHeight());
+    encodeRLE(getPixels(img)).write(out);
   }
 
   @Override
   public void readFields(DataInput in) throws IOException {
     super.readFields(in);
     int length = in.readInt();
-    byte[] bytes = new byte[length];
-    in.readFully(bytes);
-    this.image = ImageIO.read(new ByteArrayInputStream(bytes));
+    if (length == RawRLEMarker) {
+      int imgWidth = in.readInt();
+      int imgHeight = in.readInt();
+      this.image = new BufferedImage(imgWidth, imgHeight, BufferedImage.TYPE_INT_ARGB);
+      IntArray encoded = new IntArray();
+      encoded.readFields(in);
+      decodeRLE(encoded, getPixels(image));
+    } else {
+      // An image stored in PNG format
+      byte[] bytes = new byte[length];
+      in.readFully(bytes);
+      this.image = ImageIO.read(new ByteArrayInputStream(bytes));
+    }
+    this.graphics = null;
     // Calculate the scale of the image in terms of pixels per unit
     xscale = image.getWidth() / getInputMBR().getWidth();
     yscale = image.getHeight() / getInputMBR().getHeight();
   }
 
+  /**
+   * Returns the ARGB pixels of the given image. If the image is of type
+   * {@link BufferedImage#TYPE_INT_ARGB}, the underlying array is returned
+   * without copying.
+   * @param img
+   * @return
+   */
+  static int[] getPixels(BufferedImage img) {
+    if (img.getType() == BufferedImage.TYPE_INT_ARGB &&
+        img.getRaster().getDataBuffer() instanceof DataBufferInt)
+      return ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+    return img.getRGB(0, 0, img.getWidth(), img.getHeight(), null, 0, img.getWidth());
+  }
+
+  /**
+   * Encodes an array of pixels as a sequence of runs. A run that starts with
+   * a positive count <i>n</i> is followed by <i>n</i> literal pixels while
+   * a run that starts with a negative count <i>-n</i> is followed by one pixel
+   * that is repeated <i>n</i> times. This makes empty (transparent) regions,
+   * which dominate partial canvases, very compact.
+   * @param pixels
+   * @return
+   */
+  static IntArray encodeRLE(int[] pixels) {
+    IntArray encoded = new IntArray();
+    int i = 0;
+    int literalStart = 0;
+    while (i < pixels.length) {
+      int runEnd = i + 1;
+      while (runEnd < pixels.length && pixels[runEnd] == pixels[i])
+        runEnd++;
+      if (runEnd - i >= MinRunLength) {
+        if (literalStart < i) {
+          encoded.add(i - literalStart);
+          encoded.append(pixels, literalStart, i - literalStart);
+        }
+        encoded.add(-(runEnd - i));
+        encoded.add(pixels[i]);
+        literalStart = runEnd;
+      }
+      i = runEnd;
+    }
+    if (literalStart < pixels.length) {
+      encoded.add(pixels.length - literalStart);
+      encoded.append(pixels, literalStart, pixels.length - literalStart);
+    }
+    return encoded;
+  }
+
+  /**
+   * Decodes pixels encoded by {@link #encodeRLE(int[])}
+   * @param encoded
+   * @param pixels
+   */
+  static void decodeRLE(IntArray encoded, int[] pixels) {
+    int[] runs = encoded.underlyingArray();
+    int iRun = 0;
+    int iPixel = 0;
+    while (iRun < encoded.size()) {
+      int count = runs[iRun++];
+      if (count > 0) {
+        System.arraycopy(runs, iRun, pixels, iPixel, count);
+        iRun += count;
+        iPixel += count;
+      } else {
+        int value = runs[iRun++];
+        if (value != 0)
+          Arrays.fill(pixels, iPixel, iPixel - count, value);
+        iPixel -= count;
+      }
+    }
+  }
+
   public void mergeWith(ImageCanvas another) {
     Point offset = projectToImageSpace(another.getInputMBR().x1, another.getInputMBR().y1);
     getOrCreateGrahics(false).drawImage(another.getImage(), offset.x, offset.y, null);
@@ -1,13 +1,18 @@
 package edu.umn.cs.spatialHadoop;
 
+import edu.umn.cs.spatialHadoop.core.Point;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
 import junit.framework.TestCase;
+import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
 
 import java.io.File;
 import java.io.FileReader;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.util.Random;
 
 public abstract class BaseTest extends TestCase {
 
@@ -38,6 +43,56 @@ public abstract class BaseTest extends TestCase {
       fs.mkdirs(scratchPath);
   }
 
+  /**
+   * Writes random points with integer coordinates in the range [0, 10000)
+   * to a text file and returns them.
+   * @param file
+   * @param numPoints
+   * @param seed
+   * @return
+   * @throws IOException
+   */
+  public static Point[] writeRandomPoints(Path file, int numPoints, long seed)
+      throws IOException {
+    FileSystem fs = file.getFileSystem(new OperationsParams());
+    Random random = new Random(seed);
+    Point[] points = new Point[numPoints];
+    FSDataOutputStream out = fs.create(file, true);
+    for (int i = 0; i < numPoints; i++) {
+      points[i] = new Point(random.nextInt(10000), random.nextInt(10000));
+      out.write((points[i].toText(new Text()) + "\n").getBytes());
+    }
+    out.close();
+    return points;
+  }
+
+  /**
+   * Writes random rectangles with integer coordinates in the range [0, 10000)
+   * and a side length of at most maxSize to a text file and returns them.
+   * @param file
+   * @param numRects
+   * @param maxSize
+   * @param seed
+   * @return
+   * @throws IOException
+   */
+  public static Rectangle[] writeRandomRectangles(Path file, int numRects,
+      int maxSize, long seed) throws IOException {
+    FileSystem fs = file.getFileSystem(new OperationsParams());
+    Random random = new Random(seed);
+    Rectangle[] rects = new Rectangle[numRects];
+    FSDataOutputStream out = fs.create(file, true);
+    for (int i = 0; i < numRects; i++) {
+      int x1 = random.nextInt(10000 - maxSize);
+      int y1 = random.nextInt(10000 - maxSize);
+      rects[i] = new Rectangle(x1, y1, x1 + 1 + random.nextInt(maxSize),
+          y1 + 1 + random.nextInt(maxSize));
+      out.write((rects[i].toText(new Text()) + "\n").getBytes());
+    }
+    out.close();
+    return rects;
+  }
+
   public static String[] readTextFile(String fileName) throws IOException {
     File f = new File(fileName);
     File[] files;
@@ -0,0 +1,256 @@
+package edu.umn.cs.spatialHadoop.core;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import edu.umn.cs.spatialHadoop.util.IntArray;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Unit test for the {@link SpatialAlgorithms} class
+ */
+public class SpatialAlgorithmsTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public SpatialAlgorithmsTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(SpatialAlgorithmsTest.class);
+  }
+
+  public void testIsWithinDistance() {
+    assertTrue(SpatialAlgorithms.isWithinDistance(new Point(0, 0), new Point(3, 4), 5));
+    assertFalse(SpatialAlgorithms.isWithinDistance(new Point(0, 0), new Point(3, 4), 4.9));
+    assertTrue(SpatialAlgorithms.isWithinDistance(new Rectangle(0, 0, 1, 1),
+        new Rectangle(2, 1, 3, 2), 1));
+    assertFalse(SpatialAlgorithms.isWithinDistance(new Rectangle(0, 0, 1, 1),
+        new Rectangle(2, 2, 3, 3), 1));
+  }
+
+  public void testDistanceJoinPlaneSweep() {
+    Random random = new Random(0);
+    List<Point> r = new ArrayList<Point>();
+    List<Point> s = new ArrayList<Point>();
+    for (int i = 0; i < 500; i++)
+      r.add(new Point(random.nextInt(1000), random.nextInt(1000)));
+    for (int i = 0; i < 700; i++)
+      s.add(new Point(random.nextInt(1000), random.nextInt(1000)));
+    double epsilon = 20;
+    int expected = 0;
+    for (Point p1 : r)
+      for (Point p2 : s)
+        if (p1.distanceTo(p2) <= epsilon)
+          expected++;
+    final int[] collected = {0};
+    int count = SpatialAlgorithms.DistanceJoin_planeSweep(r, s, epsilon,
+        new ResultCollector2<Point, Point>() {
+          @Override
+          public void collect(Point p1, Point p2) {
+            assertTrue(p1.distanceTo(p2) <= 20);
+            collected[0]++;
+          }
+        }, null);
+    assertTrue(expected > 0);
+    assertEquals(expected, count);
+    assertEquals(expected, collected[0]);
+  }
+
+  private static List<Rectangle> randomRectangles(Random random, int count) {
+    List<Rectangle> rects = new ArrayList<Rectangle>();
+    for (int i = 0; i < count; i++) {
+      double x = random.nextInt(1000), y = random.nextInt(1000);
+      rects.add(new Rectangle(x, y, x + random.nextInt(50) + 1,
+          y + random.nextInt(50) + 1));
+    }
+    return rects;
+  }
+
+  public void testParallelPlaneSweep() throws Exception {
+    Random random = new Random(1);
+    List<Rectangle> r = randomRectangles(random, 2000);
+    List<Rectangle> s = randomRectangles(random, 3000);
+    // A few wide rectangles that span many slabs
+    r.add(new Rectangle(0, 100, 1000, 110));
+    s.add(new Rectangle(0, 500, 1000, 501));
+
+    final Set<String> expected = new HashSet<String>();
+    for (int i = 0; i < r.size(); i++)
+      for (int j = 0; j < s.size(); j++)
+        if (r.get(i).isIntersected(s.get(j)))
+          expected.add(i + "," + j);
+    assertTrue(expected.size() > 0);
+
+    final Map<Rectangle, Integer> rIDs = new IdentityHashMap<Rectangle, Integer>();
+    final Map<Rectangle, Integer> sIDs = new IdentityHashMap<Rectangle, Integer>();
+    for (int i = 0; i < r.size(); i++)
+      rIDs.put(r.get(i), i);
+    for (int j = 0; j < s.size(); j++)
+      sIDs.put(s.get(j), j);
+    final Set<String> actual = new HashSet<String>();
+    int count = SpatialAlgorithms.SpatialJoin_planeSweepParallel(r, s,
+        new ResultCollector2<Rectangle, Rectangle>() {
+          @Override
+          public void collect(Rectangle x, Rectangle y) {
+            assertTrue(actual.add(rIDs.get(x) + "," + sIDs.get(y)));
+          }
+        }, null, 4);
+    assertEquals(expected.size(), count);
+    assertEquals(expected, actual);
+  }
+
+  public void testParallelPlaneSweepSelfJoin() throws Exception {
+    Random random = new Random(4);
+    List<Rectangle> r = randomRectangles(random, 1500);
+    // The serial join does not pair a shape with itself when both lists share it
+    int serialCount = SpatialAlgorithms.SpatialJoin_planeSweep(
+        new ArrayList<Rectangle>(r), new ArrayList<Rectangle>(r), null, null);
+    int parallelCount = SpatialAlgorithms.SpatialJoin_planeSweepParallel(r, r,
+        null, null, 4);
+    int expected = 0;
+    for (int i = 0; i < r.size(); i++)
+      for (int j = 0; j < r.size(); j++)
+        if (i != j && r.get(i).isIntersected(r.get(j)))
+          expected++;
+    assertEquals(expected, serialCount);
+    assertEquals(expected, parallelCount);
+  }
+
+  public void testRectanglesKernel() {
+    Random random = new Random(2);
+    List<Rectangle> r = randomRectangles(random, 1000);
+    List<Rectangle> s = randomRectangles(random, 1500);
+    SpatialAlgorithms.MBRArrays rMBRs = new SpatialAlgorithms.MBRArrays(r);
+    SpatialAlgorithms.MBRArrays sMBRs = new SpatialAlgorithms.MBRArrays(s);
+
+    IntArray pairs = new IntArray();
+    int count = SpatialAlgorithms.SpatialJoin_rectangles(rMBRs.x1, rMBRs.y1,
+        rMBRs.x2, rMBRs.y2, sMBRs.x1, sMBRs.y1, sMBRs.x2, sMBRs.y2, pairs, null);
+    Set<String> actual = new HashSet<String>();
+    for (int i = 0; i < pairs.size(); i += 2)
+      assertTrue(actual.add(pairs.get(i) + "," + pairs.get(i + 1)));
+    Set<String> expected = new HashSet<String>();
+    for (int i = 0; i < r.size(); i++)
+      for (int j = 0; j < s.size(); j++)
+        if (r.get(i).isIntersected(s.get(j)))
+          expected.add(i + "," + j);
+    assertEquals(expected.size(), count);
+    assertEquals(expected, actual);
+
+    // Self join reports each pair in both orders and skips identical objects
+    pairs.clear();
+    count = SpatialAlgorithms.SpatialJoin_rectangles(rMBRs.x1, rMBRs.y1,
+        rMBRs.x2, rMBRs.y2, rMBRs.x1, rMBRs.y1, rMBRs.x2, rMBRs.y2, pairs, null);
+    int expectedSelf = 0;
+    for (int i = 0; i < r.size(); i++)
+      for (int j = 0; j < r.size(); j++)
+        if (i != j && r.get(i).isIntersected(r.get(j)))
+          expectedSelf++;
+    assertEquals(expectedSelf, count);
+    assertEquals(expectedSelf * 2, pairs.size());
+  }
+
+  public void testGroupPolygons() throws Exception {
+    GeometryFactory factory = new GeometryFactory();
+    Geometry[] polygons = {
+        factory.toGeometry(new Envelope(0, 2, 0, 2)),
+        factory.toGeometry(new Envelope(10, 12, 10, 12)),
+        factory.toGeometry(new Envelope(1, 3, 1, 3)),
+        factory.toGeometry(new Envelope(2.5, 4, 2.5, 4)),
+    };
+    Geometry[][] groups = SpatialAlgorithms.groupPolygons(polygons, null);
+    assertEquals(2, groups.length);
+    int[] sizes = {groups[0].length, groups[1].length};
+    Arrays.sort(sizes);
+    assertEquals(1, sizes[0]);
+    assertEquals(3, sizes[1]);
+  }
+
+  public void testSelfJoinPlaneSweep() throws Exception {
+    Random random = new Random(3);
+    List<Rectangle> r = randomRectangles(random, 800);
+    int expected = 0;
+    for (int i = 0; i < r.size(); i++)
+      for (int j = 0; j < r.size(); j++)
+        if (i != j && r.get(i).isIntersected(r.get(j)))
+          expected++;
+    Rectangle[] rects = r.toArray(new Rectangle[r.size()]);
+    assertEquals(expected, SpatialAlgorithms.SelfJoin_planeSweep(rects, true, null, null));
+    assertEquals(expected, SpatialAlgorithms.SelfJoin_planeSweep(rects, false, null, null));
+  }
+
+  public void testPointInPolygonJoin() throws Exception {
+    Random random = new Random(4);
+    GeometryFactory factory = new GeometryFactory();
+    List<OGCJTSShape> polygons = new ArrayList<OGCJTSShape>();
+    for (int i = 0; i < 50; i++) {
+      // Random triangles which do not fill their MBRs
+      Coordinate[] coords = new Coordinate[4];
+      for (int j = 0; j < 3; j++)
+        coords[j] = new Coordinate(random.nextInt(1000), random.nextInt(1000));
+      coords[3] = coords[0];
+      polygons.add(new OGCJTSShape(factory.createPolygon(coords)));
+    }
+    List<Point> points = new ArrayList<Point>();
+    for (int i = 0; i < 2000; i++)
+      points.add(new Point(random.nextInt(1000), random.nextInt(1000)));
+
+    int expected = 0;
+    for (OGCJTSShape polygon : polygons)
+      for (Point point : points)
+        if (polygon.geom.intersects(factory.createPoint(new Coordinate(point.x, point.y))))
+          expected++;
+    assertTrue(expected > 0);
+
+    assertTrue(SpatialAlgorithms.isPointInPolygonJoin(points, polygons));
+    final int[] collected = {0};
+    int count = SpatialAlgorithms.SpatialJoin_planeSweep(points, polygons,
+        new ResultCollector2<Point, OGCJTSShape>() {
+          @Override
+          public void collect(Point r, OGCJTSShape s) {
+            assertTrue(s.isIntersected(r));
+            collected[0]++;
+          }
+        }, null);
+    assertEquals(expected, count);
+    assertEquals(expected, collected[0]);
+
+    Map<Shape, PreparedGeometry> cache = new IdentityHashMap<Shape, PreparedGeometry>();
+    assertEquals(expected, SpatialAlgorithms.SpatialJoin_pointInPolygon(
+        polygons, points, null, cache, null));
+    assertFalse(cache.isEmpty());
+    assertEquals(expected, SpatialAlgorithms.SpatialJoin_pointInPolygon(
+        polygons, points, null, cache, null));
+
+    // Points parsed from WKT are JTS shapes with a point geometry
+    List<OGCJTSShape> wktPoints = new ArrayList<OGCJTSShape>();
+    for (Point point : points)
+      wktPoints.add(new OGCJTSShape(factory.createPoint(new Coordinate(point.x, point.y))));
+    assertTrue(SpatialAlgorithms.isPointInPolygonJoin(wktPoints, polygons));
+    assertFalse(SpatialAlgorithms.isPointInPolygonJoin(wktPoints, wktPoints));
+    assertEquals(expected, SpatialAlgorithms.SpatialJoin_planeSweep(
+        polygons, wktPoints, null, null));
+  }
+}
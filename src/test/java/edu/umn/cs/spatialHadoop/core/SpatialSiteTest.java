@@ -0,0 +1,109 @@
+package edu.umn.cs.spatialHadoop.core;
+
+import edu.umn.cs.spatialHadoop.BaseTest;
+import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.indexing.GlobalIndex;
+import edu.umn.cs.spatialHadoop.indexing.Partition;
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+
+import java.io.IOException;
+
+/**
+ * Unit test for the {@link SpatialSite} class
+ */
+public class SpatialSiteTest extends BaseTest {
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public SpatialSiteTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(SpatialSiteTest.class);
+  }
+
+  private void writeMasterFile(FileSystem fs, Path masterPath, int numPartitions) throws IOException {
+    FSDataOutputStream out = fs.create(masterPath, true);
+    Text line = new Text();
+    for (int i = 0; i < numPartitions; i++) {
+      Partition p = new Partition(String.format("part-%05d", i), new CellInfo(i, i, 0, i + 1, 1));
+      line.clear();
+      p.toText(line);
+      out.write(line.getBytes(), 0, line.getLength());
+      out.write('\n');
+    }
+    out.close();
+  }
+
+  public void testGlobalIndexCache() throws IOException {
+    OperationsParams params = new OperationsParams();
+    FileSystem fs = scratchPath.getFileSystem(params);
+    Path indexPath = new Path(scratchPath, "index");
+    Path masterPath = new Path(indexPath, "_master.grid");
+    writeMasterFile(fs, masterPath, 5);
+
+    SpatialSite.clearGlobalIndexCache();
+    GlobalIndex<Partition> gindex = SpatialSite.getGlobalIndex(fs, indexPath);
+    assertEquals(5, gindex.size());
+    assertEquals(0, SpatialSite.getGlobalIndexCacheHits());
+    assertEquals(1, SpatialSite.getGlobalIndexCacheMisses());
+    assertSame(gindex, SpatialSite.getGlobalIndex(fs, indexPath));
+    assertEquals(1, SpatialSite.getGlobalIndexCacheHits());
+
+    // Modifying the master file invalidates the cached index
+    writeMasterFile(fs, masterPath, 7);
+    fs.setTimes(masterPath, fs.getFileStatus(masterPath).getModificationTime() + 1000, -1);
+    gindex = SpatialSite.getGlobalIndex(fs, indexPath);
+    assertEquals(7, gindex.size());
+    assertEquals(2, SpatialSite.getGlobalIndexCacheMisses());
+    assertSame(gindex, SpatialSite.getGlobalIndex(fs, indexPath));
+
+    // Indexes larger than the cache are not cached
+    SpatialSite.clearGlobalIndexCache();
+    params.setInt(SpatialSite.GlobalIndexCacheSize, 6);
+    FileSystem smallCacheFS = FileSystem.newInstance(fs.getUri(), params);
+    try {
+      assertEquals(7, SpatialSite.getGlobalIndex(smallCacheFS, indexPath).size());
+      assertEquals(7, SpatialSite.getGlobalIndex(smallCacheFS, indexPath).size());
+      assertEquals(0, SpatialSite.getGlobalIndexCacheHits());
+      assertEquals(2, SpatialSite.getGlobalIndexCacheMisses());
+    } finally {
+      smallCacheFS.close();
+    }
+  }
+
+  public void testReplicatedFlag() throws IOException {
+    OperationsParams params = new OperationsParams();
+    FileSystem fs = scratchPath.getFileSystem(params);
+    SpatialSite.clearGlobalIndexCache();
+
+    Path plainPath = new Path(scratchPath, "plain");
+    writeMasterFile(fs, new Path(plainPath, "_master.str"), 3);
+    assertFalse(SpatialSite.getGlobalIndex(fs, plainPath).isReplicated());
+
+    Path markedPath = new Path(scratchPath, "marked");
+    writeMasterFile(fs, new Path(markedPath, "_master.str"), 3);
+    fs.create(new Path(markedPath, SpatialSite.ReplicatedMarker)).close();
+    GlobalIndex<Partition> gindex = SpatialSite.getGlobalIndex(fs, markedPath);
+    assertEquals(3, gindex.size());
+    assertTrue(gindex.isReplicated());
+
+    // Master files that encode the flag in their extension are still readable
+    Path suffixPath = new Path(scratchPath, "suffix");
+    writeMasterFile(fs, new Path(suffixPath, "_master.str+"), 3);
+    assertTrue(SpatialSite.getGlobalIndex(fs, suffixPath).isReplicated());
+  }
+}
@@ -0,0 +1,121 @@
+package edu.umn.cs.spatialHadoop.hdf;
+
+import edu.umn.cs.spatialHadoop.BaseTest;
+import edu.umn.cs.spatialHadoop.OperationsParams;
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+/**
+ * Unit test for the {@link HDFFile} class
+ */
+public class HDFFileTest extends BaseTest {
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public HDFFileTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(HDFFileTest.class);
+  }
+
+  /**
+   * Writes an HDF file with two scientific data elements that both contain
+   * the given data. The first one &lt;702,1&gt; is compressed with deflate
+   * and the second one &lt;702,3&gt; is stored as is.
+   */
+  private void writeHDFFile(Path file, byte[] data) throws IOException {
+    Deflater deflater = new Deflater(6);
+    deflater.setInput(data);
+    deflater.finish();
+    byte[] compressed = new byte[data.length + 1024];
+    int compressedLength = deflater.deflate(compressed);
+    assertTrue(deflater.finished());
+    deflater.end();
+
+    int numDDs = 3;
+    int compHeaderOffset = 4 + 2 + 4 + numDDs * 12;
+    int compHeaderLength = 16;
+    int compressedOffset = compHeaderOffset + compHeaderLength;
+    int rawOffset = compressedOffset + compressedLength;
+
+    FileSystem fs = file.getFileSystem(new OperationsParams());
+    FSDataOutputStream out = fs.create(file, true);
+    out.write(new byte[] {0x0E, 0x03, 0x13, 0x01});
+    out.writeShort(numDDs);
+    out.writeInt(0); // No next block
+    // The compressed element
+    out.writeShort(HDFConstants.DFTAG_SD | HDFConstants.DFTAG_EXTENDED);
+    out.writeShort(1);
+    out.writeInt(compHeaderOffset);
+    out.writeInt(compHeaderLength);
+    // The compressed block
+    out.writeShort(HDFConstants.DFTAG_COMPRESSED);
+    out.writeShort(2);
+    out.writeInt(compressedOffset);
+    out.writeInt(compressedLength);
+    // The uncompressed element
+    out.writeShort(HDFConstants.DFTAG_SD);
+    out.writeShort(3);
+    out.writeInt(rawOffset);
+    out.writeInt(data.length);
+    // Header of the compressed element
+    out.writeShort(HDFConstants.SPECIAL_COMP);
+    out.writeShort(0); // Version
+    out.writeInt(data.length);
+    out.writeShort(2); // Reference to the compressed block
+    out.writeShort(0); // Model type
+    out.writeShort(HDFConstants.COMP_CODE_DEFLATE);
+    out.writeShort(6); // Deflate level
+    out.write(compressed, 0, compressedLength);
+    out.write(data);
+    out.close();
+  }
+
+  public void testReadCompressedData() throws IOException {
+    byte[] data = new byte[200000];
+    Random random = new Random(1);
+    for (int i = 0; i < data.length; i++)
+      data[i] = (byte) random.nextInt(8);
+    Path file = new Path(scratchPath, "test.hdf");
+    writeHDFFile(file, data);
+
+    FileSystem fs = file.getFileSystem(new OperationsParams());
+    HDFFile hdfFile = new HDFFile(fs.open(file));
+    try {
+      for (int refNo : new int[] {1, 3}) {
+        DDScientificData sd = (DDScientificData)
+            hdfFile.retrieveElementByID(new DDID(HDFConstants.DFTAG_SD, refNo));
+        assertEquals(data.length, sd.getLength());
+        // Read a range in the middle of the data
+        int dataOffset = 123457;
+        byte[] range = new byte[1000];
+        assertEquals(range.length, sd.readData(dataOffset, range, 0, range.length));
+        assertTrue(Arrays.equals(
+            Arrays.copyOfRange(data, dataOffset, dataOffset + range.length), range));
+        // Reading past the end returns only the available data
+        assertEquals(10, sd.readData(data.length - 10, range, 0, range.length));
+        // Read all the data
+        assertTrue(Arrays.equals(data, sd.getData()));
+      }
+    } finally {
+      hdfFile.close();
+    }
+  }
+}
@@ -0,0 +1,157 @@
+package edu.umn.cs.spatialHadoop.indexing;
+
+import edu.umn.cs.spatialHadoop.BaseTest;
+import edu.umn.cs.spatialHadoop.core.Point;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.osm.OSMPoint;
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+/**
+ * Unit test for the {@link ColumnarLocalIndex} class
+ */
+public class ColumnarLocalIndexTest extends BaseTest {
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public ColumnarLocalIndexTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(ColumnarLocalIndexTest.class);
+  }
+
+  private <S extends Shape> ColumnarLocalIndex<S> writeAndRead(File heapFile,
+      Configuration conf, S shape) throws IOException, InterruptedException {
+    Path indexFile = new Path(scratchPath, "tempout");
+    ColumnarLocalIndex<S> lindex = new ColumnarLocalIndex<S>();
+    lindex.setup(conf);
+    lindex.buildLocalIndex(heapFile, indexFile, shape);
+
+    lindex = new ColumnarLocalIndex<S>();
+    lindex.setup(conf);
+    FileSystem fs = indexFile.getFileSystem(conf);
+    FSDataInputStream in = fs.open(indexFile);
+    long len = fs.getFileStatus(indexFile).getLen();
+    lindex.read(in, 0, len, shape);
+    return lindex;
+  }
+
+  public void testIndexWriteRead() {
+    try {
+      for (boolean compress : new boolean[] {false, true}) {
+        Configuration conf = new Configuration();
+        conf.setBoolean(ColumnarLocalIndex.Compress, compress);
+        conf.setInt(ColumnarLocalIndex.BlockSize, 3);
+        ColumnarLocalIndex<Point> lindex = writeAndRead(
+            new File("src/test/resources/test.points"), conf, new Point());
+        assertEquals(4, lindex.getNumBlocks());
+        int count = 0;
+        for (Point p : lindex.search(0, 0, 5, 5))
+          count++;
+        assertEquals(2, count);
+
+        count = 0;
+        for (Point p : lindex.scanAll())
+          count++;
+        assertEquals(11, count);
+        lindex.close();
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("Error writing or reading the index");
+    }
+  }
+
+  public void testRectanglesAndTextShapes() {
+    try {
+      // Generate random points with an ID to test the text columns
+      Random random = new Random(0);
+      File heapFile = new File(scratchPath.toString(), "osm.points");
+      heapFile.getParentFile().mkdirs();
+      PrintWriter writer = new PrintWriter(heapFile);
+      OSMPoint[] points = new OSMPoint[1000];
+      for (int i = 0; i < points.length; i++) {
+        points[i] = new OSMPoint();
+        points[i].id = i;
+        points[i].x = random.nextDouble() * 100;
+        points[i].y = random.nextDouble() * 100;
+        writer.println(points[i].toText(new Text()));
+      }
+      writer.close();
+
+      Configuration conf = new Configuration();
+      conf.setBoolean(ColumnarLocalIndex.Compress, true);
+      conf.setInt(ColumnarLocalIndex.BlockSize, 64);
+      ColumnarLocalIndex<OSMPoint> lindex = writeAndRead(heapFile, conf, new OSMPoint());
+      Rectangle query = new Rectangle(20, 30, 45, 60);
+      int expectedCount = 0;
+      long expectedIDSum = 0;
+      for (OSMPoint p : points) {
+        if (query.contains(p.x, p.y)) {
+          expectedCount++;
+          expectedIDSum += p.id;
+        }
+      }
+      int count = 0;
+      long idSum = 0;
+      for (OSMPoint p : lindex.search(query.x1, query.y1, query.x2, query.y2)) {
+        count++;
+        idSum += p.id;
+      }
+      assertEquals(expectedCount, count);
+      assertEquals(expectedIDSum, idSum);
+
+      ColumnarLocalIndex<Rectangle> rindex = writeAndRead(
+          new File("src/test/resources/test.rect"), conf, new Rectangle());
+      count = 0;
+      for (Rectangle r : rindex.scanAll())
+        count++;
+      assertEquals(14, count);
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("Error writing or reading the index");
+    }
+  }
+
+  public void testInflateTruncatedBlock() throws IOException {
+    byte[] raw = new byte[10000];
+    new Random(1).nextBytes(raw);
+    Deflater deflater = new Deflater();
+    deflater.setInput(raw);
+    deflater.finish();
+    byte[] buffer = new byte[raw.length * 2];
+    int compressedSize = deflater.deflate(buffer);
+    deflater.end();
+
+    byte[] compressed = Arrays.copyOf(buffer, compressedSize);
+    assertTrue(Arrays.equals(raw, ColumnarLocalIndex.inflate(compressed, raw.length)));
+    try {
+      ColumnarLocalIndex.inflate(Arrays.copyOf(buffer, compressedSize / 2), raw.length);
+      fail("A truncated block should not be inflated");
+    } catch (IOException e) {
+      // Expected
+    }
+  }
+}
@@ -0,0 +1,135 @@
+package edu.umn.cs.spatialHadoop.indexing;
+
+import edu.umn.cs.spatialHadoop.core.CellInfo;
+import edu.umn.cs.spatialHadoop.core.Circle;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.ResultCollector;
+import edu.umn.cs.spatialHadoop.core.ResultCollector2;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Unit test for the {@link GlobalIndex} class
+ */
+public class GlobalIndexTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public GlobalIndexTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(GlobalIndexTest.class);
+  }
+
+  private Partition[] randomPartitions(Random random, int count) {
+    Partition[] partitions = new Partition[count];
+    for (int i = 0; i < count; i++) {
+      double x = random.nextDouble() * 1000;
+      double y = random.nextDouble() * 1000;
+      partitions[i] = new Partition("part-" + i, new CellInfo(i, x, y,
+          x + random.nextDouble() * 20, y + random.nextDouble() * 20));
+    }
+    return partitions;
+  }
+
+  private Set<Integer> collectIds(GlobalIndex<Partition> gindex, final Rectangle query) {
+    final Set<Integer> ids = new HashSet<Integer>();
+    int count = gindex.rangeQuery(query, new ResultCollector<Partition>() {
+      @Override
+      public void collect(Partition p) {
+        ids.add(p.cellId);
+      }
+    });
+    assertEquals(ids.size(), count);
+    return ids;
+  }
+
+  public void testRangeAndPointQueries() {
+    Random random = new Random(0);
+    for (int count : new int[] {0, 1, 16, 17, 1000, 5000}) {
+      Partition[] partitions = randomPartitions(random, count);
+      GlobalIndex<Partition> gindex = new GlobalIndex<Partition>();
+      gindex.bulkLoad(partitions);
+      assertEquals(count, gindex.size());
+      for (int q = 0; q < 20; q++) {
+        double x = random.nextDouble() * 1000, y = random.nextDouble() * 1000;
+        Rectangle query = new Rectangle(x, y, x + random.nextDouble() * 200, y + random.nextDouble() * 200);
+        Set<Integer> expected = new HashSet<Integer>();
+        for (Partition p : partitions)
+          if (p.isIntersected(query))
+            expected.add(p.cellId);
+        assertEquals(expected, collectIds(gindex, query));
+
+        final Set<Integer> expectedContaining = new HashSet<Integer>();
+        for (Partition p : partitions)
+          if (x >= p.x1 && x <= p.x2 && y >= p.y1 && y <= p.y2)
+            expectedContaining.add(p.cellId);
+        final Set<Integer> containing = new HashSet<Integer>();
+        gindex.pointQuery(x, y, new ResultCollector<Partition>() {
+          @Override
+          public void collect(Partition p) {
+            containing.add(p.cellId);
+          }
+        });
+        assertEquals(expectedContaining, containing);
+      }
+    }
+  }
+
+  public void testRangeQueryWithCircle() {
+    Random random = new Random(1);
+    Partition[] partitions = randomPartitions(random, 2000);
+    GlobalIndex<Partition> gindex = new GlobalIndex<Partition>();
+    gindex.bulkLoad(partitions);
+    Circle circle = new Circle(500, 500, 100);
+    int expected = 0;
+    for (Partition p : partitions)
+      if (p.isIntersected(circle))
+        expected++;
+    assertEquals(expected, gindex.rangeQuery(circle, null));
+  }
+
+  public void testKNN() {
+    Random random = new Random(2);
+    Partition[] partitions = randomPartitions(random, 3000);
+    GlobalIndex<Partition> gindex = new GlobalIndex<Partition>();
+    gindex.bulkLoad(partitions);
+    for (int q = 0; q < 10; q++) {
+      final double qx = random.nextDouble() * 1200 - 100;
+      final double qy = random.nextDouble() * 1200 - 100;
+      int k = 1 + random.nextInt(50);
+      double[] expected = new double[partitions.length];
+      for (int i = 0; i < partitions.length; i++)
+        expected[i] = partitions[i].distanceTo(qx, qy);
+      Arrays.sort(expected);
+      final List<Double> distances = new ArrayList<Double>();
+      int resultSize = gindex.knn(qx, qy, k, new ResultCollector2<Partition, Double>() {
+        @Override
+        public void collect(Partition p, Double distance) {
+          assertEquals(p.distanceTo(qx, qy), distance);
+          distances.add(distance);
+        }
+      });
+      assertEquals(k, resultSize);
+      for (int i = 0; i < k; i++)
+        assertEquals(expected[i], distances.get(i));
+    }
+  }
+}
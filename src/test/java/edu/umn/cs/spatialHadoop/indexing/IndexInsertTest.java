@@ -6,6 +6,8 @@ import edu.umn.cs.spatialHadoop.TestHelper;
 import edu.umn.cs.spatialHadoop.core.*;
 import edu.umn.cs.spatialHadoop.operations.RangeQuery;
 import edu.umn.cs.spatialHadoop.util.MetadataUtil;
+import edu.umn.cs.spatialHadoop.visualization.GridHistogram;
+import edu.umn.cs.spatialHadoop.visualization.Histogram;
 import org.apache.hadoop.fs.*;
 import org.apache.hadoop.io.Text;
 
@@ -133,6 +135,48 @@ public class IndexInsertTest extends BaseTest {
     }
   }
 
+  public void testInsertOutsideTheIndexHistogram() throws IOException {
+    try {
+      Path inPath = new Path("src/test/resources/test.points");
+      Path newPath = new Path(scratchPath, "new.points");
+      Path indexPath = new Path(scratchPath, "indexed");
+      OperationsParams params = new OperationsParams();
+      FileSystem fs = scratchPath.getFileSystem(params);
+      params.setClass("shape", Point.class, Shape.class);
+      params.set("sindex", "str");
+      params.setInt(Histogram.IndexHistogramSize, 16);
+      Indexer.index(inPath, indexPath, params);
+
+      // Insert points that are far from all the indexed points
+      PrintStream ps = new PrintStream(fs.create(newPath, true));
+      Text line = new Text();
+      long newSize = 0;
+      for (int i = 0; i < 5; i++) {
+        line.clear();
+        new Point(100 + i, 100 + i).toText(line);
+        ps.println(line);
+        newSize += line.getLength();
+      }
+      ps.close();
+      IndexInsert.flush(newPath, indexPath, params);
+
+      Path histogramPath = Histogram.getIndexHistogramPath(indexPath);
+      Rectangle space = new Rectangle();
+      FSDataInputStream in = fs.open(histogramPath);
+      space.readFields(in);
+      in.close();
+      assertTrue("Histogram should cover the inserted points",
+          space.x2 >= 104 && space.y2 >= 104 && space.x1 <= 1 && space.y1 <= 3);
+      GridHistogram h = Histogram.readIndexHistogram(fs, histogramPath, space, 16, 16);
+      // The inserted points are counted far from the original points
+      int column = (int) ((50 - space.x1) * 16 / space.getWidth());
+      int row = (int) ((50 - space.y1) * 16 / space.getHeight());
+      assertEquals(newSize, h.getSum(column, row, 16 - column, 16 - row));
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
   public void testReorganize() {
     Path dataPath = new Path(scratchPath, "data");
     Path indexPath = new Path(scratchPath, "indexed");
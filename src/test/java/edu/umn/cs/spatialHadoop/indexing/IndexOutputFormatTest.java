@@ -0,0 +1,52 @@
+package edu.umn.cs.spatialHadoop.indexing;
+
+import edu.umn.cs.spatialHadoop.BaseTest;
+import edu.umn.cs.spatialHadoop.core.CellInfo;
+import edu.umn.cs.spatialHadoop.core.Point;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+
+/**
+ * Unit test for the {@link IndexOutputFormat} class
+ */
+public class IndexOutputFormatTest extends BaseTest {
+
+  public void testCloseStartsQueuedThreads() throws Exception {
+    CellInfo[] cells = {
+        new CellInfo(1, 0, 0, 10, 10),
+        new CellInfo(2, 10, 0, 20, 10),
+        new CellInfo(3, 0, 10, 10, 20),
+    };
+    Path outPath = new Path(scratchPath, "index");
+    final IndexOutputFormat.IndexRecordWriter<Point> writer =
+        new IndexOutputFormat.IndexRecordWriter<Point>(new CellPartitioner(cells),
+            null, outPath, new Configuration());
+    // Queue all closing threads as if they were queued after all running
+    // threads finished. Only close() can start them.
+    writer.maxClosingThreads = 0;
+    for (CellInfo cell : cells) {
+      writer.write(new IntWritable(cell.cellId), cell.getCenterPoint());
+      writer.write(new IntWritable(-cell.cellId - 1), null);
+    }
+
+    final Throwable[] error = new Throwable[1];
+    Thread closer = new Thread() {
+      @Override
+      public void run() {
+        try {
+          writer.close(null);
+        } catch (Throwable e) {
+          error[0] = e;
+        }
+      }
+    };
+    closer.setDaemon(true);
+    closer.start();
+    closer.join(60000);
+    assertFalse("close() did not finish", closer.isAlive());
+    assertNull(error[0]);
+    String[] lines = readTextFile(new Path(outPath, "_master.cells").toString());
+    assertEquals(cells.length, lines.length);
+  }
+}
@@ -4,8 +4,11 @@ import edu.umn.cs.spatialHadoop.BaseTest;
 import edu.umn.cs.spatialHadoop.OperationsParams;
 import edu.umn.cs.spatialHadoop.core.*;
 import edu.umn.cs.spatialHadoop.indexing.AbstractRTreeGBPartitioner.RStarTreeGBPartitioner;
+import edu.umn.cs.spatialHadoop.operations.FileMBR;
 import edu.umn.cs.spatialHadoop.operations.RangeQuery;
 import edu.umn.cs.spatialHadoop.osm.OSMPolygon;
+import edu.umn.cs.spatialHadoop.visualization.GridHistogram;
+import edu.umn.cs.spatialHadoop.visualization.Histogram;
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
@@ -15,6 +18,7 @@ import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.util.LineReader;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -185,6 +189,29 @@ public class IndexerTest extends BaseTest {
     }
   }
 
+  public void testColumnarLocalIndexing() {
+    Path outPath = new Path(scratchPath, "out");
+    try {
+      Path inPath = new Path("src/test/resources/test.points");
+
+      OperationsParams params = new OperationsParams();
+      params.setBoolean("local", false);
+      params.setClass("shape", Point.class, Shape.class);
+      params.setFloat(SpatialSite.SAMPLE_RATIO, 1.0f);
+      params.setClass("gindex", RStarTreeGBPartitioner.class, Partitioner.class);
+      params.set("lindex", "cols");
+      params.setBoolean(ColumnarLocalIndex.Compress, true);
+      Indexer.index(inPath, outPath, params);
+
+      // Test with range query
+      long resultSize = RangeQuery.rangeQueryLocal(outPath,
+          new Rectangle(0, 0, 5, 5), new Point(), params, null);
+      assertEquals(2, resultSize);
+    } catch (Exception e) {
+      throw new RuntimeException("Error while building the index", e);
+    }
+  }
+
   public void testWorkWithSmallFiles() {
     Path outPath = new Path(scratchPath, "out");
     assertEquals(1, GridPartitioner.class.getAnnotations().length);
@@ -212,6 +239,57 @@ public class IndexerTest extends BaseTest {
     }
   }
 
+  private long sumOfRecordSizes(Path inPath, Shape shape) throws IOException {
+    FileSystem fs = inPath.getFileSystem(new Configuration());
+    LineReader reader = new LineReader(fs.open(inPath));
+    Text line = new Text();
+    long sum = 0;
+    while (reader.readLine(line) > 0) {
+      shape.fromText(line);
+      line.clear();
+      shape.toText(line);
+      sum += line.getLength();
+    }
+    reader.close();
+    return sum;
+  }
+
+  public void testIndexHistogram() {
+    Path outPath = new Path(scratchPath, "out");
+    try {
+      FileSystem outFS = outPath.getFileSystem(new Configuration());
+      // Records are replicated in a grid index but counted once in the histogram
+      Path inPath = new Path("src/test/resources/test.rect");
+      OperationsParams params = new OperationsParams();
+      params.setBoolean("local", true);
+      params.setClass("shape", Rectangle.class, Shape.class);
+      params.set("sindex", "grid");
+      params.setInt(Histogram.IndexHistogramSize, 16);
+      outFS.delete(outPath, true);
+      Indexer.index(inPath, outPath, params);
+      Path histogramPath = Histogram.getIndexHistogramPath(outPath);
+      assertTrue("Histogram not found", outFS.exists(histogramPath));
+      Rectangle mbr = FileMBR.fileMBR(outPath, new OperationsParams(params));
+      GridHistogram h = Histogram.readIndexHistogram(outFS, histogramPath, mbr, 16, 16);
+      assertEquals(sumOfRecordSizes(inPath, new Rectangle()), h.getSum(0, 0, 16, 16));
+
+      // Histograms of all reducers are combined into one
+      inPath = new Path("src/test/resources/test.points");
+      params = new OperationsParams();
+      params.setBoolean("local", false);
+      params.setClass("shape", Point.class, Shape.class);
+      params.set("sindex", "grid");
+      outFS.delete(outPath, true);
+      Indexer.index(inPath, outPath, params);
+      assertTrue("Histogram not found", outFS.exists(histogramPath));
+      mbr = FileMBR.fileMBR(outPath, new OperationsParams(params));
+      h = Histogram.readIndexHistogram(outFS, histogramPath, mbr, 8, 8);
+      assertEquals(sumOfRecordSizes(inPath, new Point()), h.getSum(0, 0, 8, 8));
+    } catch (Exception e) {
+      throw new RuntimeException("Error while building the index", e);
+    }
+  }
+
   public void testRepartitioner() {
     Path outPath = new Path(scratchPath, "out");
     Path refPath = new Path(outPath.getParent(), "refpath");
@@ -67,4 +67,38 @@ public class RRStarLocalInexTest extends BaseTest {
     }
   }
 
+  public void testBulkLoadedIndexWriteRead() {
+    Path indexFile = new Path(scratchPath, "tempout");
+    try {
+      for (String method : new String[] {"str", "hilbert"}) {
+        RRStarLocalIndex<Point> lindex = new RRStarLocalIndex<Point>();
+        File heapFile = new File("src/test/resources/test.points");
+        Configuration conf = new Configuration();
+        conf.set(RRStarLocalIndex.BuildMethod, method);
+        lindex.setup(conf);
+        lindex.buildLocalIndex(heapFile, indexFile, new Point());
+
+        lindex = new RRStarLocalIndex<Point>();
+        lindex.setup(conf);
+        FileSystem fs = indexFile.getFileSystem(conf);
+        FSDataInputStream in = fs.open(indexFile);
+        long len = fs.getFileStatus(indexFile).getLen();
+        lindex.read(in, 0, len, new Point());
+        int count = 0;
+        for (Point p : lindex.search(0, 0, 5, 5))
+          count++;
+        assertEquals(2, count);
+
+        count = 0;
+        for (Point p : lindex.scanAll())
+          count++;
+        assertEquals(11, count);
+        lindex.close();
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("Error writing or reading the index");
+    }
+  }
+
 }
@@ -11,6 +11,10 @@ import org.apache.hadoop.fs.FSDataInputStream;
 
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
 
 /**
  * Unit test for the RTreeGuttman class
@@ -109,6 +113,152 @@ public class RTreeGuttmanTest extends TestCase {
     }
   }
 
+  public void testSearchLargeTrees() {
+    Random random = new Random(1);
+    int numPoints = 5000;
+    double[] xs = new double[numPoints];
+    double[] ys = new double[numPoints];
+    for (int i = 0; i < numPoints; i++) {
+      xs[i] = random.nextDouble() * 1000;
+      ys[i] = random.nextDouble() * 1000;
+    }
+    RTreeGuttman[] rtrees = {new RTreeGuttman(4, 8), new RTreeGuttmanQuadraticSplit(4, 8),
+        new RStarTree(4, 10), new RRStarTree(4, 10)};
+    for (RTreeGuttman rtree : rtrees) {
+      rtree.initializeFromPoints(xs, ys);
+      assertEquals(numPoints, rtree.numOfDataEntries());
+      IntArray results = new IntArray();
+      for (int q = 0; q < 20; q++) {
+        double x1 = random.nextDouble() * 900, y1 = random.nextDouble() * 900;
+        double x2 = x1 + random.nextDouble() * 100, y2 = y1 + random.nextDouble() * 100;
+        int expectedCount = 0;
+        for (int i = 0; i < numPoints; i++) {
+          if (xs[i] >= x1 && xs[i] <= x2 && ys[i] >= y1 && ys[i] <= y2)
+            expectedCount++;
+        }
+        rtree.search(x1, y1, x2, y2, results);
+        assertEquals(rtree.getClass().getSimpleName(), expectedCount, results.size());
+        int iteratorCount = 0;
+        for (RTreeGuttman.Entry entry : rtree.search(x1, y1, x2, y2))
+          iteratorCount++;
+        assertEquals(expectedCount, iteratorCount);
+      }
+    }
+  }
+
+  public void testReclaimChildRanges() {
+    Random random = new Random(3);
+    int numPoints = 2000;
+    double[] xs = new double[numPoints];
+    double[] ys = new double[numPoints];
+    for (int i = 0; i < numPoints; i++) {
+      xs[i] = random.nextDouble() * 1000;
+      ys[i] = random.nextDouble() * 1000;
+    }
+    RTreeGuttman rtree = new RTreeGuttman(4, 8);
+    rtree.initializeFromPoints(xs, ys);
+    // Move the children of random nodes to new ranges as done when a node grows
+    for (int round = 0; round < 100000; round++) {
+      int iNode = rtree.numEntries + random.nextInt(rtree.numNodes);
+      int capacity = rtree.childrenCapacity[iNode - rtree.numEntries];
+      rtree.Node_reserve(iNode, capacity + random.nextInt(2));
+    }
+    int reservedSize = 0;
+    for (int i = 0; i < rtree.numNodes; i++)
+      reservedSize += rtree.childrenCapacity[i];
+    assertTrue("Array of size " + rtree.childIDs.length + " for " + reservedSize,
+        rtree.childIDs.length <= 2 * reservedSize);
+    IntArray results = new IntArray();
+    rtree.search(0, 0, 1000, 1000, results);
+    assertEquals(numPoints, results.size());
+    rtree.search(100, 100, 300, 300, results);
+    int expectedCount = 0;
+    for (int i = 0; i < numPoints; i++) {
+      if (xs[i] >= 100 && xs[i] <= 300 && ys[i] >= 100 && ys[i] <= 300)
+        expectedCount++;
+    }
+    assertEquals(expectedCount, results.size());
+  }
+
+  public void testBulkLoad() {
+    Random random = new Random(2);
+    int numRects = 3000;
+    double[] x1s = new double[numRects], y1s = new double[numRects];
+    double[] x2s = new double[numRects], y2s = new double[numRects];
+    for (int i = 0; i < numRects; i++) {
+      x1s[i] = random.nextDouble() * 1000;
+      y1s[i] = random.nextDouble() * 1000;
+      x2s[i] = x1s[i] + random.nextDouble() * 5;
+      y2s[i] = y1s[i] + random.nextDouble() * 5;
+    }
+    for (RTreeGuttman.BulkLoadMethod method : RTreeGuttman.BulkLoadMethod.values()) {
+      RTreeGuttman rtree = new RTreeGuttman(4, 10);
+      rtree.initializeFromRectsBulk(x1s, y1s, x2s, y2s, method);
+      assertEquals(numRects, rtree.numOfDataEntries());
+      // All nodes except the root should respect the capacity constraints
+      for (int iNode = numRects; iNode < numRects + rtree.numOfNodes(); iNode++) {
+        if (iNode != rtree.root) {
+          assertTrue(method + " underflow", rtree.Node_size(iNode) >= 4);
+          assertTrue(method + " overflow", rtree.Node_size(iNode) <= 10);
+        }
+      }
+      IntArray results = new IntArray();
+      for (int q = 0; q < 20; q++) {
+        double qx1 = random.nextDouble() * 900, qy1 = random.nextDouble() * 900;
+        double qx2 = qx1 + random.nextDouble() * 100, qy2 = qy1 + random.nextDouble() * 100;
+        int expectedCount = 0;
+        for (int i = 0; i < numRects; i++) {
+          if (!(qx2 < x1s[i] || x2s[i] < qx1 || qy2 < y1s[i] || y2s[i] < qy1))
+            expectedCount++;
+        }
+        rtree.search(qx1, qy1, qx2, qy2, results);
+        assertEquals(method.toString(), expectedCount, results.size());
+      }
+    }
+  }
+
+  public void testKNN() {
+    Random random = new Random(3);
+    int numRects = 2000;
+    final double[] x1s = new double[numRects], y1s = new double[numRects];
+    final double[] x2s = new double[numRects], y2s = new double[numRects];
+    for (int i = 0; i < numRects; i++) {
+      x1s[i] = random.nextDouble() * 1000;
+      y1s[i] = random.nextDouble() * 1000;
+      x2s[i] = x1s[i] + random.nextDouble() * 10;
+      y2s[i] = y1s[i] + random.nextDouble() * 10;
+    }
+    // The exact distance is the distance to the farthest corner
+    RTreeGuttman.DistanceFunction distanceFunction = new RTreeGuttman.DistanceFunction() {
+      @Override
+      public double distance(int i, double qx, double qy) {
+        return new Rectangle(x1s[i], y1s[i], x2s[i], y2s[i]).getMaxDistanceTo(qx, qy);
+      }
+    };
+    RTreeGuttman rtree = new RTreeGuttman(4, 10);
+    rtree.initializeFromRectsBulk(x1s, y1s, x2s, y2s, RTreeGuttman.BulkLoadMethod.STR);
+    int k = 15;
+    int[] resultIDs = new int[k];
+    double[] resultDistances = new double[k];
+    double[] allDistances = new double[numRects];
+    for (int q = 0; q < 20; q++) {
+      double qx = random.nextDouble() * 1200 - 100, qy = random.nextDouble() * 1200 - 100;
+      for (int i = 0; i < numRects; i++)
+        allDistances[i] = distanceFunction.distance(i, qx, qy);
+      Arrays.sort(allDistances);
+      assertEquals(k, rtree.knn(qx, qy, k, distanceFunction, resultIDs, resultDistances));
+      for (int i = 0; i < k; i++) {
+        assertEquals(allDistances[i], resultDistances[i]);
+        assertEquals(resultDistances[i], distanceFunction.distance(resultIDs[i], qx, qy));
+      }
+    }
+    // Fewer entries than k
+    rtree = new RTreeGuttman(4, 10);
+    rtree.initializeFromRectsBulk(new double[] {1}, new double[] {1},
+        new double[] {2}, new double[] {2}, RTreeGuttman.BulkLoadMethod.STR);
+    assertEquals(1, rtree.knn(0, 0, k, distanceFunction, resultIDs, resultDistances));
+  }
+
   public void testIterateOverEntries() {
     try {
       String fileName = "src/test/resources/test.points";
@@ -349,6 +499,70 @@ public class RTreeGuttmanTest extends TestCase {
     }
   }
 
+  public void testLazyReadMatchesFullRead() {
+    byte[] treeBytes = null;
+    try {
+      String fileName = "src/test/resources/test111.points";
+      double[][] points = BaseTest.readFile(fileName);
+      RTreeGuttman rtree = new RTreeGuttman(4, 8);
+      rtree.initializeFromPoints(points[0], points[1]);
+
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      DataOutputStream dos = new DataOutputStream(baos);
+      // Store the ID of each entry as its data
+      rtree.write(dos, new RTreeGuttman.Serializer() {
+        @Override
+        public int serialize(DataOutput out, int iObject) throws IOException {
+          out.writeInt(iObject);
+          return 4;
+        }
+      });
+      dos.close();
+      treeBytes = baos.toByteArray();
+    } catch (IOException e) {
+      fail("Error working with the test file");
+    }
+
+    try {
+      RTreeGuttman.Deserializer<Integer> deser = new RTreeGuttman.Deserializer<Integer>() {
+        @Override
+        public Integer deserialize(DataInput in, int length) throws IOException {
+          assertEquals(4, length);
+          return in.readInt();
+        }
+      };
+      RTreeGuttman rtree = new RTreeGuttman(4, 8);
+      rtree.readFields(new FSDataInputStream(new MemoryInputStream(treeBytes)),
+          treeBytes.length, deser);
+      LazyRTree<Integer> lazyRTree = new LazyRTree<Integer>();
+      lazyRTree.readFields(new FSDataInputStream(new MemoryInputStream(treeBytes)),
+          treeBytes.length, deser);
+      assertEquals(rtree.numOfDataEntries(), lazyRTree.numOfDataEntries());
+      assertEquals(rtree.getTotalDataSize(), lazyRTree.getTotalDataSize());
+
+      double[][] queries = {{0, 0, 4.5, 10}, {10, 6, 11, 7}, {5.5, 5, 10, 7},
+          {Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY,
+              Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY}};
+      for (double[] q : queries) {
+        Set<Integer> expected = new HashSet<Integer>();
+        for (RTreeGuttman.Entry e : rtree.search(q[0], q[1], q[2], q[3]))
+          expected.add((Integer) e.getObject());
+        Set<Integer> actual = new HashSet<Integer>();
+        for (Integer id : lazyRTree.search(q[0], q[1], q[2], q[3]))
+          assertTrue("Duplicate result "+id, actual.add(id));
+        assertEquals(expected, actual);
+      }
+
+      Set<Integer> allEntries = new HashSet<Integer>();
+      for (Integer id : lazyRTree.scanAll())
+        assertTrue("Duplicate entry "+id, allEntries.add(id));
+      assertEquals(111, allEntries.size());
+    } catch (IOException e) {
+      e.printStackTrace();
+      fail("Error opening the tree");
+    }
+  }
+
   public void testHollowRTree() {
     try {
       String fileName = "src/test/resources/test.rect";
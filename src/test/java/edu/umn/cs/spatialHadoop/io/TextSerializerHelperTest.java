@@ -2,7 +2,12 @@ package edu.umn.cs.spatialHadoop.io;
 
 import org.apache.hadoop.io.Text;
 
+import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKBWriter;
+import com.vividsolutions.jts.io.WKTReader;
 
 import junit.framework.Test;
 import junit.framework.TestCase;
@@ -10,6 +15,7 @@ import junit.framework.TestSuite;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Vector;
 
 /**
  * Unit test for the utility class {@link TextSerializerHelper}.
@@ -66,6 +72,73 @@ public class TextSerializerHelperTest extends TestCase {
     assertEquals(1234, dummyInt);
   }
 
+  public void testParseAllWKTTypes() {
+    String[] wkts = {
+      "POINT (1.5 -2.25)",
+      "LINESTRING (0 0, 1 1, 2 0)",
+      "POLYGON ((0 0, 4 0, 4 4, 0 4, 0 0), (1 1, 2 1, 2 2, 1 2, 1 1))",
+      "MULTIPOINT ((0 0), (1 1))",
+      "MULTIPOINT (0 0, 1 1)",
+      "MULTILINESTRING ((0 0, 1 1), (2 2, 3 3))",
+      "MULTIPOLYGON (((0 0, 1 0, 1 1, 0 1, 0 0)), ((5 5, 6 5, 6 6, 5 6, 5 5)))",
+      "GEOMETRYCOLLECTION (POINT (1 2), LINESTRING (0 0, 1 1))",
+      "POLYGON EMPTY",
+      "POINT (1 2 3)",
+    };
+    WKTReader reader = new WKTReader();
+    for (String wkt : wkts) {
+      Geometry geom = TextSerializerHelper.consumeGeometryJTS(new Text(wkt), '\0');
+      try {
+        Geometry expected = reader.read(wkt);
+        assertTrue("Error parsing "+wkt, expected.equalsExact(geom));
+      } catch (ParseException e) {
+        fail("Error parsing "+wkt);
+      }
+    }
+  }
+
+  public void testParseNumbersExactly() throws ParseException {
+    String[] numbers = {"0", "-0.5", "12.375", "1e3", "-1.25E-4",
+        "0.1", "123456789.123456789", "1.7976931348623157E308", "4.9E-324",
+        "-122.41941550000001", "37.77492950"};
+    for (String number : numbers) {
+      byte[] bytes = number.getBytes();
+      assertEquals(Double.parseDouble(number),
+          WKTParser.parseDouble(bytes, 0, bytes.length));
+    }
+  }
+
+  public void testParseHexWKB() {
+    Geometry geom = new GeometryFactory().createPoint(new Coordinate(3, 4));
+    String hex = WKBWriter.toHex(new WKBWriter().write(geom));
+    Geometry parsed = TextSerializerHelper.consumeGeometryJTS(new Text(hex+",5"), ',');
+    assertTrue(geom.equalsExact(parsed));
+  }
+
+  public void testParseFromMultipleThreads() throws InterruptedException {
+    final String wkt = "POLYGON((0 0, 1 0, 1 1, 0 1, 0 0))";
+    final Vector<Throwable> errors = new Vector<Throwable>();
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        public void run() {
+          try {
+            for (int j = 0; j < 1000; j++) {
+              Geometry geom = TextSerializerHelper.consumeGeometryJTS(new Text(wkt), '\0');
+              assertTrue(Math.abs(geom.getArea() - 1.0) < 1E-5);
+            }
+          } catch (Throwable e) {
+            errors.add(e);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread thread : threads)
+      thread.join();
+    assertTrue(errors.isEmpty());
+  }
+
   public void testConsumeMap() {
     String textMap = "[k1#v1,k2#v2,k3#v3]";
     Text text = new Text(textMap);
@@ -3,6 +3,7 @@ package edu.umn.cs.spatialHadoop.mapreduce;
 import edu.umn.cs.spatialHadoop.BaseTest;
 import edu.umn.cs.spatialHadoop.OperationsParams;
 import edu.umn.cs.spatialHadoop.core.Point;
+import edu.umn.cs.spatialHadoop.indexing.ColumnarLocalIndex;
 import edu.umn.cs.spatialHadoop.indexing.RRStarLocalIndex;
 import junit.framework.TestCase;
 import org.apache.hadoop.fs.FSDataOutputStream;
@@ -20,7 +21,9 @@ import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
 
 import java.io.*;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.zip.GZIPOutputStream;
 
 public class SampleInputFormatTest extends BaseTest {
@@ -75,6 +78,64 @@ public class SampleInputFormatTest extends BaseTest {
 
   }
 
+  public void testSampleConcatenatedColumnarFile() {
+    try {
+      OperationsParams params = new OperationsParams();
+      params.setInt(ColumnarLocalIndex.BlockSize, 16);
+      params.setBoolean(ColumnarLocalIndex.Compress, true);
+      Path concatFile = new Path(scratchPath, "concat.cols");
+      FileSystem fs = concatFile.getFileSystem(params);
+      FSDataOutputStream out = fs.create(concatFile, true);
+      ColumnarLocalIndex localIndexer = new ColumnarLocalIndex();
+      localIndexer.setup(params);
+
+      File[] inputFiles = new File[] {
+          new File("src/test/resources/test.points"),
+          new File("src/test/resources/test111.points"),
+      };
+
+      Set<String> expectedRecords = new HashSet<String>();
+      for (File file : inputFiles) {
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        String line;
+        while ((line = reader.readLine()) != null) {
+          Point p = new Point();
+          p.fromText(new Text(line));
+          expectedRecords.add(p.toText(new Text()).toString());
+        }
+        reader.close();
+        Path tempColsFile = new Path(scratchPath, "temp.cols");
+        localIndexer.buildLocalIndex(file, tempColsFile, new Point());
+        InputStream in = new FileInputStream(tempColsFile.toString());
+        IOUtils.copyBytes(in, out, params, false);
+        in.close();
+      }
+      out.close();
+
+      // Sample all records in the file
+      params.setFloat("ratio", 1.0f);
+      SampleInputFormat sinputFormat = new SampleInputFormat();
+      Job job = Job.getInstance(params);
+      SampleInputFormat.addInputPath(job, concatFile);
+      List<InputSplit> splits = sinputFormat.getSplits(job);
+      int count = 0;
+      for (InputSplit split : splits) {
+        RecordReader<NullWritable, Text> srr =
+            sinputFormat.createRecordReader(split, new TaskAttemptContextImpl(params, new TaskAttemptID()));
+        while (srr.nextKeyValue()) {
+          assertTrue("Unexpected record "+srr.getCurrentValue(),
+              expectedRecords.contains(srr.getCurrentValue().toString()));
+          ++count;
+        }
+        srr.close();
+      }
+      assertEquals(11+111, count);
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("Error in test");
+    }
+  }
+
   public void testSampleCompressedFile() {
     Path inputFile = new Path(scratchPath, "sample.gz");
     try {
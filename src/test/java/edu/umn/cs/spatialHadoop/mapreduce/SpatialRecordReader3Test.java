@@ -0,0 +1,131 @@
+package edu.umn.cs.spatialHadoop.mapreduce;
+
+import edu.umn.cs.spatialHadoop.BaseTest;
+import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.Point;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.indexing.BlockMBRIndex;
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+/**
+ * Unit test for the {@link SpatialRecordReader3} class
+ */
+public class SpatialRecordReader3Test extends BaseTest {
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public SpatialRecordReader3Test(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(SpatialRecordReader3Test.class);
+  }
+
+  private int countRecords(Path file, long fileLength, OperationsParams params)
+      throws IOException, InterruptedException {
+    int count = 0;
+    long splitPoint = fileLength / 2;
+    FileSplit[] splits = {
+        new FileSplit(file, 0, splitPoint, null),
+        new FileSplit(file, splitPoint, fileLength - splitPoint, null)
+    };
+    for (FileSplit split : splits) {
+      SpatialRecordReader3<Point> reader = new SpatialRecordReader3<Point>();
+      reader.initialize(split, params);
+      while (reader.nextKeyValue()) {
+        for (Point p : reader.getCurrentValue())
+          count++;
+      }
+      reader.close();
+    }
+    return count;
+  }
+
+  public void testSkipBlocksUsingBlockMBRs() {
+    try {
+      // Write a file of points sorted by x so that blocks are selective
+      Random random = new Random(0);
+      Point[] points = new Point[5000];
+      for (int i = 0; i < points.length; i++)
+        points[i] = new Point(random.nextDouble() * 1000, random.nextDouble() * 1000);
+      Arrays.sort(points, new Comparator<Point>() {
+        @Override
+        public int compare(Point a, Point b) {
+          return Double.compare(a.x, b.x);
+        }
+      });
+      OperationsParams params = new OperationsParams();
+      Path file = new Path(scratchPath, "sorted.points");
+      FileSystem fs = file.getFileSystem(params);
+      FSDataOutputStream out = fs.create(file);
+      BlockMBRIndex blockIndex = new BlockMBRIndex(1024);
+      Text line = new Text();
+      for (Point p : points) {
+        line.clear();
+        p.toText(line);
+        out.write(line.getBytes(), 0, line.getLength());
+        out.write('\n');
+        blockIndex.addRecord(p.getMBR(), line.getLength() + 1);
+      }
+      out.close();
+      blockIndex.write(fs, file);
+      long fileLength = fs.getFileStatus(file).getLen();
+      assertTrue(blockIndex.getNumBlocks() > 10);
+
+      Rectangle query = new Rectangle(100, 100, 200, 900);
+      int expectedCount = 0;
+      for (Point p : points)
+        if (p.isIntersected(query))
+          expectedCount++;
+      params.setClass("shape", Point.class, Shape.class);
+      OperationsParams.setShape(params, SpatialInputFormat3.InputQueryRange, query);
+      assertEquals(expectedCount, countRecords(file, fileLength, params));
+
+      // A query that falls in the middle of the two splits
+      query = new Rectangle(450, 0, 550, 1000);
+      expectedCount = 0;
+      for (Point p : points)
+        if (p.isIntersected(query))
+          expectedCount++;
+      OperationsParams.setShape(params, SpatialInputFormat3.InputQueryRange, query);
+      assertEquals(expectedCount, countRecords(file, fileLength, params));
+
+      // A stale block index should be ignored
+      out = fs.create(file, true);
+      for (Point p : points) {
+        line.clear();
+        p.toText(line);
+        out.write(line.getBytes(), 0, line.getLength());
+        out.write('\n');
+      }
+      out.write("500,500\n".getBytes());
+      out.close();
+      fileLength = fs.getFileStatus(file).getLen();
+      assertNull(BlockMBRIndex.read(fs, file));
+      assertEquals(expectedCount + 1, countRecords(file, fileLength, params));
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("Error in test!");
+    }
+  }
+}
@@ -0,0 +1,353 @@
+package edu.umn.cs.spatialHadoop.nasa;
+
+import java.awt.Rectangle;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import edu.umn.cs.spatialHadoop.BaseTest;
+import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.io.RandomCompressedOutputStream;
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the {@link AggregateQuadTree} class
+ */
+public class AggregateQuadTreeTest extends BaseTest {
+
+  private static final short FillValue = -1;
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public AggregateQuadTreeTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(AggregateQuadTreeTest.class);
+  }
+
+  private short[] writeRandomTree(FileSystem fs, Path file, int resolution,
+      long seed) throws IOException {
+    return writeRandomTree(fs, file, resolution, seed, null);
+  }
+
+  private short[] writeRandomTree(FileSystem fs, Path file, int resolution,
+      long seed, AggregateQuadTree.Histogram sketch) throws IOException {
+    Random random = new Random(seed);
+    short[] values = new short[resolution * resolution];
+    for (int i = 0; i < values.length; i++)
+      values[i] = random.nextInt(10) == 0 ? FillValue : (short) random.nextInt(1000);
+    // Use small compressed blocks to test reading across blocks
+    DataOutputStream out = new DataOutputStream(
+        new RandomCompressedOutputStream(fs.create(file, true), 1024));
+    AggregateQuadTree.build(new NASADataset(), values, FillValue, sketch, out);
+    out.close();
+    return values;
+  }
+
+  private static AggregateQuadTree.Node bruteForce(short[][] trees,
+      int resolution, Rectangle query) {
+    AggregateQuadTree.Node result = new AggregateQuadTree.Node();
+    for (short[] values : trees)
+      for (int y = query.y; y < query.y + query.height; y++)
+        for (int x = query.x; x < query.x + query.width; x++)
+          if (values[y * resolution + x] != FillValue)
+            result.accumulate(values[y * resolution + x]);
+    return result;
+  }
+
+  private static void assertNodeEquals(AggregateQuadTree.Node expected,
+      AggregateQuadTree.Node actual) {
+    assertEquals(expected.count, actual.count);
+    assertEquals(expected.sum, actual.sum);
+    assertEquals(expected.min, actual.min);
+    assertEquals(expected.max, actual.max);
+  }
+
+  public void testAggregateQueryWithPool() throws IOException {
+    OperationsParams params = new OperationsParams();
+    FileSystem fs = FileSystem.getLocal(params);
+    int resolution = 64;
+    Path day1 = new Path(scratchPath, "day1.h00v00");
+    Path day2 = new Path(scratchPath, "day2.h00v00");
+    Path month = new Path(scratchPath, "month.h00v00");
+    short[] values1 = writeRandomTree(fs, day1, resolution, 1);
+    short[] values2 = writeRandomTree(fs, day2, resolution, 2);
+    AggregateQuadTree.merge(params, new Path[] {day1, day2}, month);
+
+    TreeFilePool pool = new TreeFilePool(2);
+    try {
+      Random random = new Random(3);
+      for (int iQuery = 0; iQuery < 20; iQuery++) {
+        int x1 = random.nextInt(resolution), x2 = random.nextInt(resolution);
+        int y1 = random.nextInt(resolution), y2 = random.nextInt(resolution);
+        Rectangle query = new Rectangle(Math.min(x1, x2), Math.min(y1, y2),
+            Math.abs(x1 - x2) + 1, Math.abs(y1 - y2) + 1);
+        AggregateQuadTree.QueryPlan plan =
+            AggregateQuadTree.planAggregateQuery(resolution, query);
+
+        AggregateQuadTree.Node expected =
+            bruteForce(new short[][] {values1}, resolution, query);
+        assertNodeEquals(expected, AggregateQuadTree.aggregateQuery(fs, day1, query));
+        AggregateQuadTree.Node result = new AggregateQuadTree.Node();
+        pool.aggregateQuery(fs, day1, plan, result);
+        assertNodeEquals(expected, result);
+
+        // Evaluate the same plan over the two days and over the merged tree
+        expected = bruteForce(new short[][] {values1, values2}, resolution, query);
+        result = new AggregateQuadTree.Node();
+        pool.aggregateQuery(fs, day1, plan, result);
+        pool.aggregateQuery(fs, day2, plan, result);
+        assertNodeEquals(expected, result);
+        result = new AggregateQuadTree.Node();
+        pool.aggregateQuery(fs, month, plan, result);
+        assertNodeEquals(expected, result);
+        assertTrue(pool.size() <= 2);
+      }
+    } finally {
+      pool.close();
+    }
+  }
+
+  public void testPoolReopensReplacedTree() throws IOException {
+    OperationsParams params = new OperationsParams();
+    FileSystem fs = FileSystem.getLocal(params);
+    int resolution = 64;
+    Path day1 = new Path(scratchPath, "day1.h00v00");
+    Path day2 = new Path(scratchPath, "day2.h00v00");
+    Path month = new Path(scratchPath, "month.h00v00");
+    Path newMonth = new Path(scratchPath, "month.h00v00.tmp");
+    short[] values1 = writeRandomTree(fs, day1, resolution, 10);
+    short[] values2 = writeRandomTree(fs, day2, resolution, 11);
+    AggregateQuadTree.merge(params, new Path[] {day1}, month);
+
+    Rectangle all = new Rectangle(0, 0, resolution, resolution);
+    AggregateQuadTree.QueryPlan plan =
+        AggregateQuadTree.planAggregateQuery(resolution, all);
+    TreeFilePool pool = new TreeFilePool(2);
+    try {
+      AggregateQuadTree.Node result = new AggregateQuadTree.Node();
+      pool.aggregateQuery(fs, month, plan, result);
+      assertNodeEquals(bruteForce(new short[][] {values1}, resolution, all), result);
+      long oldModificationTime = fs.getFileStatus(month).getModificationTime();
+
+      // Replace the tree the same way an index is rebuilt
+      AggregateQuadTree.merge(params, new Path[] {day1, day2}, newMonth);
+      fs.delete(month, false);
+      fs.rename(newMonth, month);
+      fs.setTimes(month, oldModificationTime + 10000, -1);
+
+      result = new AggregateQuadTree.Node();
+      pool.aggregateQuery(fs, month, plan, result);
+      assertNodeEquals(bruteForce(new short[][] {values1, values2}, resolution, all), result);
+      assertEquals(1, pool.size());
+    } finally {
+      pool.close();
+    }
+  }
+
+  public void testPoolResistsScans() throws IOException {
+    OperationsParams params = new OperationsParams();
+    FileSystem fs = FileSystem.getLocal(params);
+    int resolution = 16;
+    int numDays = 5;
+    Path[] days = new Path[numDays];
+    short[][] values = new short[numDays][];
+    for (int i = 0; i < numDays; i++) {
+      days[i] = new Path(scratchPath, "scan"+i+".h00v00");
+      values[i] = writeRandomTree(fs, days[i], resolution, 20 + i);
+    }
+    Rectangle all = new Rectangle(0, 0, resolution, resolution);
+    AggregateQuadTree.BatchQueryPlan plan = new AggregateQuadTree.BatchQueryPlan(
+        new AggregateQuadTree.QueryPlan[] {AggregateQuadTree.planAggregateQuery(resolution, all)});
+
+    TreeFilePool pool = new TreeFilePool(2);
+    try {
+      // Repeat a query that scans more trees than the capacity of the pool
+      for (int iQuery = 0; iQuery < 3; iQuery++) {
+        long queryStart = pool.beginQuery();
+        AggregateQuadTree.Node[] result = {new AggregateQuadTree.Node()};
+        for (Path day : days)
+          pool.aggregateQuery(fs, fs.getFileStatus(day), plan, result, queryStart);
+        assertNodeEquals(bruteForce(values, resolution, all), result[0]);
+        assertEquals(2, pool.size());
+      }
+      // The first two trees stay in the pool and are reused by later queries
+      assertEquals(4, pool.getHits());
+      assertEquals(numDays * 3 - 4, pool.getMisses());
+
+      // A query on other trees replaces the trees of earlier queries
+      long queryStart = pool.beginQuery();
+      AggregateQuadTree.Node[] result = {new AggregateQuadTree.Node()};
+      pool.aggregateQuery(fs, fs.getFileStatus(days[3]), plan, result, queryStart);
+      pool.aggregateQuery(fs, fs.getFileStatus(days[4]), plan, result, queryStart);
+      pool.aggregateQuery(fs, fs.getFileStatus(days[3]), plan, result, queryStart);
+      assertEquals(5, pool.getHits());
+
+      pool.setCapacity(1);
+      assertEquals(1, pool.size());
+    } finally {
+      pool.close();
+    }
+  }
+
+  public void testBatchAggregateQuery() throws IOException {
+    OperationsParams params = new OperationsParams();
+    FileSystem fs = FileSystem.getLocal(params);
+    int resolution = 64;
+    Path day = new Path(scratchPath, "day.h00v00");
+    short[] values = writeRandomTree(fs, day, resolution, 4);
+
+    Random random = new Random(5);
+    int numRegions = 10;
+    Rectangle[][] regions = new Rectangle[numRegions][];
+    AggregateQuadTree.QueryPlan[] plans = new AggregateQuadTree.QueryPlan[numRegions];
+    Rectangle[] singleParts = new Rectangle[numRegions];
+    for (int i = 0; i < numRegions; i++) {
+      int x1 = random.nextInt(resolution), x2 = random.nextInt(resolution);
+      int y1 = random.nextInt(resolution), y2 = random.nextInt(resolution);
+      singleParts[i] = new Rectangle(Math.min(x1, x2), Math.min(y1, y2),
+          Math.abs(x1 - x2) + 1, Math.abs(y1 - y2) + 1);
+      if (i % 2 == 0) {
+        regions[i] = new Rectangle[] {singleParts[i]};
+      } else {
+        // Split the region into disjoint runs of one row each
+        regions[i] = new Rectangle[singleParts[i].height];
+        for (int y = 0; y < singleParts[i].height; y++)
+          regions[i][y] = new Rectangle(singleParts[i].x, singleParts[i].y + y,
+              singleParts[i].width, 1);
+      }
+      plans[i] = AggregateQuadTree.planAggregateQuery(resolution, regions[i]);
+    }
+    AggregateQuadTree.BatchQueryPlan batch = new AggregateQuadTree.BatchQueryPlan(plans);
+
+    TreeFilePool pool = new TreeFilePool(1);
+    try {
+      AggregateQuadTree.Node[] results = new AggregateQuadTree.Node[numRegions];
+      for (int i = 0; i < numRegions; i++)
+        results[i] = new AggregateQuadTree.Node();
+      pool.aggregateQuery(fs, day, batch, results);
+      AggregateQuadTree.Node[] directResults =
+          AggregateQuadTree.aggregateQuery(fs, day, singleParts);
+      for (int i = 0; i < numRegions; i++) {
+        AggregateQuadTree.Node expected =
+            bruteForce(new short[][] {values}, resolution, singleParts[i]);
+        assertNodeEquals(expected, results[i]);
+        assertNodeEquals(expected, directResults[i]);
+      }
+    } finally {
+      pool.close();
+    }
+  }
+
+  public void testSketchesWithDifferentBins() throws IOException {
+    OperationsParams params = new OperationsParams();
+    FileSystem fs = FileSystem.getLocal(params);
+    int resolution = 64;
+    Path day1 = new Path(scratchPath, "bins1.h00v00");
+    Path day2 = new Path(scratchPath, "bins2.h00v00");
+    short[] values1 = writeRandomTree(fs, day1, resolution, 30,
+        new AggregateQuadTree.Histogram(0, 999, 50));
+    short[] values2 = writeRandomTree(fs, day2, resolution, 31,
+        new AggregateQuadTree.Histogram(0, 499, 20));
+
+    Rectangle all = new Rectangle(0, 0, resolution, resolution);
+    AggregateQuadTree.QueryPlan plan =
+        AggregateQuadTree.planAggregateQuery(resolution, all);
+    TreeFilePool pool = new TreeFilePool(2);
+    try {
+      AggregateQuadTree.Node result = new AggregateQuadTree.Node();
+      pool.aggregateQuery(fs, day1, plan, result);
+      pool.aggregateQuery(fs, day2, plan, result);
+      // The query is answered but the quantiles are unknown
+      assertNodeEquals(bruteForce(new short[][] {values1, values2}, resolution, all), result);
+      assertNull(result.histogram);
+      assertTrue(Double.isNaN(result.getQuantile(0.5)));
+    } finally {
+      pool.close();
+    }
+  }
+
+  public void testSketches() throws IOException {
+    OperationsParams params = new OperationsParams();
+    FileSystem fs = FileSystem.getLocal(params);
+    int resolution = 64;
+    AggregateQuadTree.Histogram sketch = new AggregateQuadTree.Histogram(0, 999, 50);
+    Path day1 = new Path(scratchPath, "sketch1.h00v00");
+    Path day2 = new Path(scratchPath, "sketch2.h00v00");
+    Path month = new Path(scratchPath, "sketchmonth.h00v00");
+    short[] values1 = writeRandomTree(fs, day1, resolution, 6, sketch);
+    short[] values2 = writeRandomTree(fs, day2, resolution, 7, sketch);
+    AggregateQuadTree.merge(params, new Path[] {day1, day2}, month);
+    assertEquals(resolution, AggregateQuadTree.getResolution(fs, month));
+
+    TreeFilePool pool = new TreeFilePool(2);
+    try {
+      Random random = new Random(8);
+      for (int iQuery = 0; iQuery < 20; iQuery++) {
+        int x1 = random.nextInt(resolution), x2 = random.nextInt(resolution);
+        int y1 = random.nextInt(resolution), y2 = random.nextInt(resolution);
+        Rectangle query = new Rectangle(Math.min(x1, x2), Math.min(y1, y2),
+            Math.abs(x1 - x2) + 1, Math.abs(y1 - y2) + 1);
+        AggregateQuadTree.QueryPlan plan =
+            AggregateQuadTree.planAggregateQuery(resolution, query);
+        short[][] trees = {values1, values2};
+        AggregateQuadTree.Node expected = bruteForce(trees, resolution, query);
+        AggregateQuadTree.Node result = new AggregateQuadTree.Node();
+        pool.aggregateQuery(fs, month, plan, result);
+        assertNodeEquals(expected, result);
+        assertEquals(expected.getVariance(), result.getVariance(),
+            1E-6 * expected.getVariance());
+        // Quantiles are estimated within one bin of the exact values
+        short[] sorted = selectValues(trees, resolution, query);
+        for (double q : new double[] {0.05, 0.5, 0.95}) {
+          int rank = (int) Math.max(0, Math.ceil(q * sorted.length) - 1);
+          assertEquals(sorted[rank], result.getQuantile(q), sketch.getBinWidth());
+        }
+      }
+    } finally {
+      pool.close();
+    }
+
+    // Trees without sketches cannot answer these statistics from nodes
+    Path plain = new Path(scratchPath, "plain.h00v00");
+    Path mixed = new Path(scratchPath, "mixed.h00v00");
+    writeRandomTree(fs, plain, resolution, 9);
+    AggregateQuadTree.merge(params, new Path[] {day1, plain}, mixed);
+    Rectangle all = new Rectangle(0, 0, resolution, resolution);
+    AggregateQuadTree.Node result = AggregateQuadTree.aggregateQuery(fs, mixed, all);
+    assertTrue(result.count > 0);
+    assertTrue(Double.isNaN(result.getVariance()));
+    assertTrue(Double.isNaN(result.getQuantile(0.5)));
+  }
+
+  private static short[] selectValues(short[][] trees, int resolution,
+      Rectangle query) {
+    List<Short> selected = new ArrayList<Short>();
+    for (short[] values : trees)
+      for (int y = query.y; y < query.y + query.height; y++)
+        for (int x = query.x; x < query.x + query.width; x++)
+          if (values[y * resolution + x] != FillValue)
+            selected.add(values[y * resolution + x]);
+    short[] sorted = new short[selected.size()];
+    for (int i = 0; i < sorted.length; i++)
+      sorted[i] = selected.get(i);
+    Arrays.sort(sorted);
+    return sorted;
+  }
+}
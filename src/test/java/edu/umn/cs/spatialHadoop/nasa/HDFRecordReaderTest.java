@@ -3,6 +3,7 @@ package edu.umn.cs.spatialHadoop.nasa;
 import java.nio.ByteBuffer;
 
 import edu.umn.cs.spatialHadoop.TigerShape;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.util.BitArray;
 import edu.umn.cs.spatialHadoop.util.ShortArray;
 import junit.framework.Test;
@@ -172,4 +173,22 @@ public class HDFRecordReaderTest extends TestCase {
     assertEquals(0, valuesBytes.getShort(2*9));
 
   }
+
+  public void testOverlappingRows() {
+    NASADataset dataset = new NASADataset();
+    dataset.h = 10;
+    dataset.v = 5;
+    dataset.resolution = 100;
+    // The tile covers the latitudes [30, 40] with a row height of 0.1
+    int[] rows = HDFRecordReader.overlappingRows(dataset, new Rectangle(-10, 35.05, 10, 37.55));
+    assertEquals(24, rows[0]);
+    assertEquals(50, rows[1]);
+    // A query range that covers the entire tile
+    rows = HDFRecordReader.overlappingRows(dataset, new Rectangle(-180, -90, 180, 90));
+    assertEquals(0, rows[0]);
+    assertEquals(100, rows[1]);
+    // A query range that is disjoint with the tile
+    rows = HDFRecordReader.overlappingRows(dataset, new Rectangle(-180, 50, 180, 60));
+    assertEquals(rows[0], rows[1]);
+  }
 }
@@ -0,0 +1,222 @@
+package edu.umn.cs.spatialHadoop.nasa;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.Vector;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+import edu.umn.cs.spatialHadoop.BaseTest;
+import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.OGCJTSShape;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.io.RandomCompressedOutputStream;
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the {@link SpatioAggregateQueries} class
+ */
+public class SpatioAggregateQueriesTest extends BaseTest {
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public SpatioAggregateQueriesTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(SpatioAggregateQueriesTest.class);
+  }
+
+  public void testSelectTemporalPartitions() throws Exception {
+    OperationsParams params = new OperationsParams();
+    FileSystem fs = FileSystem.getLocal(params);
+    Path index = new Path(scratchPath, "index");
+    // The year 2012 is not merged and only half of its months are
+    String[] years = {"2011", "2013"};
+    String[] months = {"2010.11", "2010.12", "2011.05", "2012.01", "2012.02",
+        "2012.03", "2012.04", "2012.05", "2012.06"};
+    String[] days = {"2010.11.14", "2010.11.15", "2010.11.30", "2011.05.05",
+        "2012.07.01", "2012.12.31", "2014.01.01", "2014.01.02", "2014.01.03"};
+    for (String year : years)
+      fs.mkdirs(new Path(new Path(index, "yearly"), year));
+    for (String month : months)
+      fs.mkdirs(new Path(new Path(index, "monthly"), month));
+    for (String day : days)
+      fs.mkdirs(new Path(new Path(index, "daily"), day));
+
+    params.set("time", "2010.11.15..2014.01.03");
+    Vector<Path> partitions = SpatioAggregateQueries.selectTemporalPartitions(index, params);
+    Set<String> selected = new HashSet<String>();
+    for (Path partition : partitions)
+      selected.add(partition.getParent().getName() + "/" + partition.getName());
+    assertEquals(partitions.size(), selected.size());
+
+    Set<String> expected = new HashSet<String>();
+    for (String year : years)
+      expected.add("yearly/" + year);
+    for (String month : months)
+      if (month.compareTo("2010.12") >= 0 && !month.equals("2011.05"))
+        expected.add("monthly/" + month);
+    for (String day : new String[] {"2010.11.15", "2010.11.30", "2012.07.01",
+        "2012.12.31", "2014.01.01", "2014.01.02"})
+      expected.add("daily/" + day);
+    assertEquals(expected, selected);
+  }
+
+  private static void writeTree(FileSystem fs, Path file, int resolution,
+      short value) throws IOException {
+    short[] values = new short[resolution * resolution];
+    for (int i = 0; i < values.length; i++)
+      values[i] = value;
+    DataOutputStream out = new DataOutputStream(
+        new RandomCompressedOutputStream(fs.create(file, true)));
+    AggregateQuadTree.build(new NASADataset(), values, (short) -1, out);
+    out.close();
+  }
+
+  private static AggregateQuadTree.Node queryAll(FileSystem fs, Path file,
+      int resolution) throws IOException {
+    return AggregateQuadTree.aggregateQuery(fs, file,
+        new java.awt.Rectangle(0, 0, resolution, resolution));
+  }
+
+  public void testIncrementalRollUp() throws Exception {
+    OperationsParams params = new OperationsParams();
+    FileSystem fs = FileSystem.getLocal(params);
+    Path daily = new Path(scratchPath, "daily");
+    Path monthly = new Path(scratchPath, "monthly");
+    Path yearly = new Path(scratchPath, "yearly");
+    SimpleDateFormat dayFormat = new SimpleDateFormat("yyyy.MM.dd");
+    SimpleDateFormat monthFormat = new SimpleDateFormat("yyyy.MM");
+    SimpleDateFormat yearFormat = new SimpleDateFormat("yyyy");
+    int resolution = 16;
+    writeTree(fs, new Path(daily, "2015.01.01/tile.h00v00.tree"), resolution, (short) 1);
+    writeTree(fs, new Path(daily, "2015.01.02/tile.h00v00.tree"), resolution, (short) 2);
+    writeTree(fs, new Path(daily, "2015.01.02/tile.h01v00.tree"), resolution, (short) 5);
+    writeTree(fs, new Path(daily, "2015.02.01/tile.h00v00.tree"), resolution, (short) 3);
+
+    // Only the second day is in the time range but the whole month is merged
+    params.set("time", "2015.01.02..2015.01.03");
+    AggregateQuadTree.mergeIndexes(fs, daily, monthly, dayFormat, monthFormat, params);
+    AggregateQuadTree.Node result = queryAll(fs, new Path(monthly, "2015.01/h00v00"), resolution);
+    assertEquals(2 * resolution * resolution, result.count);
+    assertEquals(3 * resolution * resolution, result.sum);
+    // A tile that is missing in the first day is merged too
+    result = queryAll(fs, new Path(monthly, "2015.01/h01v00"), resolution);
+    assertEquals(5 * resolution * resolution, result.sum);
+    // A month that does not overlap the time range is not merged
+    assertFalse(fs.exists(new Path(monthly, "2015.02")));
+
+    // A new day updates the existing monthly tree
+    Path newDay = new Path(daily, "2015.01.03/tile.h00v00.tree");
+    writeTree(fs, newDay, resolution, (short) 4);
+    long monthTimestamp = fs.getFileStatus(new Path(monthly, "2015.01/h00v00")).getModificationTime();
+    fs.setTimes(newDay, monthTimestamp + 1000, -1);
+    params.set("time", "2015.01.03..2015.01.04");
+    AggregateQuadTree.mergeIndexes(fs, daily, monthly, dayFormat, monthFormat, params);
+    result = queryAll(fs, new Path(monthly, "2015.01/h00v00"), resolution);
+    assertEquals(3 * resolution * resolution, result.count);
+    assertEquals(7 * resolution * resolution, result.sum);
+
+    // Roll up the months into a year
+    params.unset("time");
+    AggregateQuadTree.mergeIndexes(fs, daily, monthly, dayFormat, monthFormat, params);
+    AggregateQuadTree.mergeIndexes(fs, monthly, yearly, monthFormat, yearFormat, params);
+    result = queryAll(fs, new Path(yearly, "2015/h00v00"), resolution);
+    assertEquals(4 * resolution * resolution, result.count);
+    assertEquals(10 * resolution * resolution, result.sum);
+    assertEquals(1, result.min);
+    assertEquals(4, result.max);
+
+    // Removing a day or adding an old file changes the number of merged trees
+    // even though the monthly tree is newer than all remaining days
+    Path monthFile = new Path(monthly, "2015.01/h00v00");
+    fs.setTimes(monthFile, monthTimestamp + 10000, -1);
+    fs.delete(new Path(daily, "2015.01.01"), true);
+    AggregateQuadTree.mergeIndexes(fs, daily, monthly, dayFormat, monthFormat, params);
+    result = queryAll(fs, monthFile, resolution);
+    assertEquals(2 * resolution * resolution, result.count);
+    assertEquals(6 * resolution * resolution, result.sum);
+    Path oldDay = new Path(daily, "2015.01.05/tile.h00v00.tree");
+    writeTree(fs, oldDay, resolution, (short) 6);
+    fs.setTimes(oldDay, monthTimestamp, -1);
+    fs.setTimes(monthFile, monthTimestamp + 10000, -1);
+    AggregateQuadTree.mergeIndexes(fs, daily, monthly, dayFormat, monthFormat, params);
+    result = queryAll(fs, monthFile, resolution);
+    assertEquals(3 * resolution * resolution, result.count);
+    assertEquals(12 * resolution * resolution, result.sum);
+
+    // A tile removed from all days and a month whose days were all removed
+    // are deleted from the roll-ups
+    assertTrue(fs.exists(new Path(monthly, "2015.01/h01v00")));
+    assertTrue(fs.exists(new Path(monthly, "2015.02")));
+    fs.delete(new Path(daily, "2015.01.02/tile.h01v00.tree"), false);
+    fs.delete(new Path(daily, "2015.02.01"), true);
+    AggregateQuadTree.mergeIndexes(fs, daily, monthly, dayFormat, monthFormat, params);
+    assertFalse(fs.exists(new Path(monthly, "2015.01/h01v00")));
+    assertTrue(fs.exists(monthFile));
+    assertFalse(fs.exists(new Path(monthly, "2015.02")));
+    AggregateQuadTree.mergeIndexes(fs, monthly, yearly, monthFormat, yearFormat, params);
+    assertFalse(fs.exists(new Path(yearly, "2015/h01v00")));
+    result = queryAll(fs, new Path(yearly, "2015/h00v00"), resolution);
+    assertEquals(3 * resolution * resolution, result.count);
+    assertEquals(12 * resolution * resolution, result.sum);
+  }
+
+  public void testRasterize() {
+    int resolution = 100;
+    int h = 18, v = 8;
+    Rectangle rect = new Rectangle(2, 2, 6, 7);
+    GeometryFactory factory = new GeometryFactory();
+    OGCJTSShape polygon = new OGCJTSShape(factory.createPolygon(new Coordinate[] {
+        new Coordinate(5, 2), new Coordinate(8, 5), new Coordinate(5, 8),
+        new Coordinate(2, 5), new Coordinate(5, 2)}));
+    // Rectangles are clipped to the tile without being rasterized
+    java.awt.Rectangle[] parts = SpatioAggregateQueries.rasterize(rect,
+        new Rectangle(18.75, 7.75, 19.25, 8.25), h, v, resolution);
+    assertEquals(1, parts.length);
+    assertEquals(new java.awt.Rectangle(75, 0, 25, 25), parts[0]);
+
+    parts = SpatioAggregateQueries.rasterize(polygon,
+        SpatioAggregateQueries.toModisSpace(polygon.getMBR()), h, v, resolution);
+    boolean[] selected = new boolean[resolution * resolution];
+    for (java.awt.Rectangle part : parts) {
+      for (int y = part.y; y < part.y + part.height; y++) {
+        for (int x = part.x; x < part.x + part.width; x++) {
+          assertFalse("Parts should be disjoint", selected[y * resolution + x]);
+          selected[y * resolution + x] = true;
+        }
+      }
+    }
+    int numSelected = 0;
+    for (int y = 0; y < resolution; y++) {
+      for (int x = 0; x < resolution; x++) {
+        double lat = 90.0 - (v + (y + 0.5) / resolution) * 10.0;
+        double lon = ((h + (x + 0.5) / resolution) * 10.0 - 180.0)
+            / Math.cos(lat * Math.PI / 180);
+        boolean inside = polygon.geom.intersects(
+            factory.createPoint(new Coordinate(lon, lat)));
+        assertEquals(inside, selected[y * resolution + x]);
+        if (inside)
+          numSelected++;
+      }
+    }
+    assertTrue(numSelected > 0);
+  }
+}
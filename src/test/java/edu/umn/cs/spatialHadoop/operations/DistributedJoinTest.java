@@ -0,0 +1,436 @@
+package edu.umn.cs.spatialHadoop.operations;
+
+import edu.umn.cs.spatialHadoop.BaseTest;
+import edu.umn.cs.spatialHadoop.OperationsParams;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import edu.umn.cs.spatialHadoop.core.OGCJTSShape;
+import edu.umn.cs.spatialHadoop.core.Point;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.ResultCollector2;
+import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.core.SpatialAlgorithms;
+import edu.umn.cs.spatialHadoop.core.SpatialSite;
+import edu.umn.cs.spatialHadoop.indexing.GlobalIndex;
+import edu.umn.cs.spatialHadoop.indexing.Indexer;
+import edu.umn.cs.spatialHadoop.indexing.Partition;
+import edu.umn.cs.spatialHadoop.mapred.BinarySpatialInputFormat;
+import edu.umn.cs.spatialHadoop.mapred.BlockFilter;
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.lib.CombineFileSplit;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Unit test for the {@link DistributedJoin} class
+ */
+public class DistributedJoinTest extends BaseTest {
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public DistributedJoinTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(DistributedJoinTest.class);
+  }
+
+  public void testDistanceJoin() {
+    try {
+      OperationsParams params = new OperationsParams();
+      Point[] r = writeRandomPoints(new Path(scratchPath, "r.points"), 1000, 1);
+      Point[] s = writeRandomPoints(new Path(scratchPath, "s.points"), 1500, 2);
+
+      Path rIndex = new Path(scratchPath, "r.grid");
+      Path sIndex = new Path(scratchPath, "s.str");
+      params.set("shape", "point");
+      params.setBoolean("local", false);
+      // Use a small block size to create several partitions in each file
+      params.setBoolean("fs.file.impl.disable.cache", true);
+      params.setLong("fs.local.block.size", 4 * 1024);
+      params.setFloat(SpatialSite.SAMPLE_RATIO, 1.0f);
+      params.set("sindex", "grid");
+      Indexer.index(new Path(scratchPath, "r.points"), rIndex, params);
+      params.set("sindex", "str+");
+      Indexer.index(new Path(scratchPath, "s.points"), sIndex, params);
+
+      FileSystem fs = rIndex.getFileSystem(params);
+      assertTrue(SpatialSite.getGlobalIndex(fs, rIndex).size() > 1);
+      assertTrue(SpatialSite.getGlobalIndex(fs, sIndex).size() > 1);
+
+      double epsilon = 150;
+      long expected = 0;
+      for (Point p1 : r)
+        for (Point p2 : s)
+          if (p1.distanceTo(p2) <= epsilon)
+            expected++;
+      assertTrue(expected > 0);
+
+      params.setDouble("epsilon", epsilon);
+      long count = DistributedJoin.joinStep(new Path[] {rIndex, sIndex},
+          new Path(scratchPath, "dj_out"), params);
+      assertEquals(expected, count);
+
+      // Split heavy partition pairs into several smaller pairs
+      params.setLong(BinarySpatialInputFormat.MaxSplitCost, 200);
+      Set<String> partitionPairs = selectPartitionPairs(params, rIndex, sIndex);
+      CombineFileSplit[] splits = getCheckedSplits(params, rIndex, sIndex);
+      int numSubPairs = 0;
+      for (CombineFileSplit split : splits)
+        numSubPairs += split.getNumPaths() / 2;
+      assertTrue(numSubPairs > partitionPairs.size());
+      count = DistributedJoin.joinStep(new Path[] {rIndex, sIndex},
+          new Path(scratchPath, "dj_out_split"), params);
+      assertEquals(expected, count);
+
+      // Pack all partition pairs into one split
+      params.setLong(BinarySpatialInputFormat.MaxSplitCost, Long.MAX_VALUE);
+      splits = getCheckedSplits(params, rIndex, sIndex);
+      assertEquals(1, splits.length);
+      assertEquals(2 * partitionPairs.size(), splits[0].getNumPaths());
+      count = DistributedJoin.joinStep(new Path[] {rIndex, sIndex},
+          new Path(scratchPath, "dj_out_packed"), params);
+      assertEquals(expected, count);
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("Error in test!");
+    }
+  }
+
+  /**
+   * Returns the pairs of partition file names that the distance join filter
+   * selects from the two indexes.
+   */
+  private static Set<String> selectPartitionPairs(OperationsParams params,
+      Path rIndex, Path sIndex) throws IOException {
+    FileSystem fs = rIndex.getFileSystem(params);
+    final Set<String> pairs = new HashSet<String>();
+    DistributedJoin.DistanceJoinFilter filter = new DistributedJoin.DistanceJoinFilter();
+    filter.configure(params);
+    filter.selectCellPairs(SpatialSite.getGlobalIndex(fs, rIndex),
+        SpatialSite.getGlobalIndex(fs, sIndex),
+        new ResultCollector2<Partition, Partition>() {
+          @Override
+          public void collect(Partition r, Partition s) {
+            pairs.add(r.filename + "," + s.filename);
+          }
+        });
+    return pairs;
+  }
+
+  /**
+   * Computes the splits of a distance join between the two indexes and checks
+   * that the ranges of each selected partition pair cover the two partitions
+   * exactly once and that the estimated cost of each split does not exceed
+   * {@link BinarySpatialInputFormat#MaxSplitCost}.
+   */
+  private static CombineFileSplit[] getCheckedSplits(OperationsParams params,
+      Path rIndex, Path sIndex) throws IOException {
+    JobConf job = new JobConf(params, DistributedJoin.class);
+    job.setClass(SpatialSite.FilterClass,
+        DistributedJoin.DistanceJoinFilter.class, BlockFilter.class);
+    FileInputFormat.setInputPaths(job, rIndex, sIndex);
+    InputSplit[] inputSplits = new DistributedJoin.DJInputFormatArray().getSplits(job, 1);
+    CombineFileSplit[] splits = new CombineFileSplit[inputSplits.length];
+    for (int i = 0; i < splits.length; i++)
+      splits[i] = (CombineFileSplit) inputSplits[i];
+
+    FileSystem fs = rIndex.getFileSystem(params);
+    Map<String, Long> recordCounts = new HashMap<String, Long>();
+    for (Partition p : SpatialSite.getGlobalIndex(fs, rIndex))
+      recordCounts.put("r," + p.filename, p.recordCount);
+    for (Partition p : SpatialSite.getGlobalIndex(fs, sIndex))
+      recordCounts.put("s," + p.filename, p.recordCount);
+
+    // Area of the ranges joined for each pair and the chunks of each side
+    Map<String, Long> coveredAreas = new HashMap<String, Long>();
+    Map<String, Set<Long>> rChunks = new HashMap<String, Set<Long>>();
+    Map<String, Set<Long>> sChunks = new HashMap<String, Set<Long>>();
+    for (CombineFileSplit split : splits) {
+      assertEquals(0, split.getNumPaths() % 2);
+      for (int i = 0; i < split.getNumPaths(); i += 2) {
+        String pair = split.getPath(i).getName() + "," + split.getPath(i + 1).getName();
+        Long area = coveredAreas.get(pair);
+        coveredAreas.put(pair, (area == null ? 0 : area)
+            + split.getLength(i) * split.getLength(i + 1));
+        if (!rChunks.containsKey(pair)) {
+          rChunks.put(pair, new HashSet<Long>());
+          sChunks.put(pair, new HashSet<Long>());
+        }
+        rChunks.get(pair).add(split.getOffset(i));
+        sChunks.get(pair).add(split.getOffset(i + 1));
+      }
+    }
+    assertEquals(selectPartitionPairs(params, rIndex, sIndex), coveredAreas.keySet());
+    for (Map.Entry<String, Long> entry : coveredAreas.entrySet()) {
+      String[] files = entry.getKey().split(",");
+      long rLength = fs.getFileStatus(new Path(rIndex, files[0])).getLen();
+      long sLength = fs.getFileStatus(new Path(sIndex, files[1])).getLen();
+      assertEquals(rLength * sLength, entry.getValue().longValue());
+    }
+
+    // Each sub-pair costs its share of the records of the two partitions
+    long maxCost = params.getLong(BinarySpatialInputFormat.MaxSplitCost, 0);
+    for (CombineFileSplit split : splits) {
+      double cost = 0;
+      for (int i = 0; i < split.getNumPaths(); i += 2) {
+        String rFile = split.getPath(i).getName();
+        String sFile = split.getPath(i + 1).getName();
+        String pair = rFile + "," + sFile;
+        cost += (double) recordCounts.get("r," + rFile) / rChunks.get(pair).size()
+            + (double) recordCounts.get("s," + sFile) / sChunks.get(pair).size();
+      }
+      assertTrue("Split cost "+cost+" exceeds "+maxCost, cost <= maxCost + 1E-6);
+    }
+    return splits;
+  }
+
+  public void testSpatialJoinRTreeIndexes() {
+    try {
+      OperationsParams params = new OperationsParams();
+      Rectangle[] r = writeRandomRectangles(new Path(scratchPath, "r.rects"), 1000, 50, 5);
+      Rectangle[] s = writeRandomRectangles(new Path(scratchPath, "s.rects"), 1500, 50, 6);
+
+      Path rIndex = new Path(scratchPath, "r.rtree");
+      Path sIndex = new Path(scratchPath, "s.rtree");
+      params.set("shape", "rect");
+      params.setBoolean("local", false);
+      params.setBoolean("fs.file.impl.disable.cache", true);
+      params.setLong("fs.local.block.size", 4 * 1024);
+      params.setFloat(SpatialSite.SAMPLE_RATIO, 1.0f);
+      params.set("sindex", "rtree");
+      Indexer.index(new Path(scratchPath, "r.rects"), rIndex, params);
+      Indexer.index(new Path(scratchPath, "s.rects"), sIndex, params);
+
+      long expected = 0;
+      for (Rectangle r1 : r)
+        for (Rectangle s1 : s)
+          if (r1.isIntersected(s1))
+            expected++;
+      assertTrue(expected > 0);
+
+      // Every pair is heavier than the split cost but local indexes can only
+      // be split at their boundaries
+      long maxCost = 50;
+      FileSystem fs = rIndex.getFileSystem(params);
+      for (Partition p : SpatialSite.getGlobalIndex(fs, rIndex))
+        assertTrue(p.recordCount > maxCost);
+      params.setLong(BinarySpatialInputFormat.MaxSplitCost, maxCost);
+      JobConf job = new JobConf(params, DistributedJoin.class);
+      job.setClass(SpatialSite.FilterClass,
+          DistributedJoin.SpatialJoinFilter.class, BlockFilter.class);
+      FileInputFormat.setInputPaths(job, rIndex, sIndex);
+      for (InputSplit inputSplit : new DistributedJoin.DJInputFormatArray().getSplits(job, 1)) {
+        CombineFileSplit split = (CombineFileSplit) inputSplit;
+        for (int i = 0; i < split.getNumPaths(); i++) {
+          Path file = split.getPath(i);
+          long start = split.getOffset(i);
+          long end = start + split.getLength(i);
+          FSDataInputStream in = fs.open(file);
+          long indexEnd = end;
+          while (indexEnd > start) {
+            in.seek(indexEnd - 4);
+            indexEnd -= in.readInt() + 4;
+          }
+          in.close();
+          assertEquals(start, indexEnd);
+        }
+      }
+
+      long count = DistributedJoin.joinStep(new Path[] {rIndex, sIndex},
+          new Path(scratchPath, "dj_out"), params);
+      assertEquals(expected, count);
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("Error in test!");
+    }
+  }
+
+  public void testDistanceJoinReplicatedRectangles() {
+    try {
+      OperationsParams params = new OperationsParams();
+      Rectangle[] r = writeRandomRectangles(new Path(scratchPath, "r.rects"), 600, 400, 3);
+      Rectangle[] s = writeRandomRectangles(new Path(scratchPath, "s.rects"), 800, 400, 4);
+
+      Path rIndex = new Path(scratchPath, "r.quadtree");
+      Path sIndex = new Path(scratchPath, "s.str");
+      params.set("shape", "rect");
+      params.setBoolean("local", false);
+      params.setBoolean("disjoint", true);
+      params.setBoolean("fs.file.impl.disable.cache", true);
+      params.setLong("fs.local.block.size", 4 * 1024);
+      params.setFloat(SpatialSite.SAMPLE_RATIO, 1.0f);
+      params.set("sindex", "quadtree");
+      Indexer.index(new Path(scratchPath, "r.rects"), rIndex, params);
+      params.set("sindex", "str+");
+      Indexer.index(new Path(scratchPath, "s.rects"), sIndex, params);
+
+      // Both indexes replicate the rectangles that cross partition boundaries
+      FileSystem fs = rIndex.getFileSystem(params);
+      GlobalIndex<Partition> rGIndex = SpatialSite.getGlobalIndex(fs, rIndex);
+      GlobalIndex<Partition> sGIndex = SpatialSite.getGlobalIndex(fs, sIndex);
+      assertTrue(rGIndex.isReplicated());
+      assertTrue(sGIndex.isReplicated());
+      assertTrue(countRecords(rGIndex) > r.length);
+      assertTrue(countRecords(sGIndex) > s.length);
+
+      double epsilon = 100;
+      long expected = 0;
+      for (Rectangle r1 : r)
+        for (Rectangle s1 : s)
+          if (SpatialAlgorithms.isWithinDistance(r1, s1, epsilon))
+            expected++;
+      assertTrue(expected > 0);
+
+      params.setDouble("epsilon", epsilon);
+      long count = DistributedJoin.joinStep(new Path[] {rIndex, sIndex},
+          new Path(scratchPath, "dj_out"), params);
+      assertEquals(expected, count);
+
+      // The direct join does not support distance joins
+      try {
+        DistributedJoin.repartitionJoinStep(new Path[] {rIndex, sIndex}, 0,
+            new Path(scratchPath, "dj_direct"), params);
+        fail("The direct join should reject epsilon");
+      } catch (RuntimeException e) {
+        // Expected
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("Error in test!");
+    }
+  }
+
+  /**
+   * Writes random triangles and points as WKT and returns them parsed as JTS
+   * shapes, the triangles first
+   */
+  @SuppressWarnings("unchecked")
+  private static List<OGCJTSShape>[] writeWKTPointsAndPolygons(FileSystem fs,
+      Path polygonsFile, Path pointsFile, int numPolygons, int numPoints,
+      long seed) throws IOException {
+    Random random = new Random(seed);
+    List<OGCJTSShape>[] shapes = new List[] {new ArrayList<OGCJTSShape>(),
+        new ArrayList<OGCJTSShape>()};
+    PrintStream ps = new PrintStream(fs.create(polygonsFile, true));
+    for (int i = 0; i < numPolygons; i++) {
+      // Triangles which do not fill their MBRs
+      int x = random.nextInt(1000), y = random.nextInt(1000);
+      String wkt = String.format("POLYGON((%d %d, %d %d, %d %d, %d %d))",
+          x, y, x + random.nextInt(200), y + random.nextInt(50),
+          x + random.nextInt(50), y + random.nextInt(200), x, y);
+      ps.println(wkt);
+      shapes[0].add(parseWKT(wkt));
+    }
+    ps.close();
+    ps = new PrintStream(fs.create(pointsFile, true));
+    for (int i = 0; i < numPoints; i++) {
+      String wkt = String.format("POINT(%d %d)",
+          random.nextInt(1100), random.nextInt(1100));
+      ps.println(wkt);
+      shapes[1].add(parseWKT(wkt));
+    }
+    ps.close();
+    return shapes;
+  }
+
+  private static OGCJTSShape parseWKT(String wkt) {
+    OGCJTSShape shape = new OGCJTSShape();
+    shape.fromText(new Text(wkt));
+    return shape;
+  }
+
+  public void testPointInPolygonJoin() {
+    try {
+      OperationsParams params = new OperationsParams();
+      FileSystem fs = scratchPath.getFileSystem(params);
+      Path polygonsFile = new Path(scratchPath, "polygons.wkt");
+      Path pointsFile = new Path(scratchPath, "points.wkt");
+      List<OGCJTSShape>[] shapes = writeWKTPointsAndPolygons(fs, polygonsFile,
+          pointsFile, 100, 3000, 5);
+      List<OGCJTSShape> polygons = shapes[0], points = shapes[1];
+      // Both files are parsed with the same shape class
+      assertTrue(SpatialAlgorithms.isPointInPolygonJoin(polygons, points));
+      assertFalse(SpatialAlgorithms.isPointInPolygonJoin(polygons, polygons));
+      long expected = 0;
+      for (OGCJTSShape polygon : polygons)
+        for (OGCJTSShape point : points)
+          if (polygon.geom.intersects(point.geom))
+            expected++;
+      assertTrue(expected > 0);
+
+      Path polygonsIndex = new Path(scratchPath, "polygons.str");
+      Path pointsIndex = new Path(scratchPath, "points.str");
+      params.set("shape", "wkt");
+      params.setBoolean("local", false);
+      params.setBoolean("fs.file.impl.disable.cache", true);
+      params.setLong("fs.local.block.size", 4 * 1024);
+      params.setFloat(SpatialSite.SAMPLE_RATIO, 1.0f);
+      params.set("sindex", "str");
+      Indexer.index(polygonsFile, polygonsIndex, params);
+      Indexer.index(pointsFile, pointsIndex, params);
+      assertTrue(SpatialSite.getGlobalIndex(fs, pointsIndex).size() > 1);
+
+      long count = DistributedJoin.joinStep(new Path[] {polygonsIndex, pointsIndex},
+          new Path(scratchPath, "dj_pip"), params);
+      assertEquals(expected, count);
+
+      count = SJMR.sjmr(new Path[] {pointsFile, polygonsFile},
+          new Path(scratchPath, "sjmr_pip"), params);
+      assertEquals(expected, count);
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("Error in test!");
+    }
+  }
+
+  public void testJoinBlocksCachesPreparedPolygons() throws IOException {
+    FileSystem fs = scratchPath.getFileSystem(new OperationsParams());
+    List<OGCJTSShape>[] shapes = writeWKTPointsAndPolygons(fs,
+        new Path(scratchPath, "polygons.wkt"), new Path(scratchPath, "points.wkt"),
+        20, 500, 6);
+    List<Shape> polygons = new ArrayList<Shape>(shapes[0]);
+    List<Shape> points = new ArrayList<Shape>(shapes[1]);
+    Map<Shape, PreparedGeometry> cache = new IdentityHashMap<Shape, PreparedGeometry>();
+    int count = DistributedJoin.joinBlocks(polygons, points, cache, null, null);
+    assertTrue(count > 0);
+    assertFalse(cache.isEmpty());
+    for (Shape polygon : cache.keySet())
+      assertTrue(polygons.contains(polygon));
+    // The points block changes with each call so its polygons are not cached
+    cache.clear();
+    assertEquals(count, DistributedJoin.joinBlocks(points, polygons, cache, null, null));
+    assertTrue(cache.isEmpty());
+  }
+
+  private static long countRecords(GlobalIndex<Partition> gIndex) {
+    long count = 0;
+    for (Partition p : gIndex)
+      count += p.recordCount;
+    return count;
+  }
+}
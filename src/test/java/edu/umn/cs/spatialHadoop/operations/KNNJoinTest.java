@@ -0,0 +1,237 @@
+package edu.umn.cs.spatialHadoop.operations;
+
+import edu.umn.cs.spatialHadoop.BaseTest;
+import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.CellInfo;
+import edu.umn.cs.spatialHadoop.core.Point;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.ResultCollector2;
+import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.core.SpatialSite;
+import edu.umn.cs.spatialHadoop.indexing.GlobalIndex;
+import edu.umn.cs.spatialHadoop.indexing.Indexer;
+import edu.umn.cs.spatialHadoop.indexing.Partition;
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.LineReader;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit test for the {@link KNNJoin} class
+ */
+public class KNNJoinTest extends BaseTest {
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public KNNJoinTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(KNNJoinTest.class);
+  }
+
+  public void testRectangleDistances() {
+    Rectangle a = new Rectangle(0, 0, 2, 2);
+    Rectangle b = new Rectangle(5, 6, 7, 8);
+    assertEquals(5.0, KNNJoin.minDistance(a, b), 1E-9);
+    assertEquals(Math.sqrt(49 + 64), KNNJoin.maxDistance(a, b), 1E-9);
+    assertEquals(0.0, KNNJoin.minDistance(a, new Rectangle(1, 1, 3, 3)), 1E-9);
+  }
+
+  public void testKthDistanceBound() {
+    Partition[] partitions = {
+        new Partition("a", new CellInfo(1, 0, 0, 5, 5)),
+        new Partition("b", new CellInfo(2, 5, 0, 10, 5)),
+        new Partition("c", new CellInfo(3, 20, 20, 30, 30)),
+    };
+    for (Partition p : partitions)
+      p.recordCount = 10;
+    GlobalIndex<Partition> gIndex = new GlobalIndex<Partition>();
+    gIndex.bulkLoad(partitions);
+    Rectangle r = new Rectangle(0, 0, 1, 1);
+    assertEquals(Math.sqrt(50), KNNJoin.kthDistanceBound(r, gIndex, 10), 1E-9);
+    assertEquals(Math.sqrt(125), KNNJoin.kthDistanceBound(r, gIndex, 11), 1E-9);
+    assertTrue(Double.isInfinite(KNNJoin.kthDistanceBound(r, gIndex, 31)));
+  }
+
+  public void testKNNJoinBatchReadsReferencePartition() {
+    try {
+      OperationsParams params = new OperationsParams();
+      params.set("shape", "wkt");
+      FileSystem fs = scratchPath.getFileSystem(params);
+      Path sPath = new Path(scratchPath, "s.wkt");
+      fs.mkdirs(sPath);
+      // The polygon is replicated to both partitions and its reference point
+      // (-3, -3) lies in partition "b" which is outside the L2 bound of the
+      // query point but overlaps the search window
+      String polygon = "POLYGON((-3 -3, 9 -3, 9 9, -3 9, -3 -3))";
+      String far = "POLYGON((18 18, 19 18, 19 19, 18 19, 18 18))";
+      writeLines(fs, new Path(sPath, "a"), polygon, far);
+      writeLines(fs, new Path(sPath, "b"), polygon);
+      Partition[] partitions = {
+          new Partition("a", new CellInfo(1, 0, 0, 20, 20)),
+          new Partition("b", new CellInfo(2, -20, -20, -2, -2)),
+      };
+      partitions[0].recordCount = 2;
+      partitions[1].recordCount = 1;
+      GlobalIndex<Partition> sIndex = new GlobalIndex<Partition>();
+      sIndex.bulkLoad(partitions);
+      sIndex.setReplicated(true);
+
+      List<Shape> r = new ArrayList<Shape>();
+      r.add(new Point(10, 10));
+      final List<Double> distances = new ArrayList<Double>();
+      KNNJoin.knnJoinBatch(r, sPath, sIndex, 1, params,
+          new ResultCollector2<Shape, KNN.ShapeWithDistance<Shape>>() {
+        @Override
+        public void collect(Shape r, KNN.ShapeWithDistance<Shape> s) {
+          distances.add(s.distance);
+        }
+      });
+      assertEquals(1, distances.size());
+      assertEquals(Math.sqrt(2), distances.get(0), 1E-9);
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("Error in test!");
+    }
+  }
+
+  private static void writeLines(FileSystem fs, Path file, String... lines)
+      throws IOException {
+    PrintStream ps = new PrintStream(fs.create(file, true));
+    for (String line : lines)
+      ps.println(line);
+    ps.close();
+  }
+
+  /**
+   * Reads the output of the kNN join as a map from each record in R to the
+   * sorted distances of its neighbors
+   */
+  private Map<String, List<Double>> readResults(FileSystem fs, Path path)
+      throws IOException {
+    Map<String, List<Double>> results = new HashMap<String, List<Double>>();
+    FileStatus[] files = fs.isDirectory(path) ?
+        fs.listStatus(path) : new FileStatus[] {fs.getFileStatus(path)};
+    for (FileStatus file : files) {
+      String name = file.getPath().getName();
+      if (name.startsWith("_") || name.startsWith("."))
+        continue;
+      LineReader reader = new LineReader(fs.open(file.getPath()));
+      Text line = new Text();
+      while (reader.readLine(line) > 0) {
+        String[] parts = line.toString().split("\t");
+        List<Double> distances = results.get(parts[0]);
+        if (distances == null)
+          results.put(parts[0], distances = new ArrayList<Double>());
+        distances.add(Double.parseDouble(parts[1].substring(0, parts[1].indexOf(','))));
+      }
+      reader.close();
+    }
+    return results;
+  }
+
+  private void assertKNNJoin(Shape[] r, Shape[] s, int k,
+      Map<String, List<Double>> results) {
+    assertEquals(r.length, results.size());
+    double[] distances = new double[s.length];
+    for (Shape q : r) {
+      // The neighbors of a record are computed from the center of its MBR
+      Point p = q.getMBR().getCenterPoint();
+      for (int i = 0; i < s.length; i++)
+        distances[i] = s[i].distanceTo(p.x, p.y);
+      Arrays.sort(distances);
+      List<Double> actual = results.get(q.toText(new Text()).toString());
+      assertNotNull(actual);
+      assertEquals(k, actual.size());
+      for (int i = 0; i < k; i++)
+        assertEquals(distances[i], actual.get(i), 1E-6);
+    }
+  }
+
+  public void testKNNJoin() {
+    try {
+      OperationsParams params = new OperationsParams();
+      FileSystem fs = scratchPath.getFileSystem(params);
+      Point[] r = writeRandomPoints(new Path(scratchPath, "r.points"), 300, 1);
+      Point[] s = writeRandomPoints(new Path(scratchPath, "s.points"), 2000, 2);
+
+      Path rIndex = new Path(scratchPath, "r.rtree");
+      Path sIndex = new Path(scratchPath, "s.rtree");
+      params.set("shape", "point");
+      params.set("sindex", "rtree");
+      params.setBoolean("local", false);
+      Indexer.index(new Path(scratchPath, "r.points"), rIndex, params);
+      Indexer.index(new Path(scratchPath, "s.points"), sIndex, params);
+
+      int k = 4;
+      params.setInt("k", k);
+      Path localOut = new Path(scratchPath, "knnj_local");
+      params.setBoolean("local", true);
+      assertEquals((long) r.length * k, KNNJoin.knnJoin(rIndex, sIndex, localOut, params));
+      assertKNNJoin(r, s, k, readResults(fs, localOut));
+
+      Path mrOut = new Path(scratchPath, "knnj_mr");
+      params.setBoolean("local", false);
+      assertEquals((long) r.length * k, KNNJoin.knnJoin(rIndex, sIndex, mrOut, params));
+      assertKNNJoin(r, s, k, readResults(fs, mrOut));
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("Error in test!");
+    }
+  }
+
+  public void testKNNJoinReplicatedRectangles() {
+    try {
+      OperationsParams params = new OperationsParams();
+      FileSystem fs = scratchPath.getFileSystem(params);
+      Rectangle[] r = writeRandomRectangles(new Path(scratchPath, "r.rects"), 200, 50, 3);
+      Rectangle[] s = writeRandomRectangles(new Path(scratchPath, "s.rects"), 1000, 300, 4);
+
+      Path rIndex = new Path(scratchPath, "r.rtree");
+      Path sIndex = new Path(scratchPath, "s.quadtree");
+      params.set("shape", "rect");
+      params.setBoolean("local", false);
+      params.set("sindex", "rtree");
+      Indexer.index(new Path(scratchPath, "r.rects"), rIndex, params);
+      // Replicate the rectangles of S to all overlapping partitions
+      params.set("sindex", "quadtree");
+      params.setBoolean("disjoint", true);
+      params.setBoolean("fs.file.impl.disable.cache", true);
+      params.setLong("fs.local.block.size", 4 * 1024);
+      Indexer.index(new Path(scratchPath, "s.rects"), sIndex, params);
+      GlobalIndex<Partition> sGIndex = SpatialSite.getGlobalIndex(fs, sIndex);
+      assertTrue(sGIndex.isReplicated());
+      assertTrue(sGIndex.size() > 1);
+
+      int k = 3;
+      params.setInt("k", k);
+      Path localOut = new Path(scratchPath, "knnj_local");
+      params.setBoolean("local", true);
+      assertEquals((long) r.length * k, KNNJoin.knnJoin(rIndex, sIndex, localOut, params));
+      assertKNNJoin(r, s, k, readResults(fs, localOut));
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("Error in test!");
+    }
+  }
+}
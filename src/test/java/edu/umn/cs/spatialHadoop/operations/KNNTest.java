@@ -2,14 +2,26 @@ package edu.umn.cs.spatialHadoop.operations;
 
 import edu.umn.cs.spatialHadoop.BaseTest;
 import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.CellInfo;
+import edu.umn.cs.spatialHadoop.core.Point;
+import edu.umn.cs.spatialHadoop.core.SpatialSite;
+import edu.umn.cs.spatialHadoop.indexing.GlobalIndex;
 import edu.umn.cs.spatialHadoop.indexing.Indexer;
+import edu.umn.cs.spatialHadoop.indexing.Partition;
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.util.LineReader;
+import org.apache.hadoop.io.Text;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Unit test for {@link LocalSampler} class.
@@ -54,4 +66,98 @@ public class KNNTest extends BaseTest {
       fail("Error while indexing");
     }
   }
+
+  public void testKthDistanceBound() {
+    Partition[] partitions = {
+        new Partition("a", new CellInfo(1, 0, 0, 5, 5)),
+        new Partition("b", new CellInfo(2, 5, 0, 10, 5)),
+        new Partition("c", new CellInfo(3, 0, 5, 5, 10)),
+        new Partition("d", new CellInfo(4, 5, 5, 10, 10)),
+    };
+    GlobalIndex<Partition> gIndex = new GlobalIndex<Partition>();
+    gIndex.bulkLoad(partitions);
+    // Without record counts the bound cannot be computed
+    assertTrue(KNN.kthDistanceBound(gIndex, 1, 1, 5) < 0);
+
+    for (Partition p : partitions)
+      p.recordCount = 10;
+    gIndex.bulkLoad(partitions);
+    assertEquals(Math.sqrt(32), KNN.kthDistanceBound(gIndex, 1, 1, 5), 1E-9);
+    assertEquals(Math.sqrt(97), KNN.kthDistanceBound(gIndex, 1, 1, 15), 1E-9);
+    // More than the total number of records needs all partitions
+    assertEquals(Math.sqrt(162), KNN.kthDistanceBound(gIndex, 1, 1, 100), 1E-9);
+  }
+
+  private double[] readDistances(FileSystem fs, Path path) throws IOException {
+    List<Double> distances = new ArrayList<Double>();
+    FileStatus[] files = fs.isDirectory(path) ?
+        fs.listStatus(path) : new FileStatus[] {fs.getFileStatus(path)};
+    for (FileStatus file : files) {
+      if (file.getPath().getName().startsWith("_") ||
+          file.getPath().getName().startsWith("."))
+        continue;
+      LineReader reader = new LineReader(fs.open(file.getPath()));
+      Text line = new Text();
+      while (reader.readLine(line) > 0) {
+        String str = line.toString();
+        distances.add(Double.parseDouble(str.substring(0, str.indexOf(','))));
+      }
+      reader.close();
+    }
+    double[] result = new double[distances.size()];
+    for (int i = 0; i < result.length; i++)
+      result[i] = distances.get(i);
+    Arrays.sort(result);
+    return result;
+  }
+
+  public void testKNNMatchesBruteForce() {
+    try {
+      OperationsParams params = new OperationsParams();
+      Path inputFile = new Path(scratchPath, "random.points");
+      FileSystem fs = inputFile.getFileSystem(params);
+      Point[] points = writeRandomPoints(inputFile, 1000, 0);
+      Path indexPath = new Path(scratchPath, "index");
+      params.set("shape", "point");
+      params.set("sindex", "rtree");
+      params.setBoolean("local", false);
+      // Use a small block size to index the points into several partitions
+      params.setBoolean("fs.file.impl.disable.cache", true);
+      params.setLong("fs.local.block.size", 2 * 1024);
+      Indexer.index(inputFile, indexPath, params);
+      assertTrue(SpatialSite.getGlobalIndex(fs, indexPath).size() > 1);
+
+      Point query = new Point(7000, 3000);
+      int k = 10;
+      double[] expected = new double[points.length];
+      for (int i = 0; i < points.length; i++)
+        expected[i] = points[i].distanceTo(query.x, query.y);
+      Arrays.sort(expected);
+      expected = Arrays.copyOf(expected, k);
+
+      params.set("point", "7000,3000");
+      params.setInt("k", k);
+      Path localOut = new Path(scratchPath, "knn_local");
+      params.setBoolean("local", true);
+      KNN.knn(indexPath, localOut, params);
+      double[] actual = readDistances(fs, localOut);
+      assertEquals(k, actual.length);
+      for (int i = 0; i < k; i++)
+        assertEquals(expected[i], actual[i], 1E-6);
+
+      // The query is planned from the global index so it runs a single job
+      Path mrOut = new Path(scratchPath, "knn_mr");
+      params.setBoolean("local", false);
+      int iterationsBefore = KNN.TotalIterations.get();
+      KNN.knn(indexPath, mrOut, params);
+      assertEquals(1, KNN.TotalIterations.get() - iterationsBefore);
+      actual = readDistances(fs, mrOut);
+      assertEquals(k, actual.length);
+      for (int i = 0; i < k; i++)
+        assertEquals(expected[i], actual[i], 1E-6);
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("Error in test!");
+    }
+  }
 }
@@ -3,6 +3,7 @@ package edu.umn.cs.spatialHadoop.operations;
 import edu.umn.cs.spatialHadoop.OperationsParams;
 import edu.umn.cs.spatialHadoop.TestHelper;
 import edu.umn.cs.spatialHadoop.core.*;
+import edu.umn.cs.spatialHadoop.indexing.ColumnarLocalIndex;
 import edu.umn.cs.spatialHadoop.indexing.LocalIndex;
 import edu.umn.cs.spatialHadoop.indexing.RRStarLocalIndex;
 import edu.umn.cs.spatialHadoop.indexing.RRStarTree;
@@ -87,4 +88,36 @@ public class LocalSamplerTest extends TestCase {
     }*/
   }
 
+  public void testSampleColumnarIndex() {
+    String colsExtension = ColumnarLocalIndex.class.getAnnotation(LocalIndex.LocalIndexMetadata.class).extension();
+    Path colsFile = new Path("temp."+colsExtension);
+    try {
+      OperationsParams params = new OperationsParams();
+      params.setInt(ColumnarLocalIndex.BlockSize, 8);
+      ColumnarLocalIndex localIndexer = new ColumnarLocalIndex();
+      localIndexer.setup(params);
+      localIndexer.buildLocalIndex(new File("src/test/resources/test111.points"),
+          colsFile, new Point());
+      final Rectangle mbr = new Rectangle(-180, -90, 180, 90);
+      ResultCollector<Text> checker = new ResultCollector<Text>() {
+        @Override
+        public void collect(Text r) {
+          Point pt = new Point();
+          pt.fromText(r);
+          assertTrue("Incorrect point "+pt, mbr.contains(pt));
+        }
+      };
+
+      // The data section is binary and has to be read through the index
+      assertEquals(111, LocalSampler.sampleLocal(new Path[] {colsFile}, 1.0f, checker, params));
+      assertEquals(10, LocalSampler.sampleLocal(new Path[] {colsFile}, 10, checker, params));
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("Error in test!");
+    } finally {
+      new File(colsFile.toString()).delete();
+      new File("."+colsFile.getName()+".crc").delete();
+    }
+  }
+
 }
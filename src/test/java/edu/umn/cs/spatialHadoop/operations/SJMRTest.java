@@ -32,6 +32,23 @@ public class SJMRTest extends BaseTest {
     assertEquals(14, results.length);
   }
 
+  public void testSjmrParallel() throws IOException, InterruptedException {
+    Path inFile = new Path("src/test/resources/test.rect");
+    Path inFile1 = new Path(scratchPath, "file1");
+    Path inFile2 = new Path(scratchPath, "file2");
+    Path outFile = new Path(scratchPath, "sjmrout");
+
+    OperationsParams params = new OperationsParams();
+    params.setInt("parallel", 4);
+    FileSystem fs = inFile.getFileSystem(params);
+    fs.copyToLocalFile(inFile, inFile1);
+    fs.copyToLocalFile(inFile, inFile2);
+    params.setClass("shape", Rectangle.class, Shape.class);
+    SJMR.sjmr(new Path[]{inFile1, inFile2}, outFile, params);
+    String[] results = readTextFile(outFile.toString());
+    assertEquals(14, results.length);
+  }
+
   public void testSjmrWithSTRPartitioner() throws IOException, InterruptedException {
     Path inFile = new Path("src/test/resources/test.rect");
     Path inFile1 = new Path(scratchPath, "file1");
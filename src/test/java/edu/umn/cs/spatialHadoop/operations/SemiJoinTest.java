@@ -0,0 +1,96 @@
+package edu.umn.cs.spatialHadoop.operations;
+
+import edu.umn.cs.spatialHadoop.BaseTest;
+import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.Point;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.SpatialSite;
+import edu.umn.cs.spatialHadoop.indexing.Indexer;
+import junit.framework.Test;
+import junit.framework.TestSuite;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Unit test for the {@link SemiJoin} class
+ */
+public class SemiJoinTest extends BaseTest {
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public SemiJoinTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(SemiJoinTest.class);
+  }
+
+  private Set<String> readLines(Path path) throws IOException {
+    return new HashSet<String>(Arrays.asList(readTextFile(path.toString())));
+  }
+
+  public void testSemiJoin() {
+    try {
+      OperationsParams params = new OperationsParams();
+      Path rFile = new Path(scratchPath, "r.points");
+      Path sFile = new Path(scratchPath, "s.rects");
+      Point[] r = writeRandomPoints(rFile, 2000, 1);
+      Rectangle[] s = writeRandomRectangles(sFile, 300, 500, 2);
+
+      // Compute the expected results with a direct containment test of the
+      // coordinates rather than the predicate used by the semi-join
+      Set<String> expectedSemi = new HashSet<String>();
+      Set<String> expectedAnti = new HashSet<String>();
+      for (Point p : r) {
+        boolean matched = false;
+        for (Rectangle rect : s)
+          matched |= rect.contains(p.x, p.y);
+        (matched ? expectedSemi : expectedAnti).add(p.toText(new Text()).toString());
+      }
+      assertTrue(expectedSemi.size() > 0);
+      assertTrue(expectedAnti.size() > 0);
+
+      // Index S into several partitions
+      Path sIndex = new Path(scratchPath, "s.str");
+      params.setBoolean("fs.file.impl.disable.cache", true);
+      params.setLong("fs.local.block.size", 2 * 1024);
+      params.setFloat(SpatialSite.SAMPLE_RATIO, 1.0f);
+      params.set("shape", "rect");
+      params.set("sindex", "str");
+      Indexer.index(sFile, sIndex, params);
+      assertTrue(SpatialSite.getGlobalIndex(sIndex.getFileSystem(params), sIndex).size() > 1);
+
+      params = new OperationsParams();
+      params.set("shape", "point");
+      params.set("sshape", "rect");
+      for (boolean local : new boolean[] {true, false}) {
+        params.setBoolean("local", local);
+        params.setBoolean("anti", false);
+        Path semiOut = new Path(scratchPath, "semi_" + local);
+        assertEquals(expectedSemi.size(), SemiJoin.semiJoin(rFile, sIndex, semiOut, params));
+        assertEquals(expectedSemi, readLines(semiOut));
+
+        params.setBoolean("anti", true);
+        Path antiOut = new Path(scratchPath, "anti_" + local);
+        assertEquals(expectedAnti.size(), SemiJoin.semiJoin(rFile, sIndex, antiOut, params));
+        assertEquals(expectedAnti, readLines(antiOut));
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("Error in test!");
+    }
+  }
+}
@@ -0,0 +1,122 @@
+package edu.umn.cs.spatialHadoop.util;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit test for the {@link Parallel} class
+ */
+public class ParallelTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public ParallelTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(ParallelTest.class);
+  }
+
+  public void testRangesCoverInputInOrder() throws InterruptedException {
+    final int size = 100000;
+    List<int[]> ranges = Parallel.forEach(size, new Parallel.RunnableRange<int[]>() {
+      @Override
+      public int[] run(int i1, int i2) {
+        return new int[] {i1, i2};
+      }
+    }, 8);
+    assertTrue(ranges.size() >= 1);
+    assertTrue(ranges.size() <= 8 * 4 + 1);
+    int expectedStart = 0;
+    for (int[] range : ranges) {
+      assertEquals(expectedStart, range[0]);
+      assertTrue(range[1] > range[0]);
+      expectedStart = range[1];
+    }
+    assertEquals(size, expectedStart);
+  }
+
+  public void testSkewedWork() throws InterruptedException {
+    final int size = 1000;
+    List<Long> results = Parallel.forEach(size, new Parallel.RunnableRange<Long>() {
+      @Override
+      public Long run(int i1, int i2) {
+        long total = 0;
+        for (int i = i1; i < i2; i++) {
+          // The first few items are much more expensive than the rest
+          if (i < 10) {
+            try {
+              Thread.sleep(20);
+            } catch (InterruptedException e) {
+              throw new RuntimeException(e);
+            }
+          }
+          total += i;
+        }
+        return total;
+      }
+    }, 4);
+    long sum = 0;
+    for (long result : results)
+      sum += result;
+    assertEquals((long) size * (size - 1) / 2, sum);
+  }
+
+  public void testExceptionPropagation() throws InterruptedException {
+    final AtomicInteger numRanges = new AtomicInteger();
+    try {
+      Parallel.forEach(1000, new Parallel.RunnableRange<Object>() {
+        @Override
+        public Object run(int i1, int i2) {
+          numRanges.incrementAndGet();
+          if (i1 == 0)
+            throw new IllegalStateException("Expected error");
+          return null;
+        }
+      }, 4);
+      fail("The error should be propagated to the caller");
+    } catch (RuntimeException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+  }
+
+  public void testNestedCalls() throws InterruptedException {
+    List<Integer> results = Parallel.forEach(10, new Parallel.RunnableRange<Integer>() {
+      @Override
+      public Integer run(int i1, int i2) {
+        int total = 0;
+        for (int i = i1; i < i2; i++) {
+          try {
+            List<Integer> counts = Parallel.forEach(100, new Parallel.RunnableRange<Integer>() {
+              @Override
+              public Integer run(int j1, int j2) {
+                return j2 - j1;
+              }
+            }, 4);
+            for (int count : counts)
+              total += count;
+          } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+          }
+        }
+        return total;
+      }
+    }, 4);
+    int total = 0;
+    for (int result : results)
+      total += result;
+    assertEquals(1000, total);
+  }
+}
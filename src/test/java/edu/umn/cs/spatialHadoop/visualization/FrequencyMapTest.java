@@ -0,0 +1,126 @@
+package edu.umn.cs.spatialHadoop.visualization;
+
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Unit test for the {@link FrequencyMap} class
+ */
+public class FrequencyMapTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public FrequencyMapTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(FrequencyMapTest.class);
+  }
+
+  private FrequencyMap writeAndRead(FrequencyMap map) throws IOException {
+    DataOutputBuffer out = new DataOutputBuffer();
+    map.write(out);
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(out.getData(), out.getLength());
+    FrequencyMap readMap = new FrequencyMap();
+    readMap.readFields(in);
+    assertEquals(out.getLength(), in.getPosition());
+    return readMap;
+  }
+
+  public void testAddPointAndWriteRead() throws IOException {
+    FrequencyMap map = new FrequencyMap(new Rectangle(0, 0, 200, 150), 200, 150,
+        3, FrequencyMap.SmoothType.Flat);
+    map.addPoint(10, 10);
+    map.addPoint(10, 10);
+    map.addPoint(199, 149);
+    assertEquals(2.0f, map.getFrequency(10, 10));
+    assertEquals(2.0f, map.getFrequency(11, 11));
+    assertEquals(0.0f, map.getFrequency(100, 100));
+    assertEquals(1.0f, map.getFrequency(199, 149));
+
+    FrequencyMap readMap = writeAndRead(map);
+    assertEquals(map.getWidth(), readMap.getWidth());
+    assertEquals(map.getHeight(), readMap.getHeight());
+    for (int x = 0; x < map.getWidth(); x++)
+      for (int y = 0; y < map.getHeight(); y++)
+        assertEquals(map.getFrequency(x, y), readMap.getFrequency(x, y));
+  }
+
+  public void testEmptyMapIsCompact() throws IOException {
+    FrequencyMap map = new FrequencyMap(new Rectangle(0, 0, 1, 1), 1000, 1000,
+        5, FrequencyMap.SmoothType.Gaussian);
+    DataOutputBuffer out = new DataOutputBuffer();
+    map.write(out);
+    assertTrue(out.getLength() < 100);
+  }
+
+  public void testMergeWithOffset() {
+    FrequencyMap map = new FrequencyMap(new Rectangle(0, 0, 200, 150), 200, 150,
+        3, FrequencyMap.SmoothType.Flat);
+    FrequencyMap another = new FrequencyMap(new Rectangle(50, 30, 150, 130), 100, 100,
+        3, FrequencyMap.SmoothType.Flat);
+    Random random = new Random(0);
+    for (int i = 0; i < 100; i++)
+      another.addPoint(random.nextInt(100), random.nextInt(100));
+    map.addPoint(60, 40);
+    float[][] expected = new float[map.getWidth()][map.getHeight()];
+    for (int x = 0; x < map.getWidth(); x++)
+      for (int y = 0; y < map.getHeight(); y++)
+        expected[x][y] = map.getFrequency(x, y);
+    for (int x = 0; x < another.getWidth(); x++)
+      for (int y = 0; y < another.getHeight(); y++)
+        expected[x + 50][y + 30] += another.getFrequency(x, y);
+
+    map.mergeWith(another);
+    for (int x = 0; x < map.getWidth(); x++)
+      for (int y = 0; y < map.getHeight(); y++)
+        assertEquals(expected[x][y], map.getFrequency(x, y));
+  }
+
+  public void testReadDenseFormat() throws IOException {
+    // Frequency maps written as dense compressed arrays can still be read
+    int width = 70, height = 10;
+    DataOutputBuffer out = new DataOutputBuffer();
+    new Rectangle(0, 0, width, height).write(out);
+    out.writeInt(width);
+    out.writeInt(height);
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    DataOutputStream gzos = new DataOutputStream(new GZIPOutputStream(baos));
+    gzos.writeInt(width);
+    gzos.writeInt(height);
+    for (int x = 0; x < width; x++)
+      for (int y = 0; y < height; y++)
+        gzos.writeFloat(x == y ? x : 0);
+    gzos.close();
+    out.writeInt(baos.size());
+    out.write(baos.toByteArray());
+
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(out.getData(), out.getLength());
+    FrequencyMap map = new FrequencyMap();
+    map.readFields(in);
+    assertEquals(width, map.getWidth());
+    for (int x = 0; x < width; x++)
+      for (int y = 0; y < height; y++)
+        assertEquals(x == y ? (float) x : 0.0f, map.getFrequency(x, y));
+  }
+}
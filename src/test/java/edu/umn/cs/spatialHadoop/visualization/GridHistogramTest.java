@@ -0,0 +1,68 @@
+package edu.umn.cs.spatialHadoop.visualization;
+
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the {@link GridHistogram} class
+ */
+public class GridHistogramTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public GridHistogramTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(GridHistogramTest.class);
+  }
+
+  public void testAddPoint() {
+    Rectangle space = new Rectangle(0, 0, 100, 100);
+    GridHistogram h = new GridHistogram(10, 10);
+    h.addPoint(space, 5, 5, 3);
+    h.addPoint(space, 95, 15, 4);
+    // Points on or outside the boundaries go to the nearest cell
+    h.addPoint(space, 100, 100, 5);
+    h.addPoint(space, -10, 50, 6);
+    assertEquals(3, h.getSum(0, 0, 1, 1));
+    assertEquals(4, h.getSum(9, 1, 1, 1));
+    assertEquals(5, h.getSum(9, 9, 1, 1));
+    assertEquals(6, h.getSum(0, 5, 1, 1));
+    assertEquals(18, h.getSum(0, 0, 10, 10));
+  }
+
+  public void testMergeAligned() {
+    Rectangle space = new Rectangle(0, 0, 100, 100);
+    GridHistogram fine = new GridHistogram(10, 10);
+    for (int x = 0; x < 100; x += 10)
+      for (int y = 0; y < 100; y += 10)
+        fine.addPoint(space, x + 1, y + 1, 1);
+
+    // A coarser histogram that covers a larger space
+    Rectangle largerSpace = new Rectangle(0, 0, 200, 200);
+    GridHistogram coarse = new GridHistogram(4, 4);
+    coarse.mergeAligned(largerSpace, fine, space);
+    assertEquals(100, coarse.getSum(0, 0, 4, 4));
+    assertEquals(25, coarse.getSum(0, 0, 1, 1));
+    assertEquals(25, coarse.getSum(1, 1, 1, 1));
+    assertEquals(0, coarse.getSum(2, 0, 2, 4));
+
+    // Histograms with the same space and resolution are merged directly
+    GridHistogram same = new GridHistogram(10, 10);
+    same.mergeAligned(space, fine, space);
+    same.computePrefixSums();
+    assertEquals(100, same.getSumOrderOne(0, 0, 10, 10));
+    assertEquals(4, same.getSumOrderOne(8, 8, 2, 2));
+  }
+}
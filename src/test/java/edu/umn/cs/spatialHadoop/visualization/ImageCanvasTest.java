@@ -0,0 +1,102 @@
+package edu.umn.cs.spatialHadoop.visualization;
+
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Unit test for the {@link ImageCanvas} class
+ */
+public class ImageCanvasTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public ImageCanvasTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(ImageCanvasTest.class);
+  }
+
+  private ImageCanvas writeAndRead(ImageCanvas canvas) throws IOException {
+    DataOutputBuffer out = new DataOutputBuffer();
+    canvas.write(out);
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(out.getData(), out.getLength());
+    ImageCanvas readCanvas = new ImageCanvas();
+    readCanvas.readFields(in);
+    assertEquals(out.getLength(), in.getPosition());
+    return readCanvas;
+  }
+
+  private void assertSamePixels(BufferedImage expected, BufferedImage actual) {
+    assertEquals(expected.getWidth(), actual.getWidth());
+    assertEquals(expected.getHeight(), actual.getHeight());
+    for (int y = 0; y < expected.getHeight(); y++)
+      for (int x = 0; x < expected.getWidth(); x++)
+        assertEquals(expected.getRGB(x, y), actual.getRGB(x, y));
+  }
+
+  public void testWriteReadRaw() throws IOException {
+    ImageCanvas canvas = new ImageCanvas(new Rectangle(0, 0, 100, 100), 100, 80);
+    BufferedImage img = canvas.getImage();
+    // A mostly empty image with a filled region and some random pixels
+    for (int y = 10; y < 20; y++)
+      for (int x = 30; x < 60; x++)
+        img.setRGB(x, y, Color.BLUE.getRGB());
+    Random random = new Random(0);
+    for (int i = 0; i < 500; i++)
+      img.setRGB(random.nextInt(100), random.nextInt(80), random.nextInt());
+    img.setRGB(99, 79, Color.RED.getRGB());
+
+    ImageCanvas readCanvas = writeAndRead(canvas);
+    assertTrue(canvas.getInputMBR().equals(readCanvas.getInputMBR()));
+    assertSamePixels(img, readCanvas.getImage());
+  }
+
+  public void testEmptyImageIsCompact() throws IOException {
+    ImageCanvas canvas = new ImageCanvas(new Rectangle(0, 0, 1, 1), 1000, 1000);
+    DataOutputBuffer out = new DataOutputBuffer();
+    canvas.write(out);
+    assertTrue(out.getLength() < 100);
+    assertSamePixels(canvas.getImage(), writeAndRead(canvas).getImage());
+  }
+
+  public void testReadPNG() throws IOException {
+    // Canvases written as PNG images can still be read
+    ImageCanvas canvas = new ImageCanvas(new Rectangle(0, 0, 10, 10), 10, 10);
+    canvas.getImage().setRGB(3, 4, Color.GREEN.getRGB());
+    DataOutputBuffer out = new DataOutputBuffer();
+    canvas.getInputMBR().getMBR().write(out);
+    out.writeInt(canvas.getWidth());
+    out.writeInt(canvas.getHeight());
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    ImageIO.write(canvas.getImage(), "png", baos);
+    out.writeInt(baos.size());
+    out.write(baos.toByteArray());
+
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(out.getData(), out.getLength());
+    ImageCanvas readCanvas = new ImageCanvas();
+    readCanvas.readFields(in);
+    assertSamePixels(canvas.getImage(), readCanvas.getImage());
+  }
+}